@@ -0,0 +1,19 @@
+package com.rpl.rama.helpers;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Runs benchmarks with the GC profiler enabled so allocation rates are reported alongside timings. Accepts the same
+ * arguments as the JMH command line, such as a regex selecting benchmarks to run.
+ */
+public class BenchmarkRunner {
+  public static void main(String[] args) throws Exception {
+    Options options = new OptionsBuilder()
+                        .parent(new CommandLineOptions(args))
+                        .addProfiler(GCProfiler.class)
+                        .build();
+    new Runner(options).run();
+  }
+}
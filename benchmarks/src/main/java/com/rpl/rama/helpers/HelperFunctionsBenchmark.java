@@ -0,0 +1,45 @@
+package com.rpl.rama.helpers;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Pure Java functions that run for every event processed by the helpers. Scheduling keys of {@link TopologyScheduler}
+ * are measured through its macros by the "scheduler" scenario of {@link com.rpl.rama.helpers.load.LoadTest}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HelperFunctionsBenchmark {
+  private Long _id;
+  private Long _id1;
+  private Integer _maxAmt;
+  private Integer _taskId;
+
+  @Setup
+  public void setup() {
+    _id = Long.MAX_VALUE - 1000;
+    _id1 = 123456L;
+    _maxAmt = 100;
+    _taskId = 17;
+  }
+
+  @Benchmark
+  public Long computeDropIdFixedItems() {
+    return KeyToFixedItemsPStateGroup.computeDropId(_id, _maxAmt);
+  }
+
+  @Benchmark
+  public Long computeDropIdUniqueFixedItems() {
+    return KeyToUniqueFixedItemsPStateGroup.computeDropId(_id, _maxAmt);
+  }
+
+  @Benchmark
+  public long generateId() {
+    return ModuleUniqueIdPState.generateId(_id1, _taskId);
+  }
+}
@@ -0,0 +1,53 @@
+package com.rpl.rama.helpers.load;
+
+import java.util.Random;
+
+/**
+ * Chooses which of a fixed number of keys each appended event is for.
+ */
+public interface KeyDistribution {
+  long nextKey(Random random);
+
+  /**
+   * Every key is equally likely.
+   */
+  static KeyDistribution uniform(long numKeys) {
+    return random -> (long) (random.nextDouble() * numKeys);
+  }
+
+  /**
+   * Zipfian distribution where key 0 is the most popular. Theta must be in (0, 1), with values closer to 1 more skewed.
+   * 0.99 is the common choice for modeling hot keys. Uses the method from Gray et al., "Quickly Generating
+   * Billion-Record Synthetic Databases", which needs O(numKeys) work up front and constant time per key.
+   */
+  static KeyDistribution zipfian(long numKeys, double theta) {
+    if(theta <= 0 || theta >= 1) throw new IllegalArgumentException("Zipfian theta must be in (0, 1): " + theta);
+    double zetan = zeta(numKeys, theta);
+    double zeta2 = zeta(2, theta);
+    double alpha = 1.0 / (1.0 - theta);
+    double eta = (1.0 - Math.pow(2.0 / numKeys, 1.0 - theta)) / (1.0 - zeta2 / zetan);
+    double secondThreshold = 1.0 + Math.pow(0.5, theta);
+    return random -> {
+      double u = random.nextDouble();
+      double uz = u * zetan;
+      if(uz < 1.0) return 0;
+      if(uz < secondThreshold) return Math.min(1, numKeys - 1);
+      return Math.min(numKeys - 1, (long) (numKeys * Math.pow(eta * u - eta + 1.0, alpha)));
+    };
+  }
+
+  static double zeta(long n, double theta) {
+    double ret = 0;
+    for(long i=1; i<=n; i++) ret += 1.0 / Math.pow(i, theta);
+    return ret;
+  }
+
+  /**
+   * Parses "uniform" or "zipfian:theta", such as "zipfian:0.99".
+   */
+  static KeyDistribution parse(String spec, long numKeys) {
+    if(spec.equals("uniform")) return uniform(numKeys);
+    if(spec.startsWith("zipfian:")) return zipfian(numKeys, Double.parseDouble(spec.substring("zipfian:".length())));
+    throw new IllegalArgumentException("Unknown key distribution " + spec + ", expected uniform or zipfian:<theta>");
+  }
+}
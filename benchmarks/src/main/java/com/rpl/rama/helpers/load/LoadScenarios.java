@@ -0,0 +1,170 @@
+package com.rpl.rama.helpers.load;
+
+import java.util.*;
+
+import com.rpl.rama.*;
+import com.rpl.rama.helpers.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.*;
+
+/**
+ * Modules exercising each helper from a stream topology. Every module has a depot "*depot" partitioned by the first
+ * element of its events, so key skew in the load test is also partition skew. Since appends are acked once stream
+ * topologies finish processing them, an acked append is visible in the helper's PStates.
+ */
+public class LoadScenarios {
+  public interface Scenario extends RamaModule {
+    /**
+     * Event appended to "*depot" for a key. seq is unique across the run.
+     */
+    Object event(long key, long seq);
+  }
+
+  private static void declareDepot(RamaModule.Setup setup) {
+    setup.declareDepot("*depot", Depot.hashBy(Ops.FIRST));
+  }
+
+  /**
+   * Adds items to a {@link KeyToFixedItemsPStateGroup} with capacity 100, so hot keys continually drop old items.
+   */
+  public static class FixedItems implements Scenario {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      declareDepot(setup);
+      StreamTopology s = topologies.stream("s");
+      KeyToFixedItemsPStateGroup p = new KeyToFixedItemsPStateGroup("$$p", 100, Long.class, Long.class);
+      p.declarePStates(s);
+      s.source("*depot").out("*event")
+       .each(Ops.EXPAND, "*event").out("*key", "*item")
+       .macro(p.addItem("*key", "*item"));
+    }
+
+    @Override
+    public Object event(long key, long seq) {
+      return Arrays.asList(key, seq);
+    }
+  }
+
+  /**
+   * Adds items to a {@link KeyToUniqueFixedItemsPStateGroup} with capacity 100. Items repeat every 200 events for a key,
+   * so adds are a mix of new items and re-adds of existing ones.
+   */
+  public static class UniqueFixedItems implements Scenario {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      declareDepot(setup);
+      StreamTopology s = topologies.stream("s");
+      KeyToUniqueFixedItemsPStateGroup p = new KeyToUniqueFixedItemsPStateGroup("$$p", 100, Long.class, Long.class);
+      p.declarePStates(s);
+      s.source("*depot").out("*event")
+       .each(Ops.EXPAND, "*event").out("*key", "*item")
+       .macro(p.addItem("*key", "*item"));
+    }
+
+    @Override
+    public Object event(long key, long seq) {
+      return Arrays.asList(key, seq % 200);
+    }
+  }
+
+  /**
+   * Adds entities to a {@link KeyToLinkedEntitySetPStateGroup}. Entities are drawn from 1000 per key so sets stay
+   * bounded, and most adds for hot keys are re-adds.
+   */
+  public static class LinkedEntitySet implements Scenario {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      declareDepot(setup);
+      StreamTopology s = topologies.stream("s");
+      KeyToLinkedEntitySetPStateGroup p = new KeyToLinkedEntitySetPStateGroup("$$p", Long.class, Long.class);
+      p.declarePStates(s);
+      s.source("*depot").out("*event")
+       .each(Ops.EXPAND, "*event").out("*key", "*entity")
+       .macro(p.addToLinkedSet("*key", "*entity"));
+    }
+
+    @Override
+    public Object event(long key, long seq) {
+      return Arrays.asList(key, seq % 1000);
+    }
+  }
+
+  /**
+   * Schedules items an hour in the future with {@link TopologyScheduler}, so only scheduling is measured.
+   */
+  public static class Scheduler implements Scenario {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      declareDepot(setup);
+      StreamTopology s = topologies.stream("s");
+      TopologyScheduler t = new TopologyScheduler("$$scheduler");
+      t.declarePStates(s);
+      s.source("*depot").out("*event")
+       .each(Ops.EXPAND, "*event").out("*key", "*seq")
+       .each((Long seq) -> TopologyUtils.currentTimeMillis() + 60 * 60 * 1000, "*seq").out("*expiration")
+       .macro(t.scheduleItem("*expiration", "*event"));
+    }
+
+    @Override
+    public Object event(long key, long seq) {
+      return Arrays.asList(key, seq);
+    }
+  }
+
+  /**
+   * Generates an ID with {@link ModuleUniqueIdPState} and records it for the key.
+   */
+  public static class ModuleUniqueId implements Scenario {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      declareDepot(setup);
+      StreamTopology s = topologies.stream("s");
+      s.pstate("$$ids", PState.mapSchema(Long.class, Long.class));
+      ModuleUniqueIdPState id = new ModuleUniqueIdPState("$$id");
+      id.declarePState(s);
+      s.source("*depot").out("*event")
+       .each(Ops.FIRST, "*event").out("*key")
+       .macro(id.genId("*id"))
+       .localTransform("$$ids", Path.key("*key").termVal("*id"));
+    }
+
+    @Override
+    public Object event(long key, long seq) {
+      return Arrays.asList(key, seq);
+    }
+  }
+
+  /**
+   * Generates an ID with {@link TaskUniqueIdPState} and records it for the key.
+   */
+  public static class TaskUniqueId implements Scenario {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      declareDepot(setup);
+      StreamTopology s = topologies.stream("s");
+      s.pstate("$$ids", PState.mapSchema(Long.class, Long.class));
+      TaskUniqueIdPState id = new TaskUniqueIdPState("$$id");
+      id.declarePState(s);
+      s.source("*depot").out("*event")
+       .each(Ops.FIRST, "*event").out("*key")
+       .macro(id.genId("*id"))
+       .localTransform("$$ids", Path.key("*key").termVal("*id"));
+    }
+
+    @Override
+    public Object event(long key, long seq) {
+      return Arrays.asList(key, seq);
+    }
+  }
+
+  public static final Map<String, Scenario> ALL = new LinkedHashMap<>();
+
+  static {
+    ALL.put("fixedItems", new FixedItems());
+    ALL.put("uniqueFixedItems", new UniqueFixedItems());
+    ALL.put("linkedEntitySet", new LinkedEntitySet());
+    ALL.put("scheduler", new Scheduler());
+    ALL.put("moduleUniqueId", new ModuleUniqueId());
+    ALL.put("taskUniqueId", new TaskUniqueId());
+  }
+}
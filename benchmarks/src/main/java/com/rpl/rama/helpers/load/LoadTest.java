@@ -0,0 +1,261 @@
+package com.rpl.rama.helpers.load;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+
+import com.rpl.rama.*;
+import com.rpl.rama.test.*;
+
+/**
+ * Load test launching each scenario in {@link LoadScenarios} on an InProcessCluster and appending to its depot at a
+ * target rate. Latency is measured from when each append was scheduled to be sent until it's acked, which is when its
+ * effects are visible in the module's PStates. Measuring from the scheduled time rather than the actual send time means
+ * latency includes any time spent waiting behind a backlog, so overload shows up as latency instead of silently
+ * lowering the offered rate.
+ * <br><br>
+ * With <code>--rate</code>, each scenario runs at that rate. Otherwise the rate starts at <code>--startRate</code> and
+ * doubles until a step isn't sustained, followed by a binary search between the last sustained rate and the first
+ * unsustained one. A step is sustained if the achieved throughput is at least 95% of the target and the p99 latency is
+ * within <code>--maxP99Millis</code>.
+ * <br><br>
+ * Results are written as JSON to <code>--out</code>, or stdout if not given, so runs on different versions can be
+ * compared. Run with:
+ * <pre>
+ * java -cp target/benchmarks.jar com.rpl.rama.helpers.load.LoadTest --scenarios fixedItems,scheduler --keys 10000 --distribution zipfian:0.99 --out results.json
+ * </pre>
+ */
+public class LoadTest {
+  static class Config {
+    List<String> scenarios = new ArrayList<>(LoadScenarios.ALL.keySet());
+    long numKeys = 10000;
+    String distribution = "zipfian:0.99";
+    Double rate = null;
+    double startRate = 500;
+    int searchSteps = 4;
+    long warmupMillis = 5000;
+    long durationMillis = 10000;
+    long maxP99Millis = 100;
+    int maxOutstanding = 10000;
+    int tasks = 4;
+    int threads = 2;
+    long seed = 42;
+    String label = "";
+    String out = null;
+  }
+
+  static class StepResult {
+    double targetRate;
+    double achievedRate;
+    long count;
+    long errors;
+    Histogram latencyMicros;
+    boolean sustained;
+  }
+
+  static Config parseArgs(String[] args) {
+    Config ret = new Config();
+    for(int i=0; i<args.length; i+=2) {
+      if(i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + args[i]);
+      String v = args[i + 1];
+      switch(args[i]) {
+        case "--scenarios": ret.scenarios = Arrays.asList(v.split(",")); break;
+        case "--keys": ret.numKeys = Long.parseLong(v); break;
+        case "--distribution": ret.distribution = v; break;
+        case "--rate": ret.rate = Double.parseDouble(v); break;
+        case "--startRate": ret.startRate = Double.parseDouble(v); break;
+        case "--searchSteps": ret.searchSteps = Integer.parseInt(v); break;
+        case "--warmupMillis": ret.warmupMillis = Long.parseLong(v); break;
+        case "--durationMillis": ret.durationMillis = Long.parseLong(v); break;
+        case "--maxP99Millis": ret.maxP99Millis = Long.parseLong(v); break;
+        case "--maxOutstanding": ret.maxOutstanding = Integer.parseInt(v); break;
+        case "--tasks": ret.tasks = Integer.parseInt(v); break;
+        case "--threads": ret.threads = Integer.parseInt(v); break;
+        case "--seed": ret.seed = Long.parseLong(v); break;
+        case "--label": ret.label = v; break;
+        case "--out": ret.out = v; break;
+        default: throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+    for(String s: ret.scenarios) {
+      if(!LoadScenarios.ALL.containsKey(s)) {
+        throw new IllegalArgumentException("Unknown scenario " + s + ", expected one of " + LoadScenarios.ALL.keySet());
+      }
+    }
+    return ret;
+  }
+
+  private final Config _config;
+  private final Random _random;
+  private final KeyDistribution _keys;
+  private long _seq = 0;
+
+  LoadTest(Config config) {
+    _config = config;
+    _random = new Random(config.seed);
+    _keys = KeyDistribution.parse(config.distribution, config.numKeys);
+  }
+
+  /**
+   * Appends at the target rate for the given duration from a single thread, recording latencies if record is true.
+   */
+  StepResult runStep(LoadScenarios.Scenario scenario, Depot depot, double rate, long durationMillis, boolean record) throws InterruptedException {
+    StepResult ret = new StepResult();
+    ret.targetRate = rate;
+    ret.latencyMicros = new Histogram(TimeUnit.MINUTES.toMicros(10), 3);
+    AtomicLong errors = new AtomicLong();
+    AtomicLong lastCompletion = new AtomicLong();
+    Semaphore outstanding = new Semaphore(_config.maxOutstanding);
+
+    long intervalNanos = (long) (1e9 / rate);
+    long count = (long) (rate * durationMillis / 1000.0);
+    long start = System.nanoTime();
+    for(long i=0; i<count; i++) {
+      long intended = start + i * intervalNanos;
+      long wait = intended - System.nanoTime();
+      if(wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+      outstanding.acquire();
+      Object event = scenario.event(_keys.nextKey(_random), _seq++);
+      depot.appendAsync(event).whenComplete((res, t) -> {
+        long now = System.nanoTime();
+        if(t!=null) errors.incrementAndGet();
+        else if(record) {
+          synchronized(ret.latencyMicros) {
+            ret.latencyMicros.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(now - intended), ret.latencyMicros.getHighestTrackableValue()));
+          }
+        }
+        lastCompletion.accumulateAndGet(now, Math::max);
+        outstanding.release();
+      });
+    }
+    outstanding.acquire(_config.maxOutstanding);
+    outstanding.release(_config.maxOutstanding);
+
+    ret.count = count;
+    ret.errors = errors.get();
+    long elapsed = Math.max(lastCompletion.get() - start, 1);
+    ret.achievedRate = (count - ret.errors) * 1e9 / elapsed;
+    ret.sustained = ret.errors==0 &&
+                    ret.achievedRate >= 0.95 * rate &&
+                    ret.latencyMicros.getValueAtPercentile(99) <= TimeUnit.MILLISECONDS.toMicros(_config.maxP99Millis);
+    return ret;
+  }
+
+  StepResult runMeasuredStep(LoadScenarios.Scenario scenario, Depot depot, double rate) throws InterruptedException {
+    if(_config.warmupMillis > 0) runStep(scenario, depot, rate, _config.warmupMillis, false);
+    StepResult ret = runStep(scenario, depot, rate, _config.durationMillis, true);
+    System.err.println(String.format("%s: target %.0f/s, achieved %.0f/s, p99 %.2f ms, %s",
+                                     scenario.getClass().getSimpleName(), ret.targetRate, ret.achievedRate,
+                                     ret.latencyMicros.getValueAtPercentile(99) / 1000.0,
+                                     ret.sustained ? "sustained" : "not sustained"));
+    return ret;
+  }
+
+  List<StepResult> runScenario(LoadScenarios.Scenario scenario) throws Exception {
+    List<StepResult> ret = new ArrayList<>();
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(scenario, new LaunchConfig(_config.tasks, _config.threads));
+      Depot depot = cluster.clusterDepot(scenario.getClass().getName(), "*depot");
+
+      if(_config.rate!=null) {
+        ret.add(runMeasuredStep(scenario, depot, _config.rate));
+        return ret;
+      }
+
+      double good = 0;
+      double bad = _config.startRate;
+      while(true) {
+        StepResult step = runMeasuredStep(scenario, depot, bad);
+        ret.add(step);
+        if(!step.sustained) break;
+        good = bad;
+        bad *= 2;
+      }
+      for(int i=0; i<_config.searchSteps && good > 0; i++) {
+        double mid = (good + bad) / 2;
+        StepResult step = runMeasuredStep(scenario, depot, mid);
+        ret.add(step);
+        if(step.sustained) good = mid;
+        else bad = mid;
+      }
+    }
+    return ret;
+  }
+
+  private static String jsonString(String s) {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  private static void writeStep(StringBuilder sb, StepResult step) {
+    Histogram h = step.latencyMicros;
+    sb.append("{\"targetRate\": ").append(step.targetRate)
+      .append(", \"achievedRate\": ").append(step.achievedRate)
+      .append(", \"count\": ").append(step.count)
+      .append(", \"errors\": ").append(step.errors)
+      .append(", \"sustained\": ").append(step.sustained)
+      .append(", \"latencyMicros\": {")
+      .append("\"mean\": ").append(h.getMean())
+      .append(", \"p50\": ").append(h.getValueAtPercentile(50))
+      .append(", \"p90\": ").append(h.getValueAtPercentile(90))
+      .append(", \"p99\": ").append(h.getValueAtPercentile(99))
+      .append(", \"p999\": ").append(h.getValueAtPercentile(99.9))
+      .append(", \"max\": ").append(h.getMaxValue())
+      .append("}}");
+  }
+
+  static String toJson(Config config, Map<String, List<StepResult>> results) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\n");
+    sb.append("  \"label\": ").append(jsonString(config.label)).append(",\n");
+    sb.append("  \"config\": {\"keys\": ").append(config.numKeys)
+      .append(", \"distribution\": ").append(jsonString(config.distribution))
+      .append(", \"warmupMillis\": ").append(config.warmupMillis)
+      .append(", \"durationMillis\": ").append(config.durationMillis)
+      .append(", \"maxP99Millis\": ").append(config.maxP99Millis)
+      .append(", \"tasks\": ").append(config.tasks)
+      .append(", \"threads\": ").append(config.threads)
+      .append(", \"seed\": ").append(config.seed)
+      .append("},\n");
+    sb.append("  \"scenarios\": {");
+    boolean firstScenario = true;
+    for(Map.Entry<String, List<StepResult>> e: results.entrySet()) {
+      double maxSustained = 0;
+      for(StepResult step: e.getValue()) {
+        if(step.sustained) maxSustained = Math.max(maxSustained, step.achievedRate);
+      }
+      sb.append(firstScenario ? "\n" : ",\n");
+      firstScenario = false;
+      sb.append("    ").append(jsonString(e.getKey())).append(": {\n");
+      sb.append("      \"maxSustainedRate\": ").append(maxSustained).append(",\n");
+      sb.append("      \"steps\": [");
+      for(int i=0; i<e.getValue().size(); i++) {
+        sb.append(i==0 ? "\n        " : ",\n        ");
+        writeStep(sb, e.getValue().get(i));
+      }
+      sb.append("\n      ]\n    }");
+    }
+    sb.append("\n  }\n}\n");
+    return sb.toString();
+  }
+
+  public static void main(String[] args) throws Exception {
+    Config config = parseArgs(args);
+    LoadTest test = new LoadTest(config);
+    Map<String, List<StepResult>> results = new LinkedHashMap<>();
+    for(String name: config.scenarios) {
+      results.put(name, test.runScenario(LoadScenarios.ALL.get(name)));
+    }
+    String json = toJson(config, results);
+    if(config.out==null) {
+      System.out.print(json);
+    } else {
+      try(Writer w = new OutputStreamWriter(new FileOutputStream(config.out), StandardCharsets.UTF_8)) {
+        w.write(json);
+      }
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.ops.*;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Generates dataflow to delete the contents of an inner sorted map in batches, yielding the task thread between batches.
+ * Used by the fixed items PState groups for clearing items and for incremental key removal.
+ * <br><br>
+ * Page sizes for {@link Path#sortedMapRangeFrom} are fixed when dataflow is built, so adaptive sizing works off a ladder of
+ * page sizes doubling from the minimum to the maximum. After each batch the next one moves one step up the ladder if the
+ * batch took less than half the target time, and one step down if it took more than the target time.
+ */
+class BatchedClear {
+  private final String _pstate;
+  private int[] _pageSizes;
+  private long _targetNanos;
+
+  BatchedClear(String pstate, int batchSize) {
+    _pstate = pstate;
+    fixed(batchSize);
+  }
+
+  void fixed(int batchSize) {
+    _pageSizes = new int[] {batchSize};
+    _targetNanos = Long.MAX_VALUE;
+  }
+
+  void adaptive(int minBatchSize, int maxBatchSize, long targetMillis) {
+    if(minBatchSize <= 0 || maxBatchSize < minBatchSize) {
+      throw new IllegalArgumentException("Invalid batch size bounds " + minBatchSize + " to " + maxBatchSize);
+    }
+    List<Integer> sizes = new ArrayList<>();
+    for(long size = minBatchSize; size < maxBatchSize; size *= 2) sizes.add((int) size);
+    sizes.add(maxBatchSize);
+    _pageSizes = new int[sizes.size()];
+    for(int i=0; i<_pageSizes.length; i++) _pageSizes[i] = sizes.get(i);
+    _targetNanos = targetMillis * 1000000L;
+  }
+
+  private static Integer nextStep(Integer step, Long elapsedNanos, Long targetNanos, Integer maxStep) {
+    if(elapsedNanos * 2 < targetNanos) return Math.min(step + 1, maxStep);
+    else if(elapsedNanos > targetNanos) return Math.max(step - 1, 0);
+    else return step;
+  }
+
+  private static Long elapsedSince(Long startNanos) {
+    return System.nanoTime() - startNanos;
+  }
+
+  private Block selectPage(Object key, String cursorVar, String stepVar, String pageVar, String pageSizeVar, int step) {
+    Block select = Block.localSelect(_pstate,
+                                     Path.key(key)
+                                         .sortedMapRangeFrom(
+                                           cursorVar,
+                                           SortedRangeFromOptions.excludeStart().maxAmt(_pageSizes[step]))).out(pageVar)
+                        .each(Ops.IDENTITY, _pageSizes[step]).out(pageSizeVar);
+    if(step == _pageSizes.length - 1) return select;
+    else return Block.ifTrue(new Expr(Ops.EQUAL, stepVar, step),
+                  select,
+                  selectPage(key, cursorVar, stepVar, pageVar, pageSizeVar, step + 1));
+  }
+
+  /**
+   * Clears items with IDs after the start cursor. Items added later are given lower IDs, so passing the next ID to be
+   * assigned as the start clears only the items that exist at the start.
+   *
+   * @param startCursor Exclusive lower bound of the IDs to clear
+   * @param removeById Generates the code to remove one item given the var holding its ID
+   * @param clearedVar Var to bind the number of items cleared
+   * @param iterationsVar Var to bind the number of batches it took
+   */
+  Block clear(Object key, Object startCursor, Function<String, Block> removeById, String clearedVar, String iterationsVar) {
+    String cursorVar = Helpers.genVar("cursor");
+    String stepVar = Helpers.genVar("step");
+    String clearedSoFarVar = Helpers.genVar("clearedSoFar");
+    String iterationVar = Helpers.genVar("iteration");
+    String startVar = Helpers.genVar("start");
+    String pageVar = Helpers.genVar("page");
+    String pageSizeVar = Helpers.genVar("pageSize");
+    String idVar = Helpers.genVar("id");
+    String itemVar = Helpers.genVar("item");
+    String nextCursorVar = Helpers.genVar("nextCursor");
+    String nextStepVar = Helpers.genVar("nextStep");
+    String nextClearedVar = Helpers.genVar("nextCleared");
+    String nextIterationVar = Helpers.genVar("nextIteration");
+    return Block.loopWithVars(LoopVars.var(cursorVar, startCursor)
+                                      .var(stepVar, 0)
+                                      .var(clearedSoFarVar, 0L)
+                                      .var(iterationVar, 1L),
+             Block.yieldIfOvertime()
+                  .each(System::nanoTime).out(startVar)
+                  .macro(selectPage(key, cursorVar, stepVar, pageVar, pageSizeVar, 0))
+                  .atomicBlock(
+                    Block.each(Ops.EXPLODE_MAP, pageVar).out(idVar, itemVar)
+                         .macro(removeById.apply(idVar)))
+                  .each(BatchedClear::nextStep, stepVar, new Expr(BatchedClear::elapsedSince, startVar), _targetNanos, _pageSizes.length - 1).out(nextStepVar)
+                  .each(Ops.PLUS_LONG, clearedSoFarVar, new Expr(Ops.SIZE, pageVar)).out(nextClearedVar)
+                  .ifTrue(new Expr(Ops.LESS_THAN, new Expr(Ops.SIZE, pageVar), pageSizeVar),
+                    Block.emitLoop(nextClearedVar, iterationVar),
+                    Block.each((SortedMap m) -> m.lastKey(), pageVar).out(nextCursorVar)
+                         .each(Ops.INC_LONG, iterationVar).out(nextIterationVar)
+                         .continueLoop(nextCursorVar, nextStepVar, nextClearedVar, nextIterationVar))).out(clearedVar, iterationsVar);
+  }
+}
@@ -0,0 +1,205 @@
+package com.rpl.rama.helpers;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.rpl.rama.*;
+import com.rpl.rama.integration.*;
+import com.rpl.rama.ops.*;
+
+/**
+ * Task global client which coalesces individual lookups against an external service into batched requests. Each
+ * lookup returns a {@link CompletableFuture}, so the client is used from topologies with <code>eachAsync</code>, most
+ * easily through the {@link #lookup} macro.
+ * <br><br>
+ * The service is called through a batch function given a list of distinct keys and returning a future of a map from key
+ * to result. Keys missing from the returned map complete with null, and a failed batch completes every lookup in it
+ * exceptionally. The function must be serializable since the client is declared with
+ * <code>setup.declareObject("*client", new CoalescingBatchClient(new MyBatchFn()))</code>.
+ * <br><br>
+ * Pending lookups are sent as a batch when {@link #maxBatchSize(int)} distinct keys are pending or when the oldest
+ * pending lookup has waited {@link #lingerMillis(long)}, whichever comes first. Lookups for a key already pending share
+ * the same future. At most {@link #maxInFlight(int)} batches are outstanding per task, and further batches wait until one
+ * completes.
+ * <br><br>
+ * Each task has its own client with its own linger timer thread, created in {@link #prepareForTask} and stopped in
+ * {@link #close()}.
+ *
+ * @see <a href="https://redplanetlabs.com/docs/~/integrating.html">Integration documentation</a>
+ */
+public class CoalescingBatchClient implements TaskGlobalObject {
+  private final RamaFunction1<List<Object>, CompletableFuture<Map<Object, Object>>> _batchFn;
+  private int _maxBatchSize = 100;
+  private long _lingerMillis = 5;
+  private int _maxInFlight = 4;
+
+  private transient ScheduledExecutorService _timer;
+  private transient LinkedHashMap<Object, CompletableFuture<Object>> _pending;
+  private transient ScheduledFuture<?> _lingerTimeout;
+  private transient ArrayDeque<Map<Object, CompletableFuture<Object>>> _queued;
+  private transient int _inFlight;
+  private transient long _batches;
+  private transient long _lookups;
+
+  /**
+   * Creates a CoalescingBatchClient.
+   *
+   * @param batchFn Function calling the service with a list of distinct keys and returning a future map from key to result
+   */
+  public CoalescingBatchClient(RamaFunction1<List<Object>, CompletableFuture<Map<Object, Object>>> batchFn) {
+    _batchFn = batchFn;
+  }
+
+  /**
+   * Configures the number of distinct pending keys at which a batch is sent. Defaults to 100.
+   */
+  public CoalescingBatchClient maxBatchSize(int size) {
+    _maxBatchSize = size;
+    return this;
+  }
+
+  /**
+   * Configures the longest a lookup waits for other lookups to batch with before being sent. Defaults to 5 millis.
+   */
+  public CoalescingBatchClient lingerMillis(long millis) {
+    _lingerMillis = millis;
+    return this;
+  }
+
+  /**
+   * Configures the maximum number of outstanding batches per task. Defaults to 4.
+   */
+  public CoalescingBatchClient maxInFlight(int amt) {
+    _maxInFlight = amt;
+    return this;
+  }
+
+  @Override
+  public void prepareForTask(int taskId, TaskGlobalContext context) {
+    _timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "CoalescingBatchClient-" + taskId);
+      t.setDaemon(true);
+      return t;
+    });
+    _pending = new LinkedHashMap<>();
+    _queued = new ArrayDeque<>();
+    _inFlight = 0;
+  }
+
+  @Override
+  public void close() {
+    if(_timer!=null) _timer.shutdownNow();
+  }
+
+  /**
+   * Looks up a key, returning a future completed with the result once the batch containing it completes.
+   */
+  public CompletableFuture<Object> get(Object key) {
+    CompletableFuture<Object> ret;
+    List<Map<Object, CompletableFuture<Object>>> toSend = Collections.emptyList();
+    synchronized(this) {
+      _lookups++;
+      ret = _pending.get(key);
+      if(ret==null) {
+        ret = new CompletableFuture<>();
+        _pending.put(key, ret);
+        if(_pending.size() >= _maxBatchSize) {
+          toSend = enqueuePending();
+        } else if(_pending.size()==1) {
+          _lingerTimeout = _timer.schedule(this::lingerExpired, _lingerMillis, TimeUnit.MILLISECONDS);
+        }
+      }
+    }
+    send(toSend);
+    return ret;
+  }
+
+  private void lingerExpired() {
+    List<Map<Object, CompletableFuture<Object>>> toSend = Collections.emptyList();
+    synchronized(this) {
+      if(!_pending.isEmpty()) toSend = enqueuePending();
+    }
+    send(toSend);
+  }
+
+  private List<Map<Object, CompletableFuture<Object>>> enqueuePending() {
+    if(_lingerTimeout!=null) {
+      _lingerTimeout.cancel(false);
+      _lingerTimeout = null;
+    }
+    _queued.add(_pending);
+    _pending = new LinkedHashMap<>();
+    return dispatchQueued();
+  }
+
+  // Claims in-flight slots under the lock and returns the batches to send once the lock is released
+  private List<Map<Object, CompletableFuture<Object>>> dispatchQueued() {
+    List<Map<Object, CompletableFuture<Object>>> ret = new ArrayList<>();
+    while(_inFlight < _maxInFlight && !_queued.isEmpty()) {
+      ret.add(_queued.poll());
+      _inFlight++;
+      _batches++;
+    }
+    return ret;
+  }
+
+  // Never called while holding the lock, since a batch function returning a completed future runs batchCompleted inline
+  private void send(List<Map<Object, CompletableFuture<Object>>> batches) {
+    for(Map<Object, CompletableFuture<Object>> batch: batches) {
+      CompletableFuture<Map<Object, Object>> result;
+      try {
+        result = _batchFn.invoke(new ArrayList<>(batch.keySet()));
+      } catch(Throwable t) {
+        result = new CompletableFuture<>();
+        result.completeExceptionally(t);
+      }
+      result.whenComplete((Map<Object, Object> m, Throwable t) -> batchCompleted(batch, m, t));
+    }
+  }
+
+  private void batchCompleted(Map<Object, CompletableFuture<Object>> batch, Map<Object, Object> results, Throwable t) {
+    List<Map<Object, CompletableFuture<Object>>> toSend;
+    synchronized(this) {
+      _inFlight--;
+      toSend = dispatchQueued();
+    }
+    // Complete callers outside the lock since their continuations can run inline
+    for(Map.Entry<Object, CompletableFuture<Object>> e: batch.entrySet()) {
+      if(t!=null) e.getValue().completeExceptionally(t);
+      else e.getValue().complete(results==null ? null : results.get(e.getKey()));
+    }
+    send(toSend);
+  }
+
+  /**
+   * Returns the number of batches sent by this task's client.
+   */
+  public synchronized long getBatches() {
+    return _batches;
+  }
+
+  /**
+   * Returns the number of lookups made on this task's client.
+   */
+  public synchronized long getLookups() {
+    return _lookups;
+  }
+
+  /**
+   * Returns the number of batches currently outstanding.
+   */
+  public synchronized int getInFlight() {
+    return _inFlight;
+  }
+
+  /**
+   * Macro to look up a key through the client, binding the result once its batch completes.
+   *
+   * @param clientVar Var holding the task global client
+   * @param outVar Var to bind the result
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public static Block lookup(String clientVar, Object key, String outVar) {
+    return Block.eachAsync((CoalescingBatchClient c, Object k) -> c.get(k), clientVar, key).out(outVar);
+  }
+}
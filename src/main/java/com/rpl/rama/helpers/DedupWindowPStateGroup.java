@@ -0,0 +1,136 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.RamaModule.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.*;
+
+import java.util.*;
+
+/**
+ * Higher-level PState implementation for dropping duplicate events within a window of time, such as retried depot
+ * appends carrying the same request ID. {@link #filterFirstSeen(Object)} only continues for IDs not seen within the
+ * window.
+ * <br><br>
+ * IDs are stored in time buckets rather than with a timestamp each. Declares one PState of the provided name from
+ * bucket start to a subindexed set of the IDs first seen in that bucket. The window is split into a configured number
+ * of buckets, and an ID is a duplicate if it's in any bucket overlapping the window. Checking and recording an ID is one
+ * read of those buckets and one insert, with no timer per ID. IDs are remembered for at least the window and at most
+ * one bucket longer.
+ * <br><br>
+ * Expired buckets are removed a whole bucket at a time with a single transform by {@link #expireBuckets()}, which must
+ * be run on every task, typically with {@link Block#allPartition()} off a tick depot. Until then expired buckets only
+ * use space, since lookups don't read them.
+ * <br><br>
+ * IDs are only deduplicated against other IDs on the same task, so {@link #filterFirstSeen(Object)} must be called on
+ * the task for the ID, such as by partitioning the depot by ID or using a hash partitioner on the ID beforehand.
+ * <br><br>
+ * The pattern for this class is to create an instance and then use {@link declarePStates} to create all its needed PStates
+ * on the topology that should own it. The other methods define high-level operations to perform on this data structure.
+ *
+ * @see <a href="https://redplanetlabs.com/docs/~/pstates.html">PStates documentation</a>
+ * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+ */
+public class DedupWindowPStateGroup {
+  private final String _pstate;
+  private final Class _idClass;
+  private final long _windowMillis;
+  private int _numBuckets = 2;
+  private SimClock _clock = null;
+
+  /**
+   * Creates instance of DedupWindowPStateGroup. Methods on resulting object are used to declare PStates
+   * and insert high-level operations into topology code.
+   *
+   * @param pstateName Name of the PState of buckets
+   * @param idClass Type of IDs
+   * @param windowMillis How long IDs are remembered
+   */
+  public DedupWindowPStateGroup(String pstateName, Class idClass, long windowMillis) {
+    if(windowMillis <= 0) throw new IllegalArgumentException("Window must be positive: " + windowMillis);
+    _pstate = pstateName;
+    _idClass = idClass;
+    _windowMillis = windowMillis;
+  }
+
+  /**
+   * Configures the number of buckets the window is split into. More buckets remember IDs for closer to exactly the
+   * window, at the cost of reading more buckets per lookup. Defaults to 2.
+   */
+  public DedupWindowPStateGroup numBuckets(int numBuckets) {
+    if(numBuckets <= 0) throw new IllegalArgumentException("Number of buckets must be positive: " + numBuckets);
+    _numBuckets = numBuckets;
+    return this;
+  }
+
+  /**
+   * Reads time from a {@link SimClock} instead of {@link TopologyUtils#currentTimeMillis()}.
+   */
+  public DedupWindowPStateGroup clock(SimClock clock) {
+    _clock = clock;
+    return this;
+  }
+
+  /**
+   * Declares needed PStates for this DedupWindowPStateGroup on the specified topology
+   */
+  public void declarePStates(ETLTopologyBase topology) {
+    topology.pstate(
+      _pstate,
+      PState.mapSchema(
+        Long.class,
+        PState.setSchema(_idClass).subindexed(SubindexOptions.withoutSizeTracking())));
+  }
+
+  private long bucketMillis() {
+    return (_windowMillis + _numBuckets - 1) / _numBuckets;
+  }
+
+  static List<Long> windowBuckets(SimClock clock, Long bucketMillis, Integer numBuckets) {
+    long now = TopologyUtils.currentTimeMillis(clock);
+    long current = now - Math.floorMod(now, bucketMillis);
+    // The current bucket first, then enough earlier buckets to cover the window
+    List<Long> ret = new ArrayList<>(numBuckets + 1);
+    for(int i=0; i<=numBuckets; i++) ret.add(current - i * bucketMillis);
+    return ret;
+  }
+
+  private static Long oldestBucket(List<Long> buckets) {
+    return buckets.get(buckets.size() - 1);
+  }
+
+  /**
+   * Macro that only continues if the ID has not been seen within the window, and records the ID as seen.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block filterFirstSeen(Object id) {
+    String bucketsVar = Helpers.genVar("buckets");
+    String foundVar = Helpers.genVar("found");
+    String[] bucketVars = new String[_numBuckets + 1];
+    Path[] lookups = new Path[_numBuckets + 1];
+    for(int i=0; i<bucketVars.length; i++) {
+      bucketVars[i] = Helpers.genVar("bucket");
+      lookups[i] = Path.key(bucketVars[i]).setElem(id);
+    }
+    return Block.each(DedupWindowPStateGroup::windowBuckets, _clock, bucketMillis(), _numBuckets).out(bucketsVar)
+                .each(Ops.EXPAND, bucketsVar).out(bucketVars)
+                .localSelect(_pstate, Path.subselect(Path.multiPath(lookups))).out(foundVar)
+                .keepTrue(new Expr(Ops.EQUAL, new Expr(Ops.SIZE, foundVar), 0))
+                .localTransform(_pstate, Path.key(bucketVars[0]).voidSetElem().termVal(id));
+  }
+
+  /**
+   * Macro to remove all buckets that no longer overlap the window on the current task. This should be run on every
+   * task, typically with {@link Block#allPartition()} off a tick depot.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block expireBuckets() {
+    String bucketsVar = Helpers.genVar("buckets");
+    String oldestVar = Helpers.genVar("oldest");
+    return Block.each(DedupWindowPStateGroup::windowBuckets, _clock, bucketMillis(), _numBuckets).out(bucketsVar)
+                .each(DedupWindowPStateGroup::oldestBucket, bucketsVar).out(oldestVar)
+                .localTransform(_pstate, Path.sortedMapRangeTo(oldestVar).termVal(null));
+  }
+}
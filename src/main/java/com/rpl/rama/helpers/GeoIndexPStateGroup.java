@@ -0,0 +1,324 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.RamaModule.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.*;
+
+import java.util.*;
+
+/**
+ * Higher-level PState implementation for finding entities near a location, such as drivers within 2 km of a rider.
+ * Each entity has one current location, and radius and bounding box queries only read the cells covering the query
+ * area.
+ * <br><br>
+ * Locations are encoded as 52 bit cell IDs by quantizing longitude and latitude to 26 bits each and interleaving
+ * them, longitude first, as with geohashes. A cell ID's leading 2k bits identify the cell containing it at k bits per
+ * axis, so every cell is a contiguous range of IDs. Fine cells are about 0.6 m across.
+ * <br><br>
+ * Declares two PStates. The provided PState name maps a partition cell, which is the cell ID's leading bits at the
+ * configured partition precision, to a subindexed sorted map from cell ID to a map from entity ID to [lat, lon]. It's
+ * partitioned by partition cell, so entities near each other are stored together. Another PState with "Reverse"
+ * appended maps entity ID to its current [lat, lon] and is partitioned by entity ID, which is how moving an entity
+ * removes it from its previous cell.
+ * <br><br>
+ * Queries pick the cell size closest to the query area, at least the partition precision, and read the ID range of
+ * each cell intersecting it before filtering to the exact area. Areas much larger than a partition cell read one range
+ * per partition cell they intersect. Areas crossing the antimeridian are split in two.
+ * Distances are computed with the haversine formula on a spherical earth.
+ * <br><br>
+ * The pattern for this class is to create an instance and then use {@link declarePStates} to create all its needed PStates
+ * on the topology that should own it. The macros contain partitioners, so they must be used in that same topology.
+ *
+ * @see <a href="https://redplanetlabs.com/docs/~/pstates.html">PStates documentation</a>
+ * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+ */
+public class GeoIndexPStateGroup {
+  private static final int BITS_PER_AXIS = 26;
+  private static final double EARTH_RADIUS_METERS = 6371008.8;
+  private static final double METERS_PER_DEGREE = Math.PI * EARTH_RADIUS_METERS / 180;
+
+  private final String _pstate;
+  private final String _pstateReverse;
+  private final Class _entityIdClass;
+  private int _partitionBitsPerAxis = 10;
+
+  /**
+   * Creates instance of GeoIndexPStateGroup. Methods on resulting object are used to declare PStates
+   * and insert high-level operations into topology code.
+   *
+   * @param pstateName Base name for created PStates. The PState of this name holds entities by cell.
+   * @param entityIdClass Type of entity IDs
+   */
+  public GeoIndexPStateGroup(String pstateName, Class entityIdClass) {
+    _pstate = pstateName;
+    _pstateReverse = pstateName + "Reverse";
+    _entityIdClass = entityIdClass;
+  }
+
+  /**
+   * Configures the size of partition cells in bits per axis, between 1 and 26. Defaults to 10, which is about 39 km of
+   * longitude at the equator by 20 km of latitude. Smaller cells spread dense areas over more tasks, and larger cells
+   * let bigger queries read fewer tasks. This can't be changed once data has been written.
+   */
+  public GeoIndexPStateGroup partitionPrecision(int bitsPerAxis) {
+    if(bitsPerAxis < 1 || bitsPerAxis > BITS_PER_AXIS) throw new IllegalArgumentException("Partition precision must be between 1 and 26: " + bitsPerAxis);
+    _partitionBitsPerAxis = bitsPerAxis;
+    return this;
+  }
+
+  /**
+   * Declares needed PStates for this GeoIndexPStateGroup on the specified topology
+   */
+  public void declarePStates(ETLTopologyBase topology) {
+    topology.pstate(
+      _pstate,
+      PState.mapSchema(
+        Long.class,
+        PState.mapSchema(Long.class, PState.mapSchema(_entityIdClass, List.class)).subindexed()));
+    topology.pstate(_pstateReverse, PState.mapSchema(_entityIdClass, List.class));
+  }
+
+  private static long quantize(double value, double min, double range) {
+    long ret = (long) Math.floor((value - min) / range * (1L << BITS_PER_AXIS));
+    return Math.max(0, Math.min((1L << BITS_PER_AXIS) - 1, ret));
+  }
+
+  private static long interleave(long x, long y, int bits) {
+    long ret = 0;
+    for(int i=bits-1; i>=0; i--) {
+      ret = (ret << 2) | (((x >>> i) & 1) << 1) | ((y >>> i) & 1);
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the 52 bit cell ID of a location.
+   */
+  public static long cellId(double lat, double lon) {
+    return interleave(quantize(lon, -180, 360), quantize(lat, -90, 180), BITS_PER_AXIS);
+  }
+
+  private static Long partitionCell(Long cellId, Integer partitionBitsPerAxis) {
+    return cellId >>> (2 * (BITS_PER_AXIS - partitionBitsPerAxis));
+  }
+
+  private static Long cellIdOf(List location) {
+    return cellId(((Number) location.get(0)).doubleValue(), ((Number) location.get(1)).doubleValue());
+  }
+
+  private static List location(Number lat, Number lon) {
+    return Arrays.asList(lat.doubleValue(), lon.doubleValue());
+  }
+
+  /**
+   * Computes the cell entries to change when an entity moves from the old location to the new one, as
+   * [partition cell, cell ID, location] tuples where a null location removes the entry. Moving within a cell just
+   * overwrites the entry.
+   */
+  static List<List> cellChanges(List oldLocation, List newLocation, Integer partitionBitsPerAxis) {
+    List<List> ret = new ArrayList<>();
+    Long oldCell = oldLocation==null ? null : cellIdOf(oldLocation);
+    Long newCell = newLocation==null ? null : cellIdOf(newLocation);
+    if(oldCell!=null && !oldCell.equals(newCell)) {
+      ret.add(Arrays.asList(partitionCell(oldCell, partitionBitsPerAxis), oldCell, null));
+    }
+    if(newCell!=null) ret.add(Arrays.asList(partitionCell(newCell, partitionBitsPerAxis), newCell, newLocation));
+    return ret;
+  }
+
+  // Each change is partitioned straight from the entity's task, so changes for the same cell are applied in the order
+  // the entity moved even when it returns to a cell in quick succession. The changes are a branch off the entity's
+  // task, so code after the macros runs once on that task.
+  private Block applyCellChanges(Object entityId, String oldLocationVar, Object newLocation) {
+    String changeVar = Helpers.genVar("change");
+    String partitionVar = Helpers.genVar("partition");
+    String cellVar = Helpers.genVar("cell");
+    String locationVar = Helpers.genVar("location");
+    String remainingVar = Helpers.genVar("remaining");
+    String entityAnchor = Helpers.genVar("Entity").substring(1);
+    return Block.anchor(entityAnchor)
+                .each(Ops.EXPLODE, new Expr(GeoIndexPStateGroup::cellChanges, oldLocationVar, newLocation, _partitionBitsPerAxis)).out(changeVar)
+                .each(Ops.EXPAND, changeVar).out(partitionVar, cellVar, locationVar)
+                .hashPartition(_pstate, partitionVar)
+                .ifTrue(new Expr(Ops.IS_NULL, locationVar),
+                  Block.localTransform(_pstate, Path.key(partitionVar, cellVar, entityId).termVoid())
+                       .localSelect(_pstate, Path.key(partitionVar, cellVar).view(Ops.SIZE)).out(remainingVar)
+                       .ifTrue(new Expr(Ops.EQUAL, remainingVar, 0),
+                         Block.localTransform(_pstate, Path.key(partitionVar, cellVar).termVoid())),
+                  Block.localTransform(_pstate, Path.key(partitionVar, cellVar, entityId).termVal(locationVar)))
+                .hook(entityAnchor);
+  }
+
+  /**
+   * Macro to set the current location of an entity, replacing its previous location
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block setLocation(Object entityId, Object lat, Object lon) {
+    String locationVar = Helpers.genVar("location");
+    String oldLocationVar = Helpers.genVar("oldLocation");
+    return Block.each(GeoIndexPStateGroup::location, lat, lon).out(locationVar)
+                .hashPartition(_pstateReverse, entityId)
+                .localSelect(_pstateReverse, Path.key(entityId)).out(oldLocationVar)
+                .localTransform(_pstateReverse, Path.key(entityId).termVal(locationVar))
+                .macro(applyCellChanges(entityId, oldLocationVar, locationVar));
+  }
+
+  /**
+   * Macro to remove an entity from the index
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block removeEntity(Object entityId) {
+    String oldLocationVar = Helpers.genVar("oldLocation");
+    String noLocationVar = Helpers.genVar("noLocation");
+    return Block.hashPartition(_pstateReverse, entityId)
+                .localSelect(_pstateReverse, Path.key(entityId)).out(oldLocationVar)
+                .localTransform(_pstateReverse, Path.key(entityId).termVoid())
+                .each(Ops.IDENTITY, null).out(noLocationVar)
+                .macro(applyCellChanges(entityId, oldLocationVar, noLocationVar));
+  }
+
+  private static void addCells(List<List> ret, double minLat, double minLon, double maxLat, double maxLon, int partitionBitsPerAxis) {
+    long x0 = quantize(minLon, -180, 360);
+    long x1 = quantize(maxLon, -180, 360);
+    long y0 = quantize(minLat, -90, 180);
+    long y1 = quantize(maxLat, -90, 180);
+    // Largest cells for which the area spans at most two cells per axis
+    int bits = BITS_PER_AXIS;
+    while(bits > partitionBitsPerAxis && (((x1 >>> (BITS_PER_AXIS - bits)) - (x0 >>> (BITS_PER_AXIS - bits)) > 1) ||
+                                          ((y1 >>> (BITS_PER_AXIS - bits)) - (y0 >>> (BITS_PER_AXIS - bits)) > 1))) {
+      bits--;
+    }
+    int shift = BITS_PER_AXIS - bits;
+    for(long cx=x0 >>> shift; cx<=x1 >>> shift; cx++) {
+      for(long cy=y0 >>> shift; cy<=y1 >>> shift; cy++) {
+        long prefix = interleave(cx, cy, bits);
+        long start = prefix << (2 * shift);
+        long end = (prefix + 1) << (2 * shift);
+        ret.add(Arrays.asList(prefix >>> (2 * (bits - partitionBitsPerAxis)), start, end));
+      }
+    }
+  }
+
+  /**
+   * Returns the cell ID ranges covering a bounding box as [partition cell, inclusive start, exclusive end] tuples.
+   * Longitudes outside -180 to 180 wrap around the antimeridian.
+   */
+  static List<List> cover(Number minLat, Number minLon, Number maxLat, Number maxLon, Integer partitionBitsPerAxis) {
+    double south = Math.max(-90, minLat.doubleValue());
+    double north = Math.min(90, maxLat.doubleValue());
+    double west = minLon.doubleValue();
+    double east = maxLon.doubleValue();
+    List<List> ret = new ArrayList<>();
+    if(east - west >= 360) {
+      addCells(ret, south, -180, north, 180, partitionBitsPerAxis);
+    } else if(west < -180) {
+      addCells(ret, south, west + 360, north, 180, partitionBitsPerAxis);
+      addCells(ret, south, -180, north, east, partitionBitsPerAxis);
+    } else if(east > 180) {
+      addCells(ret, south, west, north, 180, partitionBitsPerAxis);
+      addCells(ret, south, -180, north, east - 360, partitionBitsPerAxis);
+    } else {
+      addCells(ret, south, west, north, east, partitionBitsPerAxis);
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the distance in meters between two locations.
+   */
+  public static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+    double dLat = Math.toRadians(lat2 - lat1);
+    double dLon = Math.toRadians(lon2 - lon1);
+    double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+               Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+    return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+  }
+
+  static List<List> coverRadius(Number lat, Number lon, Number radiusMeters, Integer partitionBitsPerAxis) {
+    double r = radiusMeters.doubleValue();
+    double dLat = r / METERS_PER_DEGREE;
+    double cos = Math.cos(Math.toRadians(lat.doubleValue()));
+    // Near the poles the circle covers every longitude
+    double dLon = cos * 180 <= dLat ? 180 : r / (METERS_PER_DEGREE * cos);
+    return cover(lat.doubleValue() - dLat, lon.doubleValue() - dLon, lat.doubleValue() + dLat, lon.doubleValue() + dLon, partitionBitsPerAxis);
+  }
+
+  private static Boolean inBox(List location, Number minLat, Number minLon, Number maxLat, Number maxLon) {
+    double lat = (Double) location.get(0);
+    double lon = (Double) location.get(1);
+    double west = minLon.doubleValue();
+    double east = maxLon.doubleValue();
+    boolean inLon = east - west >= 360 || (west <= lon && lon <= east) || (west <= lon - 360 && lon - 360 <= east) ||
+                    (west <= lon + 360 && lon + 360 <= east);
+    return minLat.doubleValue() <= lat && lat <= maxLat.doubleValue() && inLon;
+  }
+
+  private static Double distanceTo(List location, Number lat, Number lon) {
+    return distanceMeters((Double) location.get(0), (Double) location.get(1), lat.doubleValue(), lon.doubleValue());
+  }
+
+  private static Boolean isWithin(Double distance, Number radiusMeters) {
+    return distance <= radiusMeters.doubleValue();
+  }
+
+  private static List<List> byDistance(List<List> entries) {
+    entries.sort((a, b) -> Double.compare((Double) a.get(3), (Double) b.get(3)));
+    List<List> ret = new ArrayList<>();
+    for(List e: entries) ret.add(e.subList(0, 3));
+    return ret;
+  }
+
+  private Block scan(String rangesVar, String entityIdVar, String locationVar) {
+    String rangeVar = Helpers.genVar("range");
+    String partitionVar = Helpers.genVar("partition");
+    String startVar = Helpers.genVar("start");
+    String endVar = Helpers.genVar("end");
+    String entryVar = Helpers.genVar("entry");
+    return Block.each(Ops.EXPLODE, rangesVar).out(rangeVar)
+                .each(Ops.EXPAND, rangeVar).out(partitionVar, startVar, endVar)
+                .hashPartition(_pstate, partitionVar)
+                .localSelect(_pstate, Path.key(partitionVar).sortedMapRange(startVar, endVar).mapVals().all()).out(entryVar)
+                .each(Ops.EXPAND, entryVar).out(entityIdVar, locationVar);
+  }
+
+  /**
+   * Declares a query topology returning the entities within a distance of a location, nearest first. The query topology
+   * takes the latitude, longitude and radius in meters as input, and it returns a list of [entity ID, lat, lon].
+   *
+   * @param topologies Topologies of the module that declared these PStates
+   * @param queryName Name of the query topology
+   */
+  public void declareRadiusQueryTopology(Topologies topologies, String queryName) {
+    topologies.query(queryName, "*lat", "*lon", "*radiusMeters").out("*results")
+              .each(GeoIndexPStateGroup::coverRadius, "*lat", "*lon", "*radiusMeters", _partitionBitsPerAxis).out("*ranges")
+              .macro(scan("*ranges", "*entityId", "*location"))
+              .each(GeoIndexPStateGroup::distanceTo, "*location", "*lat", "*lon").out("*distance")
+              .keepTrue(new Expr(GeoIndexPStateGroup::isWithin, "*distance", "*radiusMeters"))
+              .each(Ops.TUPLE, "*entityId", new Expr(Ops.FIRST, "*location"), new Expr(Ops.LAST, "*location"), "*distance").out("*result")
+              .originPartition()
+              .agg(Agg.list("*result")).out("*unsorted")
+              .each(GeoIndexPStateGroup::byDistance, "*unsorted").out("*results");
+  }
+
+  /**
+   * Declares a query topology returning the entities within a bounding box. The query topology takes the minimum
+   * latitude, minimum longitude, maximum latitude and maximum longitude as input, and it returns a list of
+   * [entity ID, lat, lon]. A box crossing the antimeridian can be given with longitudes below -180 or above 180.
+   *
+   * @param topologies Topologies of the module that declared these PStates
+   * @param queryName Name of the query topology
+   */
+  public void declareBoundingBoxQueryTopology(Topologies topologies, String queryName) {
+    topologies.query(queryName, "*minLat", "*minLon", "*maxLat", "*maxLon").out("*results")
+              .each(GeoIndexPStateGroup::cover, "*minLat", "*minLon", "*maxLat", "*maxLon", _partitionBitsPerAxis).out("*ranges")
+              .macro(scan("*ranges", "*entityId", "*location"))
+              .each(GeoIndexPStateGroup::inBox, "*location", "*minLat", "*minLon", "*maxLat", "*maxLon").out("*inBox")
+              .keepTrue("*inBox")
+              .each(Ops.TUPLE, "*entityId", new Expr(Ops.FIRST, "*location"), new Expr(Ops.LAST, "*location")).out("*result")
+              .originPartition()
+              .agg(Agg.list("*result")).out("*results");
+  }
+}
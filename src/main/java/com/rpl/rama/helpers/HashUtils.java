@@ -0,0 +1,69 @@
+package com.rpl.rama.helpers;
+
+/**
+ * Hashing shared by the probabilistic data structures in this package.
+ */
+class HashUtils {
+  /**
+   * Finalizer from MurmurHash3, spreading the bits of the input over all 64 bits of the output.
+   */
+  static long mix64(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * 64 bit hash of an object derived from its hashCode. Equal objects hash equally within a JVM, so results must not
+   * be persisted unless the hashed types have stable hashCode implementations (e.g. strings, boxed numbers, lists of those).
+   */
+  static long hash64(Object o) {
+    return mix64(o==null ? 0 : o.hashCode());
+  }
+
+  /**
+   * 64 bit hash using every bit of strings, byte arrays and integral numbers rather than their 32 bit hashCode, for
+   * structures whose accuracy at high cardinalities depends on having few collisions. Results for those types are stable
+   * across JVMs, so they can be persisted. Other types fall back to {@link #hash64(Object)}.
+   */
+  static long wideHash64(Object o) {
+    if(o instanceof String) {
+      String s = (String) o;
+      long h = 0xcbf29ce484222325L;
+      for(int i=0; i<s.length(); i++) {
+        h ^= s.charAt(i);
+        h *= 0x100000001b3L;
+      }
+      return mix64(h);
+    } else if(o instanceof byte[]) {
+      byte[] bytes = (byte[]) o;
+      long h = 0xcbf29ce484222325L;
+      for(byte b: bytes) {
+        h ^= b & 0xff;
+        h *= 0x100000001b3L;
+      }
+      return mix64(h);
+    } else if(o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) {
+      return mix64(((Number) o).longValue() + 0x9E3779B97F4A7C15L);
+    } else {
+      return hash64(o);
+    }
+  }
+
+  /**
+   * {@link #wideHash64(Object)} of a pair of objects, without allocating a list for them.
+   */
+  static long wideHash64Pair(Object a, Object b) {
+    return mix64(wideHash64(a) * 31 + wideHash64(b));
+  }
+
+  /**
+   * Second 64 bit hash derived from a 64 bit base hash, for use in double hashing.
+   */
+  static long altHash64(long base) {
+    return mix64(base ^ 0x9E3779B97F4A7C15L);
+  }
+}
@@ -0,0 +1,153 @@
+package com.rpl.rama.helpers;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.rpl.rama.*;
+import com.rpl.rama.integration.*;
+import com.rpl.rama.ops.*;
+
+/**
+ * Task global object collecting operation counts and timings from the PState groups and {@link TopologyScheduler}.
+ * Instrumentation is opt-in: declare an instance with <code>setup.declareObject("*metrics", new HelperMetrics())</code>
+ * and pass its var to the helpers with their <code>metrics</code> option. Helpers without the option generate no
+ * instrumentation code.
+ * <br><br>
+ * Metric names are the helper's PState name followed by the metric. For example, a {@link KeyToFixedItemsPStateGroup}
+ * named "$$items" records "$$items.drops" and "$$items.clearIterations". Timed macros record "name.nanos" with the
+ * total time spent and "name.calls" with the number of calls, such as "$$items.addItem.calls". Timings cover
+ * only macros that run entirely on one task without yielding.
+ * <br><br>
+ * Counters are per task and kept in memory since the task started. They can be read from the object directly, sent
+ * to a {@link Sink} as they're recorded, or accumulated into a module-wide PState with {@link #flush(String, String)}.
+ */
+public class HelperMetrics implements TaskGlobalObject {
+  /**
+   * Receives every recorded amount. Called on the task thread, so it must not block.
+   */
+  public interface Sink extends RamaSerializable {
+    void record(int taskId, String metric, long amount);
+  }
+
+  private final Sink _sink;
+
+  private transient int _taskId;
+  private transient ConcurrentHashMap<String, LongAdder> _counters;
+  private transient Map<String, Long> _flushed;
+
+  /**
+   * Creates a HelperMetrics keeping counters in memory only.
+   */
+  public HelperMetrics() {
+    this(null);
+  }
+
+  /**
+   * Creates a HelperMetrics which also sends every recorded amount to the sink.
+   */
+  public HelperMetrics(Sink sink) {
+    _sink = sink;
+  }
+
+  @Override
+  public void prepareForTask(int taskId, TaskGlobalContext context) {
+    _taskId = taskId;
+    _counters = new ConcurrentHashMap<>();
+    _flushed = new HashMap<>();
+  }
+
+  @Override
+  public void close() {
+  }
+
+  /**
+   * Adds an amount to a metric on this task.
+   */
+  public void add(String metric, long amount) {
+    _counters.computeIfAbsent(metric, m -> new LongAdder()).add(amount);
+    if(_sink!=null) _sink.record(_taskId, metric, amount);
+  }
+
+  /**
+   * Returns the current value of a metric on this task, or 0 if nothing has been recorded for it.
+   */
+  public long get(String metric) {
+    LongAdder ret = _counters.get(metric);
+    return ret==null ? 0 : ret.sum();
+  }
+
+  /**
+   * Returns the current values of all metrics on this task.
+   */
+  public Map<String, Long> snapshot() {
+    Map<String, Long> ret = new TreeMap<>();
+    for(Map.Entry<String, LongAdder> e: _counters.entrySet()) ret.put(e.getKey(), e.getValue().sum());
+    return ret;
+  }
+
+  /**
+   * Returns how much each metric changed since the previous call, omitting metrics that didn't change.
+   */
+  public synchronized Map<String, Long> drainDeltas() {
+    Map<String, Long> ret = new HashMap<>();
+    for(Map.Entry<String, Long> e: snapshot().entrySet()) {
+      long delta = e.getValue() - _flushed.getOrDefault(e.getKey(), 0L);
+      if(delta!=0) {
+        ret.put(e.getKey(), delta);
+        _flushed.put(e.getKey(), e.getValue());
+      }
+    }
+    return ret;
+  }
+
+  private static Object record(HelperMetrics metrics, String metric, Number amount) {
+    metrics.add(metric, amount.longValue());
+    return null;
+  }
+
+  private static Object recordElapsed(HelperMetrics metrics, String metric, Long startNanos) {
+    metrics.add(metric + ".nanos", System.nanoTime() - startNanos);
+    metrics.add(metric + ".calls", 1);
+    return null;
+  }
+
+  /**
+   * Generates code to add an amount to a metric, or nothing if metrics aren't configured.
+   */
+  static Block count(String metricsVar, String metric, Object amount) {
+    if(metricsVar==null) return Block.create();
+    return Block.each(HelperMetrics::record, metricsVar, metric, amount);
+  }
+
+  /**
+   * Generates code to time the body, or just the body if metrics aren't configured.
+   */
+  static Block timed(String metricsVar, String metric, Block body) {
+    if(metricsVar==null) return body;
+    String startVar = Helpers.genVar("start");
+    return Block.each(System::nanoTime).out(startVar)
+                .macro(body)
+                .each(HelperMetrics::recordElapsed, metricsVar, metric, startVar);
+  }
+
+  /**
+   * Macro to add the change in each metric on the current task since its last flush into a PState of module-wide
+   * totals. The PState must be declared as <code>PState.mapSchema(String.class, Long.class)</code>, and this should be
+   * run on every task, typically with {@link Block#allPartition()} off a tick depot. Amounts recorded since the last
+   * flush are lost if a task restarts.
+   *
+   * @param metricsVar Var of the HelperMetrics declared with <code>setup.declareObject</code>
+   * @param pstate Name of the PState of totals
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public static Block flush(String metricsVar, String pstate) {
+    String deltasVar = Helpers.genVar("deltas");
+    String metricVar = Helpers.genVar("metric");
+    String deltaVar = Helpers.genVar("delta");
+    return Block.each((HelperMetrics m) -> m.drainDeltas(), metricsVar).out(deltasVar)
+                .each(Ops.EXPLODE_MAP, deltasVar).out(metricVar, deltaVar)
+                .hashPartition(metricVar)
+                .localTransform(pstate, Path.key(metricVar).nullToVal(0L).term(Ops.PLUS_LONG, deltaVar));
+  }
+}
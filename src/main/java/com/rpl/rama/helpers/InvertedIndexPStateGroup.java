@@ -0,0 +1,339 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.RamaModule.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.*;
+
+import java.util.*;
+
+/**
+ * Higher-level PState implementation for finding documents by term or term prefix, such as autocomplete over user
+ * names. {@link #index(Object, Object)} tokenizes a document's text and maintains postings from each term to the
+ * documents containing it.
+ * <br><br>
+ * Postings are stored with {@link KeyToUniqueFixedItemsPStateGroup}, so each term has at most a configured number of
+ * documents, ordered from most recently indexed, and indexing one more drops the oldest. That keeps common terms as
+ * cheap to update and read as rare ones. The postings PState has the provided name, maps term to ID to document ID, and
+ * has the other PStates of KeyToUniqueFixedItemsPStateGroup alongside it. Another PState with "DocTerms" appended maps
+ * each document ID to its set of terms, so changed and removed documents can be unindexed from their old terms.
+ * <br><br>
+ * When configured with {@link #prefixes(int, int, int)}, every prefix of every term within a range of lengths also has
+ * postings, in a second KeyToUniqueFixedItemsPStateGroup with "Prefixes" appended to the name, whose items are
+ * [document ID, sorted list of the document's terms with that prefix]. A document appears at most once per prefix.
+ * Prefix queries read one prefix's postings on one task instead of scanning all terms, and prefixes longer than the
+ * maximum length are answered by filtering the postings of their longest indexed prefix by those terms.
+ * <br><br>
+ * Queries are paginated with the IDs of the underlying postings, as declared by {@link #declareTermQueryTopology} and
+ * {@link #declarePrefixQueryTopology}.
+ * <br><br>
+ * The pattern for this class is to create an instance and then use {@link declarePStates} to create all its needed PStates
+ * on the topology that should own it. The macros contain partitioners to the tasks of the document and of each changed
+ * term, so they must be used in that same topology, and code following them runs once for each changed term or prefix.
+ *
+ * @see <a href="https://redplanetlabs.com/docs/~/pstates.html">PStates documentation</a>
+ * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+ */
+public class InvertedIndexPStateGroup {
+  /**
+   * Splits text into lowercase runs of letters and digits. This is the default tokenizer.
+   */
+  public static class DefaultTokenizer implements RamaFunction1<Object, Set<String>> {
+    @Override
+    public Set<String> invoke(Object text) {
+      Set<String> ret = new LinkedHashSet<>();
+      if(text==null) return ret;
+      for(String token: text.toString().toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+        if(!token.isEmpty()) ret.add(token);
+      }
+      return ret;
+    }
+  }
+
+  private static final String TERM = "t";
+  private static final String PREFIX = "p";
+  private static final String ADD = "a";
+  private static final String REMOVE = "r";
+
+  private final String _pstate;
+  private final String _prefixes;
+  private final String _docTerms;
+  private final Class _docIdClass;
+  private final KeyToUniqueFixedItemsPStateGroup _termPostings;
+  private KeyToUniqueFixedItemsPStateGroup _prefixPostings = null;
+  private int _minPrefixLength;
+  private int _maxPrefixLength;
+  private RamaFunction1<Object, Set<String>> _tokenizer = new DefaultTokenizer();
+  private int _maxPageSize = 100;
+
+  /**
+   * Creates instance of InvertedIndexPStateGroup. Methods on resulting object are used to declare PStates
+   * and insert high-level operations into topology code.
+   *
+   * @param pstateName Base name for created PStates. The PState of this name holds the postings of each term.
+   * @param maxPostingsPerTerm Maximum number of documents kept for each term
+   * @param docIdClass Type of document IDs
+   */
+  public InvertedIndexPStateGroup(String pstateName, int maxPostingsPerTerm, Class docIdClass) {
+    _pstate = pstateName;
+    _prefixes = pstateName + "Prefixes";
+    _docTerms = pstateName + "DocTerms";
+    _docIdClass = docIdClass;
+    _termPostings = new KeyToUniqueFixedItemsPStateGroup(pstateName, maxPostingsPerTerm, String.class, docIdClass);
+  }
+
+  /**
+   * Configures postings for term prefixes, used by {@link #declarePrefixQueryTopology}.
+   *
+   * @param minLength Length of the shortest indexed prefix. Shorter prefixes match no documents.
+   * @param maxLength Length of the longest indexed prefix. Longer prefixes are answered by filtering the postings of
+   * their prefix of this length.
+   * @param maxPostingsPerPrefix Maximum number of documents kept for each prefix
+   */
+  public InvertedIndexPStateGroup prefixes(int minLength, int maxLength, int maxPostingsPerPrefix) {
+    if(minLength <= 0 || maxLength < minLength) throw new IllegalArgumentException("Invalid prefix lengths: " + minLength + ", " + maxLength);
+    _minPrefixLength = minLength;
+    _maxPrefixLength = maxLength;
+    _prefixPostings = new KeyToUniqueFixedItemsPStateGroup(_prefixes, maxPostingsPerPrefix, String.class, List.class)
+                        .entityIdFunction(_docIdClass, Ops.FIRST);
+    return this;
+  }
+
+  /**
+   * Configures the function from text to its set of terms. Defaults to {@link DefaultTokenizer}.
+   */
+  public InvertedIndexPStateGroup tokenizer(RamaFunction1<Object, Set<String>> tokenizer) {
+    _tokenizer = tokenizer;
+    return this;
+  }
+
+  /**
+   * Configures the maximum number of documents returned in one page by the query topologies. Larger requested page
+   * sizes are reduced to this. Defaults to 100.
+   */
+  public InvertedIndexPStateGroup maxPageSize(int maxPageSize) {
+    _maxPageSize = maxPageSize;
+    return this;
+  }
+
+  /**
+   * Declares needed PStates for this InvertedIndexPStateGroup on the specified topology
+   */
+  public void declarePStates(ETLTopologyBase topology) {
+    _termPostings.declarePStates(topology);
+    if(_prefixPostings!=null) _prefixPostings.declarePStates(topology);
+    topology.pstate(_docTerms, PState.mapSchema(_docIdClass, Set.class));
+  }
+
+  // For each prefix of the terms, the sorted terms with that prefix, so each document has one item per prefix that
+  // longer queries can still be filtered against
+  private static SortedMap<String, List<String>> prefixTerms(Set<String> terms, int minLength, int maxLength) {
+    SortedMap<String, List<String>> ret = new TreeMap<>();
+    if(terms==null) return ret;
+    for(String term: new TreeSet<>(terms)) {
+      for(int len=minLength; len<=Math.min(maxLength, term.length()); len++) {
+        ret.computeIfAbsent(term.substring(0, len), p -> new ArrayList<>()).add(term);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Computes the postings to add and remove to go from the old terms of a document to the new ones, as
+   * [kind, key, action, item] tuples. A prefix posting is added again when the document's terms with that prefix
+   * change. With all, postings for unchanged terms are added again.
+   */
+  static List<List> changes(Object docId, Set<String> oldTerms, Set<String> newTerms, Boolean all, Integer minPrefixLength, Integer maxPrefixLength) {
+    Set<String> before = oldTerms==null ? Collections.emptySet() : oldTerms;
+    Set<String> after = newTerms==null ? Collections.emptySet() : newTerms;
+    List<List> ret = new ArrayList<>();
+    for(String term: before) {
+      if(!after.contains(term)) ret.add(Arrays.asList(TERM, term, REMOVE, docId));
+    }
+    for(String term: after) {
+      if(all || !before.contains(term)) ret.add(Arrays.asList(TERM, term, ADD, docId));
+    }
+    if(maxPrefixLength > 0) {
+      SortedMap<String, List<String>> beforePrefixes = prefixTerms(before, minPrefixLength, maxPrefixLength);
+      SortedMap<String, List<String>> afterPrefixes = prefixTerms(after, minPrefixLength, maxPrefixLength);
+      for(String prefix: beforePrefixes.keySet()) {
+        if(!afterPrefixes.containsKey(prefix)) ret.add(Arrays.asList(PREFIX, prefix, REMOVE, docId));
+      }
+      for(Map.Entry<String, List<String>> e: afterPrefixes.entrySet()) {
+        if(all || !e.getValue().equals(beforePrefixes.get(e.getKey()))) {
+          ret.add(Arrays.asList(PREFIX, e.getKey(), ADD, Arrays.asList(docId, e.getValue())));
+        }
+      }
+    }
+    return ret;
+  }
+
+  private static Boolean isUnchanged(Set<String> oldTerms, Set<String> newTerms) {
+    return Objects.equals(oldTerms, newTerms);
+  }
+
+  private Block applyChanges(Object docId, String oldTermsVar, String newTermsVar, boolean all) {
+    String changesVar = Helpers.genVar("changes");
+    String changeVar = Helpers.genVar("change");
+    String kindVar = Helpers.genVar("kind");
+    String keyVar = Helpers.genVar("key");
+    String actionVar = Helpers.genVar("action");
+    String itemVar = Helpers.genVar("item");
+    Block.Impl prefixChange;
+    if(_prefixPostings==null) prefixChange = Block.create();
+    else prefixChange = Block.hashPartition(_prefixes, keyVar)
+                             .ifTrue(new Expr(Ops.EQUAL, actionVar, ADD),
+                               _prefixPostings.addItem(keyVar, itemVar),
+                               _prefixPostings.removeItemByEntityId(keyVar, docId));
+    return Block.each(InvertedIndexPStateGroup::changes, docId, oldTermsVar, newTermsVar, all,
+                      _minPrefixLength, _prefixPostings==null ? 0 : _maxPrefixLength).out(changesVar)
+                .each(Ops.EXPLODE, changesVar).out(changeVar)
+                .each(Ops.EXPAND, changeVar).out(kindVar, keyVar, actionVar, itemVar)
+                .ifTrue(new Expr(Ops.EQUAL, kindVar, TERM),
+                  Block.hashPartition(_pstate, keyVar)
+                       .ifTrue(new Expr(Ops.EQUAL, actionVar, ADD),
+                         _termPostings.addItem(keyVar, itemVar),
+                         _termPostings.removeItemByEntityId(keyVar, docId)),
+                  prefixChange);
+  }
+
+  private Block update(Object docId, Object text, boolean all) {
+    String newTermsVar = Helpers.genVar("newTerms");
+    String oldTermsVar = Helpers.genVar("oldTerms");
+    Block.Impl ret = Block.each(_tokenizer, text).out(newTermsVar)
+                          .hashPartition(_docTerms, docId)
+                          .localSelect(_docTerms, Path.key(docId)).out(oldTermsVar);
+    if(!all) ret = ret.keepTrue(new Expr(Ops.NOT, new Expr(InvertedIndexPStateGroup::isUnchanged, oldTermsVar, newTermsVar)));
+    return ret.localTransform(_docTerms, Path.key(docId).termVal(newTermsVar))
+              .macro(applyChanges(docId, oldTermsVar, newTermsVar, all));
+  }
+
+  /**
+   * Macro to index a document's text, replacing any text previously indexed for it. Only postings for terms that were
+   * added or removed are written.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block index(Object docId, Object text) {
+    return update(docId, text, false);
+  }
+
+  /**
+   * Macro to index a document's text like {@link #index(Object, Object)}, but also adding postings again for terms
+   * that didn't change. This makes the document the most recent in every posting for its terms and prefixes, such as
+   * to keep active users at the front of autocomplete results.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block reindex(Object docId, Object text) {
+    return update(docId, text, true);
+  }
+
+  /**
+   * Macro to remove a document from the index.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block unindex(Object docId) {
+    String oldTermsVar = Helpers.genVar("oldTerms");
+    String noTermsVar = Helpers.genVar("noTerms");
+    return Block.hashPartition(_docTerms, docId)
+                .localSelect(_docTerms, Path.key(docId)).out(oldTermsVar)
+                .keepTrue(new Expr(Ops.IS_NOT_NULL, oldTermsVar))
+                .localTransform(_docTerms, Path.key(docId).termVoid())
+                .each(Ops.IDENTITY, null).out(noTermsVar)
+                .macro(applyChanges(docId, oldTermsVar, noTermsVar, false));
+  }
+
+  static List page(SortedMap<Long, Object> postings, Number limit, Integer maxPageSize, String prefix) {
+    int amt = Math.min(limit.intValue(), maxPageSize);
+    List docIds = new ArrayList();
+    Long next = null;
+    if(postings==null) return Arrays.asList(docIds, next);
+    int i = 0;
+    for(Map.Entry<Long, Object> e: postings.entrySet()) {
+      if(i==amt) {
+        next = e.getKey();
+        break;
+      }
+      Object item = e.getValue();
+      if(prefix==null) docIds.add(item);
+      else if(hasTermWithPrefix((List<String>) ((List) item).get(1), prefix)) docIds.add(((List) item).get(0));
+      i++;
+    }
+    return Arrays.asList(docIds, next);
+  }
+
+  private static boolean hasTermWithPrefix(List<String> terms, String prefix) {
+    for(String term: terms) {
+      if(term.startsWith(prefix)) return true;
+    }
+    return false;
+  }
+
+  private static Long startCursor(Long cursor) {
+    return cursor==null ? Long.MIN_VALUE : cursor;
+  }
+
+  private static List emptyPage() {
+    return Arrays.asList(new ArrayList(), null);
+  }
+
+  private static String normalizePrefix(String prefix) {
+    return prefix.toLowerCase(Locale.ROOT);
+  }
+
+  private static String indexedPrefix(String prefix, Integer maxLength) {
+    return prefix.length() <= maxLength ? prefix : prefix.substring(0, maxLength);
+  }
+
+  private static String filterPrefix(String prefix, Integer maxLength) {
+    return prefix.length() <= maxLength ? null : prefix;
+  }
+
+  private static Boolean isTooShort(String prefix, Integer minLength) {
+    return prefix.length() < minLength;
+  }
+
+  /**
+   * Declares a query topology returning a page of the documents containing a term, most recently indexed first. The
+   * query topology takes the term, a cursor, and a page size as input. The cursor is null for the first page. It
+   * returns a list of [document IDs, next cursor], where the next cursor is null once there are no more documents.
+   *
+   * @param topologies Topologies of the module that declared these PStates
+   * @param queryName Name of the query topology
+   */
+  public void declareTermQueryTopology(Topologies topologies, String queryName) {
+    topologies.query(queryName, "*term", "*cursor", "*limit").out("*page")
+              .hashPartition(_pstate, "*term")
+              .each(InvertedIndexPStateGroup::startCursor, "*cursor").out("*start")
+              .localSelect(_pstate, Path.key("*term").sortedMapRangeFrom("*start", SortedRangeFromOptions.maxAmt(_maxPageSize + 1))).out("*postings")
+              .each(InvertedIndexPStateGroup::page, "*postings", "*limit", _maxPageSize, null).out("*page")
+              .originPartition();
+  }
+
+  /**
+   * Declares a query topology returning a page of the documents with a term starting with a prefix, most recently
+   * indexed first. The prefix is lowercased. Requires {@link #prefixes(int, int, int)}. The query topology takes the
+   * prefix, a cursor, and a page size as input, and it returns a list of [document IDs, next cursor] as with
+   * {@link #declareTermQueryTopology}. For prefixes longer than the maximum indexed length, a page may have fewer
+   * documents than the page size even when the next cursor isn't null.
+   *
+   * @param topologies Topologies of the module that declared these PStates
+   * @param queryName Name of the query topology
+   */
+  public void declarePrefixQueryTopology(Topologies topologies, String queryName) {
+    if(_prefixPostings==null) throw new IllegalStateException("Prefixes not configured for " + _pstate);
+    topologies.query(queryName, "*prefix", "*cursor", "*limit").out("*page")
+              .each(InvertedIndexPStateGroup::normalizePrefix, "*prefix").out("*normalized")
+              .ifTrue(new Expr(InvertedIndexPStateGroup::isTooShort, "*normalized", _minPrefixLength),
+                Block.each(InvertedIndexPStateGroup::emptyPage).out("*page"),
+                Block.each(InvertedIndexPStateGroup::indexedPrefix, "*normalized", _maxPrefixLength).out("*indexed")
+                     .each(InvertedIndexPStateGroup::filterPrefix, "*normalized", _maxPrefixLength).out("*filter")
+                     .hashPartition(_prefixes, "*indexed")
+                     .each(InvertedIndexPStateGroup::startCursor, "*cursor").out("*start")
+                     .localSelect(_prefixes, Path.key("*indexed").sortedMapRangeFrom("*start", SortedRangeFromOptions.maxAmt(_maxPageSize + 1))).out("*postings")
+                     .each(InvertedIndexPStateGroup::page, "*postings", "*limit", _maxPageSize, "*filter").out("*page"))
+              .originPartition();
+  }
+}
@@ -0,0 +1,499 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.RamaModule.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.*;
+
+import java.util.*;
+
+/**
+ * Higher-level PState implementation for sets of non-negative integers per key, such as which of millions of users saw
+ * a campaign. Members are stored as compressed bitmaps in the style of Roaring bitmaps, so dense sets take about one
+ * bit per possible member and sparse ones about two bytes per member, instead of a PState entry per member.
+ * <br><br>
+ * A member's high 16 bits select a chunk and its low 16 bits a position within the chunk. Each chunk is stored in one
+ * container: a sorted char[] of positions while it has at most 4096 members, and otherwise a long[1024] bitmap of
+ * 8 KB. Declares one PState of the provided name from key to a subindexed map from chunk to container, so an update
+ * reads and writes only one container, and another with "Counts" appended from key to cardinality.
+ * <br><br>
+ * Sets of several keys, which may be on different partitions, can be combined with AND, OR and AND NOT by the query
+ * topology declared by {@link #declareSetOperationQueryTopology}, which works a container at a time with word-wide bit
+ * operations for bitmaps. Its result is a {@link Bitmap}.
+ * <br><br>
+ * Adding to a bitmap container copies its 8 KB, since values read from a PState can't be modified in place, so
+ * {@link #addAll(Object, Object)} should be preferred for adding many members at once. It writes each affected
+ * container once.
+ * <br><br>
+ * Members must be integral numbers from 0 to {@link Integer#MAX_VALUE}. Other members are ignored by the update macros
+ * and are never contained, rather than failing the topology and retrying the record forever. Use
+ * {@link #isValidMember(Object)} to reject them before they're appended to a depot.
+ * <br><br>
+ * The pattern for this class is to create an instance and then use {@link declarePStates} to create all its needed PStates
+ * on the topology that should own it. The other methods define high-level operations to perform on this data structure.
+ *
+ * @see <a href="https://redplanetlabs.com/docs/~/pstates.html">PStates documentation</a>
+ * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+ */
+public class KeyToBitmapSetPStateGroup {
+  private static final int MAX_ARRAY_SIZE = 4096;
+  private static final int BITMAP_WORDS = 1024;
+
+  /**
+   * Set operations supported by {@link #declareSetOperationQueryTopology}. AND_NOT removes the members of every key
+   * after the first from the first key's set.
+   */
+  public enum SetOp {
+    AND, OR, AND_NOT
+  }
+
+  private static int chunk(int member) {
+    return member >>> 16;
+  }
+
+  private static char low(int member) {
+    return (char) (member & 0xFFFF);
+  }
+
+  static boolean containerContains(Object container, char low) {
+    if(container==null) return false;
+    if(container instanceof char[]) return Arrays.binarySearch((char[]) container, low) >= 0;
+    return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+  }
+
+  static int containerCardinality(Object container) {
+    if(container==null) return 0;
+    if(container instanceof char[]) return ((char[]) container).length;
+    int ret = 0;
+    for(long w: (long[]) container) ret += Long.bitCount(w);
+    return ret;
+  }
+
+  private static long[] toBitmap(char[] array) {
+    long[] ret = new long[BITMAP_WORDS];
+    for(char c: array) ret[c >>> 6] |= 1L << c;
+    return ret;
+  }
+
+  private static char[] toArray(long[] bitmap, int cardinality) {
+    char[] ret = new char[cardinality];
+    int i = 0;
+    for(int w=0; w<BITMAP_WORDS; w++) {
+      long word = bitmap[w];
+      while(word!=0) {
+        ret[i++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+        word &= word - 1;
+      }
+    }
+    return ret;
+  }
+
+  // Returns a container in the smallest representation for its cardinality, or null if it's empty
+  private static Object normalize(Object container) {
+    if(container instanceof long[]) {
+      int cardinality = containerCardinality(container);
+      if(cardinality==0) return null;
+      if(cardinality <= MAX_ARRAY_SIZE) return toArray((long[]) container, cardinality);
+    } else if(container instanceof char[]) {
+      char[] array = (char[]) container;
+      if(array.length==0) return null;
+      if(array.length > MAX_ARRAY_SIZE) return toBitmap(array);
+    }
+    return container;
+  }
+
+  /**
+   * Returns a container with the positions added, copying rather than modifying the given container, or the same
+   * container if nothing changed.
+   */
+  static Object withAdded(Object container, Collection<Character> lows) {
+    if(container instanceof long[]) {
+      long[] ret = null;
+      for(char c: lows) {
+        if(!containerContains(ret==null ? container : ret, c)) {
+          if(ret==null) ret = ((long[]) container).clone();
+          ret[c >>> 6] |= 1L << c;
+        }
+      }
+      return ret==null ? container : ret;
+    }
+    char[] array = container==null ? new char[0] : (char[]) container;
+    TreeSet<Character> added = new TreeSet<>();
+    for(char c: lows) {
+      if(Arrays.binarySearch(array, c) < 0) added.add(c);
+    }
+    if(added.isEmpty()) return container;
+    char[] merged = new char[array.length + added.size()];
+    int i = 0, j = 0, k = 0;
+    Iterator<Character> it = added.iterator();
+    char next = it.next();
+    boolean hasNext = true;
+    while(i < array.length || hasNext) {
+      if(!hasNext || (i < array.length && array[i] < next)) {
+        merged[k++] = array[i++];
+      } else {
+        merged[k++] = next;
+        hasNext = it.hasNext();
+        if(hasNext) next = it.next();
+      }
+    }
+    return normalize(merged);
+  }
+
+  /**
+   * Returns a container with the positions removed, copying rather than modifying the given container, the same
+   * container if nothing changed, or null if the container is left empty.
+   */
+  static Object withRemoved(Object container, Collection<Character> lows) {
+    if(container==null) return null;
+    boolean changed = false;
+    for(char c: lows) {
+      if(containerContains(container, c)) changed = true;
+    }
+    if(!changed) return container;
+    if(container instanceof long[]) {
+      long[] ret = ((long[]) container).clone();
+      for(char c: lows) ret[c >>> 6] &= ~(1L << c);
+      return normalize(ret);
+    }
+    Set<Character> removed = new HashSet<>(lows);
+    char[] array = (char[]) container;
+    char[] ret = new char[array.length];
+    int k = 0;
+    for(char c: array) {
+      if(!removed.contains(c)) ret[k++] = c;
+    }
+    return normalize(Arrays.copyOf(ret, k));
+  }
+
+  private static long[] bitmapOf(Object container) {
+    return container instanceof long[] ? (long[]) container : toBitmap((char[]) container);
+  }
+
+  static Object and(Object a, Object b) {
+    if(a==null || b==null) return null;
+    if(a instanceof char[] || b instanceof char[]) {
+      char[] array = (char[]) (a instanceof char[] ? a : b);
+      Object other = array==a ? b : a;
+      char[] ret = new char[array.length];
+      int k = 0;
+      for(char c: array) {
+        if(containerContains(other, c)) ret[k++] = c;
+      }
+      return normalize(Arrays.copyOf(ret, k));
+    }
+    long[] ret = new long[BITMAP_WORDS];
+    long[] x = (long[]) a;
+    long[] y = (long[]) b;
+    for(int i=0; i<BITMAP_WORDS; i++) ret[i] = x[i] & y[i];
+    return normalize(ret);
+  }
+
+  static Object or(Object a, Object b) {
+    if(a==null) return b;
+    if(b==null) return a;
+    if(a instanceof char[] && b instanceof char[] && ((char[]) a).length + ((char[]) b).length <= MAX_ARRAY_SIZE) {
+      List<Character> lows = new ArrayList<>();
+      for(char c: (char[]) b) lows.add(c);
+      return withAdded(a, lows);
+    }
+    long[] ret = bitmapOf(a).clone();
+    long[] y = bitmapOf(b);
+    for(int i=0; i<BITMAP_WORDS; i++) ret[i] |= y[i];
+    return normalize(ret);
+  }
+
+  static Object andNot(Object a, Object b) {
+    if(a==null || b==null) return a;
+    if(a instanceof char[]) {
+      char[] array = (char[]) a;
+      char[] ret = new char[array.length];
+      int k = 0;
+      for(char c: array) {
+        if(!containerContains(b, c)) ret[k++] = c;
+      }
+      return normalize(Arrays.copyOf(ret, k));
+    }
+    long[] ret = ((long[]) a).clone();
+    long[] y = bitmapOf(b);
+    for(int i=0; i<BITMAP_WORDS; i++) ret[i] &= ~y[i];
+    return normalize(ret);
+  }
+
+  /**
+   * Immutable set of non-negative integers made of containers by chunk, as stored by this group.
+   */
+  public static class Bitmap implements RamaSerializable {
+    private final TreeMap<Integer, Object> _containers;
+
+    public Bitmap(SortedMap<Integer, Object> containers) {
+      _containers = containers==null ? new TreeMap<>() : new TreeMap<>(containers);
+    }
+
+    public boolean contains(int member) {
+      return member >= 0 && containerContains(_containers.get(chunk(member)), low(member));
+    }
+
+    public long cardinality() {
+      long ret = 0;
+      for(Object c: _containers.values()) ret += containerCardinality(c);
+      return ret;
+    }
+
+    /**
+     * Returns the members in ascending order.
+     */
+    public int[] toArray() {
+      int[] ret = new int[(int) cardinality()];
+      int i = 0;
+      for(Map.Entry<Integer, Object> e: _containers.entrySet()) {
+        Object c = e.getValue();
+        char[] lows = c instanceof char[] ? (char[]) c : KeyToBitmapSetPStateGroup.toArray((long[]) c, containerCardinality(c));
+        for(char l: lows) ret[i++] = (e.getKey() << 16) | l;
+      }
+      return ret;
+    }
+
+    private Bitmap combine(Bitmap other, SetOp op) {
+      TreeMap<Integer, Object> ret = new TreeMap<>();
+      Set<Integer> chunks = new HashSet<>(_containers.keySet());
+      if(op==SetOp.OR) chunks.addAll(other._containers.keySet());
+      for(Integer chunk: chunks) {
+        Object a = _containers.get(chunk);
+        Object b = other._containers.get(chunk);
+        Object c;
+        if(op==SetOp.AND) c = KeyToBitmapSetPStateGroup.and(a, b);
+        else if(op==SetOp.OR) c = KeyToBitmapSetPStateGroup.or(a, b);
+        else c = KeyToBitmapSetPStateGroup.andNot(a, b);
+        if(c!=null) ret.put(chunk, c);
+      }
+      return new Bitmap(ret);
+    }
+
+    public Bitmap and(Bitmap other) {
+      return combine(other, SetOp.AND);
+    }
+
+    public Bitmap or(Bitmap other) {
+      return combine(other, SetOp.OR);
+    }
+
+    public Bitmap andNot(Bitmap other) {
+      return combine(other, SetOp.AND_NOT);
+    }
+  }
+
+  private final String _pstate;
+  private final String _counts;
+  private final Class _keyClass;
+
+  /**
+   * Creates instance of KeyToBitmapSetPStateGroup. Methods on resulting object are used to declare PStates
+   * and insert high-level operations into topology code.
+   *
+   * @param pstateName Base name for created PStates. The PState of this name holds the containers.
+   * @param keyClass Type of keys
+   */
+  public KeyToBitmapSetPStateGroup(String pstateName, Class keyClass) {
+    _pstate = pstateName;
+    _counts = pstateName + "Counts";
+    _keyClass = keyClass;
+  }
+
+  /**
+   * Declares needed PStates for this KeyToBitmapSetPStateGroup on the specified topology
+   */
+  public void declarePStates(ETLTopologyBase topology) {
+    topology.pstate(
+      _pstate,
+      PState.mapSchema(
+        _keyClass,
+        PState.mapSchema(Integer.class, Object.class).subindexed(SubindexOptions.withoutSizeTracking())));
+    topology.pstate(_counts, PState.mapSchema(_keyClass, Long.class));
+  }
+
+  /**
+   * Returns whether a value can be a member of a bitmap set: a Long, Integer, Short or Byte from 0 to
+   * {@link Integer#MAX_VALUE}.
+   */
+  public static boolean isValidMember(Object member) {
+    if(!(member instanceof Long || member instanceof Integer || member instanceof Short || member instanceof Byte)) return false;
+    long m = ((Number) member).longValue();
+    return m >= 0 && m <= Integer.MAX_VALUE;
+  }
+
+  private static Integer chunkOf(Number member) {
+    return chunk(member.intValue());
+  }
+
+  private static List<Character> lowOf(Number member) {
+    return Collections.singletonList(low(member.intValue()));
+  }
+
+  private static Long cardinalityChange(Object oldContainer, Object newContainer) {
+    return (long) (containerCardinality(newContainer) - containerCardinality(oldContainer));
+  }
+
+  // Groups members by chunk as [chunk, positions] tuples
+  private static List<List> byChunk(Collection<?> members) {
+    TreeMap<Integer, List<Character>> chunks = new TreeMap<>();
+    for(Object m: members) {
+      if(!isValidMember(m)) continue;
+      int member = ((Number) m).intValue();
+      chunks.computeIfAbsent(chunk(member), c -> new ArrayList<>()).add(low(member));
+    }
+    List<List> ret = new ArrayList<>();
+    for(Map.Entry<Integer, List<Character>> e: chunks.entrySet()) ret.add(Arrays.asList(e.getKey(), e.getValue()));
+    return ret;
+  }
+
+  private Block update(Object key, Object chunk, Object lows, boolean add) {
+    String oldVar = Helpers.genVar("old");
+    String newVar = Helpers.genVar("new");
+    String changeVar = Helpers.genVar("change");
+    Block.Impl ret = Block.localSelect(_pstate, Path.key(key, chunk)).out(oldVar);
+    if(add) ret = ret.each(KeyToBitmapSetPStateGroup::withAdded, oldVar, lows).out(newVar);
+    else ret = ret.each(KeyToBitmapSetPStateGroup::withRemoved, oldVar, lows).out(newVar);
+    return ret.each(KeyToBitmapSetPStateGroup::cardinalityChange, oldVar, newVar).out(changeVar)
+              .ifTrue(new Expr(Ops.NOT_EQUAL, changeVar, 0L),
+                Block.ifTrue(new Expr(Ops.IS_NULL, newVar),
+                       Block.localTransform(_pstate, Path.key(key, chunk).termVoid()),
+                       Block.localTransform(_pstate, Path.key(key, chunk).termVal(newVar)))
+                     .localTransform(_counts, Path.key(key).nullToVal(0L).term(Ops.PLUS_LONG, changeVar)));
+  }
+
+  private static Expr isValid(Object member) {
+    return new Expr((Object m) -> isValidMember(m), member);
+  }
+
+  private Block updateOne(Object key, Object member, boolean add) {
+    String chunkVar = Helpers.genVar("chunk");
+    String lowsVar = Helpers.genVar("lows");
+    return Block.ifTrue(isValid(member),
+                  Block.each(KeyToBitmapSetPStateGroup::chunkOf, member).out(chunkVar)
+                       .each(KeyToBitmapSetPStateGroup::lowOf, member).out(lowsVar)
+                       .macro(update(key, chunkVar, lowsVar, add)));
+  }
+
+  /**
+   * Macro to add a member to the set for a key. Ignores members that aren't {@link #isValidMember(Object) valid}.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block add(Object key, Object member) {
+    return updateOne(key, member, true);
+  }
+
+  /**
+   * Macro to remove a member from the set for a key. Ignores members that aren't {@link #isValidMember(Object) valid}.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block remove(Object key, Object member) {
+    return updateOne(key, member, false);
+  }
+
+  private Block updateAll(Object key, Object members, boolean add) {
+    String chunksVar = Helpers.genVar("chunks");
+    String chunkVar = Helpers.genVar("chunk");
+    String lowsVar = Helpers.genVar("lows");
+    String iVar = Helpers.genVar("i");
+    String nextIVar = Helpers.genVar("nextI");
+    String tupleVar = Helpers.genVar("tuple");
+    return Block.each(KeyToBitmapSetPStateGroup::byChunk, members).out(chunksVar)
+                .loopWithVars(LoopVars.var(iVar, 0),
+                  Block.ifTrue(new Expr(Ops.LESS_THAN, iVar, new Expr(Ops.SIZE, chunksVar)),
+                    Block.each(Ops.GET, chunksVar, iVar).out(tupleVar)
+                         .each(Ops.EXPAND, tupleVar).out(chunkVar, lowsVar)
+                         .macro(update(key, chunkVar, lowsVar, add))
+                         .each(Ops.INC, iVar).out(nextIVar)
+                         .continueLoop(nextIVar)));
+  }
+
+  /**
+   * Macro to add a collection of members to the set for a key, writing each affected container once. Skips members
+   * that aren't {@link #isValidMember(Object) valid}.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block addAll(Object key, Object members) {
+    return updateAll(key, members, true);
+  }
+
+  /**
+   * Macro to remove a collection of members from the set for a key, writing each affected container once. Skips members
+   * that aren't {@link #isValidMember(Object) valid}.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block removeAll(Object key, Object members) {
+    return updateAll(key, members, false);
+  }
+
+  private static Boolean containsLow(Object container, Number member) {
+    return containerContains(container, low(member.intValue()));
+  }
+
+  /**
+   * Macro to check whether a member is in the set for a key. Binds false for members that aren't
+   * {@link #isValidMember(Object) valid}.
+   *
+   * @param outVar Var to bind whether the member is present
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block contains(Object key, Object member, String outVar) {
+    String chunkVar = Helpers.genVar("chunk");
+    return Block.ifTrue(isValid(member),
+                  Block.each(KeyToBitmapSetPStateGroup::chunkOf, member).out(chunkVar)
+                       .localSelect(_pstate, Path.key(key, chunkVar).view(KeyToBitmapSetPStateGroup::containsLow, member)).out(outVar),
+                  Block.each(Ops.IDENTITY, false).out(outVar));
+  }
+
+  /**
+   * Macro to read the number of members in the set for a key
+   *
+   * @param outVar Var to bind the cardinality
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block cardinality(Object key, String outVar) {
+    return Block.localSelect(_counts, Path.key(key).nullToVal(0L)).out(outVar);
+  }
+
+  private static Bitmap toBitmapSet(SortedMap<Integer, Object> containers) {
+    return new Bitmap(containers);
+  }
+
+  static Bitmap combineAll(List<List> indexedBitmaps, SetOp op) {
+    indexedBitmaps.sort((a, b) -> Integer.compare((Integer) a.get(0), (Integer) b.get(0)));
+    Bitmap ret = null;
+    Bitmap rest = null;
+    for(List e: indexedBitmaps) {
+      Bitmap b = (Bitmap) e.get(1);
+      if(ret==null) ret = b;
+      else if(op==SetOp.AND) ret = ret.and(b);
+      else if(op==SetOp.OR) ret = ret.or(b);
+      else rest = rest==null ? b : rest.or(b);
+    }
+    if(ret==null) return new Bitmap(null);
+    return rest==null ? ret : ret.andNot(rest);
+  }
+
+  /**
+   * Declares a query topology combining the sets of a list of keys, which may live on different partitions. The query
+   * topology takes a {@link SetOp} and the list of keys as input, and it returns a {@link Bitmap}.
+   *
+   * @param topologies Topologies of the module that declared these PStates
+   * @param queryName Name of the query topology
+   */
+  public void declareSetOperationQueryTopology(Topologies topologies, String queryName) {
+    topologies.query(queryName, "*op", "*keys").out("*result")
+              .each(Ops.EXPLODE_INDEXED, "*keys").out("*i", "*key")
+              .hashPartition(_pstate, "*key")
+              .localSelect(_pstate, Path.key("*key").sortedMapRangeFrom(0)).out("*containers")
+              .each(KeyToBitmapSetPStateGroup::toBitmapSet, "*containers").out("*bitmap")
+              .each(Ops.TUPLE, "*i", "*bitmap").out("*indexedBitmap")
+              .originPartition()
+              .agg(Agg.list("*indexedBitmap")).out("*indexedBitmaps")
+              .each(KeyToBitmapSetPStateGroup::combineAll, "*indexedBitmaps", "*op").out("*result");
+  }
+}
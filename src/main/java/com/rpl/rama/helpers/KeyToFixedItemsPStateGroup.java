@@ -14,19 +14,30 @@ import java.util.*;
  * Declares two PStates underneath the hood. The provided PState name in the constructor should be used for all queries,
  * while the second one is used for internal metadata as part of the implementation.
  * <br><br>
+ * When configured with {@link #incrementalKeyRemoval()}, a third PState with "Tombstones" appended to the name is declared.
+ * It contains the keys currently being removed by {@link #removeKey(Object)}. {@link #filterKeyExists(Object)} treats those
+ * keys as absent, and other readers, such as clients selecting from the PState directly, should check the tombstones PState.
+ * <br><br>
  * The pattern for this class is to create an instance and then use {@link declarePStates} to create all its needed PStates
  * on the topology that should own it. The other methods define high-level operations to perform on this data structure.
  * <br><br>
+ * When configured with {@link #metrics(String)}, records these metrics prefixed by the PState name: "addItem" timings,
+ * "drops" for adds that reached capacity, "clears", "clearedItems" and "clearIterations" for {@link #clearItems(Object)},
+ * and "keyRemovals" and "removeKeyIterations" for {@link #removeKey(Object)}.
+ *
  * @see <a href="https://redplanetlabs.com/docs/~/pstates.html">PStates documentation</a>
  * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
  */
 public class KeyToFixedItemsPStateGroup {
   private final String _pstate;
   private final String _meta;
+  private final String _tombstones;
   private final int _maxAmt;
   private final Class _keyClass;
   private final Class _itemClass;
-  private int _clearBatchSize;
+  private final BatchedClear _clear;
+  private boolean _incrementalKeyRemoval;
+  private String _metricsVar = null;
 
   /**
    * Creates instance of KeyToFixedItemsPStateGroup. Methods on resulting object are used to declare PStates
@@ -41,20 +52,60 @@ public class KeyToFixedItemsPStateGroup {
   public KeyToFixedItemsPStateGroup(String pstateName, int maxAmt, Class keyClass, Class itemClass) {
     _pstate = pstateName;
     _meta = pstateName + "Meta";
+    _tombstones = pstateName + "Tombstones";
     _maxAmt = maxAmt;
     _keyClass = keyClass;
     _itemClass = itemClass;
-    _clearBatchSize = 100;
+    _clear = new BatchedClear(pstateName, 100);
+    _incrementalKeyRemoval = false;
   }
 
   /**
    * Configures how many items to clear at a time during execution of {@link clearItems(Object)}
    */
   public KeyToFixedItemsPStateGroup clearBatchSize(int size) {
-    _clearBatchSize = size;
+    _clear.fixed(size);
     return this;
   }
 
+  /**
+   * Configures clears to adapt how many items they delete at a time based on how long each batch takes. Batch sizes
+   * are kept between the min and max sizes, growing when batches finish well within the target time and shrinking when
+   * they exceed it. Replaces any fixed size configured with clearBatchSize.
+   *
+   * @param minSize Minimum number of items to delete in one batch
+   * @param maxSize Maximum number of items to delete in one batch
+   * @param targetMillis Target time for reading and deleting one batch
+   */
+  public KeyToFixedItemsPStateGroup adaptiveClearBatchSize(int minSize, int maxSize, long targetMillis) {
+    _clear.adaptive(minSize, maxSize, targetMillis);
+    return this;
+  }
+
+  /**
+   * Changes {@link #removeKey(Object)} to delete the key's items piecemeal in batches of the configured clear batch size,
+   * so removing a key with a large collection doesn't dominate the task thread. The key is recorded in the tombstones
+   * PState for the duration of the removal.
+   */
+  public KeyToFixedItemsPStateGroup incrementalKeyRemoval() {
+    _incrementalKeyRemoval = true;
+    return this;
+  }
+
+  /**
+   * Records operation counts and timings in a {@link HelperMetrics}.
+   *
+   * @param metricsVar Var of the HelperMetrics declared with <code>setup.declareObject</code>
+   */
+  public KeyToFixedItemsPStateGroup metrics(String metricsVar) {
+    _metricsVar = metricsVar;
+    return this;
+  }
+
+  private String metric(String name) {
+    return _pstate + "." + name;
+  }
+
   /**
    * Declares needed PStates for this KeyToFixedItemsPStateGroup on the specified topology
    */
@@ -69,9 +120,10 @@ public class KeyToFixedItemsPStateGroup {
       _meta,
       PState.mapSchema(_keyClass, Object.class)
       );
+    if(_incrementalKeyRemoval) topology.pstate(_tombstones, PState.mapSchema(_keyClass, Long.class));
   }
 
-  private static Long computeDropId(Long id, Integer maxAmt) {
+  static Long computeDropId(Long id, Integer maxAmt) {
     if(id <= Long.MAX_VALUE - maxAmt) {
       return id + maxAmt;
     } else {
@@ -90,25 +142,27 @@ public class KeyToFixedItemsPStateGroup {
     String maxAmtVar = Helpers.genVar("maxAmt");
     String dropIdVar = Helpers.genVar("dropId");
     String newMetaVar = Helpers.genVar("newMeta");
-    return Block.localSelect(_meta, Path.key(key)).out(metaVar)
-                .ifTrue(new Expr(Ops.IS_NULL, metaVar),
-                  Block.each(Ops.IDENTITY, Long.MAX_VALUE).out(idVar)
-                       .each(Ops.IDENTITY, _maxAmt).out(maxAmtVar),
-                  Block.each(Ops.GET, metaVar, 0).out(idVar)
-                       .each(Ops.GET, metaVar, 1).out(maxAmtVar))
-                .each(KeyToFixedItemsPStateGroup::computeDropId, idVar, _maxAmt).out(dropIdVar)
-                .each(Ops.TUPLE, new Expr(Ops.DEC_LONG, idVar), _maxAmt).out(newMetaVar)
-                .localTransform(_meta, Path.key(key).termVal(newMetaVar))
-                .localTransform(
-                  _pstate,
-                  Path.key(key).multiPath(
-                    Path.key(idVar).termVal(item),
-                    Path.key(dropIdVar).termVoid()))
-                .ifTrue(new Expr(Ops.NOT_EQUAL, maxAmtVar, _maxAmt),
-                  Block.localTransform(
-                    _pstate,
-                    Path.key(key).sortedMapRangeFrom(dropIdVar).mapKeys().termVoid()
-                    ));
+    Block.Impl ret = Block.localSelect(_meta, Path.key(key)).out(metaVar)
+                          .ifTrue(new Expr(Ops.IS_NULL, metaVar),
+                            Block.each(Ops.IDENTITY, Long.MAX_VALUE).out(idVar)
+                                 .each(Ops.IDENTITY, _maxAmt).out(maxAmtVar),
+                            Block.each(Ops.GET, metaVar, 0).out(idVar)
+                                 .each(Ops.GET, metaVar, 1).out(maxAmtVar))
+                          .each(KeyToFixedItemsPStateGroup::computeDropId, idVar, _maxAmt).out(dropIdVar)
+                          .each(Ops.TUPLE, new Expr(Ops.DEC_LONG, idVar), _maxAmt).out(newMetaVar)
+                          .localTransform(_meta, Path.key(key).termVal(newMetaVar))
+                          .localTransform(
+                            _pstate,
+                            Path.key(key).multiPath(
+                              Path.key(idVar).termVal(item),
+                              Path.key(dropIdVar).termVoid()))
+                          .ifTrue(new Expr(Ops.NOT_EQUAL, maxAmtVar, _maxAmt),
+                            Block.localTransform(
+                              _pstate,
+                              Path.key(key).sortedMapRangeFrom(dropIdVar).mapKeys().termVoid()
+                              ));
+    if(_metricsVar!=null) ret = ret.ifTrue(new Expr(Ops.IS_NOT_NULL, dropIdVar), HelperMetrics.count(_metricsVar, metric("drops"), 1));
+    return HelperMetrics.timed(_metricsVar, metric("addItem"), ret);
   }
 
   /**
@@ -120,6 +174,27 @@ public class KeyToFixedItemsPStateGroup {
     return Block.localTransform(_pstate, Path.key(key, id).termVoid());
   }
 
+  // Items that exist now have IDs above the next ID to be assigned, and a key without metadata has no items
+  private static Long clearStart(List meta) {
+    return meta==null ? Long.MAX_VALUE : (Long) meta.get(0);
+  }
+
+  /**
+   * Macro to only continue processing if the specified key has items. A key that is tombstoned because it's being
+   * removed incrementally is treated as absent.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block filterKeyExists(Object key) {
+    Block.Impl ret = Block.localSelect(_pstate, Path.must(key));
+    if(_incrementalKeyRemoval) {
+      String tombstoneVar = Helpers.genVar("tombstone");
+      ret = ret.localSelect(_tombstones, Path.key(key)).out(tombstoneVar)
+               .keepTrue(new Expr(Ops.IS_NULL, tombstoneVar));
+    }
+    return ret;
+  }
+
   /**
    * Macro to clear current items for a key. The clear is done piecemeal so as not to dominate the task thread. Only items
    * that exist at the start are cleared. New items that come in during the clear will remain.
@@ -127,29 +202,62 @@ public class KeyToFixedItemsPStateGroup {
    * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
    */
   public Block clearItems(Object key) {
-    return Block.loopWithVars(LoopVars.var("*i", -1L),
-             Block.yieldIfOvertime()
-             	  .localSelect(_pstate,
-             			  	   Path.key(key)
-             			  	       .sortedMapRangeFrom(
-             			  	    	  "*i",
-             			  	    	  SortedRangeFromOptions.excludeStart().maxAmt(_clearBatchSize))).out("*m")
-             	  .atomicBlock(
-             		 Block.each(Ops.EXPLODE_MAP, "*m").out("*i", "*v")
-             		 	  .macro(removeItemById(key, "*i")))
-             	  .ifTrue(new Expr(Ops.LESS_THAN, new Expr(Ops.SIZE, "*m"), _clearBatchSize),
-             			  Block.emitLoop(),
-             			  Block.each((SortedMap m) -> m.lastKey(), "*m").out("*nextI")
-             			  	   .continueLoop("*i")));
+    return clearItems(key, Helpers.genVar("cleared"), Helpers.genVar("iterations"));
+  }
+
+  /**
+   * Macro to clear current items for a key as with {@link #clearItems(Object)}, binding how many items were cleared
+   * and how many batches it took.
+   *
+   * @param clearedVar Var to bind the number of items cleared
+   * @param iterationsVar Var to bind the number of batches
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block clearItems(Object key, String clearedVar, String iterationsVar) {
+    return Block.macro(clear(key, clearedVar, iterationsVar))
+                .macro(HelperMetrics.count(_metricsVar, metric("clears"), 1))
+                .macro(HelperMetrics.count(_metricsVar, metric("clearedItems"), clearedVar))
+                .macro(HelperMetrics.count(_metricsVar, metric("clearIterations"), iterationsVar));
+  }
+
+  // Clear without metrics, shared by clearItems and removeKey so each records its own
+  private Block clear(Object key, String clearedVar, String iterationsVar) {
+    String metaVar = Helpers.genVar("meta");
+    String startVar = Helpers.genVar("start");
+    return Block.localSelect(_meta, Path.key(key)).out(metaVar)
+                .each(KeyToFixedItemsPStateGroup::clearStart, metaVar).out(startVar)
+                .macro(_clear.clear(key, startVar, (String idVar) -> removeItemById(key, idVar), clearedVar, iterationsVar));
   }
 
   /**
-   * Macro to remove key and its underlying collection
+   * Macro to remove key and its underlying collection.
+   * <br><br>
+   * When configured with {@link #incrementalKeyRemoval()}, the key is tombstoned immediately and its items are deleted
+   * piecemeal as with {@link #clearItems(Object)}. Once the items that existed at the start are deleted, the key is removed
+   * if no new items came in during the removal, and the tombstone is cleared.
    *
    * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
    */
   public Block removeKey(Object key) {
-    return Block.localTransform(_meta, Path.key(key).termVoid())
-                .localTransform(_pstate, Path.key(key).termVoid());
+    if(!_incrementalKeyRemoval) {
+      return Block.localTransform(_meta, Path.key(key).termVoid())
+                  .localTransform(_pstate, Path.key(key).termVoid())
+                  .macro(HelperMetrics.count(_metricsVar, metric("keyRemovals"), 1));
+    }
+    String remainingVar = Helpers.genVar("remaining");
+    String tombstoneVar = Helpers.genVar("tombstone");
+    String iterationsVar = Helpers.genVar("iterations");
+    return Block.localTransform(_tombstones, Path.key(key).nullToVal(0L).term(Ops.INC_LONG))
+                .macro(clear(key, Helpers.genVar("cleared"), iterationsVar))
+                .localSelect(_pstate, Path.key(key).sortedMapRangeFrom(-1L, SortedRangeFromOptions.maxAmt(1))).out(remainingVar)
+                .ifTrue(new Expr(Ops.EQUAL, new Expr(Ops.SIZE, remainingVar), 0),
+                  Block.localTransform(_meta, Path.key(key).termVoid())
+                       .localTransform(_pstate, Path.key(key).termVoid()))
+                .localSelect(_tombstones, Path.key(key)).out(tombstoneVar)
+                .ifTrue(new Expr(Ops.LESS_THAN_OR_EQUAL, tombstoneVar, 1L),
+                  Block.localTransform(_tombstones, Path.key(key).termVoid()),
+                  Block.localTransform(_tombstones, Path.key(key).term(Ops.DEC_LONG)))
+                .macro(HelperMetrics.count(_metricsVar, metric("keyRemovals"), 1))
+                .macro(HelperMetrics.count(_metricsVar, metric("removeKeyIterations"), iterationsVar));
   }
 }
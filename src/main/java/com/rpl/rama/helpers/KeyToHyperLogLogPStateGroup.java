@@ -0,0 +1,208 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.RamaModule.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.*;
+
+import java.util.*;
+
+/**
+ * Higher-level PState implementation for approximate distinct counts per key, such as unique visitors per page per
+ * day. Each key stores a HyperLogLog sketch: a fixed-size byte array of registers whose size depends only on the
+ * configured precision, not on how many elements were added.
+ * <br><br>
+ * With precision p the sketch has 2^p one byte registers and a standard error of about 1.04 / sqrt(2^p). The default
+ * precision of 13 uses 8 KB per key for about 1.1% error, and each increment of precision doubles the memory and
+ * divides the error by sqrt(2).
+ * <br><br>
+ * Declares one PState of the provided name from key to register array. Keys with no elements have no entry. Sketches
+ * for several keys, like the daily buckets of a week, can be merged on read to estimate the number of distinct elements
+ * across all of them with the query topology declared by {@link #declareMergeQueryTopology}. Registers read directly
+ * from the PState can be estimated and merged with {@link #estimate(byte[])} and {@link #merge(byte[], byte[])}.
+ * <br><br>
+ * Elements are hashed with all their bits for strings, byte arrays and integral numbers. Other types are hashed from
+ * their hashCode, which must be stable across JVMs since sketches are persisted, and which limits accuracy once
+ * cardinalities approach billions.
+ * <br><br>
+ * The pattern for this class is to create an instance and then use {@link declarePStates} to create all its needed PStates
+ * on the topology that should own it. The other methods define high-level operations to perform on this data structure.
+ *
+ * @see <a href="https://redplanetlabs.com/docs/~/pstates.html">PStates documentation</a>
+ * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+ */
+public class KeyToHyperLogLogPStateGroup {
+  private final String _pstate;
+  private final Class _keyClass;
+  private int _precision = 13;
+
+  /**
+   * Creates instance of KeyToHyperLogLogPStateGroup. Methods on resulting object are used to declare PStates
+   * and insert high-level operations into topology code.
+   *
+   * @param pstateName Name of the PState of sketches
+   * @param keyClass Type of keys
+   */
+  public KeyToHyperLogLogPStateGroup(String pstateName, Class keyClass) {
+    _pstate = pstateName;
+    _keyClass = keyClass;
+  }
+
+  /**
+   * Configures the precision, which must be between 4 and 18. Sketches have 2^precision registers. Defaults to 13.
+   * Sketches of different precisions can't be merged, so this can't be changed once data has been written.
+   */
+  public KeyToHyperLogLogPStateGroup precision(int precision) {
+    if(precision < 4 || precision > 18) throw new IllegalArgumentException("Precision must be between 4 and 18: " + precision);
+    _precision = precision;
+    return this;
+  }
+
+  /**
+   * Declares needed PStates for this KeyToHyperLogLogPStateGroup on the specified topology
+   */
+  public void declarePStates(ETLTopologyBase topology) {
+    topology.pstate(_pstate, PState.mapSchema(_keyClass, byte[].class));
+  }
+
+  private static Integer registerIndex(Long hash, Integer precision) {
+    return (int) (hash >>> (64 - precision));
+  }
+
+  private static Integer rank(Long hash, Integer precision) {
+    // Position of the first 1 bit after the index bits, bounded by the number of remaining bits
+    return Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+  }
+
+  private static Integer registerAt(byte[] registers, Integer index) {
+    return registers==null ? 0 : (int) registers[index];
+  }
+
+  private static byte[] withRegister(byte[] registers, Integer precision, Integer index, Integer rank) {
+    byte[] ret = registers==null ? new byte[1 << precision] : registers.clone();
+    if(rank > ret[index]) ret[index] = (byte) (int) rank;
+    return ret;
+  }
+
+  static byte[] withElements(byte[] registers, Integer precision, Collection elements) {
+    byte[] ret = registers;
+    for(Object e: elements) {
+      long hash = HashUtils.wideHash64(e);
+      int index = registerIndex(hash, precision);
+      int rank = rank(hash, precision);
+      if(rank > registerAt(ret, index)) {
+        // Copy once on the first change so sketches read from the PState aren't modified in place
+        if(ret==registers) ret = registers==null ? new byte[1 << precision] : registers.clone();
+        ret[index] = (byte) rank;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Macro to add an element to the sketch for a key. The PState is only written when the element raises a register,
+   * which becomes rare as the sketch fills.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block addElement(Object key, Object element) {
+    String hashVar = Helpers.genVar("hash");
+    String indexVar = Helpers.genVar("index");
+    String rankVar = Helpers.genVar("rank");
+    String currVar = Helpers.genVar("curr");
+    return Block.each(HashUtils::wideHash64, element).out(hashVar)
+                .each(KeyToHyperLogLogPStateGroup::registerIndex, hashVar, _precision).out(indexVar)
+                .each(KeyToHyperLogLogPStateGroup::rank, hashVar, _precision).out(rankVar)
+                .localSelect(_pstate, Path.key(key).view(KeyToHyperLogLogPStateGroup::registerAt, indexVar)).out(currVar)
+                .ifTrue(new Expr(Ops.GREATER_THAN, rankVar, currVar),
+                  Block.localTransform(_pstate, Path.key(key).term(KeyToHyperLogLogPStateGroup::withRegister, _precision, indexVar, rankVar)));
+  }
+
+  /**
+   * Macro to add a collection of elements to the sketch for a key with a single write.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block addElements(Object key, Object elements) {
+    return Block.localTransform(_pstate, Path.key(key).term(KeyToHyperLogLogPStateGroup::withElements, _precision, elements));
+  }
+
+  /**
+   * Macro to estimate the number of distinct elements added for a key on the current task
+   *
+   * @param outVar Var to bind the estimate, which is 0 for keys with no elements
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block estimate(Object key, String outVar) {
+    return Block.localSelect(_pstate, Path.key(key).view(KeyToHyperLogLogPStateGroup::estimateRegisters)).out(outVar);
+  }
+
+  /**
+   * Estimates the number of distinct elements in a sketch, or 0 if the sketch is null.
+   */
+  public static long estimate(byte[] registers) {
+    if(registers==null) return 0;
+    int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for(byte r: registers) {
+      sum += 1.0 / (1L << r);
+      if(r==0) zeros++;
+    }
+    double alpha;
+    if(m==16) alpha = 0.673;
+    else if(m==32) alpha = 0.697;
+    else if(m==64) alpha = 0.709;
+    else alpha = 0.7213 / (1 + 1.079 / m);
+    double estimate = alpha * m * m / sum;
+    // Linear counting is more accurate for small cardinalities. No large range correction is needed with 64 bit hashes.
+    if(estimate <= 2.5 * m && zeros > 0) estimate = m * Math.log((double) m / zeros);
+    return Math.round(estimate);
+  }
+
+  private static Long estimateRegisters(byte[] registers) {
+    return estimate(registers);
+  }
+
+  /**
+   * Returns a new sketch counting the elements of both sketches. Either may be null, and both must have the same
+   * precision.
+   */
+  public static byte[] merge(byte[] a, byte[] b) {
+    if(a==null) return b==null ? null : b.clone();
+    if(b==null) return a.clone();
+    if(a.length!=b.length) throw new IllegalArgumentException("Can't merge sketches of different precisions");
+    byte[] ret = new byte[a.length];
+    for(int i=0; i<ret.length; i++) ret[i] = (byte) Math.max(a[i], b[i]);
+    return ret;
+  }
+
+  public static class MergeSketches implements RamaCombinerAgg<byte[]> {
+    @Override
+    public byte[] combine(byte[] curr, byte[] arg) {
+      return merge(curr, arg);
+    }
+
+    @Override
+    public byte[] zeroVal() {
+      return null;
+    }
+  }
+
+  /**
+   * Declares a query topology estimating the number of distinct elements across the sketches of a list of keys, which
+   * may live on different partitions. The query topology takes the list of keys as input and returns a Long.
+   *
+   * @param topologies Topologies of the module that declared these PStates
+   * @param queryName Name of the query topology
+   */
+  public void declareMergeQueryTopology(Topologies topologies, String queryName) {
+    topologies.query(queryName, "*keys").out("*estimate")
+              .each(Ops.EXPLODE, "*keys").out("*key")
+              .hashPartition(_pstate, "*key")
+              .localSelect(_pstate, Path.key("*key")).out("*registers")
+              .originPartition()
+              .agg(Agg.combiner(new MergeSketches(), "*registers")).out("*merged")
+              .each(KeyToHyperLogLogPStateGroup::estimateRegisters, "*merged").out("*estimate");
+  }
+}
@@ -1,9 +1,12 @@
 package com.rpl.rama.helpers;
 
 import com.rpl.rama.*;
+import com.rpl.rama.RamaModule.*;
 import com.rpl.rama.module.*;
 import com.rpl.rama.ops.*;
 
+import java.util.*;
+
 /**
  * Higher-level PState implementation for a data structure from a key to a linked set of items. The underlying indexes
  * for the inner sets can be queried by set membership or by order of insertion.
@@ -15,7 +18,8 @@ import com.rpl.rama.ops.*;
  * object. This class can be given an optional "entity id function" to extract those IDs from entities.
  * <br><br>
  * When inserted, an entity is given an "ID" which is either monotonically increasing or monotonically decreasing (this is
- * configurable). This ID is used to track order. A re-inserted entity is assigned a new ID. Order is preserved across keys.
+ * configurable). This ID is used to track order. A re-inserted entity is assigned a new ID, unless the group is configured
+ * with {@link #preserveOrderOnReAdd()}. Order is preserved across keys.
  * <br><br>
  * The generated PStates store maps as the inner collections in order to achieve linked-set like operations. One PState is
  * a map from key to entityID to ID. This PState can be used for set membership type queries.
@@ -24,9 +28,22 @@ import com.rpl.rama.ops.*;
  * monotonic, efficient pagination can be done using the <a href="https://beta.redplanetlabs.com/javadoc/com/rpl/rama/Path.html#sortedMapRange-java.lang.Object-java.lang.Object-">sortedMapRange</a>
  * and <a href="https://beta.redplanetlabs.com/javadoc/com/rpl/rama/Path.html#sortedMapRangeFrom-java.lang.Object-">sortedMapRangeFrom</a> navigators.
  * <br><br>
+ * When configured with {@link #incrementalKeyRemoval()}, a PState called $$providedNameTombstones is also generated. It
+ * contains the keys currently being removed by {@link #removeKey(Object)}, and readers should treat those keys as absent.
+ * <br><br>
  * The pattern for this class is to create an instance and then use {@link declarePStates} to create all its underlying PStates
  * on the topology that should own it. This class provides further high-level operations that can be used with macros.
  * Queries are satisfied by querying the underlying PStates directly using paths.
+ * <br><br>
+ * Set operations between the inner sets of multiple keys can be computed on the task holding the data with
+ * {@link #intersection}, {@link #difference}, {@link #union} and {@link #intersectionCount}. When the keys live on
+ * different partitions, use the query topologies declared by {@link #declareIntersectionQueryTopology} and
+ * {@link #declareDifferenceQueryTopology}.
+ * <br><br>
+ * When configured with {@link #metrics(String)}, records these metrics prefixed by the base PState name:
+ * "addToLinkedSet" timings, "reAdds" for adds of entities already in the set, "entityLookupHits" and
+ * "entityLookupMisses" for removals by entity ID, "bloomSkips" for removals skipped by the Bloom filter, "keyRemovals",
+ * and "removeKeyIterations" for the batches of incremental key removals.
  *
  * @see <a href="https://redplanetlabs.com/docs/~/pstates.html">PStates documentation</a>
  * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
@@ -37,8 +54,15 @@ public class KeyToLinkedEntitySetPStateGroup {
   private Class _entityIdType;
   private final String _keyToIdToEntity;
   private final String _keyToEntityToId;
+  private final String _tombstones;
   private final ModuleUniqueIdPState _id;
   private RamaFunction1 _entityIdFunction = Ops.IDENTITY;
+  private int _setOperationPageSize = 100;
+  private boolean _preserveOrderOnReAdd = false;
+  private boolean _incrementalKeyRemoval = false;
+  private int _removeKeyBatchSize = 100;
+  private String _bloomFilterVar = null;
+  private String _metricsVar = null;
 
   /**
    * Creates instance of KeyToLinkedEntitySetPStateGroup. Methods on resulting object are used to declare PStates
@@ -54,6 +78,7 @@ public class KeyToLinkedEntitySetPStateGroup {
     _entityIdType = entityType;
     _keyToEntityToId = basePStateName;
     _keyToIdToEntity = basePStateName + "ById";
+    _tombstones = basePStateName + "Tombstones";
     _id = new ModuleUniqueIdPState(basePStateName + "__idGen");
   }
 
@@ -65,6 +90,16 @@ public class KeyToLinkedEntitySetPStateGroup {
     return this;
   }
 
+  /**
+   * Changes adds of an entity already in the linked set to keep its existing ID, so order is by first insertion. A re-add
+   * only replaces the stored entity in $$basePStateNameById, and it's a no-op if the entity is unchanged. No new ID is
+   * generated in either case.
+   */
+  public KeyToLinkedEntitySetPStateGroup preserveOrderOnReAdd() {
+    _preserveOrderOnReAdd = true;
+    return this;
+  }
+
   /**
    * Provides a function to extract entity IDs from entities. If this is not specified, then entities
    * are their own entity IDs.
@@ -78,6 +113,58 @@ public class KeyToLinkedEntitySetPStateGroup {
     return this;
   }
 
+  /**
+   * Changes {@link #removeKey(Object)} to delete the key's linked set piecemeal, so removing a key with a large linked
+   * set doesn't dominate the task thread. The key is recorded in $$basePStateNameTombstones for the duration of the removal.
+   */
+  public KeyToLinkedEntitySetPStateGroup incrementalKeyRemoval() {
+    _incrementalKeyRemoval = true;
+    return this;
+  }
+
+  /**
+   * Configures how many entities to delete at a time when {@link #incrementalKeyRemoval()} is enabled. Defaults to 100.
+   */
+  public KeyToLinkedEntitySetPStateGroup removeKeyBatchSize(int size) {
+    _removeKeyBatchSize = size;
+    return this;
+  }
+
+  /**
+   * Uses a {@link TaskGlobalBloomFilter} to skip PState reads in {@link #filterKeyExists(Object)} and
+   * {@link #removeFromLinkedSetByEntityId(Object, Object)} for keys and entities that are certainly absent. Adds record
+   * the key and entity ID in the filter. The filter must be rebuilt on each task with {@link #rebuildBloomFilter()}
+   * before it skips any reads.
+   *
+   * @param filterVar Var of the TaskGlobalBloomFilter declared with <code>setup.declareObject</code>
+   */
+  public KeyToLinkedEntitySetPStateGroup bloomFilter(String filterVar) {
+    _bloomFilterVar = filterVar;
+    return this;
+  }
+
+  /**
+   * Records operation counts and timings in a {@link HelperMetrics}.
+   *
+   * @param metricsVar Var of the HelperMetrics declared with <code>setup.declareObject</code>
+   */
+  public KeyToLinkedEntitySetPStateGroup metrics(String metricsVar) {
+    _metricsVar = metricsVar;
+    return this;
+  }
+
+  private String metric(String name) {
+    return _keyToEntityToId + "." + name;
+  }
+
+  /**
+   * Configures how many entries are read at a time from an inner set during set operations. Defaults to 100.
+   */
+  public KeyToLinkedEntitySetPStateGroup setOperationPageSize(int size) {
+    _setOperationPageSize = size;
+    return this;
+  }
+
   /**
    * Declares needed PStates for this KeyToLinkedEntitySetPStateGroup on the specified topology. PStates
    * generated are $$basePStateName and $$basePStateNameById.
@@ -94,6 +181,7 @@ public class KeyToLinkedEntitySetPStateGroup {
       PState.mapSchema(
         _keyType,
         PState.mapSchema(Long.class, _entityType).subindexed()));
+    if(_incrementalKeyRemoval) topology.pstate(_tombstones, PState.mapSchema(_keyType, Long.class));
   }
 
   /**
@@ -104,26 +192,54 @@ public class KeyToLinkedEntitySetPStateGroup {
   public Block addToLinkedSet(Object key, Object entity) {
     String entityIdVar = Helpers.genVar("entityId");
     String currIdVar = Helpers.genVar("currId");
+    String currEntityVar = Helpers.genVar("currEntity");
     String idVar = Helpers.genVar("id");
-    return Block.each(_entityIdFunction, entity).out(entityIdVar)
-                .localSelect(_keyToEntityToId, Path.key(key, entityIdVar)).out(currIdVar)
-                // Here we want to remove the old id -> entity mapping because we're going to replace
-                // the ID with a new one. We don't need to worry about the entity -> id mapping though
-                // since we're going to overwrite that either way after the if
-                .ifTrue(new Expr(Ops.IS_NOT_NULL, currIdVar),
-                  Block.localTransform(_keyToIdToEntity, Path.key(key, currIdVar).termVoid()))
-                .macro(_id.genId(idVar))
-                .localTransform(_keyToEntityToId, Path.key(key, entityIdVar).termVal(idVar))
-                .localTransform(_keyToIdToEntity, Path.key(key, idVar).termVal(entity));
+    Block.Impl start = Block.each(_entityIdFunction, entity).out(entityIdVar)
+                            .localSelect(_keyToEntityToId, Path.key(key, entityIdVar)).out(currIdVar);
+    Block.Impl ret;
+    if(_preserveOrderOnReAdd) {
+      ret = start.ifTrue(new Expr(Ops.IS_NULL, currIdVar),
+                    Block.macro(_id.genId(idVar))
+                         .localTransform(_keyToEntityToId, Path.key(key, entityIdVar).termVal(idVar))
+                         .localTransform(_keyToIdToEntity, Path.key(key, idVar).termVal(entity)),
+                    Block.localSelect(_keyToIdToEntity, Path.key(key, currIdVar)).out(currEntityVar)
+                         .ifTrue(new Expr(Ops.NOT_EQUAL, currEntityVar, entity),
+                           Block.localTransform(_keyToIdToEntity, Path.key(key, currIdVar).termVal(entity))));
+    } else {
+      // Here we want to remove the old id -> entity mapping because we're going to replace
+      // the ID with a new one. We don't need to worry about the entity -> id mapping though
+      // since we're going to overwrite that either way after the if
+      ret = start.ifTrue(new Expr(Ops.IS_NOT_NULL, currIdVar),
+                    Block.localTransform(_keyToIdToEntity, Path.key(key, currIdVar).termVoid()))
+                  .macro(_id.genId(idVar))
+                  .localTransform(_keyToEntityToId, Path.key(key, entityIdVar).termVal(idVar))
+                  .localTransform(_keyToIdToEntity, Path.key(key, idVar).termVal(entity));
+    }
+    if(_bloomFilterVar!=null) {
+      ret = ret.macro(TaskGlobalBloomFilter.put(_bloomFilterVar, key))
+               .macro(TaskGlobalBloomFilter.putPair(_bloomFilterVar, key, entityIdVar));
+    }
+    if(_metricsVar!=null) ret = ret.ifTrue(new Expr(Ops.IS_NOT_NULL, currIdVar), HelperMetrics.count(_metricsVar, metric("reAdds"), 1));
+    return HelperMetrics.timed(_metricsVar, metric("addToLinkedSet"), ret);
   }
 
   /**
-   * Macro to only continue processing if the specified key exists in the top-level map
+   * Macro to only continue processing if the specified key exists in the top-level map. A key that is tombstoned
+   * because it's being removed incrementally is treated as absent.
    *
    * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
    */
   public Block filterKeyExists(Object key) {
-    return Block.localSelect(_keyToEntityToId, Path.must(key));
+    Block.Impl ret;
+    if(_bloomFilterVar==null) ret = Block.localSelect(_keyToEntityToId, Path.must(key));
+    else ret = Block.keepTrue(TaskGlobalBloomFilter.mightContain(_bloomFilterVar, key))
+                    .localSelect(_keyToEntityToId, Path.must(key));
+    if(_incrementalKeyRemoval) {
+      String tombstoneVar = Helpers.genVar("tombstone");
+      ret = ret.localSelect(_tombstones, Path.key(key)).out(tombstoneVar)
+               .keepTrue(new Expr(Ops.IS_NULL, tombstoneVar));
+    }
+    return ret;
   }
 
   /**
@@ -133,10 +249,29 @@ public class KeyToLinkedEntitySetPStateGroup {
    */
   public Block removeFromLinkedSetByEntityId(Object key, Object entityId) {
     String idVar = Helpers.genVar("id");
-    return Block.localSelect(_keyToEntityToId, Path.key(key).key(entityId)).out(idVar)
-                .ifTrue(new Expr(Ops.IS_NOT_NULL, idVar),
-                   Block.localTransform(_keyToEntityToId, Path.key(key).key(entityId).termVoid())
-                        .localTransform(_keyToIdToEntity, Path.key(key).key(idVar).termVoid()));
+    Block remove = Block.localSelect(_keyToEntityToId, Path.key(key).key(entityId)).out(idVar)
+                        .ifTrue(new Expr(Ops.IS_NOT_NULL, idVar),
+                           Block.localTransform(_keyToEntityToId, Path.key(key).key(entityId).termVoid())
+                                .localTransform(_keyToIdToEntity, Path.key(key).key(idVar).termVoid())
+                                .macro(HelperMetrics.count(_metricsVar, metric("entityLookupHits"), 1)),
+                           HelperMetrics.count(_metricsVar, metric("entityLookupMisses"), 1));
+    if(_bloomFilterVar==null) return remove;
+    else return Block.ifTrue(TaskGlobalBloomFilter.mightContainPair(_bloomFilterVar, key, entityId),
+                  remove,
+                  HelperMetrics.count(_metricsVar, metric("bloomSkips"), 1));
+  }
+
+  /**
+   * Macro to rebuild the Bloom filter configured with {@link #bloomFilter(String)} on the current task if it's not yet
+   * ready, which is the case after every task start. The rebuild scans the task's keys and entities piecemeal so as not
+   * to dominate the task thread. This should be run on every task, typically with {@link Block#allPartition()} off a
+   * tick depot.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block rebuildBloomFilter() {
+    if(_bloomFilterVar==null) throw new RuntimeException("Bloom filter not configured for " + _keyToEntityToId);
+    return TaskGlobalBloomFilter.rebuild(_bloomFilterVar, _keyToIdToEntity, _entityIdFunction);
   }
 
   /**
@@ -150,14 +285,584 @@ public class KeyToLinkedEntitySetPStateGroup {
                 .macro(removeFromLinkedSetByEntityId(key, entityIdVar));
   }
 
+  private static SortedMap entriesBefore(SortedMap page, Long bound) {
+    return new TreeMap(page.headMap(bound));
+  }
+
+  private static Boolean isLastRemovalPage(SortedMap page, SortedMap removing, Integer batchSize) {
+    return page.size() < batchSize || removing.size() < page.size();
+  }
+
+  private Block removeEntry(Object key, Object id, Object entity) {
+    String entityIdVar = Helpers.genVar("entityId");
+    String currIdVar = Helpers.genVar("currId");
+    return Block.each(_entityIdFunction, entity).out(entityIdVar)
+                .localSelect(_keyToEntityToId, Path.key(key, entityIdVar)).out(currIdVar)
+                .ifTrue(new Expr(Ops.EQUAL, currIdVar, id),
+                  Block.localTransform(_keyToEntityToId, Path.key(key, entityIdVar).termVoid()))
+                .localTransform(_keyToIdToEntity, Path.key(key, id).termVoid());
+  }
+
+  private Block removeLoop(Object key) {
+    // Only entities with IDs generated before the removal started are deleted. With ascending IDs those are the IDs
+    // below the next ID to be generated, and with descending IDs they're the IDs above it.
+    String nextIdVar = Helpers.genVar("nextId");
+    String startVar = Helpers.genVar("start");
+    String boundVar = Helpers.genVar("bound");
+    String cursorVar = Helpers.genVar("cursor");
+    String nextCursorVar = Helpers.genVar("nextCursor");
+    String pageVar = Helpers.genVar("page");
+    String removingVar = Helpers.genVar("removing");
+    String idVar = Helpers.genVar("id");
+    String entityVar = Helpers.genVar("entity");
+    boolean descending = _id.isDescending();
+    return Block.macro(_id.peekId(nextIdVar))
+                .each(Ops.IDENTITY, descending ? nextIdVar : -1L).out(startVar)
+                .each(Ops.IDENTITY, descending ? Long.MAX_VALUE : nextIdVar).out(boundVar)
+                .loopWithVars(LoopVars.var(cursorVar, startVar),
+                  Block.yieldIfOvertime()
+                       .localSelect(_keyToIdToEntity,
+                                    Path.key(key)
+                                        .sortedMapRangeFrom(
+                                          cursorVar,
+                                          SortedRangeFromOptions.excludeStart().maxAmt(_removeKeyBatchSize))).out(pageVar)
+                       .macro(HelperMetrics.count(_metricsVar, metric("removeKeyIterations"), 1))
+                       .each(KeyToLinkedEntitySetPStateGroup::entriesBefore, pageVar, boundVar).out(removingVar)
+                       .atomicBlock(
+                         Block.each(Ops.EXPLODE_MAP, removingVar).out(idVar, entityVar)
+                              .macro(removeEntry(key, idVar, entityVar)))
+                       .ifTrue(new Expr(KeyToLinkedEntitySetPStateGroup::isLastRemovalPage, pageVar, removingVar, _removeKeyBatchSize),
+                         Block.emitLoop(),
+                         Block.each((SortedMap m) -> m.lastKey(), pageVar).out(nextCursorVar)
+                              .continueLoop(nextCursorVar)));
+  }
+
   /**
    * Macro to remove key and its associated linked set entirely. Removes all state stored in both generated
    * PStates.
+   * <br><br>
+   * When configured with {@link #incrementalKeyRemoval()}, the key is tombstoned immediately and the entities in its
+   * linked set are deleted piecemeal. Entities added while the removal is in progress remain, and they become visible
+   * once the removal finishes and the tombstone is cleared. The key is removed from the top-level maps if no entities
+   * remain.
    *
    * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
    */
   public Block removeKey(Object key) {
-    return Block.localTransform(_keyToEntityToId, Path.key(key).termVoid())
-                .localTransform(_keyToIdToEntity, Path.key(key).termVoid());
+    if(!_incrementalKeyRemoval) {
+      return Block.localTransform(_keyToEntityToId, Path.key(key).termVoid())
+                  .localTransform(_keyToIdToEntity, Path.key(key).termVoid())
+                  .macro(HelperMetrics.count(_metricsVar, metric("keyRemovals"), 1));
+    }
+    String remainingVar = Helpers.genVar("remaining");
+    String tombstoneVar = Helpers.genVar("tombstone");
+    return Block.localTransform(_tombstones, Path.key(key).nullToVal(0L).term(Ops.INC_LONG))
+                .macro(removeLoop(key))
+                .localSelect(_keyToIdToEntity, Path.key(key).view(Ops.SIZE)).out(remainingVar)
+                .ifTrue(new Expr(Ops.EQUAL, remainingVar, 0),
+                  Block.localTransform(_keyToEntityToId, Path.key(key).termVoid())
+                       .localTransform(_keyToIdToEntity, Path.key(key).termVoid()))
+                .localSelect(_tombstones, Path.key(key)).out(tombstoneVar)
+                .ifTrue(new Expr(Ops.LESS_THAN_OR_EQUAL, tombstoneVar, 1L),
+                  Block.localTransform(_tombstones, Path.key(key).termVoid()),
+                  Block.localTransform(_tombstones, Path.key(key).term(Ops.DEC_LONG)))
+                .macro(HelperMetrics.count(_metricsVar, metric("keyRemovals"), 1));
+  }
+
+  /**
+   * Result of a set operation query topology. Contains up to the requested limit of matches keyed by their IDs
+   * in the inner set of the first key, and the ID to pass as "startAfterId" to fetch the following page. The next
+   * ID is null once the first key's inner set has been exhausted.
+   */
+  public static class SetOperationPage implements RamaSerializable {
+    public SortedMap<Long, Object> results;
+    public Long nextStartAfterId;
+
+    public SetOperationPage(SortedMap<Long, Object> results, Long nextStartAfterId) {
+      this.results = results;
+      this.nextStartAfterId = nextStartAfterId;
+    }
+  }
+
+  private static class SetOperationAccumulator {
+    final TreeMap<Long, Object> results = new TreeMap<>();
+    final int limit;
+    final boolean countOnly;
+    long count = 0;
+    int takenFromKey = 0;
+
+    SetOperationAccumulator(int limit, boolean countOnly) {
+      this.limit = limit;
+      this.countOnly = countOnly;
+    }
+  }
+
+  private static int intLimit(Number limit) {
+    return (int) Math.min(limit.longValue(), Integer.MAX_VALUE);
+  }
+
+  private static SetOperationAccumulator collector(Number limit) {
+    return new SetOperationAccumulator(intLimit(limit), false);
+  }
+
+  private static SetOperationAccumulator counter() {
+    return new SetOperationAccumulator(Integer.MAX_VALUE, true);
+  }
+
+  private static Object addMatch(SetOperationAccumulator acc, Long id, Object entity) {
+    acc.count++;
+    if(!acc.countOnly) acc.results.put(id, entity);
+    return null;
+  }
+
+  private static Object addUnionMember(SetOperationAccumulator acc, Long id, Object entity) {
+    acc.takenFromKey++;
+    acc.results.put(id, entity);
+    return null;
+  }
+
+  private static Long minId(Long currMin, Long id) {
+    if(currMin == null) return id;
+    else if(id == null) return currMin;
+    else return Math.min(currMin, id);
+  }
+
+  private static Object nextUnionKey(SetOperationAccumulator acc) {
+    acc.takenFromKey = 0;
+    return null;
+  }
+
+  private static Boolean hasMatchRoom(Iterator it, SetOperationAccumulator acc) {
+    return it.hasNext() && acc.count < acc.limit;
+  }
+
+  private static Boolean hasUnionRoom(Iterator it, SetOperationAccumulator acc) {
+    return it.hasNext() && acc.takenFromKey < acc.limit;
+  }
+
+  private static Boolean isLastMatchPage(SortedMap page, Integer pageSize, SetOperationAccumulator acc) {
+    return page.size() < pageSize || acc.count >= acc.limit;
+  }
+
+  private static Boolean isLastUnionPage(SortedMap page, Integer pageSize, SetOperationAccumulator acc) {
+    return page.size() < pageSize || acc.takenFromKey >= acc.limit;
+  }
+
+  private static SortedMap<Long, Object> matchResults(SetOperationAccumulator acc) {
+    return acc.results;
+  }
+
+  private static SortedMap<Long, Object> unionResults(SetOperationAccumulator acc) {
+    SortedMap<Long, Object> ret = new TreeMap<>();
+    for(Map.Entry<Long, Object> e: acc.results.entrySet()) {
+      if(ret.size() >= acc.limit) break;
+      ret.put(e.getKey(), e.getValue());
+    }
+    return ret;
+  }
+
+  private static Long matchCount(SetOperationAccumulator acc) {
+    return acc.count;
+  }
+
+  private static Long startCursor(Long startAfterId) {
+    return startAfterId == null ? -1L : startAfterId;
+  }
+
+  private static List restKeys(List keys) {
+    return new ArrayList(keys.subList(1, keys.size()));
+  }
+
+  private static Boolean allPresent(Integer presentCount, List others) {
+    return presentCount == others.size();
+  }
+
+  private static Boolean nonePresent(Integer presentCount, List others) {
+    return presentCount == 0;
+  }
+
+  private static List sortBySize(List keys, List<Long> sizes) {
+    List<Integer> indexes = new ArrayList<>();
+    for(int i=0; i<keys.size(); i++) indexes.add(i);
+    indexes.sort(Comparator.comparing(sizes::get));
+    List ret = new ArrayList();
+    for(Integer i: indexes) ret.add(keys.get(i));
+    return ret;
+  }
+
+  private Block countMembers(Object others, Object entityId, String outVar) {
+    String iVar = Helpers.genVar("i");
+    String nextIVar = Helpers.genVar("nextI");
+    String countVar = Helpers.genVar("count");
+    String nextCountVar = Helpers.genVar("nextCount");
+    String otherVar = Helpers.genVar("other");
+    String otherIdVar = Helpers.genVar("otherId");
+    return Block.loopWithVars(LoopVars.var(iVar, 0).var(countVar, 0),
+             Block.ifTrue(new Expr(Ops.LESS_THAN, iVar, new Expr(Ops.SIZE, others)),
+               Block.each(Ops.GET, others, iVar).out(otherVar)
+                    .localSelect(_keyToEntityToId, Path.key(otherVar, entityId)).out(otherIdVar)
+                    .each(Ops.INC, iVar).out(nextIVar)
+                    .each(Ops.INC, countVar).out(nextCountVar)
+                    .ifTrue(new Expr(Ops.IS_NULL, otherIdVar),
+                      Block.continueLoop(nextIVar, countVar),
+                      Block.continueLoop(nextIVar, nextCountVar)),
+               Block.emitLoop(countVar))).out(outVar);
+  }
+
+  private Block smallestId(Object keys, Object entityId, String outVar) {
+    String iVar = Helpers.genVar("i");
+    String nextIVar = Helpers.genVar("nextI");
+    String minVar = Helpers.genVar("min");
+    String nextMinVar = Helpers.genVar("nextMin");
+    String keyVar = Helpers.genVar("key");
+    String idVar = Helpers.genVar("id");
+    String noneVar = Helpers.genVar("none");
+    return Block.each(Ops.IDENTITY, null).out(noneVar)
+                .loopWithVars(LoopVars.var(iVar, 0).var(minVar, noneVar),
+                  Block.ifTrue(new Expr(Ops.LESS_THAN, iVar, new Expr(Ops.SIZE, keys)),
+                    Block.each(Ops.GET, keys, iVar).out(keyVar)
+                         .localSelect(_keyToEntityToId, Path.key(keyVar, entityId)).out(idVar)
+                         .each(KeyToLinkedEntitySetPStateGroup::minId, minVar, idVar).out(nextMinVar)
+                         .each(Ops.INC, iVar).out(nextIVar)
+                         .continueLoop(nextIVar, nextMinVar),
+                    Block.emitLoop(minVar))).out(outVar);
+  }
+
+  private Block filteredScan(Object keys, Object startAfterId, String accVar, boolean intersect) {
+    String driverVar = Helpers.genVar("driver");
+    String othersVar = Helpers.genVar("others");
+    String startVar = Helpers.genVar("start");
+    String cursorVar = Helpers.genVar("cursor");
+    String nextCursorVar = Helpers.genVar("nextCursor");
+    String pageVar = Helpers.genVar("page");
+    String itVar = Helpers.genVar("iterator");
+    String entryVar = Helpers.genVar("entry");
+    String idVar = Helpers.genVar("id");
+    String entityVar = Helpers.genVar("entity");
+    String entityIdVar = Helpers.genVar("entityId");
+    String presentVar = Helpers.genVar("present");
+    RamaFunction2<Integer, List, Boolean> matchFn;
+    if(intersect) matchFn = KeyToLinkedEntitySetPStateGroup::allPresent;
+    else matchFn = KeyToLinkedEntitySetPStateGroup::nonePresent;
+    return Block.each(Ops.FIRST, keys).out(driverVar)
+                .each(KeyToLinkedEntitySetPStateGroup::restKeys, keys).out(othersVar)
+                .each(KeyToLinkedEntitySetPStateGroup::startCursor, startAfterId).out(startVar)
+                .loopWithVars(LoopVars.var(cursorVar, startVar),
+                  Block.yieldIfOvertime()
+                       .localSelect(_keyToIdToEntity,
+                                    Path.key(driverVar)
+                                        .sortedMapRangeFrom(
+                                          cursorVar,
+                                          SortedRangeFromOptions.excludeStart().maxAmt(_setOperationPageSize))).out(pageVar)
+                       .each((Map m) -> m.entrySet().iterator(), pageVar).out(itVar)
+                       .loop(
+                         Block.ifTrue(new Expr(KeyToLinkedEntitySetPStateGroup::hasMatchRoom, itVar, accVar),
+                           Block.each((RamaFunction1<Iterator, Object>) Iterator::next, itVar).out(entryVar)
+                                .each((Map.Entry e) -> e.getKey(), entryVar).out(idVar)
+                                .each((Map.Entry e) -> e.getValue(), entryVar).out(entityVar)
+                                .each(_entityIdFunction, entityVar).out(entityIdVar)
+                                .macro(countMembers(othersVar, entityIdVar, presentVar))
+                                .ifTrue(new Expr(matchFn, presentVar, othersVar),
+                                  Block.each(KeyToLinkedEntitySetPStateGroup::addMatch, accVar, idVar, entityVar))
+                                .continueLoop(),
+                           Block.emitLoop()))
+                       .ifTrue(new Expr(KeyToLinkedEntitySetPStateGroup::isLastMatchPage, pageVar, _setOperationPageSize, accVar),
+                         Block.emitLoop(),
+                         Block.each((SortedMap m) -> m.lastKey(), pageVar).out(nextCursorVar)
+                              .continueLoop(nextCursorVar)));
+  }
+
+  private Block setOperation(Object keys, Object startAfterId, Object limit, String outVar, boolean intersect) {
+    String accVar = Helpers.genVar("acc");
+    return Block.each(KeyToLinkedEntitySetPStateGroup::collector, limit).out(accVar)
+                .macro(filteredScan(keys, startAfterId, accVar, intersect))
+                .each(KeyToLinkedEntitySetPStateGroup::matchResults, accVar).out(outVar);
+  }
+
+  /**
+   * Macro to compute the entities of the first key's inner set which are also in the inner sets of all the other keys.
+   * The first key's inner set is streamed in ID order a page at a time, and each entity is checked for membership in
+   * the other keys' inner sets. The scan stops as soon as the limit is reached. All keys must live on the current task.
+   * <br><br>
+   * Binds a sorted map from ID in the first key's inner set to entity.
+   *
+   * @param keys List of keys. Put the key with the smallest inner set first for the fastest results
+   * @param startAfterId Exclusive ID in the first key's inner set from which to start, or null to start from the beginning
+   * @param limit Maximum number of results
+   * @param outVar Var to bind the result
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block intersection(Object keys, Object startAfterId, Object limit, String outVar) {
+    return setOperation(keys, startAfterId, limit, outVar, true);
+  }
+
+  /**
+   * Macro to compute the entities of the first key's inner set which are in none of the other keys' inner sets.
+   * Streams the first key's inner set the same way as {@link #intersection}. All keys must live on the current task.
+   * <br><br>
+   * Binds a sorted map from ID in the first key's inner set to entity.
+   *
+   * @param keys List of keys
+   * @param startAfterId Exclusive ID in the first key's inner set from which to start, or null to start from the beginning
+   * @param limit Maximum number of results
+   * @param outVar Var to bind the result
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block difference(Object keys, Object startAfterId, Object limit, String outVar) {
+    return setOperation(keys, startAfterId, limit, outVar, false);
+  }
+
+  /**
+   * Macro to count the entities present in the inner sets of all the specified keys. The keys are reordered so the
+   * smallest inner set is the one streamed. All keys must live on the current task.
+   *
+   * @param keys List of keys
+   * @param outVar Var to bind the count
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block intersectionCount(Object keys, String outVar) {
+    String sizesVar = Helpers.genVar("sizes");
+    String iVar = Helpers.genVar("i");
+    String nextIVar = Helpers.genVar("nextI");
+    String keyVar = Helpers.genVar("key");
+    String sizeVar = Helpers.genVar("size");
+    String orderedKeysVar = Helpers.genVar("orderedKeys");
+    String accVar = Helpers.genVar("acc");
+    return Block.each(() -> new ArrayList()).out(sizesVar)
+                .loopWithVars(LoopVars.var(iVar, 0),
+                  Block.ifTrue(new Expr(Ops.LESS_THAN, iVar, new Expr(Ops.SIZE, keys)),
+                    Block.each(Ops.GET, keys, iVar).out(keyVar)
+                         .localSelect(_keyToEntityToId, Path.key(keyVar).view(Ops.SIZE)).out(sizeVar)
+                         .each((List l, Object size) -> l.add(((Number) size).longValue()), sizesVar, sizeVar)
+                         .each(Ops.INC, iVar).out(nextIVar)
+                         .continueLoop(nextIVar),
+                    Block.emitLoop()))
+                .each(KeyToLinkedEntitySetPStateGroup::sortBySize, keys, sizesVar).out(orderedKeysVar)
+                .each(KeyToLinkedEntitySetPStateGroup::counter).out(accVar)
+                .macro(filteredScan(orderedKeysVar, null, accVar, true))
+                .each(KeyToLinkedEntitySetPStateGroup::matchCount, accVar).out(outVar);
+  }
+
+  /**
+   * Macro to compute the union of the inner sets of the specified keys in ID order. Reads at most "limit" entries
+   * after startAfterId from each key. An entity present in multiple inner sets is reported once under its smallest ID
+   * across all the keys, so paging with the last returned ID as startAfterId never repeats an entity. This costs one
+   * lookup per key for each entry read. All keys must live on the current task.
+   * <br><br>
+   * Binds a sorted map from ID to entity.
+   *
+   * @param keys List of keys
+   * @param startAfterId Exclusive ID from which to start, or null to start from the beginning
+   * @param limit Maximum number of results
+   * @param outVar Var to bind the result
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block union(Object keys, Object startAfterId, Object limit, String outVar) {
+    String accVar = Helpers.genVar("acc");
+    String startVar = Helpers.genVar("start");
+    String iVar = Helpers.genVar("i");
+    String nextIVar = Helpers.genVar("nextI");
+    String keyVar = Helpers.genVar("key");
+    String cursorVar = Helpers.genVar("cursor");
+    String nextCursorVar = Helpers.genVar("nextCursor");
+    String pageVar = Helpers.genVar("page");
+    String itVar = Helpers.genVar("iterator");
+    String entryVar = Helpers.genVar("entry");
+    String idVar = Helpers.genVar("id");
+    String entityVar = Helpers.genVar("entity");
+    String entityIdVar = Helpers.genVar("entityId");
+    String smallestIdVar = Helpers.genVar("smallestId");
+    return Block.each(KeyToLinkedEntitySetPStateGroup::collector, limit).out(accVar)
+                .each(KeyToLinkedEntitySetPStateGroup::startCursor, startAfterId).out(startVar)
+                .loopWithVars(LoopVars.var(iVar, 0),
+                  Block.ifTrue(new Expr(Ops.LESS_THAN, iVar, new Expr(Ops.SIZE, keys)),
+                    Block.each(Ops.GET, keys, iVar).out(keyVar)
+                         .each(KeyToLinkedEntitySetPStateGroup::nextUnionKey, accVar)
+                         .loopWithVars(LoopVars.var(cursorVar, startVar),
+                           Block.yieldIfOvertime()
+                                .localSelect(_keyToIdToEntity,
+                                             Path.key(keyVar)
+                                                 .sortedMapRangeFrom(
+                                                   cursorVar,
+                                                   SortedRangeFromOptions.excludeStart().maxAmt(_setOperationPageSize))).out(pageVar)
+                                .each((Map m) -> m.entrySet().iterator(), pageVar).out(itVar)
+                                .loop(
+                                  Block.ifTrue(new Expr(KeyToLinkedEntitySetPStateGroup::hasUnionRoom, itVar, accVar),
+                                    Block.each((RamaFunction1<Iterator, Object>) Iterator::next, itVar).out(entryVar)
+                                         .each((Map.Entry e) -> e.getKey(), entryVar).out(idVar)
+                                         .each((Map.Entry e) -> e.getValue(), entryVar).out(entityVar)
+                                         .each(_entityIdFunction, entityVar).out(entityIdVar)
+                                         .macro(smallestId(keys, entityIdVar, smallestIdVar))
+                                         .ifTrue(new Expr(Ops.EQUAL, idVar, smallestIdVar),
+                                           Block.each(KeyToLinkedEntitySetPStateGroup::addUnionMember, accVar, idVar, entityVar))
+                                         .continueLoop(),
+                                    Block.emitLoop()))
+                                .ifTrue(new Expr(KeyToLinkedEntitySetPStateGroup::isLastUnionPage, pageVar, _setOperationPageSize, accVar),
+                                  Block.emitLoop(),
+                                  Block.each((SortedMap m) -> m.lastKey(), pageVar).out(nextCursorVar)
+                                       .continueLoop(nextCursorVar)))
+                         .each(Ops.INC, iVar).out(nextIVar)
+                         .continueLoop(nextIVar),
+                    Block.emitLoop()))
+                .each(KeyToLinkedEntitySetPStateGroup::unionResults, accVar).out(outVar);
+  }
+
+  private static List<Integer> checkIndexes(Integer numOthers) {
+    List<Integer> ret = new ArrayList<>();
+    for(int i=0; i<=numOthers; i++) ret.add(i);
+    return ret;
+  }
+
+  private static Long nextQueryCursor(SortedMap page, Integer pageSize) {
+    if(page.size() < pageSize) return null;
+    else return (Long) page.lastKey();
+  }
+
+  private static Boolean hasNext(Iterator it) {
+    return it.hasNext();
+  }
+
+  private static Object addCandidate(List<List> candidates, Long id, Object entity, Object entityId) {
+    candidates.add(Arrays.asList(id, entity, entityId));
+    return null;
+  }
+
+  private static List candidateEntityIds(List<List> candidates) {
+    List ret = new ArrayList();
+    for(List c: candidates) ret.add(c.get(2));
+    return ret;
+  }
+
+  private static Object addPresent(Set present, Object entityId) {
+    present.add(entityId);
+    return null;
+  }
+
+  // Binds [id, entity, entity ID] tuples for a page of candidates in ID order
+  private Block candidateTuples(Object candidates, String outVar) {
+    String itVar = Helpers.genVar("iterator");
+    String entryVar = Helpers.genVar("entry");
+    String idVar = Helpers.genVar("id");
+    String entityVar = Helpers.genVar("entity");
+    String entityIdVar = Helpers.genVar("entityId");
+    return Block.each(() -> new ArrayList()).out(outVar)
+                .each((Map m) -> m.entrySet().iterator(), candidates).out(itVar)
+                .loop(
+                  Block.ifTrue(new Expr(KeyToLinkedEntitySetPStateGroup::hasNext, itVar),
+                    Block.each((RamaFunction1<Iterator, Object>) Iterator::next, itVar).out(entryVar)
+                         .each((Map.Entry e) -> e.getKey(), entryVar).out(idVar)
+                         .each((Map.Entry e) -> e.getValue(), entryVar).out(entityVar)
+                         .each(_entityIdFunction, entityVar).out(entityIdVar)
+                         .each(KeyToLinkedEntitySetPStateGroup::addCandidate, outVar, idVar, entityVar, entityIdVar)
+                         .continueLoop(),
+                    Block.emitLoop()));
+  }
+
+  // Binds the set of entity IDs which are in the inner set of the key, looked up together on the key's task
+  private Block presentEntityIds(Object key, Object entityIds, String outVar) {
+    String iVar = Helpers.genVar("i");
+    String nextIVar = Helpers.genVar("nextI");
+    String entityIdVar = Helpers.genVar("entityId");
+    String idVar = Helpers.genVar("id");
+    return Block.each(() -> new HashSet()).out(outVar)
+                .loopWithVars(LoopVars.var(iVar, 0),
+                  Block.ifTrue(new Expr(Ops.LESS_THAN, iVar, new Expr(Ops.SIZE, entityIds)),
+                    Block.each(Ops.GET, entityIds, iVar).out(entityIdVar)
+                         .localSelect(_keyToEntityToId, Path.key(key, entityIdVar)).out(idVar)
+                         .ifTrue(new Expr(Ops.IS_NOT_NULL, idVar),
+                           Block.each(KeyToLinkedEntitySetPStateGroup::addPresent, outVar, entityIdVar))
+                         .each(Ops.INC, iVar).out(nextIVar)
+                         .continueLoop(nextIVar),
+                    Block.emitLoop()));
+  }
+
+  private static SetOperationPage queryPage(List<List> rows, Number limit, Boolean intersect) {
+    // The row from the first key's task has the candidates and no present set, and the row from each other key's task
+    // only has the set of candidate entity IDs present in that key
+    List<List> candidates = Collections.emptyList();
+    List<Set> presents = new ArrayList<>();
+    Long nextCursor = null;
+    int numOthers = 0;
+    for(List row: rows) {
+      if(row.get(3) == null) {
+        candidates = (List<List>) row.get(0);
+        nextCursor = (Long) row.get(1);
+        numOthers = (Integer) row.get(2);
+      } else {
+        presents.add((Set) row.get(3));
+      }
+    }
+    TreeMap<Long, Object> results = new TreeMap<>();
+    for(int i=0; i<candidates.size(); i++) {
+      List c = candidates.get(i);
+      int present = 0;
+      for(Set p: presents) {
+        if(p.contains(c.get(2))) present++;
+      }
+      if(intersect ? present == numOthers : present == 0) {
+        results.put((Long) c.get(0), c.get(1));
+        if(results.size() == intLimit(limit)) {
+          if(i < candidates.size() - 1) nextCursor = (Long) c.get(0);
+          break;
+        }
+      }
+    }
+    return new SetOperationPage(results, nextCursor);
+  }
+
+  private void declareSetOperationQueryTopology(Topologies topologies, String queryName, boolean intersect) {
+    topologies.query(queryName, "*keys", "*startAfterId", "*limit").out("*page")
+              .each(Ops.FIRST, "*keys").out("*driver")
+              .each(KeyToLinkedEntitySetPStateGroup::restKeys, "*keys").out("*others")
+              .each(Ops.SIZE, "*others").out("*numOthers")
+              .each(KeyToLinkedEntitySetPStateGroup::startCursor, "*startAfterId").out("*cursor")
+              .hashPartition(_keyToIdToEntity, "*driver")
+              .localSelect(_keyToIdToEntity,
+                           Path.key("*driver")
+                               .sortedMapRangeFrom(
+                                 "*cursor",
+                                 SortedRangeFromOptions.excludeStart().maxAmt(_setOperationPageSize))).out("*candidates")
+              .each(KeyToLinkedEntitySetPStateGroup::nextQueryCursor, "*candidates", _setOperationPageSize).out("*nextCursor")
+              .macro(candidateTuples("*candidates", "*candidateTuples"))
+              .each(KeyToLinkedEntitySetPStateGroup::candidateEntityIds, "*candidateTuples").out("*entityIds")
+              // One partition hop per other key, carrying the whole page of candidate entity IDs
+              .each(Ops.EXPLODE, new Expr(KeyToLinkedEntitySetPStateGroup::checkIndexes, "*numOthers")).out("*check")
+              .ifTrue(new Expr(Ops.EQUAL, "*check", 0),
+                Block.each(Ops.TUPLE, "*candidateTuples", "*nextCursor", "*numOthers", null).out("*row"),
+                Block.each(Ops.GET, "*others", new Expr(Ops.DEC, "*check")).out("*other")
+                     .hashPartition(_keyToEntityToId, "*other")
+                     .macro(presentEntityIds("*other", "*entityIds", "*present"))
+                     .each(Ops.TUPLE, null, null, null, "*present").out("*row"))
+              .originPartition()
+              .agg(Agg.list("*row")).out("*rows")
+              .each(KeyToLinkedEntitySetPStateGroup::queryPage, "*rows", "*limit", intersect).out("*page");
+  }
+
+  /**
+   * Declares a query topology computing {@link #intersection} for keys that may live on different partitions. The
+   * query topology takes as input a list of keys, an exclusive "startAfterId" (or null) and a limit, and it
+   * returns a {@link SetOperationPage}.
+   * <br><br>
+   * Each invocation examines one page of the first key's inner set, as configured by {@link #setOperationPageSize},
+   * and only sends those candidates' entity IDs to the tasks owning the other keys. A page may contain fewer results
+   * than the limit even when more matches exist, so keep invoking with the returned "nextStartAfterId" until it's null
+   * or enough results have been collected.
+   *
+   * @param topologies Topologies of the module that declared these PStates
+   * @param queryName Name of the query topology
+   */
+  public void declareIntersectionQueryTopology(Topologies topologies, String queryName) {
+    declareSetOperationQueryTopology(topologies, queryName, true);
+  }
+
+  /**
+   * Declares a query topology computing {@link #difference} for keys that may live on different partitions. Inputs,
+   * output and paging behave as with {@link #declareIntersectionQueryTopology}.
+   *
+   * @param topologies Topologies of the module that declared these PStates
+   * @param queryName Name of the query topology
+   */
+  public void declareDifferenceQueryTopology(Topologies topologies, String queryName) {
+    declareSetOperationQueryTopology(topologies, queryName, false);
   }
 }
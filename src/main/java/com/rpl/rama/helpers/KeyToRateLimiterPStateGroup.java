@@ -0,0 +1,190 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.RamaModule.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.*;
+
+import java.util.*;
+
+/**
+ * Higher-level PState implementation for rate limiting per key, such as API requests per user. {@link #tryAcquire}
+ * binds whether a request for some number of permits is allowed, and consumes the permits if so.
+ * <br><br>
+ * Two algorithms are supported:
+ * <ul>
+ * <li>{@link #tokenBucket(long, double)}: Allows bursts up to a capacity, refilling at a steady rate. Stored as a single
+ * Long per key, the time in micros at which the bucket will be full again, in the style of the generic cell rate
+ * algorithm.</li>
+ * <li>{@link #slidingWindow(long, long)}: Allows up to a limit within any window of time, approximating a sliding log by
+ * weighting the previous fixed window's count by how much of it overlaps the sliding window. Stored as a long[3] per
+ * key of window start, count in that window and count in the previous window.</li>
+ * </ul>
+ * Declares one PState of the provided name from key to state. A key that has been idle long enough to be back to its
+ * full allowance is equivalent to an absent key. Denied requests don't write, and each allowed request also checks the
+ * next few keys after it and the first few keys on the task, removing those that are idle. So idle keys are evicted
+ * lazily without timers or scans, as long as some keys on the task keep being used.
+ * <br><br>
+ * Time is read with {@link TopologyUtils#currentTimeMillis()}, so tests can control it with sim time, or from a
+ * {@link SimClock} given to {@link #clock(SimClock)}.
+ * <br><br>
+ * The pattern for this class is to create an instance and then use {@link declarePStates} to create all its needed PStates
+ * on the topology that should own it. The other methods define high-level operations to perform on this data structure.
+ *
+ * @see <a href="https://redplanetlabs.com/docs/~/pstates.html">PStates documentation</a>
+ * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+ */
+public class KeyToRateLimiterPStateGroup {
+  private final String _pstate;
+  private final Class _keyClass;
+  private boolean _tokenBucket;
+  private long _limit = 0;
+  // Micros per permit for token bucket, and millis per window for sliding window
+  private long _interval;
+  private int _evictBatchSize = 4;
+  private SimClock _clock = null;
+
+  /**
+   * Creates instance of KeyToRateLimiterPStateGroup. Methods on resulting object are used to declare PStates
+   * and insert high-level operations into topology code. An algorithm must be configured with
+   * {@link #tokenBucket(long, double)} or {@link #slidingWindow(long, long)}.
+   *
+   * @param pstateName Name of the PState of limiter state
+   * @param keyClass Type of keys
+   */
+  public KeyToRateLimiterPStateGroup(String pstateName, Class keyClass) {
+    _pstate = pstateName;
+    _keyClass = keyClass;
+  }
+
+  /**
+   * Configures a token bucket algorithm.
+   *
+   * @param capacity Maximum permits that can be acquired in a burst
+   * @param permitsPerSecond Rate at which permits are refilled
+   */
+  public KeyToRateLimiterPStateGroup tokenBucket(long capacity, double permitsPerSecond) {
+    if(capacity <= 0 || permitsPerSecond <= 0) throw new IllegalArgumentException("Capacity and rate must be positive");
+    _tokenBucket = true;
+    _limit = capacity;
+    _interval = Math.max(1, Math.round(1000000 / permitsPerSecond));
+    return this;
+  }
+
+  /**
+   * Configures a sliding window algorithm.
+   *
+   * @param limit Maximum permits that can be acquired within any window
+   * @param windowMillis Length of the window
+   */
+  public KeyToRateLimiterPStateGroup slidingWindow(long limit, long windowMillis) {
+    if(limit <= 0 || windowMillis <= 0) throw new IllegalArgumentException("Limit and window must be positive");
+    _tokenBucket = false;
+    _limit = limit;
+    _interval = windowMillis;
+    return this;
+  }
+
+  /**
+   * Configures how many keys after the acquired key, and at the start of the task, are checked for eviction on each
+   * allowed request. Defaults to 4. 0 disables eviction.
+   */
+  public KeyToRateLimiterPStateGroup evictBatchSize(int evictBatchSize) {
+    _evictBatchSize = evictBatchSize;
+    return this;
+  }
+
+  /**
+   * Reads time from a {@link SimClock} instead of {@link TopologyUtils#currentTimeMillis()}.
+   */
+  public KeyToRateLimiterPStateGroup clock(SimClock clock) {
+    _clock = clock;
+    return this;
+  }
+
+  /**
+   * Declares needed PStates for this KeyToRateLimiterPStateGroup on the specified topology
+   */
+  public void declarePStates(ETLTopologyBase topology) {
+    if(_limit==0) throw new IllegalStateException("No algorithm configured for " + _pstate);
+    topology.pstate(_pstate, PState.mapSchema(_keyClass, _tokenBucket ? Long.class : long[].class));
+  }
+
+  private static Long currentTime(SimClock clock) {
+    return TopologyUtils.currentTimeMillis(clock);
+  }
+
+  static Long tokenBucketAcquire(Long fullAt, Long now, Number permits, Long capacity, Long interval) {
+    long nowMicros = now * 1000;
+    long start = fullAt==null ? nowMicros : Math.max(fullAt, nowMicros);
+    long next = start + permits.longValue() * interval;
+    // The bucket holds capacity permits, so it can be at most capacity intervals from full
+    return next - nowMicros <= capacity * interval ? next : null;
+  }
+
+  static long[] slidingWindowAcquire(long[] state, Long now, Number permits, Long limit, Long window) {
+    long windowStart = now - Math.floorMod(now, window);
+    long curr = 0;
+    long prev = 0;
+    if(state!=null && state[0]==windowStart) {
+      curr = state[1];
+      prev = state[2];
+    } else if(state!=null && state[0]==windowStart - window) {
+      prev = state[1];
+    }
+    long p = permits.longValue();
+    double overlap = (double) (window - (now - windowStart)) / window;
+    if(prev * overlap + curr + p > limit) return null;
+    return new long[] {windowStart, curr + p, prev};
+  }
+
+  private static Boolean isTokenBucketIdle(Long fullAt, Long now) {
+    return fullAt <= now * 1000;
+  }
+
+  private static Boolean isSlidingWindowIdle(long[] state, Long now, Long window) {
+    return now >= state[0] + 2 * window;
+  }
+
+  private Path.Impl idle(String nowVar) {
+    if(_tokenBucket) return Path.view(KeyToRateLimiterPStateGroup::isTokenBucketIdle, nowVar).filterPred(Ops.IDENTITY);
+    else return Path.view(KeyToRateLimiterPStateGroup::isSlidingWindowIdle, nowVar, _interval).filterPred(Ops.IDENTITY);
+  }
+
+  private Block evictIdle(Object key, String nowVar) {
+    if(_evictBatchSize==0) return Block.create();
+    return Block.localTransform(
+                  _pstate,
+                  Path.sortedMapRangeFrom(key, SortedRangeFromOptions.excludeStart().maxAmt(_evictBatchSize))
+                      .mapVals()
+                      .filterSelected(idle(nowVar))
+                      .termVoid())
+                .localTransform(
+                  _pstate,
+                  Path.sortedMapRangeTo(key, SortedRangeToOptions.maxAmt(_evictBatchSize))
+                      .mapVals()
+                      .filterSelected(idle(nowVar))
+                      .termVoid());
+  }
+
+  /**
+   * Macro to try to acquire permits for a key. The permits are consumed only if the request is allowed.
+   *
+   * @param permits Number of permits to acquire
+   * @param outVar Var to bind whether the request is allowed
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block tryAcquire(Object key, Object permits, String outVar) {
+    String nowVar = Helpers.genVar("now");
+    String stateVar = Helpers.genVar("state");
+    String newStateVar = Helpers.genVar("newState");
+    Block.Impl ret = Block.each(KeyToRateLimiterPStateGroup::currentTime, _clock).out(nowVar)
+                          .localSelect(_pstate, Path.key(key)).out(stateVar);
+    if(_tokenBucket) ret = ret.each(KeyToRateLimiterPStateGroup::tokenBucketAcquire, stateVar, nowVar, permits, _limit, _interval).out(newStateVar);
+    else ret = ret.each(KeyToRateLimiterPStateGroup::slidingWindowAcquire, stateVar, nowVar, permits, _limit, _interval).out(newStateVar);
+    return ret.each(Ops.IS_NOT_NULL, newStateVar).out(outVar)
+              .ifTrue(outVar,
+                Block.localTransform(_pstate, Path.key(key).termVal(newStateVar))
+                     .macro(evictIdle(key, nowVar)));
+  }
+}
@@ -0,0 +1,251 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.RamaModule.*;
+import com.rpl.rama.integration.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.*;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Higher-level PState implementation for counters whose increments for a single key are spread across multiple tasks.
+ * Each key is split into sub-shards, and each increment goes to a random one of them, so write throughput for a hot
+ * key scales with the number of tasks rather than being limited to the one task owning the key.
+ * <br><br>
+ * Declares a PState of the provided name from [key, shard] to count, partitioned by that tuple. Sub-shards hash
+ * independently, so a key's shards land on different tasks with high probability but aren't guaranteed to. Counts
+ * are read by summing a key's shards with the query topology declared by {@link #declareQueryTopology}.
+ * <br><br>
+ * The number of shards for a key is the number given to the constructor, or the result of
+ * {@link #shardFunction(RamaFunction1)} for that key. With {@link #adaptiveShards(String, long, int)}, keys whose
+ * increment rate exceeds a threshold are given more shards, and a second PState with "Widths" appended to the name
+ * records the most shards each key has been written with so reads include all of them. Reducing the configured number
+ * of shards for a key hides the counts in its higher shards, so shard counts should only ever increase.
+ * <br><br>
+ * The pattern for this class is to create an instance and then use {@link declarePStates} to create all its needed PStates
+ * on the topology that should own it. {@link #increment(Object, Object)} contains partitioners, so it must be used in
+ * that same topology.
+ *
+ * @see <a href="https://redplanetlabs.com/docs/~/pstates.html">PStates documentation</a>
+ * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+ */
+public class KeyToShardedCounterPStateGroup {
+  /**
+   * Task global object estimating each key's increment rate on the task doing the increments, for use with
+   * {@link #adaptiveShards(String, long, int)}. The rate of a key is the larger of its increments in the current and
+   * previous one second windows. Tracks up to a bounded number of the most recently incremented keys.
+   */
+  public static class RateTracker implements TaskGlobalObject {
+    private final int _maxKeys;
+    private transient LinkedHashMap<Object, long[]> _keys;
+
+    // Indexes into the per-key state
+    private static final int WINDOW_START = 0;
+    private static final int CURRENT = 1;
+    private static final int PREVIOUS = 2;
+    private static final int PUBLISHED_WIDTH = 3;
+
+    /**
+     * Creates a RateTracker tracking up to 10000 keys per task.
+     */
+    public RateTracker() {
+      this(10000);
+    }
+
+    public RateTracker(int maxKeys) {
+      _maxKeys = maxKeys;
+    }
+
+    @Override
+    public void prepareForTask(int taskId, TaskGlobalContext context) {
+      _keys = new LinkedHashMap<Object, long[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, long[]> eldest) {
+          return size() > _maxKeys;
+        }
+      };
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Records an increment of the key and returns [width, publish], where width is the number of shards to use and
+     * publish is whether the width is larger than any this task has recorded for the key before.
+     */
+    synchronized List observe(Object key, int minWidth, long incrementsPerSecondPerShard, int maxShards, long now) {
+      long[] state = _keys.get(key);
+      if(state==null) {
+        state = new long[] {now, 0, 0, 1};
+        _keys.put(key, state);
+      }
+      long sinceStart = now - state[WINDOW_START];
+      if(sinceStart >= 1000) {
+        state[PREVIOUS] = sinceStart < 2000 ? state[CURRENT] : 0;
+        state[CURRENT] = 0;
+        state[WINDOW_START] = now;
+      }
+      state[CURRENT]++;
+      long rate = Math.max(state[CURRENT], state[PREVIOUS]);
+      long adaptiveWidth = (rate + incrementsPerSecondPerShard - 1) / incrementsPerSecondPerShard;
+      int width = (int) Math.max(minWidth, Math.min(maxShards, adaptiveWidth));
+      boolean publish = width > state[PUBLISHED_WIDTH];
+      if(publish) state[PUBLISHED_WIDTH] = width;
+      return Arrays.asList(width, publish);
+    }
+  }
+
+  private final String _pstate;
+  private final String _widths;
+  private final Class _keyClass;
+  private final int _numShards;
+  private RamaFunction1<Object, Integer> _shardFunction = null;
+  private String _rateTrackerVar = null;
+  private long _incrementsPerSecondPerShard;
+  private int _maxShards;
+  private SimClock _clock = null;
+
+  /**
+   * Creates instance of KeyToShardedCounterPStateGroup. Methods on resulting object are used to declare PStates
+   * and insert high-level operations into topology code.
+   *
+   * @param pstateName Name of the PState of shard counts
+   * @param keyClass Type of keys
+   * @param numShards Number of shards for each key
+   */
+  public KeyToShardedCounterPStateGroup(String pstateName, Class keyClass, int numShards) {
+    if(numShards <= 0) throw new IllegalArgumentException("Number of shards must be positive: " + numShards);
+    _pstate = pstateName;
+    _widths = pstateName + "Widths";
+    _keyClass = keyClass;
+    _numShards = numShards;
+  }
+
+  /**
+   * Configures the number of shards per key with a function from key to number of shards, such as to give known hot
+   * keys more shards. Replaces the number given to the constructor.
+   */
+  public KeyToShardedCounterPStateGroup shardFunction(RamaFunction1<Object, Integer> fn) {
+    _shardFunction = fn;
+    return this;
+  }
+
+  /**
+   * Configures increments to use more shards for keys with high increment rates. The number of shards for a key is its
+   * rate divided by the target per shard, bounded below by the configured number of shards for the key and above by
+   * maxShards. Rates are estimated separately on each task doing increments.
+   *
+   * @param rateTrackerVar Var of the {@link RateTracker} declared with <code>setup.declareObject</code>
+   * @param incrementsPerSecondPerShard Target rate of increments per second for each shard of a key
+   * @param maxShards Maximum number of shards for any key
+   */
+  public KeyToShardedCounterPStateGroup adaptiveShards(String rateTrackerVar, long incrementsPerSecondPerShard, int maxShards) {
+    _rateTrackerVar = rateTrackerVar;
+    _incrementsPerSecondPerShard = incrementsPerSecondPerShard;
+    _maxShards = maxShards;
+    return this;
+  }
+
+  /**
+   * Reads time for the rate windows of {@link #adaptiveShards(String, long, int)} from a {@link SimClock} instead of
+   * {@link TopologyUtils#currentTimeMillis()}.
+   */
+  public KeyToShardedCounterPStateGroup clock(SimClock clock) {
+    _clock = clock;
+    return this;
+  }
+
+  /**
+   * Declares needed PStates for this KeyToShardedCounterPStateGroup on the specified topology
+   */
+  public void declarePStates(ETLTopologyBase topology) {
+    topology.pstate(_pstate, PState.mapSchema(List.class, Long.class));
+    if(_rateTrackerVar!=null) topology.pstate(_widths, PState.mapSchema(_keyClass, Integer.class));
+  }
+
+  private Block configuredWidth(Object key, String outVar) {
+    if(_shardFunction==null) return Block.each(Ops.IDENTITY, _numShards).out(outVar);
+    else return Block.each(_shardFunction, key).out(outVar);
+  }
+
+  private static Integer randomShard(Integer width) {
+    return ThreadLocalRandom.current().nextInt(width);
+  }
+
+  private static List observe(RateTracker tracker, Object key, Integer minWidth, Long incrementsPerSecondPerShard, Integer maxShards, SimClock clock) {
+    return tracker.observe(key, minWidth, incrementsPerSecondPerShard, maxShards, TopologyUtils.currentTimeMillis(clock));
+  }
+
+  private static Long toLong(Number n) {
+    return n.longValue();
+  }
+
+  /**
+   * Macro to add an amount to the counter for a key
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block increment(Object key, Object amount) {
+    String configuredWidthVar = Helpers.genVar("configuredWidth");
+    String widthVar = Helpers.genVar("width");
+    String observedVar = Helpers.genVar("observed");
+    String publishVar = Helpers.genVar("publish");
+    String shardVar = Helpers.genVar("shard");
+    String shardKeyVar = Helpers.genVar("shardKey");
+    String amountVar = Helpers.genVar("amount");
+    Block.Impl ret = Block.macro(configuredWidth(key, configuredWidthVar));
+    if(_rateTrackerVar==null) {
+      ret = ret.each(Ops.IDENTITY, configuredWidthVar).out(widthVar);
+    } else {
+      ret = ret.each(KeyToShardedCounterPStateGroup::observe, _rateTrackerVar, key, configuredWidthVar, _incrementsPerSecondPerShard, _maxShards, _clock).out(observedVar)
+               .each(Ops.EXPAND, observedVar).out(widthVar, publishVar)
+               .ifTrue(publishVar,
+                 Block.hashPartition(_widths, key)
+                      .localTransform(_widths, Path.key(key).nullToVal(1).term(Ops.MAX, widthVar)));
+    }
+    return ret.each(KeyToShardedCounterPStateGroup::randomShard, widthVar).out(shardVar)
+              .each(Ops.TUPLE, key, shardVar).out(shardKeyVar)
+              .each(KeyToShardedCounterPStateGroup::toLong, amount).out(amountVar)
+              .hashPartition(_pstate, shardKeyVar)
+              .localTransform(_pstate, Path.key(shardKeyVar).nullToVal(0L).term(Ops.PLUS_LONG, amountVar));
+  }
+
+  private static List<Integer> shardRange(Integer width) {
+    List<Integer> ret = new ArrayList<>();
+    for(int i=0; i<width; i++) ret.add(i);
+    return ret;
+  }
+
+  private static Integer readWidth(Integer configured, Integer published) {
+    return published==null ? configured : Math.max(configured, published);
+  }
+
+  /**
+   * Declares a query topology returning the count for a key, summed across all its shards. The query topology takes
+   * the key as input and returns a Long, which is 0 for keys never incremented.
+   *
+   * @param topologies Topologies of the module that declared these PStates
+   * @param queryName Name of the query topology
+   */
+  public void declareQueryTopology(Topologies topologies, String queryName) {
+    Block.Impl width = Block.macro(configuredWidth("*key", "*configuredWidth"));
+    if(_rateTrackerVar==null) {
+      width = width.each(Ops.IDENTITY, "*configuredWidth").out("*width");
+    } else {
+      width = width.hashPartition(_widths, "*key")
+                   .localSelect(_widths, Path.key("*key")).out("*publishedWidth")
+                   .each(KeyToShardedCounterPStateGroup::readWidth, "*configuredWidth", "*publishedWidth").out("*width");
+    }
+    topologies.query(queryName, "*key").out("*count")
+              .macro(width)
+              .each(Ops.EXPLODE, new Expr(KeyToShardedCounterPStateGroup::shardRange, "*width")).out("*shard")
+              .each(Ops.TUPLE, "*key", "*shard").out("*shardKey")
+              .hashPartition(_pstate, "*shardKey")
+              .localSelect(_pstate, Path.key("*shardKey").nullToVal(0L)).out("*shardCount")
+              .originPartition()
+              .agg(Agg.sum("*shardCount")).out("*count");
+  }
+}
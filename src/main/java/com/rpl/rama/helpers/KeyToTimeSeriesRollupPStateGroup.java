@@ -0,0 +1,285 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.RamaModule.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.*;
+
+import java.util.*;
+
+/**
+ * Higher-level PState implementation for time series metrics per key rolled up at several resolutions, such as
+ * minute, hour and day buckets of request latencies per endpoint. Each recorded value updates the sum, count, min and
+ * max of its bucket at every resolution.
+ * <br><br>
+ * Declares one PState of the provided name from key to resolution in millis to a subindexed sorted map from bucket
+ * start to {@link Bucket}. Bucket starts are multiples of the resolution since the epoch.
+ * <br><br>
+ * Resolutions can have a retention, after which their buckets are removed. Expiration is incremental: recording a
+ * value for a key removes at most a configured number of that key's expired buckets at each resolution, so no single
+ * event does unbounded work. Keys that are no longer recorded to keep their expired buckets until {@link #expire} is
+ * called for them, such as from a tick depot. Values recorded for buckets that have already expired are ignored at
+ * that resolution.
+ * <br><br>
+ * Reads with {@link #range} or the query topology declared by {@link #declareRangeQueryTopology} use the coarsest
+ * resolution whose buckets exactly cover the requested window and are still retained, so long windows read few
+ * buckets.
+ * <br><br>
+ * The pattern for this class is to create an instance and then use {@link declarePStates} to create all its needed PStates
+ * on the topology that should own it. The other methods define high-level operations to perform on this data structure.
+ *
+ * @see <a href="https://redplanetlabs.com/docs/~/pstates.html">PStates documentation</a>
+ * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+ */
+public class KeyToTimeSeriesRollupPStateGroup {
+  /**
+   * Aggregate of the values recorded in one bucket. Immutable.
+   */
+  public static class Bucket implements RamaSerializable {
+    public final long count;
+    public final double sum;
+    public final double min;
+    public final double max;
+
+    public Bucket(long count, double sum, double min, double max) {
+      this.count = count;
+      this.sum = sum;
+      this.min = min;
+      this.max = max;
+    }
+
+    public double mean() {
+      return sum / count;
+    }
+
+    public Bucket withValue(double value) {
+      return new Bucket(count + 1, sum + value, Math.min(min, value), Math.max(max, value));
+    }
+
+    /**
+     * Returns a bucket aggregating the values of both buckets. Either may be null.
+     */
+    public static Bucket merge(Bucket a, Bucket b) {
+      if(a==null) return b;
+      if(b==null) return a;
+      return new Bucket(a.count + b.count, a.sum + b.sum, Math.min(a.min, b.min), Math.max(a.max, b.max));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if(!(o instanceof Bucket)) return false;
+      Bucket other = (Bucket) o;
+      return count==other.count && sum==other.sum && min==other.min && max==other.max;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(count, sum, min, max);
+    }
+
+    @Override
+    public String toString() {
+      return "Bucket{count=" + count + ", sum=" + sum + ", min=" + min + ", max=" + max + "}";
+    }
+  }
+
+  private final String _pstate;
+  private final Class _keyClass;
+  // Parallel lists ordered from finest to coarsest resolution. A retention of 0 means buckets are kept forever.
+  private final List<Long> _resolutions = new ArrayList<>();
+  private final List<Long> _retentions = new ArrayList<>();
+  private int _expireBatchSize = 100;
+  private SimClock _clock = null;
+
+  /**
+   * Creates instance of KeyToTimeSeriesRollupPStateGroup. Methods on resulting object are used to declare PStates
+   * and insert high-level operations into topology code. At least one resolution must be added with
+   * {@link #resolution(long)} or {@link #resolution(long, long)}.
+   *
+   * @param pstateName Name of the PState of buckets
+   * @param keyClass Type of keys
+   */
+  public KeyToTimeSeriesRollupPStateGroup(String pstateName, Class keyClass) {
+    _pstate = pstateName;
+    _keyClass = keyClass;
+  }
+
+  /**
+   * Adds a resolution whose buckets are kept forever.
+   */
+  public KeyToTimeSeriesRollupPStateGroup resolution(long bucketMillis) {
+    return resolution(bucketMillis, 0);
+  }
+
+  /**
+   * Adds a resolution whose buckets are removed once they end more than the retention before the current time.
+   *
+   * @param bucketMillis Width of each bucket
+   * @param retentionMillis How long buckets are kept, or 0 to keep them forever
+   */
+  public KeyToTimeSeriesRollupPStateGroup resolution(long bucketMillis, long retentionMillis) {
+    if(bucketMillis <= 0) throw new IllegalArgumentException("Resolution must be positive: " + bucketMillis);
+    if(_resolutions.contains(bucketMillis)) throw new IllegalArgumentException("Duplicate resolution: " + bucketMillis);
+    int i = 0;
+    while(i < _resolutions.size() && _resolutions.get(i) < bucketMillis) i++;
+    _resolutions.add(i, bucketMillis);
+    _retentions.add(i, retentionMillis);
+    return this;
+  }
+
+  /**
+   * Configures the maximum number of expired buckets removed per resolution each time a key is recorded to or
+   * expired. Defaults to 100.
+   */
+  public KeyToTimeSeriesRollupPStateGroup expireBatchSize(int expireBatchSize) {
+    _expireBatchSize = expireBatchSize;
+    return this;
+  }
+
+  /**
+   * Reads the current time for retention from a {@link SimClock} instead of {@link TopologyUtils#currentTimeMillis()}.
+   */
+  public KeyToTimeSeriesRollupPStateGroup clock(SimClock clock) {
+    _clock = clock;
+    return this;
+  }
+
+  /**
+   * Declares needed PStates for this KeyToTimeSeriesRollupPStateGroup on the specified topology
+   */
+  public void declarePStates(ETLTopologyBase topology) {
+    if(_resolutions.isEmpty()) throw new IllegalStateException("No resolutions configured for " + _pstate);
+    topology.pstate(
+      _pstate,
+      PState.mapSchema(
+        _keyClass,
+        PState.mapSchema(
+          Long.class,
+          PState.mapSchema(Long.class, Bucket.class).subindexed(SubindexOptions.withoutSizeTracking()))));
+  }
+
+  private static Long bucketStart(Number timestamp, Long resolution) {
+    long t = timestamp.longValue();
+    return t - Math.floorMod(t, resolution);
+  }
+
+  private static Long retentionCutoff(SimClock clock, Long resolution, Long retention) {
+    // Start of the oldest bucket that's retained, so buckets ending before now - retention are expired
+    return bucketStart(TopologyUtils.currentTimeMillis(clock) - retention, resolution);
+  }
+
+  private static Bucket addValue(Bucket bucket, Number value) {
+    double v = value.doubleValue();
+    if(bucket==null) return new Bucket(1, v, v, v);
+    else return bucket.withValue(v);
+  }
+
+  private Block expireResolution(Object key, int i, String cutoffVar) {
+    return Block.localTransform(
+      _pstate,
+      Path.key(key, _resolutions.get(i))
+          .sortedMapRangeTo(cutoffVar, SortedRangeToOptions.maxAmt(_expireBatchSize))
+          .mapKeys()
+          .termVoid());
+  }
+
+  /**
+   * Macro to record a value at a timestamp for a key. Also removes some of the key's expired buckets.
+   *
+   * @param timestamp Time of the value in millis
+   * @param value Number to record
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block record(Object key, Object timestamp, Object value) {
+    Block.Impl ret = Block.create();
+    for(int i=0; i<_resolutions.size(); i++) {
+      Long resolution = _resolutions.get(i);
+      Long retention = _retentions.get(i);
+      String bucketVar = Helpers.genVar("bucket");
+      Block write = Block.localTransform(_pstate, Path.key(key, resolution, bucketVar).term(KeyToTimeSeriesRollupPStateGroup::addValue, value));
+      ret = ret.each(KeyToTimeSeriesRollupPStateGroup::bucketStart, timestamp, resolution).out(bucketVar);
+      if(retention==0) {
+        ret = ret.macro(write);
+      } else {
+        String cutoffVar = Helpers.genVar("cutoff");
+        ret = ret.each(KeyToTimeSeriesRollupPStateGroup::retentionCutoff, _clock, resolution, retention).out(cutoffVar)
+                 .ifTrue(new Expr(Ops.GREATER_THAN_OR_EQUAL, bucketVar, cutoffVar), write)
+                 .macro(expireResolution(key, i, cutoffVar));
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Macro to remove up to the configured batch size of expired buckets for a key at each resolution with a retention.
+   * Only needed for keys that are no longer being recorded to.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block expire(Object key) {
+    Block.Impl ret = Block.create();
+    for(int i=0; i<_resolutions.size(); i++) {
+      Long retention = _retentions.get(i);
+      if(retention!=0) {
+        String cutoffVar = Helpers.genVar("cutoff");
+        ret = ret.each(KeyToTimeSeriesRollupPStateGroup::retentionCutoff, _clock, _resolutions.get(i), retention).out(cutoffVar)
+                 .macro(expireResolution(key, i, cutoffVar));
+      }
+    }
+    return ret;
+  }
+
+  static Long chooseResolution(List<Long> resolutions, List<Long> retentions, SimClock clock, Number start, Number end) {
+    long s = start.longValue();
+    long e = end.longValue();
+    for(int i=resolutions.size()-1; i>=0; i--) {
+      long resolution = resolutions.get(i);
+      boolean aligned = Math.floorMod(s, resolution)==0 && Math.floorMod(e, resolution)==0;
+      if(aligned && isRetained(resolution, retentions.get(i), clock, s)) return resolution;
+    }
+    // Unaligned windows use the finest resolution still holding the start of the window, so the edge buckets overhang
+    // the window rather than the result silently missing its expired beginning
+    for(int i=0; i<resolutions.size(); i++) {
+      if(isRetained(resolutions.get(i), retentions.get(i), clock, s)) return resolutions.get(i);
+    }
+    return resolutions.get(resolutions.size()-1);
+  }
+
+  private static boolean isRetained(long resolution, long retention, SimClock clock, long start) {
+    return retention==0 || start >= retentionCutoff(clock, resolution, retention);
+  }
+
+  /**
+   * Macro to read the buckets of a key covering a window on the current task. Uses the coarsest resolution whose
+   * buckets align with both ends of the window and which retains buckets back to the start of the window. Otherwise uses
+   * the finest resolution retaining buckets back to the start of the window, or the coarsest resolution if none does,
+   * in which case the first and last buckets may extend past the window.
+   *
+   * @param startMillis Inclusive start of the window
+   * @param endMillis Exclusive end of the window
+   * @param outVar Var to bind the sorted map from bucket start to {@link Bucket}. Buckets with no values are absent.
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block range(Object key, Object startMillis, Object endMillis, String outVar) {
+    String resolutionVar = Helpers.genVar("resolution");
+    String fromVar = Helpers.genVar("from");
+    return Block.each(KeyToTimeSeriesRollupPStateGroup::chooseResolution, _resolutions, _retentions, _clock, startMillis, endMillis).out(resolutionVar)
+                .each(KeyToTimeSeriesRollupPStateGroup::bucketStart, startMillis, resolutionVar).out(fromVar)
+                .localSelect(_pstate, Path.key(key, resolutionVar).sortedMapRange(fromVar, endMillis)).out(outVar);
+  }
+
+  /**
+   * Declares a query topology reading the buckets of a key covering a window as described in {@link #range}. The
+   * query topology takes the key, inclusive start millis and exclusive end millis as input, and it returns a sorted
+   * map from bucket start to {@link Bucket}.
+   *
+   * @param topologies Topologies of the module that declared these PStates
+   * @param queryName Name of the query topology
+   */
+  public void declareRangeQueryTopology(Topologies topologies, String queryName) {
+    topologies.query(queryName, "*key", "*startMillis", "*endMillis").out("*buckets")
+              .hashPartition(_pstate, "*key")
+              .macro(range("*key", "*startMillis", "*endMillis", "*buckets"))
+              .originPartition();
+  }
+}
@@ -0,0 +1,292 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.RamaModule.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.*;
+
+import java.util.*;
+
+/**
+ * Higher-level PState implementation for tracking the approximate heaviest items per key, such as the top hashtags per
+ * region per hour, without keeping exact counts for every item. Memory per key is fixed regardless of how many distinct
+ * items are observed.
+ * <br><br>
+ * Each key has a Count-Min Sketch estimating the total weight of any item, and a bounded set of candidate items with
+ * their estimates in the style of Space-Saving. An observed item already among the candidates has its estimate
+ * updated. Otherwise it becomes a candidate if there's room, or if its estimate exceeds the smallest candidate's, which
+ * it then replaces. Estimates never undercount, and they overcount by at most about e / width of the key's total
+ * weight with probability 1 - e^-depth.
+ * <br><br>
+ * Declares three PStates. The provided PState name maps key to the candidates and their estimates, another with
+ * "ByCount" appended indexes candidates by estimate, and another with "Sketch" appended holds the sketch cells. All
+ * inner maps are subindexed. Candidates for a key are capped at the configured capacity, and sketch cells at depth *
+ * width.
+ * <br><br>
+ * {@link #topK(Object, Object, String)} reads the heaviest candidates of one key. The query topology declared by
+ * {@link #declareTopKQueryTopology} merges the candidates of several keys, which may be on different partitions. An
+ * item missing from a key's full candidate set is counted as that key's smallest candidate estimate, since it can't
+ * have been observed more than that, so merged estimates stay upper bounds.
+ * <br><br>
+ * Weights must be positive. The pattern for this class is to create an instance and then use {@link declarePStates} to
+ * create all its needed PStates on the topology that should own it. The other methods define high-level operations to
+ * perform on this data structure.
+ *
+ * @see <a href="https://redplanetlabs.com/docs/~/pstates.html">PStates documentation</a>
+ * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+ */
+public class KeyToTopKPStateGroup {
+  private final String _pstate;
+  private final String _byCount;
+  private final String _sketch;
+  private final Class _keyClass;
+  private final Class _itemClass;
+  private int _capacity;
+  private int _depth = 4;
+  private int _width = 2048;
+
+  /**
+   * Creates instance of KeyToTopKPStateGroup. Methods on resulting object are used to declare PStates
+   * and insert high-level operations into topology code.
+   *
+   * @param pstateName Base name for created PStates. The PState of this name maps key to candidate item to estimate.
+   * @param k Number of items typically requested. Candidates are capped at twice this unless configured with
+   * {@link #capacity(int)}.
+   * @param keyClass Type of keys
+   * @param itemClass Type of items
+   */
+  public KeyToTopKPStateGroup(String pstateName, int k, Class keyClass, Class itemClass) {
+    _pstate = pstateName;
+    _byCount = pstateName + "ByCount";
+    _sketch = pstateName + "Sketch";
+    _keyClass = keyClass;
+    _itemClass = itemClass;
+    _capacity = 2 * k;
+  }
+
+  /**
+   * Configures the maximum number of candidate items per key. More candidates make the top items more accurate for
+   * flatter distributions at the cost of memory.
+   */
+  public KeyToTopKPStateGroup capacity(int capacity) {
+    _capacity = capacity;
+    return this;
+  }
+
+  /**
+   * Configures the dimensions of the Count-Min Sketch. Defaults to depth 4 and width 2048.
+   *
+   * @param depth Number of rows, each with its own hash of the item
+   * @param width Number of cells per row
+   */
+  public KeyToTopKPStateGroup sketchDimensions(int depth, int width) {
+    _depth = depth;
+    _width = width;
+    return this;
+  }
+
+  /**
+   * Declares needed PStates for this KeyToTopKPStateGroup on the specified topology
+   */
+  public void declarePStates(ETLTopologyBase topology) {
+    topology.pstate(
+      _pstate,
+      PState.mapSchema(
+        _keyClass,
+        PState.mapSchema(_itemClass, Long.class).subindexed()));
+    topology.pstate(
+      _byCount,
+      PState.mapSchema(
+        _keyClass,
+        PState.mapSchema(Long.class, PState.setSchema(_itemClass)).subindexed(SubindexOptions.withoutSizeTracking())));
+    topology.pstate(
+      _sketch,
+      PState.mapSchema(
+        _keyClass,
+        PState.mapSchema(Integer.class, Long.class).subindexed(SubindexOptions.withoutSizeTracking())));
+  }
+
+  private static List<Integer> sketchCells(Object item, Integer depth, Integer width) {
+    // Double hashing gives each row an independent enough hash from two base hashes
+    long h1 = HashUtils.wideHash64(item);
+    long h2 = HashUtils.mix64(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+    List<Integer> ret = new ArrayList<>(depth);
+    for(int i=0; i<depth; i++) {
+      ret.add(i * width + (int) Long.remainderUnsigned(h1 + i * h2, width));
+    }
+    return ret;
+  }
+
+  private static Long toLong(Number n) {
+    return n.longValue();
+  }
+
+  private static Long minCount(List<Long> counts) {
+    return Collections.min(counts);
+  }
+
+  private Block removeCandidate(Object key, Object item, Object count) {
+    String remainingVar = Helpers.genVar("remaining");
+    return Block.localTransform(_pstate, Path.key(key, item).termVoid())
+                .localTransform(_byCount, Path.key(key, count).setElem(item).termVoid())
+                .localSelect(_byCount, Path.key(key, count).view(Ops.SIZE)).out(remainingVar)
+                .ifTrue(new Expr(Ops.EQUAL, remainingVar, 0),
+                  Block.localTransform(_byCount, Path.key(key, count).termVoid()));
+  }
+
+  private Block addCandidate(Object key, Object item, Object count) {
+    return Block.localTransform(_pstate, Path.key(key, item).termVal(count))
+                .localTransform(_byCount, Path.key(key, count).voidSetElem().termVal(item));
+  }
+
+  /**
+   * Macro to observe an item with a weight for a key. Weights that aren't positive are ignored, since subtracting from
+   * the sketch would break the estimates being upper bounds.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block observe(Object key, Object item, Object weight) {
+    String cellsVar = Helpers.genVar("cells");
+    String weightVar = Helpers.genVar("weight");
+    String countsVar = Helpers.genVar("counts");
+    String estimateVar = Helpers.genVar("estimate");
+    String currVar = Helpers.genVar("curr");
+    String sizeVar = Helpers.genVar("size");
+    String minEntryVar = Helpers.genVar("minEntry");
+    String minCountVar = Helpers.genVar("minCount");
+    String minItemVar = Helpers.genVar("minItem");
+    String[] cellVars = new String[_depth];
+    Path[] increments = new Path[_depth];
+    Path[] reads = new Path[_depth];
+    for(int i=0; i<_depth; i++) {
+      cellVars[i] = Helpers.genVar("cell");
+      increments[i] = Path.key(cellVars[i]).nullToVal(0L).term(Ops.PLUS_LONG, weightVar);
+      reads[i] = Path.key(cellVars[i]);
+    }
+    return Block.each(KeyToTopKPStateGroup::toLong, weight).out(weightVar)
+                .ifTrue(new Expr(Ops.GREATER_THAN, weightVar, 0L),
+                  Block.each(KeyToTopKPStateGroup::sketchCells, item, _depth, _width).out(cellsVar)
+                       .each(Ops.EXPAND, cellsVar).out(cellVars)
+                       .localTransform(_sketch, Path.key(key).multiPath(increments))
+                       .localSelect(_sketch, Path.key(key).subselect(Path.multiPath(reads))).out(countsVar)
+                       .each(KeyToTopKPStateGroup::minCount, countsVar).out(estimateVar)
+                       .localSelect(_pstate, Path.key(key, item)).out(currVar)
+                       .ifTrue(new Expr(Ops.IS_NOT_NULL, currVar),
+                         Block.macro(removeCandidate(key, item, currVar))
+                              .macro(addCandidate(key, item, estimateVar)),
+                         Block.localSelect(_pstate, Path.key(key).view(Ops.SIZE)).out(sizeVar)
+                              .ifTrue(new Expr(Ops.LESS_THAN, sizeVar, _capacity),
+                                Block.macro(addCandidate(key, item, estimateVar)),
+                                Block.localSelect(_byCount, Path.key(key).sortedMapRangeFrom(0L, SortedRangeFromOptions.maxAmt(1))).out(minEntryVar)
+                                     .each(KeyToTopKPStateGroup::firstCandidate, minEntryVar).out(minCountVar, minItemVar)
+                                     .ifTrue(new Expr(Ops.GREATER_THAN, estimateVar, minCountVar),
+                                       Block.macro(removeCandidate(key, minItemVar, minCountVar))
+                                            .macro(addCandidate(key, item, estimateVar))))));
+  }
+
+  private static void firstCandidate(SortedMap<Long, Set> m, OutputCollector collector) {
+    Map.Entry<Long, Set> e = m.entrySet().iterator().next();
+    collector.emit(e.getKey(), e.getValue().iterator().next());
+  }
+
+  /**
+   * Candidates of one or more keys with their estimates, and an upper bound on the count of any item not among them.
+   * Summaries are merged by adding estimates, using the other summary's bound for items it doesn't have.
+   */
+  public static class Summary implements RamaSerializable {
+    public Map<Object, Long> estimates;
+    public long missingBound;
+
+    public Summary(Map<Object, Long> estimates, long missingBound) {
+      this.estimates = estimates;
+      this.missingBound = missingBound;
+    }
+
+    public Summary merge(Summary other) {
+      Map<Object, Long> merged = new HashMap<>();
+      for(Map.Entry<Object, Long> e: estimates.entrySet()) {
+        merged.put(e.getKey(), e.getValue() + other.estimates.getOrDefault(e.getKey(), other.missingBound));
+      }
+      for(Map.Entry<Object, Long> e: other.estimates.entrySet()) {
+        if(!estimates.containsKey(e.getKey())) merged.put(e.getKey(), e.getValue() + missingBound);
+      }
+      return new Summary(merged, missingBound + other.missingBound);
+    }
+
+    /**
+     * Returns up to k [item, estimate] pairs in descending order of estimate.
+     */
+    public List<List> top(int k) {
+      List<Map.Entry<Object, Long>> entries = new ArrayList<>(estimates.entrySet());
+      entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+      List<List> ret = new ArrayList<>();
+      for(int i=0; i<Math.min(k, entries.size()); i++) {
+        ret.add(Arrays.asList(entries.get(i).getKey(), entries.get(i).getValue()));
+      }
+      return ret;
+    }
+  }
+
+  public static class MergeSummaries implements RamaCombinerAgg<Summary> {
+    @Override
+    public Summary combine(Summary curr, Summary arg) {
+      return curr.merge(arg);
+    }
+
+    @Override
+    public Summary zeroVal() {
+      return new Summary(new HashMap<>(), 0);
+    }
+  }
+
+  private static Summary summary(List<List> entries, SortedMap<Long, Set> minEntry, Integer capacity) {
+    Map<Object, Long> estimates = new HashMap<>();
+    for(List e: entries) estimates.put(e.get(0), (Long) e.get(1));
+    // A key with room for more candidates has admitted every item it observed
+    long missingBound = estimates.size() < capacity || minEntry.isEmpty() ? 0 : minEntry.firstKey();
+    return new Summary(estimates, missingBound);
+  }
+
+  private static List<List> topOf(Summary summary, Number k) {
+    return summary.top(k.intValue());
+  }
+
+  private Block readSummary(Object key, String outVar) {
+    String entriesVar = Helpers.genVar("entries");
+    String minEntryVar = Helpers.genVar("minEntry");
+    return Block.localSelect(_pstate, Path.key(key).subselect(Path.all())).out(entriesVar)
+                .localSelect(_byCount, Path.key(key).sortedMapRangeFrom(0L, SortedRangeFromOptions.maxAmt(1))).out(minEntryVar)
+                .each(KeyToTopKPStateGroup::summary, entriesVar, minEntryVar, _capacity).out(outVar);
+  }
+
+  /**
+   * Macro to read the heaviest items for a key on the current task
+   *
+   * @param k Maximum number of items to return
+   * @param outVar Var to bind a list of [item, estimate] pairs in descending order of estimate
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block topK(Object key, Object k, String outVar) {
+    String summaryVar = Helpers.genVar("summary");
+    return Block.macro(readSummary(key, summaryVar))
+                .each(KeyToTopKPStateGroup::topOf, summaryVar, k).out(outVar);
+  }
+
+  /**
+   * Declares a query topology returning the heaviest items across the candidates of a list of keys, which may live on
+   * different partitions. The query topology takes the list of keys and k as input, and it returns a list of
+   * [item, estimate] pairs in descending order of estimate.
+   *
+   * @param topologies Topologies of the module that declared these PStates
+   * @param queryName Name of the query topology
+   */
+  public void declareTopKQueryTopology(Topologies topologies, String queryName) {
+    topologies.query(queryName, "*keys", "*k").out("*top")
+              .each(Ops.EXPLODE, "*keys").out("*key")
+              .hashPartition(_pstate, "*key")
+              .macro(readSummary("*key", "*summary"))
+              .originPartition()
+              .agg(Agg.combiner(new MergeSummaries(), "*summary")).out("*merged")
+              .each(KeyToTopKPStateGroup::topOf, "*merged", "*k").out("*top");
+  }
+}
@@ -4,8 +4,8 @@ import com.rpl.rama.*;
 import com.rpl.rama.module.ETLTopologyBase;
 import com.rpl.rama.ops.*;
 
+import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
 
 /**
  * Higher-level PState implementation for a data structure from a key to a collection of items with a maximum cardinality.
@@ -16,8 +16,18 @@ import java.util.SortedMap;
  * another one has "Reverse" appended to the name and can look up an internal ID for an entity, and the last one is
  * used for internal metadata as part of the implementation.
  * <br><br>
+ * When configured with {@link #incrementalKeyRemoval()}, another PState with "Tombstones" appended to the name is declared.
+ * It contains the keys currently being removed by {@link #removeKey(Object)}. {@link #filterKeyExists(Object)} treats those
+ * keys as absent, and other readers, such as clients selecting from the PState directly, should check the tombstones PState.
+ * <br><br>
  * The pattern for this class is to create an instance and then use {@link declarePStates} to create all its needed PStates
  * on the topology that should own it. The other methods define high-level operations to perform on this data structure.
+ * <br><br>
+ * When configured with {@link #metrics(String)}, records these metrics prefixed by the PState name: "addItem" timings,
+ * "drops" for adds that evicted an item, "entityLookupHits" and "entityLookupMisses" for reverse index reads by entity
+ * ID, which every add also does, "bloomSkips" for reads skipped by the Bloom filter, "clears", "clearedItems" and
+ * "clearIterations" for {@link #clearItems(Object)}, and "keyRemovals" and "removeKeyIterations" for
+ * {@link #removeKey(Object)}.
  *
  * @see <a href="https://redplanetlabs.com/docs/~/pstates.html">PStates documentation</a>
  * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
@@ -26,12 +36,16 @@ public class KeyToUniqueFixedItemsPStateGroup {
   private final String _pstate;
   private final String _pstateReverse;
   private final String _meta;
+  private final String _tombstones;
   private final int _maxAmt;
   private final Class _keyClass;
   private final Class _itemClass;
   private RamaFunction1 _entityIdFunction;
   private Class _entityIdType;
-  private int _clearBatchSize;
+  private final BatchedClear _clear;
+  private boolean _incrementalKeyRemoval;
+  private String _bloomFilterVar = null;
+  private String _metricsVar = null;
 
   /**
    * Creates instance of KeyToUniqueFixedItemsPStateGroup. Methods on resulting object are used to declare PStates
@@ -47,20 +61,72 @@ public class KeyToUniqueFixedItemsPStateGroup {
     _pstate = pstateName;
     _pstateReverse = pstateName + "Reverse";
     _meta = pstateName + "Meta";
+    _tombstones = pstateName + "Tombstones";
     _maxAmt = maxAmt;
     _keyClass = keyClass;
     _itemClass = itemClass;
-    _clearBatchSize = 100;
+    _clear = new BatchedClear(pstateName, 100);
+    _incrementalKeyRemoval = false;
   }
 
   /**
    * Configures how many items to clear at a time during execution of {@link #clearItems(Object)}
    */
   public KeyToUniqueFixedItemsPStateGroup clearBatchSize(int size) {
-    _clearBatchSize = size;
+    _clear.fixed(size);
+    return this;
+  }
+
+  /**
+   * Configures clears to adapt how many items they delete at a time based on how long each batch takes. Batch sizes
+   * are kept between the min and max sizes, growing when batches finish well within the target time and shrinking when
+   * they exceed it. Replaces any fixed size configured with clearBatchSize.
+   *
+   * @param minSize Minimum number of items to delete in one batch
+   * @param maxSize Maximum number of items to delete in one batch
+   * @param targetMillis Target time for reading and deleting one batch
+   */
+  public KeyToUniqueFixedItemsPStateGroup adaptiveClearBatchSize(int minSize, int maxSize, long targetMillis) {
+    _clear.adaptive(minSize, maxSize, targetMillis);
     return this;
   }
 
+  /**
+   * Changes {@link #removeKey(Object)} to delete the key's items piecemeal in batches of the configured clear batch size,
+   * so removing a key with a large collection doesn't dominate the task thread. The key is recorded in the tombstones
+   * PState for the duration of the removal.
+   */
+  public KeyToUniqueFixedItemsPStateGroup incrementalKeyRemoval() {
+    _incrementalKeyRemoval = true;
+    return this;
+  }
+
+  /**
+   * Uses a {@link TaskGlobalBloomFilter} to skip the reverse index read in {@link #removeItemByEntityId(Object, Object)},
+   * which every {@link #addItem(Object, Object)} also does, for entities that are certainly absent. Adds record the key
+   * and entity ID in the filter. The filter must be rebuilt on each task with {@link #rebuildBloomFilter()} before it
+   * skips any reads.
+   *
+   * @param filterVar Var of the TaskGlobalBloomFilter declared with <code>setup.declareObject</code>
+   */
+  public KeyToUniqueFixedItemsPStateGroup bloomFilter(String filterVar) {
+    _bloomFilterVar = filterVar;
+    return this;
+  }
+
+  /**
+   * Records operation counts and timings in a {@link HelperMetrics}.
+   *
+   * @param metricsVar Var of the HelperMetrics declared with <code>setup.declareObject</code>
+   */
+  public KeyToUniqueFixedItemsPStateGroup metrics(String metricsVar) {
+    _metricsVar = metricsVar;
+    return this;
+  }
+
+  private String metric(String name) {
+    return _pstate + "." + name;
+  }
 
   public KeyToUniqueFixedItemsPStateGroup entityIdFunction(Class entityIdType, RamaFunction1 fn) {
     _entityIdFunction = fn;
@@ -88,9 +154,10 @@ public class KeyToUniqueFixedItemsPStateGroup {
       _meta,
       PState.mapSchema(_keyClass, Object.class)
       );
+    if(_incrementalKeyRemoval) topology.pstate(_tombstones, PState.mapSchema(_keyClass, Long.class));
   }
 
-  private static Long computeDropId(Long id, Integer maxAmt) {
+  static Long computeDropId(Long id, Integer maxAmt) {
     if(id <= Long.MAX_VALUE - maxAmt) {
       return id + maxAmt;
     } else {
@@ -112,6 +179,15 @@ public class KeyToUniqueFixedItemsPStateGroup {
    * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
    */
   public Block addItem(Object key, Object item) {
+    String entityIdVar = Helpers.genVar("entityId");
+    String dropExistsVar = Helpers.genVar("dropExists");
+    Block.Impl ret = Block.macro(insertItem(key, item, entityIdVar, dropExistsVar));
+    if(_bloomFilterVar!=null) ret = ret.macro(TaskGlobalBloomFilter.putPair(_bloomFilterVar, key, entityIdVar));
+    if(_metricsVar!=null) ret = ret.ifTrue(dropExistsVar, HelperMetrics.count(_metricsVar, metric("drops"), 1));
+    return HelperMetrics.timed(_metricsVar, metric("addItem"), ret);
+  }
+
+  private Block insertItem(Object key, Object item, String entityIdVar, String dropExistsVar) {
     String metaVar = Helpers.genVar("meta");
     String idVar = Helpers.genVar("id");
     String maxAmtVar = Helpers.genVar("maxAmt");
@@ -121,9 +197,7 @@ public class KeyToUniqueFixedItemsPStateGroup {
     String dropIdAndItemExtraVar = Helpers.genVar("dropIdAndItemExtra");
     String dropIdExtraVar = Helpers.genVar("dropIdExtra");
     String dropItemExtraVar = Helpers.genVar("dropItemExtra");
-    String entityIdVar = Helpers.genVar("entityId");
     String dropEntityIdVar = Helpers.genVar("dropEntityId");
-    String dropExistsVar = Helpers.genVar("dropExists");
     return Block.macro(removeItem(key, item))
                 .localSelect(_meta, Path.key(key)).out(metaVar)
                 .ifTrue(new Expr(Ops.IS_NULL, metaVar),
@@ -183,10 +257,28 @@ public class KeyToUniqueFixedItemsPStateGroup {
    */
   public Block removeItemByEntityId(Object key, Object entityId) {
     String existingIdVar = Helpers.genVar("existingId");
-    return Block.localSelect(_pstateReverse, Path.key(key, entityId)).out(existingIdVar)
-                .ifTrue(new Expr(Ops.IS_NOT_NULL, existingIdVar),
-                  Block.localTransform(_pstate, Path.key(key, existingIdVar).termVoid())
-                       .localTransform(_pstateReverse, Path.key(key, entityId).termVoid()));
+    Block remove = Block.localSelect(_pstateReverse, Path.key(key, entityId)).out(existingIdVar)
+                        .ifTrue(new Expr(Ops.IS_NOT_NULL, existingIdVar),
+                          Block.localTransform(_pstate, Path.key(key, existingIdVar).termVoid())
+                               .localTransform(_pstateReverse, Path.key(key, entityId).termVoid())
+                               .macro(HelperMetrics.count(_metricsVar, metric("entityLookupHits"), 1)),
+                          HelperMetrics.count(_metricsVar, metric("entityLookupMisses"), 1));
+    if(_bloomFilterVar==null) return remove;
+    else return Block.ifTrue(TaskGlobalBloomFilter.mightContainPair(_bloomFilterVar, key, entityId),
+                  remove,
+                  HelperMetrics.count(_metricsVar, metric("bloomSkips"), 1));
+  }
+
+  /**
+   * Macro to rebuild the Bloom filter configured with {@link #bloomFilter(String)} on the current task if it's not yet
+   * ready, which is the case after every task start. The rebuild scans the task's items piecemeal so as not to dominate
+   * the task thread. This should be run on every task, typically with {@link Block#allPartition()} off a tick depot.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block rebuildBloomFilter() {
+    if(_bloomFilterVar==null) throw new RuntimeException("Bloom filter not configured for " + _pstate);
+    return TaskGlobalBloomFilter.rebuild(_bloomFilterVar, _pstate, _entityIdFunction == null ? Ops.IDENTITY : _entityIdFunction);
   }
 
   /**
@@ -196,37 +288,101 @@ public class KeyToUniqueFixedItemsPStateGroup {
    */
   public Block removeItemById(Object key, Object id) {
     String existingItemVar = Helpers.genVar("existingItem");
+    String entityIdVar = Helpers.genVar("entityId");
     return Block.localSelect(_pstate, Path.key(key, id)).out(existingItemVar)
             .ifTrue(new Expr(Ops.IS_NOT_NULL, existingItemVar),
                     Block.localTransform(_pstate, Path.key(key, id).termVoid())
-                         .localTransform(_pstateReverse, Path.key(key, existingItemVar).termVoid()));
+                         .macro(extractEntityId(existingItemVar, entityIdVar))
+                         .localTransform(_pstateReverse, Path.key(key, entityIdVar).termVoid()));
   }
 
   /**
-   * Macro to remove key and its underlying collection
+   * Macro to remove key and its underlying collection.
+   * <br><br>
+   * When configured with {@link #incrementalKeyRemoval()}, the key is tombstoned immediately and its items are deleted
+   * piecemeal as with {@link #clearItems(Object)}. Once the items that existed at the start are deleted, the key is removed
+   * if no new items came in during the removal, and the tombstone is cleared.
    *
    * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
    */
   public Block removeKey(Object key) {
-    return Block.localTransform(_meta, Path.key(key).termVoid())
-                .localTransform(_pstate, Path.key(key).termVoid())
-                .localTransform(_pstateReverse, Path.key(key).termVoid());
+    if(!_incrementalKeyRemoval) {
+      return Block.localTransform(_meta, Path.key(key).termVoid())
+                  .localTransform(_pstate, Path.key(key).termVoid())
+                  .localTransform(_pstateReverse, Path.key(key).termVoid())
+                  .macro(HelperMetrics.count(_metricsVar, metric("keyRemovals"), 1));
+    }
+    String remainingVar = Helpers.genVar("remaining");
+    String tombstoneVar = Helpers.genVar("tombstone");
+    String iterationsVar = Helpers.genVar("iterations");
+    return Block.localTransform(_tombstones, Path.key(key).nullToVal(0L).term(Ops.INC_LONG))
+                .macro(clear(key, Helpers.genVar("cleared"), iterationsVar))
+                .localSelect(_pstate, Path.key(key).sortedMapRangeFrom(-1L, SortedRangeFromOptions.maxAmt(1))).out(remainingVar)
+                // The clear removed each item's reverse entry, so this only drops the key's now empty submaps
+                .ifTrue(new Expr(Ops.EQUAL, new Expr(Ops.SIZE, remainingVar), 0),
+                  Block.localTransform(_meta, Path.key(key).termVoid())
+                       .localTransform(_pstate, Path.key(key).termVoid())
+                       .localTransform(_pstateReverse, Path.key(key).termVoid()))
+                .localSelect(_tombstones, Path.key(key)).out(tombstoneVar)
+                .ifTrue(new Expr(Ops.LESS_THAN_OR_EQUAL, tombstoneVar, 1L),
+                  Block.localTransform(_tombstones, Path.key(key).termVoid()),
+                  Block.localTransform(_tombstones, Path.key(key).term(Ops.DEC_LONG)))
+                .macro(HelperMetrics.count(_metricsVar, metric("keyRemovals"), 1))
+                .macro(HelperMetrics.count(_metricsVar, metric("removeKeyIterations"), iterationsVar));
+  }
+
+  // Items that exist now have IDs above the next ID to be assigned, and a key without metadata has no items
+  private static Long clearStart(List meta) {
+    return meta==null ? Long.MAX_VALUE : (Long) meta.get(0);
   }
 
+  /**
+   * Macro to only continue processing if the specified key has items. A key that is tombstoned because it's being
+   * removed incrementally is treated as absent.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block filterKeyExists(Object key) {
+    Block.Impl ret = Block.localSelect(_pstate, Path.must(key));
+    if(_incrementalKeyRemoval) {
+      String tombstoneVar = Helpers.genVar("tombstone");
+      ret = ret.localSelect(_tombstones, Path.key(key)).out(tombstoneVar)
+               .keepTrue(new Expr(Ops.IS_NULL, tombstoneVar));
+    }
+    return ret;
+  }
+
+  /**
+   * Macro to clear current items for a key. The clear is done piecemeal so as not to dominate the task thread. Only items
+   * that exist at the start are cleared. New items that come in during the clear will remain.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
   public Block clearItems(Object key) {
-    return Block.loopWithVars(LoopVars.var("*i", -1L),
-             Block.yieldIfOvertime()
-                  .localSelect(_pstate,
-                    Path.key(key)
-                        .sortedMapRangeFrom(
-                          "*i",
-                          SortedRangeFromOptions.excludeStart().maxAmt(_clearBatchSize))).out("*m")
-                  .atomicBlock(
-                    Block.each(Ops.EXPLODE_MAP, "*m").out("*i", "*v")
-                         .macro(removeItemById(key, "*i")))
-                  .ifTrue(new Expr(Ops.LESS_THAN, new Expr(Ops.SIZE, "*m"), _clearBatchSize),
-                    Block.emitLoop(),
-                    Block.each((SortedMap m) -> m.lastKey(), "*m").out("*nextI")
-                         .continueLoop("*i")));
+    return clearItems(key, Helpers.genVar("cleared"), Helpers.genVar("iterations"));
+  }
+
+  /**
+   * Macro to clear current items for a key as with {@link #clearItems(Object)}, binding how many items were cleared
+   * and how many batches it took.
+   *
+   * @param clearedVar Var to bind the number of items cleared
+   * @param iterationsVar Var to bind the number of batches
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block clearItems(Object key, String clearedVar, String iterationsVar) {
+    return Block.macro(clear(key, clearedVar, iterationsVar))
+                .macro(HelperMetrics.count(_metricsVar, metric("clears"), 1))
+                .macro(HelperMetrics.count(_metricsVar, metric("clearedItems"), clearedVar))
+                .macro(HelperMetrics.count(_metricsVar, metric("clearIterations"), iterationsVar));
+  }
+
+  // Clear without metrics, shared by clearItems and removeKey so each records its own
+  private Block clear(Object key, String clearedVar, String iterationsVar) {
+    String metaVar = Helpers.genVar("meta");
+    String startVar = Helpers.genVar("start");
+    return Block.localSelect(_meta, Path.key(key)).out(metaVar)
+                .each(KeyToUniqueFixedItemsPStateGroup::clearStart, metaVar).out(startVar)
+                .macro(_clear.clear(key, startVar, (String idVar) -> removeItemById(key, idVar), clearedVar, iterationsVar));
   }
 }
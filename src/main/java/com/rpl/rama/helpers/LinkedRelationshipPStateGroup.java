@@ -0,0 +1,144 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.*;
+
+/**
+ * Higher-level PState implementation for a many-to-many relationship indexed in both directions, such as a
+ * follower / following graph. Each direction is a {@link KeyToLinkedEntitySetPStateGroup}, so each side can be
+ * queried by membership or by order of insertion.
+ * <br><br>
+ * Given a forward PState name of $$forward and a reverse PState name of $$reverse, this helper generates these PStates:
+ * <ul>
+ *   <li>$$forward and $$forwardById: linked sets from "from" keys to the "to" keys they're linked to</li>
+ *   <li>$$reverse and $$reverseById: linked sets from "to" keys to the "from" keys linked to them</li>
+ *   <li>$$forwardDegree and $$reverseDegree: number of links for each key on that side</li>
+ * </ul>
+ * So for a following graph declared as ("$$following", "$$followers"), "does A follow B" is a lookup of
+ * <code>Path.key(a, b)</code> on $$following and "who follows B, newest first" is a range query on
+ * <code>Path.key(b)</code> of $$followersById when the group is configured with {@link #descending()}.
+ * <br><br>
+ * The {@link #link(Object, Object)} and {@link #unlink(Object, Object)} macros partition to the owning task of each
+ * side in turn, so both sides are written by the same macro invocation. Each side only changes its degree count
+ * when its linked set actually gains or loses a member.
+ * <br><br>
+ * When configured with {@link #metrics(String)}, records these metrics prefixed by the PState name of each side:
+ * "partitionHops" for each partition to that side, "linked" and "unlinked" for links that actually changed that side,
+ * plus the metrics of the underlying {@link KeyToLinkedEntitySetPStateGroup}.
+ * <br><br>
+ * The pattern for this class is to create an instance and then use {@link #declarePStates} to create all its underlying PStates
+ * on the topology that should own it. Queries are satisfied by querying the underlying PStates directly using paths.
+ *
+ * @see KeyToLinkedEntitySetPStateGroup
+ * @see <a href="https://redplanetlabs.com/docs/~/pstates.html">PStates documentation</a>
+ * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+ */
+public class LinkedRelationshipPStateGroup {
+  private final String _forward;
+  private final String _reverse;
+  private final String _forwardDegree;
+  private final String _reverseDegree;
+  private final Class _fromType;
+  private final Class _toType;
+  private final KeyToLinkedEntitySetPStateGroup _forwardGroup;
+  private final KeyToLinkedEntitySetPStateGroup _reverseGroup;
+  private String _metricsVar = null;
+
+  /**
+   * Creates instance of LinkedRelationshipPStateGroup. Methods on resulting object are used to declare PStates
+   * and insert high-level operations into topology code.
+   *
+   * @param forwardPStateName Name used to derive PState names for the "from" -> "to" direction
+   * @param reversePStateName Name used to derive PState names for the "to" -> "from" direction
+   * @param fromType Type of keys on the "from" side of links
+   * @param toType Type of keys on the "to" side of links
+   */
+  public LinkedRelationshipPStateGroup(String forwardPStateName, String reversePStateName, Class fromType, Class toType) {
+    _forward = forwardPStateName;
+    _reverse = reversePStateName;
+    _forwardDegree = forwardPStateName + "Degree";
+    _reverseDegree = reversePStateName + "Degree";
+    _fromType = fromType;
+    _toType = toType;
+    _forwardGroup = new KeyToLinkedEntitySetPStateGroup(forwardPStateName, fromType, toType);
+    _reverseGroup = new KeyToLinkedEntitySetPStateGroup(reversePStateName, toType, fromType);
+  }
+
+  /**
+   * Changes ID generation on both sides to insert links in descending order, so the newest links come first
+   * when paginating the ById PStates.
+   */
+  public LinkedRelationshipPStateGroup descending() {
+    _forwardGroup.descending();
+    _reverseGroup.descending();
+    return this;
+  }
+
+  /**
+   * Records operation counts and timings for both sides in a {@link HelperMetrics}.
+   *
+   * @param metricsVar Var of the HelperMetrics declared with <code>setup.declareObject</code>
+   */
+  public LinkedRelationshipPStateGroup metrics(String metricsVar) {
+    _metricsVar = metricsVar;
+    _forwardGroup.metrics(metricsVar);
+    _reverseGroup.metrics(metricsVar);
+    return this;
+  }
+
+  /**
+   * Declares needed PStates for this LinkedRelationshipPStateGroup on the specified topology.
+   */
+  public void declarePStates(ETLTopologyBase topology) {
+    _forwardGroup.declarePStates(topology);
+    _reverseGroup.declarePStates(topology);
+    topology.pstate(_forwardDegree, PState.mapSchema(_fromType, Long.class));
+    topology.pstate(_reverseDegree, PState.mapSchema(_toType, Long.class));
+  }
+
+  private Block addSide(KeyToLinkedEntitySetPStateGroup group, String pstate, String degreePState, Object key, Object other) {
+    String existingIdVar = Helpers.genVar("existingId");
+    return Block.hashPartition(pstate, key)
+                .macro(HelperMetrics.count(_metricsVar, pstate + ".partitionHops", 1))
+                .localSelect(pstate, Path.key(key, other)).out(existingIdVar)
+                .ifTrue(new Expr(Ops.IS_NULL, existingIdVar),
+                  Block.localTransform(degreePState, Path.key(key).nullToVal(0L).term(Ops.INC_LONG))
+                       .macro(HelperMetrics.count(_metricsVar, pstate + ".linked", 1)))
+                .macro(group.addToLinkedSet(key, other));
+  }
+
+  private Block removeSide(KeyToLinkedEntitySetPStateGroup group, String pstate, String degreePState, Object key, Object other) {
+    String existingIdVar = Helpers.genVar("existingId");
+    return Block.hashPartition(pstate, key)
+                .macro(HelperMetrics.count(_metricsVar, pstate + ".partitionHops", 1))
+                .localSelect(pstate, Path.key(key, other)).out(existingIdVar)
+                .ifTrue(new Expr(Ops.IS_NOT_NULL, existingIdVar),
+                  Block.localTransform(degreePState, Path.key(key).nullToVal(0L).term(Ops.DEC_LONG))
+                       .macro(HelperMetrics.count(_metricsVar, pstate + ".unlinked", 1))
+                       .macro(group.removeFromLinkedSetByEntityId(key, other)));
+  }
+
+  /**
+   * Macro to link "from" to "to". Writes the forward side on the task owning "from" and then the reverse side on the
+   * task owning "to". Re-linking an existing pair moves it to the newest position on both sides. Code following this
+   * macro runs on the task owning "to".
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block link(Object from, Object to) {
+    return Block.macro(addSide(_forwardGroup, _forward, _forwardDegree, from, to))
+                .macro(addSide(_reverseGroup, _reverse, _reverseDegree, to, from));
+  }
+
+  /**
+   * Macro to remove the link from "from" to "to". No-op for a side which doesn't contain the link. Code following this
+   * macro runs on the task owning "to".
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block unlink(Object from, Object to) {
+    return Block.macro(removeSide(_forwardGroup, _forward, _forwardDegree, from, to))
+                .macro(removeSide(_reverseGroup, _reverse, _reverseDegree, to, from));
+  }
+}
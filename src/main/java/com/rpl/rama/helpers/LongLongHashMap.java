@@ -0,0 +1,84 @@
+package com.rpl.rama.helpers;
+
+import java.util.*;
+
+/**
+ * Open addressing hash map from primitive longs to primitive longs, used to merge deltas without boxing on every write.
+ * Not thread-safe.
+ */
+class LongLongHashMap {
+  private long[] _keys;
+  private long[] _vals;
+  private boolean[] _used;
+  private int _size;
+
+  LongLongHashMap(int initialCapacity) {
+    int capacity = 16;
+    while(capacity < initialCapacity * 2) capacity *= 2;
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    _keys = new long[capacity];
+    _vals = new long[capacity];
+    _used = new boolean[capacity];
+    _size = 0;
+  }
+
+  private static int mix(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private int slot(long key) {
+    int mask = _keys.length - 1;
+    int i = mix(key) & mask;
+    while(_used[i] && _keys[i]!=key) i = (i + 1) & mask;
+    return i;
+  }
+
+  /**
+   * Adds the delta to the current value for the key, treating a missing key as 0.
+   */
+  void add(long key, long delta) {
+    int i = slot(key);
+    if(_used[i]) {
+      _vals[i] += delta;
+    } else {
+      _used[i] = true;
+      _keys[i] = key;
+      _vals[i] = delta;
+      _size++;
+      if(_size * 2 > _keys.length) resize();
+    }
+  }
+
+  private void resize() {
+    long[] keys = _keys;
+    long[] vals = _vals;
+    boolean[] used = _used;
+    allocate(keys.length * 2);
+    for(int i=0; i<keys.length; i++) {
+      if(used[i]) add(keys[i], vals[i]);
+    }
+  }
+
+  int size() {
+    return _size;
+  }
+
+  /**
+   * Returns the contents as a boxed map and empties this map, keeping its capacity.
+   */
+  Map<Long, Long> drain() {
+    Map<Long, Long> ret = new HashMap<>(_size * 2);
+    for(int i=0; i<_keys.length; i++) {
+      if(_used[i]) {
+        ret.put(_keys[i], _vals[i]);
+        _used[i] = false;
+      }
+    }
+    _size = 0;
+    return ret;
+  }
+}
@@ -43,7 +43,7 @@ public class ModuleUniqueIdPState {
     topology.pstate(_pstateName, Long.class).initialValue(init).makePrivate();
   }
 
-  private static long generateId(Long id1, Integer taskId) {
+  static long generateId(Long id1, Integer taskId) {
     return (((long) taskId) << 42) | id1;
   }
 
@@ -62,4 +62,20 @@ public class ModuleUniqueIdPState {
                 .each(Ops.CURRENT_TASK_ID).out(taskIdVar)
                 .each(ModuleUniqueIdPState::generateId, id1Var, taskIdVar).out(outVar);
   }
+
+  /**
+   * Binds the ID the next call to {@link #genId} on this task will generate, without consuming it. IDs generated
+   * before this point are all less than it, or all greater than it when descending.
+   */
+  Block peekId(String outVar) {
+    String id1Var = Helpers.genVar("id1");
+    String taskIdVar = Helpers.genVar("taskId");
+    return Block.each(Ops.EXTRACT_VALUE, _pstateName).out(id1Var)
+                .each(Ops.CURRENT_TASK_ID).out(taskIdVar)
+                .each(ModuleUniqueIdPState::generateId, id1Var, taskIdVar).out(outVar);
+  }
+
+  boolean isDescending() {
+    return _descending;
+  }
 }
@@ -0,0 +1,191 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.RamaModule.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.*;
+
+import java.util.*;
+
+/**
+ * Higher-level PState implementation for a secondary index over a field of the records in a primary PState, such as
+ * looking up users by email or by signup date. {@link #put(Object, Object)} writes a record to the primary PState and
+ * moves its primary key between index entries when the indexed field changes, so the index can't be left with stale
+ * entries by updating it in the wrong order.
+ * <br><br>
+ * The primary PState is declared by the user as a map from primary key to record, and all writes to it must go through
+ * this group. Declares one PState of the provided name from field value to a subindexed set of the primary keys of
+ * records with that value. Records whose field is null aren't indexed.
+ * <br><br>
+ * By default index entries are stored on the same task as their record, so writes never leave the record's task, and
+ * lookups query every task. With {@link #hashPartitioned()}, index entries are stored on the task of their field value
+ * instead, so equality lookups read a single task at the cost of writes going to the tasks of the old and new values.
+ * Range lookups query every task either way.
+ * <br><br>
+ * The pattern for this class is to create an instance and then use {@link declarePStates} to create all its needed PStates
+ * on the topology that should own it. The macros must be called on the task of the primary key, and they must be used
+ * in the same topology as the PStates.
+ *
+ * @see <a href="https://redplanetlabs.com/docs/~/pstates.html">PStates documentation</a>
+ * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+ */
+public class SecondaryIndexPStateGroup {
+  private final String _pstate;
+  private final String _primaryPState;
+  private final Class _fieldClass;
+  private final Class _primaryKeyClass;
+  private final RamaFunction1 _fieldFunction;
+  private boolean _hashPartitioned = false;
+
+  /**
+   * Creates instance of SecondaryIndexPStateGroup. Methods on resulting object are used to declare PStates
+   * and insert high-level operations into topology code.
+   *
+   * @param pstateName Name of the index PState
+   * @param primaryPState Name of the primary PState, declared separately as a map from primary key to record
+   * @param fieldClass Type of indexed field values
+   * @param primaryKeyClass Type of primary keys
+   * @param fieldFunction Function from a record to the value of its indexed field
+   */
+  public SecondaryIndexPStateGroup(String pstateName, String primaryPState, Class fieldClass, Class primaryKeyClass, RamaFunction1 fieldFunction) {
+    _pstate = pstateName;
+    _primaryPState = primaryPState;
+    _fieldClass = fieldClass;
+    _primaryKeyClass = primaryKeyClass;
+    _fieldFunction = fieldFunction;
+  }
+
+  /**
+   * Stores index entries on the task of their field value rather than the task of their record.
+   */
+  public SecondaryIndexPStateGroup hashPartitioned() {
+    _hashPartitioned = true;
+    return this;
+  }
+
+  /**
+   * Declares needed PStates for this SecondaryIndexPStateGroup on the specified topology
+   */
+  public void declarePStates(ETLTopologyBase topology) {
+    topology.pstate(
+      _pstate,
+      PState.mapSchema(
+        _fieldClass,
+        PState.setSchema(_primaryKeyClass).subindexed()));
+  }
+
+  private static Object fieldOf(RamaFunction1 fieldFunction, Object record) {
+    return record==null ? null : fieldFunction.invoke(record);
+  }
+
+  /**
+   * Computes the index entries to change when a record's field goes from the old value to the new one, as
+   * [value, add?] tuples.
+   */
+  static List<List> changes(Object oldValue, Object newValue) {
+    List<List> ret = new ArrayList<>();
+    if(!Objects.equals(oldValue, newValue)) {
+      if(oldValue!=null) ret.add(Arrays.asList(oldValue, false));
+      if(newValue!=null) ret.add(Arrays.asList(newValue, true));
+    }
+    return ret;
+  }
+
+  private Block removeEntry(Object value, Object key) {
+    String remainingVar = Helpers.genVar("remaining");
+    return Block.localTransform(_pstate, Path.key(value).setElem(key).termVoid())
+                .localSelect(_pstate, Path.key(value).view(Ops.SIZE)).out(remainingVar)
+                .ifTrue(new Expr(Ops.EQUAL, remainingVar, 0),
+                  Block.localTransform(_pstate, Path.key(value).termVoid()));
+  }
+
+  // Each change is partitioned straight from the record's task, so changes for the same value are applied in the
+  // order the record was written even when a value is left and returned to in quick succession. The changes are a
+  // branch off the record's task, so code after the macro runs once on that task.
+  private Block update(Object key, String oldRecordVar, Object record) {
+    String oldValueVar = Helpers.genVar("oldValue");
+    String newValueVar = Helpers.genVar("newValue");
+    String changeVar = Helpers.genVar("change");
+    String valueVar = Helpers.genVar("value");
+    String addVar = Helpers.genVar("add");
+    String recordAnchor = Helpers.genVar("Record").substring(1);
+    Block.Impl ret = Block.each(SecondaryIndexPStateGroup::fieldOf, _fieldFunction, oldRecordVar).out(oldValueVar)
+                          .each(SecondaryIndexPStateGroup::fieldOf, _fieldFunction, record).out(newValueVar)
+                          .anchor(recordAnchor)
+                          .each(Ops.EXPLODE, new Expr(SecondaryIndexPStateGroup::changes, oldValueVar, newValueVar)).out(changeVar)
+                          .each(Ops.EXPAND, changeVar).out(valueVar, addVar);
+    if(_hashPartitioned) ret = ret.hashPartition(_pstate, valueVar);
+    return ret.ifTrue(addVar,
+                Block.localTransform(_pstate, Path.key(valueVar).voidSetElem().termVal(key)),
+                removeEntry(valueVar, key))
+              .hook(recordAnchor);
+  }
+
+  /**
+   * Macro to write a record to the primary PState and update the index if its field changed
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block put(Object key, Object record) {
+    String oldRecordVar = Helpers.genVar("oldRecord");
+    return Block.localSelect(_primaryPState, Path.key(key)).out(oldRecordVar)
+                .localTransform(_primaryPState, Path.key(key).termVal(record))
+                .macro(update(key, oldRecordVar, record));
+  }
+
+  /**
+   * Macro to remove a record from the primary PState and its entry from the index
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public Block remove(Object key) {
+    String oldRecordVar = Helpers.genVar("oldRecord");
+    return Block.localSelect(_primaryPState, Path.key(key)).out(oldRecordVar)
+                .localTransform(_primaryPState, Path.key(key).termVoid())
+                .macro(update(key, oldRecordVar, null));
+  }
+
+  private static List sortedByValue(List<List> entries) {
+    entries.sort((a, b) -> ((Comparable) a.get(0)).compareTo(b.get(0)));
+    List ret = new ArrayList();
+    for(List e: entries) ret.add(e.get(1));
+    return ret;
+  }
+
+  /**
+   * Declares a query topology returning the primary keys of records whose field equals a value. The query topology
+   * takes the value as input and returns a list of primary keys.
+   *
+   * @param topologies Topologies of the module that declared these PStates
+   * @param queryName Name of the query topology
+   */
+  public void declareEqualsQueryTopology(Topologies topologies, String queryName) {
+    Block.Impl partition;
+    if(_hashPartitioned) partition = Block.hashPartition(_pstate, "*value");
+    else partition = Block.allPartition();
+    topologies.query(queryName, "*value").out("*keys")
+              .macro(partition)
+              .localSelect(_pstate, Path.key("*value").all()).out("*key")
+              .originPartition()
+              .agg(Agg.list("*key")).out("*keys");
+  }
+
+  /**
+   * Declares a query topology returning the primary keys of records whose field is within a range, ordered by field
+   * value. The query topology takes the inclusive start and exclusive end of the range as input and returns a list of
+   * primary keys.
+   *
+   * @param topologies Topologies of the module that declared these PStates
+   * @param queryName Name of the query topology
+   */
+  public void declareRangeQueryTopology(Topologies topologies, String queryName) {
+    topologies.query(queryName, "*start", "*end").out("*keys")
+              .allPartition()
+              .localSelect(_pstate, Path.sortedMapRange("*start", "*end").mapKeys()).out("*value")
+              .localSelect(_pstate, Path.key("*value").all()).out("*key")
+              .each(Ops.TUPLE, "*value", "*key").out("*entry")
+              .originPartition()
+              .agg(Agg.list("*entry")).out("*entries")
+              .each(SecondaryIndexPStateGroup::sortedByValue, "*entries").out("*keys");
+  }
+}
@@ -0,0 +1,68 @@
+package com.rpl.rama.helpers;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rpl.rama.*;
+
+/**
+ * Manually controlled clock scoped to the modules it's given to. Unlike {@link TopologyUtils#startSimTime()}, which
+ * changes time for everything in the JVM, each SimClock is independent, so tests using different clocks can run in
+ * parallel.
+ * <br><br>
+ * A clock is created in a test and passed to the helpers in the module under test, such as with
+ * {@link TopologyScheduler#clock(SimClock)} or {@link TaskGlobalCache#clock(SimClock)}. Topology code can read it with
+ * {@link TopologyUtils#currentTimeMillis(SimClock)}. A SimClock is serialized along with the module definition, and every copy
+ * within the JVM refers to the same time, so it works with <code>InProcessCluster</code> but not across processes.
+ * <br><br>
+ * Time starts at 0 and is advanced with {@link #advance(long)}. Tests must call {@link #close()} when done to release the
+ * clock.
+ */
+public class SimClock implements RamaSerializable, Closeable {
+  private static final ConcurrentHashMap<String, AtomicLong> CLOCKS = new ConcurrentHashMap<>();
+
+  private final String _id;
+
+  private SimClock(String id) {
+    _id = id;
+  }
+
+  /**
+   * Creates a new clock starting at time 0.
+   */
+  public static SimClock create() {
+    String id = UUID.randomUUID().toString();
+    CLOCKS.put(id, new AtomicLong(0));
+    return new SimClock(id);
+  }
+
+  private AtomicLong time() {
+    AtomicLong ret = CLOCKS.get(_id);
+    if(ret==null) throw new IllegalStateException("SimClock " + _id + " is closed or was created in another process");
+    return ret;
+  }
+
+  /**
+   * Returns the current time of this clock.
+   */
+  public long currentTimeMillis() {
+    return time().get();
+  }
+
+  /**
+   * Advances this clock by the specified number of millis.
+   */
+  public void advance(long millis) {
+    time().addAndGet(millis);
+  }
+
+  /**
+   * Releases the clock. Reading it afterwards throws an exception.
+   */
+  @Override
+  public void close() {
+    CLOCKS.remove(_id);
+  }
+}
@@ -0,0 +1,237 @@
+package com.rpl.rama.helpers;
+
+import java.util.*;
+
+import com.rpl.rama.*;
+import com.rpl.rama.integration.*;
+import com.rpl.rama.ops.*;
+
+/**
+ * Task global Bloom filter used by {@link KeyToLinkedEntitySetPStateGroup} and {@link KeyToUniqueFixedItemsPStateGroup}
+ * to skip PState reads for keys and entities that are certainly absent. Each task has its own filter covering the data
+ * on that task.
+ * <br><br>
+ * The filter is declared with <code>setup.declareObject("*filter", new TaskGlobalBloomFilter(1000000, 0.01))</code> and
+ * given to a group with its <code>bloomFilter</code> method. The group then adds to the filter whenever it writes and
+ * consults the filter before the reads it can skip.
+ * <br><br>
+ * Filter contents are not persisted. A filter starts out not ready when a task starts, and while not ready it reports
+ * every value as possibly present so no reads are skipped. The group's <code>rebuildBloomFilter</code> macro scans the
+ * task's PState into the filter and marks it ready once finished. It does nothing when the filter is already ready or
+ * a rebuild is already in progress on the task, so it's cheap to run regularly from a tick depot on every task:
+ * <pre>
+ * s.source("*tick").allPartition().macro(group.rebuildBloomFilter());
+ * </pre>
+ * Removals can't be applied to a Bloom filter, so removed values stay in the filter until the next rebuild after a task
+ * restart. {@link #estimatedFalsePositiveRate()} reports the current false positive rate from the filter's fill, which
+ * grows above the configured rate as the filter exceeds its expected insertions.
+ *
+ * @see <a href="https://redplanetlabs.com/docs/~/integrating.html">Integration documentation</a>
+ */
+public class TaskGlobalBloomFilter implements TaskGlobalObject {
+  private static final int REBUILD_PAGE_SIZE = 1000;
+
+  private final long _numBits;
+  private final int _numHashes;
+
+  private transient long[] _bits;
+  private transient long _bitCount;
+  private transient boolean _ready;
+  private transient boolean _rebuilding;
+  private transient long _checks;
+  private transient long _negatives;
+
+  /**
+   * Creates a TaskGlobalBloomFilter sized for the expected number of values on each task.
+   *
+   * @param expectedInsertions Expected number of values added to the filter on each task
+   * @param falsePositiveRate Target false positive rate at the expected number of insertions
+   */
+  public TaskGlobalBloomFilter(long expectedInsertions, double falsePositiveRate) {
+    if(expectedInsertions <= 0) throw new IllegalArgumentException("Expected insertions must be positive: " + expectedInsertions);
+    if(falsePositiveRate <= 0 || falsePositiveRate >= 1) throw new IllegalArgumentException("Invalid false positive rate: " + falsePositiveRate);
+    double ln2 = Math.log(2);
+    long numBits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2));
+    _numBits = ((numBits + 63) / 64) * 64;
+    _numHashes = Math.max(1, (int) Math.round(((double) _numBits) / expectedInsertions * ln2));
+  }
+
+  @Override
+  public void prepareForTask(int taskId, TaskGlobalContext context) {
+    _bits = new long[(int) (_numBits / 64)];
+    _bitCount = 0;
+    _ready = false;
+    _rebuilding = false;
+  }
+
+  @Override
+  public void close() { }
+
+  private long bitIndex(long h1, long h2, int i) {
+    long combined = h1 + i * h2;
+    return (combined & Long.MAX_VALUE) % _numBits;
+  }
+
+  /**
+   * Adds a value to the filter.
+   */
+  public void put(Object value) {
+    putHash(HashUtils.wideHash64(value));
+  }
+
+  void putPair(Object key, Object entityId) {
+    putHash(HashUtils.wideHash64Pair(key, entityId));
+  }
+
+  private void putHash(long h1) {
+    long h2 = HashUtils.altHash64(h1);
+    for(int i=0; i<_numHashes; i++) {
+      long idx = bitIndex(h1, h2, i);
+      int word = (int) (idx >>> 6);
+      long mask = 1L << idx;
+      if((_bits[word] & mask) == 0) {
+        _bits[word] |= mask;
+        _bitCount++;
+      }
+    }
+  }
+
+  /**
+   * Returns false if the value was certainly never added, and true otherwise. Always returns true while the filter is not
+   * ready.
+   */
+  public boolean mightContain(Object value) {
+    return _ready ? mightContainHash(HashUtils.wideHash64(value)) : true;
+  }
+
+  boolean mightContainPair(Object key, Object entityId) {
+    return _ready ? mightContainHash(HashUtils.wideHash64Pair(key, entityId)) : true;
+  }
+
+  private boolean mightContainHash(long h1) {
+    _checks++;
+    long h2 = HashUtils.altHash64(h1);
+    for(int i=0; i<_numHashes; i++) {
+      long idx = bitIndex(h1, h2, i);
+      if((_bits[(int) (idx >>> 6)] & (1L << idx)) == 0) {
+        _negatives++;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean isReady() {
+    return _ready;
+  }
+
+  void markReady() {
+    _ready = true;
+    _rebuilding = false;
+  }
+
+  // Claims the rebuild so a tick arriving while a rebuild is yielding doesn't start a second scan
+  boolean startRebuild() {
+    if(_ready || _rebuilding) return false;
+    _rebuilding = true;
+    return true;
+  }
+
+  /**
+   * Returns the number of lookups made while the filter was ready.
+   */
+  public long getChecks() {
+    return _checks;
+  }
+
+  /**
+   * Returns the number of lookups that were answered as certainly absent, each of which skipped a PState read.
+   */
+  public long getNegatives() {
+    return _negatives;
+  }
+
+  /**
+   * Estimates the current false positive rate from the fraction of bits set.
+   */
+  public double estimatedFalsePositiveRate() {
+    return Math.pow(((double) _bitCount) / _numBits, _numHashes);
+  }
+
+  public long getNumBits() {
+    return _numBits;
+  }
+
+  public int getNumHashes() {
+    return _numHashes;
+  }
+
+  static Block put(String filterVar, Object value) {
+    return Block.each((TaskGlobalBloomFilter f, Object v) -> { f.put(v); return null; }, filterVar, value);
+  }
+
+  static Block putPair(String filterVar, Object key, Object entityId) {
+    return Block.each((TaskGlobalBloomFilter f, Object k, Object e) -> { f.putPair(k, e); return null; },
+                      filterVar, key, entityId);
+  }
+
+  static Expr mightContain(String filterVar, Object value) {
+    return new Expr((TaskGlobalBloomFilter f, Object v) -> f.mightContain(v), filterVar, value);
+  }
+
+  static Expr mightContainPair(String filterVar, Object key, Object entityId) {
+    return new Expr((TaskGlobalBloomFilter f, Object k, Object e) -> f.mightContainPair(k, e),
+                    filterVar, key, entityId);
+  }
+
+  private static List nextKeys(SortedMap m) {
+    return m.isEmpty() ? Collections.emptyList() : Collections.singletonList(m.firstKey());
+  }
+
+  /**
+   * Generates code to add every key of a map from key to ID to item, and every (key, entity ID) pair, to the filter
+   * on the current task and then mark it ready. Keys are visited one at a time and items a page at a time, yielding
+   * the task thread between them. Does nothing if the filter is ready or another rebuild on the task is in progress.
+   */
+  static Block rebuild(String filterVar, String pstate, RamaFunction1 entityIdFunction) {
+    String keyCursorVar = Helpers.genVar("keyCursor");
+    String firstVar = Helpers.genVar("first");
+    String keysVar = Helpers.genVar("keys");
+    String keyVar = Helpers.genVar("key");
+    String idCursorVar = Helpers.genVar("idCursor");
+    String pageVar = Helpers.genVar("page");
+    String idVar = Helpers.genVar("id");
+    String itemVar = Helpers.genVar("item");
+    String entityIdVar = Helpers.genVar("entityId");
+    String nextIdCursorVar = Helpers.genVar("nextIdCursor");
+    return Block.ifTrue(new Expr((TaskGlobalBloomFilter f) -> f.startRebuild(), filterVar),
+      Block.loopWithVars(LoopVars.var(keyCursorVar, null).var(firstVar, true),
+        Block.yieldIfOvertime()
+             .ifTrue(firstVar,
+               Block.localSelect(pstate, Path.subselect(Path.first().first())).out(keysVar),
+               Block.localSelect(pstate,
+                                 Path.sortedMapRangeFrom(keyCursorVar, SortedRangeFromOptions.excludeStart().maxAmt(1))
+                                     .view(TaskGlobalBloomFilter::nextKeys)).out(keysVar))
+             .ifTrue(new Expr(Ops.EQUAL, new Expr(Ops.SIZE, keysVar), 0),
+               Block.each((TaskGlobalBloomFilter f) -> { f.markReady(); return null; }, filterVar)
+                    .emitLoop(),
+               Block.each(Ops.GET, keysVar, 0).out(keyVar)
+                    .macro(put(filterVar, keyVar))
+                    .loopWithVars(LoopVars.var(idCursorVar, Long.MIN_VALUE),
+                      Block.yieldIfOvertime()
+                           .localSelect(pstate,
+                                        Path.key(keyVar)
+                                            .sortedMapRangeFrom(
+                                              idCursorVar,
+                                              SortedRangeFromOptions.excludeStart().maxAmt(REBUILD_PAGE_SIZE))).out(pageVar)
+                           .atomicBlock(
+                             Block.each(Ops.EXPLODE_MAP, pageVar).out(idVar, itemVar)
+                                  .each(entityIdFunction, itemVar).out(entityIdVar)
+                                  .macro(putPair(filterVar, keyVar, entityIdVar)))
+                           .ifTrue(new Expr(Ops.LESS_THAN, new Expr(Ops.SIZE, pageVar), REBUILD_PAGE_SIZE),
+                             Block.emitLoop(),
+                             Block.each((SortedMap m) -> m.lastKey(), pageVar).out(nextIdCursorVar)
+                                  .continueLoop(nextIdCursorVar)))
+                    .continueLoop(keyVar, false))));
+  }
+}
@@ -0,0 +1,238 @@
+package com.rpl.rama.helpers;
+
+import java.util.*;
+
+import com.rpl.rama.*;
+import com.rpl.rama.integration.*;
+import com.rpl.rama.ops.*;
+
+/**
+ * Task global implementation of a bounded LRU cache. Each task gets its own cache which is only ever accessed from that
+ * task's thread, so no synchronization is done.
+ * <br><br>
+ * The cache can be bounded by number of entries with {@link #maxEntries(long)} and / or by total weight with
+ * {@link #maxWeight(long, RamaFunction2)}, and entries can expire a fixed amount of time after being written with
+ * {@link #expireAfterWriteMillis(long)}. Expiration uses {@link TopologyUtils#currentTimeMillis()}, so it can be
+ * controlled in tests with sim time, or with a {@link SimClock} given to {@link #clock(SimClock)}. Least recently used
+ * entries are evicted first.
+ * <br><br>
+ * The cache is declared with <code>setup.declareObject("*cache", new TaskGlobalCache().maxEntries(10000))</code>.
+ * The {@link #readThrough} macro reads a value from the cache and falls back to a <code>localSelect</code> on a miss.
+ * Code writing the underlying PState should use {@link #cacheInvalidate} or {@link #cachePut} on the same task to keep the cache
+ * consistent. Since cache contents are not persisted, a cache starts empty after a task restarts or moves.
+ * <br><br>
+ * Hit, miss, and eviction counts for the task's cache are available from {@link #getHits()}, {@link #getMisses()}, and
+ * {@link #getEvictions()}.
+ *
+ * @see <a href="https://redplanetlabs.com/docs/~/integrating.html">Integration documentation</a>
+ */
+public class TaskGlobalCache implements TaskGlobalObject {
+  private static final Object MISS = new Object();
+
+  private static class Entry {
+    Object value;
+    long weight;
+    long writtenAt;
+
+    Entry(Object value, long weight, long writtenAt) {
+      this.value = value;
+      this.weight = weight;
+      this.writtenAt = writtenAt;
+    }
+  }
+
+  private long _maxEntries = Long.MAX_VALUE;
+  private long _maxWeight = Long.MAX_VALUE;
+  private RamaFunction2<Object, Object, Number> _weigher = null;
+  private long _expireAfterWriteMillis = -1;
+  private SimClock _clock = null;
+
+  private transient LinkedHashMap<Object, Entry> _cache;
+  private transient long _weight;
+  private transient long _hits;
+  private transient long _misses;
+  private transient long _evictions;
+
+  /**
+   * Limits the number of entries in each task's cache.
+   */
+  public TaskGlobalCache maxEntries(long maxEntries) {
+    _maxEntries = maxEntries;
+    return this;
+  }
+
+  /**
+   * Limits the total weight of entries in each task's cache. The weigher computes the weight of an entry from its key
+   * and value and is called once when the entry is written.
+   */
+  public TaskGlobalCache maxWeight(long maxWeight, RamaFunction2<Object, Object, Number> weigher) {
+    _maxWeight = maxWeight;
+    _weigher = weigher;
+    return this;
+  }
+
+  /**
+   * Expires entries the specified number of millis after they're written.
+   */
+  public TaskGlobalCache expireAfterWriteMillis(long millis) {
+    _expireAfterWriteMillis = millis;
+    return this;
+  }
+
+  /**
+   * Reads time for expiration from a {@link SimClock} instead of {@link TopologyUtils#currentTimeMillis()}.
+   */
+  public TaskGlobalCache clock(SimClock clock) {
+    _clock = clock;
+    return this;
+  }
+
+  @Override
+  public void prepareForTask(int taskId, TaskGlobalContext context) {
+    _cache = new LinkedHashMap<>(16, 0.75f, true);
+    _weight = 0;
+  }
+
+  @Override
+  public void close() { }
+
+  private boolean isExpired(Entry e) {
+    return _expireAfterWriteMillis >= 0 && TopologyUtils.currentTimeMillis(_clock) - e.writtenAt >= _expireAfterWriteMillis;
+  }
+
+  private void removeEntry(Object key) {
+    Entry e = _cache.remove(key);
+    if(e!=null) _weight -= e.weight;
+  }
+
+  private Object lookup(Object key) {
+    Entry e = _cache.get(key);
+    if(e!=null && isExpired(e)) {
+      removeEntry(key);
+      e = null;
+    }
+    if(e==null) {
+      _misses++;
+      return MISS;
+    } else {
+      _hits++;
+      return e.value;
+    }
+  }
+
+  /**
+   * Returns the cached value for the key, or null if not cached. Counts as a hit or a miss.
+   */
+  public Object get(Object key) {
+    Object ret = lookup(key);
+    return ret==MISS ? null : ret;
+  }
+
+  /**
+   * Writes a value to the cache, evicting least recently used entries as needed to stay within limits. A value whose
+   * weight alone exceeds the max weight is not cached.
+   */
+  public void put(Object key, Object value) {
+    long weight = _weigher==null ? 1 : _weigher.invoke(key, value).longValue();
+    removeEntry(key);
+    if(weight > _maxWeight) return;
+    _cache.put(key, new Entry(value, weight, TopologyUtils.currentTimeMillis(_clock)));
+    _weight += weight;
+    Iterator<Map.Entry<Object, Entry>> it = _cache.entrySet().iterator();
+    while(_cache.size() > _maxEntries || _weight > _maxWeight) {
+      Entry e = it.next().getValue();
+      it.remove();
+      _weight -= e.weight;
+      _evictions++;
+    }
+  }
+
+  /**
+   * Removes the key from the cache.
+   */
+  public void invalidate(Object key) {
+    removeEntry(key);
+  }
+
+  /**
+   * Removes all entries from the cache.
+   */
+  public void invalidateAll() {
+    _cache.clear();
+    _weight = 0;
+  }
+
+  public long size() {
+    return _cache.size();
+  }
+
+  public long getWeight() {
+    return _weight;
+  }
+
+  public long getHits() {
+    return _hits;
+  }
+
+  public long getMisses() {
+    return _misses;
+  }
+
+  public long getEvictions() {
+    return _evictions;
+  }
+
+  /**
+   * Returns the fraction of lookups that were hits, or 0 if there have been no lookups.
+   */
+  public double getHitRate() {
+    long total = _hits + _misses;
+    return total==0 ? 0.0 : ((double) _hits) / total;
+  }
+
+  private static Object cacheLookup(TaskGlobalCache cache, Object key) {
+    return cache.lookup(key);
+  }
+
+  private static boolean isMiss(Object v) {
+    return v==MISS;
+  }
+
+  /**
+   * Macro to read a value through the cache. On a miss, the path is selected from the PState on the current task and the
+   * result is cached under the key. This must be used on the task owning the key.
+   *
+   * @param cacheVar Var holding the task global cache
+   * @param key Cache key for the value
+   * @param pstate PState to read on a miss
+   * @param path Path passed to <code>localSelect</code> on a miss, which must select exactly one value
+   * @param outVar Var to bind the value
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public static Block readThrough(String cacheVar, Object key, String pstate, Path path, String outVar) {
+    String cachedVar = Helpers.genVar("cached");
+    return Block.each(TaskGlobalCache::cacheLookup, cacheVar, key).out(cachedVar)
+                .ifTrue(new Expr(TaskGlobalCache::isMiss, cachedVar),
+                  Block.localSelect(pstate, path).out(outVar)
+                       .each((TaskGlobalCache c, Object k, Object v) -> { c.put(k, v); return null; }, cacheVar, key, outVar),
+                  Block.each(Ops.IDENTITY, cachedVar).out(outVar));
+  }
+
+  /**
+   * Macro to remove a key from the cache, for use after writing the underlying PState.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public static Block cacheInvalidate(String cacheVar, Object key) {
+    return Block.each((TaskGlobalCache c, Object k) -> { c.invalidate(k); return null; }, cacheVar, key);
+  }
+
+  /**
+   * Macro to write a value to the cache, for use after writing the same value to the underlying PState.
+   *
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public static Block cachePut(String cacheVar, Object key, Object value) {
+    return Block.each((TaskGlobalCache c, Object k, Object v) -> { c.put(k, v); return null; }, cacheVar, key, value);
+  }
+}
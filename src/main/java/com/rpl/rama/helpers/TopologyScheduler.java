@@ -16,6 +16,9 @@ import com.rpl.rama.ops.*;
  * <br><br>
  * It is up to the user of this class to determine when {@link handleExpirations} is called. A common way to use it is to invoke
  * it off of a tick depot.
+ * <br><br>
+ * When configured with {@link #metrics(String)}, records these metrics prefixed by the PState name: "scheduled",
+ * "expirationChecks" for each task checking for expired items, and "expired" for each item handled.
  */
 public class TopologyScheduler {
   private static final String MAX_UUID = "ffffffff-ffff-ffff-ffff-ffffffffffff";
@@ -23,6 +26,8 @@ public class TopologyScheduler {
   String _pstateVar;
   ETLTopologyBase _owningTopology;
   int _maxFetchAmt = 1000;
+  SimClock _clock = null;
+  String _metricsVar = null;
 
   /**
    * Creates an instance of TopologyScheduler.
@@ -41,6 +46,29 @@ public class TopologyScheduler {
     return this;
   }
 
+  /**
+   * Configures this instance to read the current time from a {@link SimClock} instead of
+   * {@link TopologyUtils#currentTimeMillis()}. This is for tests which need sim time isolated from other tests.
+   */
+  public TopologyScheduler clock(SimClock clock) {
+    _clock = clock;
+    return this;
+  }
+
+  /**
+   * Records operation counts in a {@link HelperMetrics}.
+   *
+   * @param metricsVar Var of the HelperMetrics declared with <code>setup.declareObject</code>
+   */
+  public TopologyScheduler metrics(String metricsVar) {
+    _metricsVar = metricsVar;
+    return this;
+  }
+
+  private String metric(String name) {
+    return _pstateVar + "." + name;
+  }
+
   private static String padTimeStr(Long timestampMillis) {
     return String.format("%014d", timestampMillis);
   }
@@ -75,10 +103,11 @@ public class TopologyScheduler {
     String entryVar = Helpers.genVar("entry");
     String keyVar = Helpers.genVar("key");
     SortedRangeToOptions options = SortedRangeToOptions.includeEnd().maxAmt(_maxFetchAmt);
-    Block.Impl start = Block.each(TopologyUtils::currentTimeMillis).out(currentTimeVar)
+    Block.Impl start = Block.each((SimClock c) -> TopologyUtils.currentTimeMillis(c), _clock).out(currentTimeVar)
                             .allPartition()
                             .each(Ops.TUPLE, new Expr(TopologyScheduler::padTimeStr, currentTimeVar), MAX_UUID).out(targetVar)
                             .localSelect(_pstateVar, Path.sortedMapRangeTo(targetVar, options)).out(mvar)
+                            .macro(HelperMetrics.count(_metricsVar, metric("expirationChecks"), 1))
                             .each((Map m) -> m.entrySet().iterator(), mvar).out(itVar)
                             .loop(
                               Block.yieldIfOvertime()
@@ -92,7 +121,8 @@ public class TopologyScheduler {
     if(_owningTopology instanceof MicrobatchTopology) {
       String doneAnchor = Helpers.genVar("Done").substring(1);
       return start.ifTrue(new Expr(Ops.EQUAL, actionVar, "u"),
-                    Block.macro(handleCode),
+                    Block.macro(HelperMetrics.count(_metricsVar, metric("expired"), 1))
+                         .macro(handleCode),
                     Block.localTransform(_pstateVar, Path.sortedMapRangeTo(targetVar, options).termVal(null))
                          .anchor(doneAnchor))
                   .hook(doneAnchor);
@@ -100,6 +130,7 @@ public class TopologyScheduler {
       String originTaskVar = Helpers.genVar("originTask");
       return start.ifTrue(new Expr(Ops.EQUAL, actionVar, "u"),
                     Block.each(Ops.CURRENT_TASK_ID).out(originTaskVar)
+                         .macro(HelperMetrics.count(_metricsVar, metric("expired"), 1))
                          .macro(handleCode)
                          .directPartition(originTaskVar)
                          .localTransform(_pstateVar, Path.key(keyVar).termVoid()));
@@ -121,7 +152,8 @@ public class TopologyScheduler {
     return Block.each(() -> UUID.randomUUID().toString()).out(uuidVar)
                 .each((Number n) -> n.longValue(), timestampMillis).out(longVar)
                 .each(Ops.TUPLE, new Expr(TopologyScheduler::padTimeStr, longVar), uuidVar).out(tupleVar)
-                .localTransform(_pstateVar, Path.key(tupleVar).termVal(item));
+                .localTransform(_pstateVar, Path.key(tupleVar).termVal(item))
+                .macro(HelperMetrics.count(_metricsVar, metric("scheduled"), 1));
   }
 
 }
@@ -5,9 +5,16 @@ import com.rpl.rama.ops.*;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -18,37 +25,72 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class TopologyUtils {
 
-  public static final ConcurrentHashMap<Class, Map<String, Field>> FIELD_CACHE = new ConcurrentHashMap<>();
+  // Cached per class with ClassValue rather than in a static map so cached classes can still be unloaded
+  private static final ClassValue<Map<String, Field>> FIELDS = new ClassValue<Map<String, Field>>() {
+    @Override
+    protected Map<String, Field> computeValue(Class<?> klass) {
+      Map<String, Field> ret = new HashMap<>();
+      for(Field f: klass.getFields()) {
+        ret.put(f.getName(), f);
+      }
+      return Collections.unmodifiableMap(ret);
+    }
+  };
 
-  public static Map<String, Field> getFieldCache(Class klass) {
-    Map<String, Field> ret = FIELD_CACHE.get(klass);
-    if(ret==null) {
-      try {
-        ret = new HashMap<>();
-        for(Field f: klass.getFields()) {
-          ret.put(f.getName(), f);
+  private static final ClassValue<Map<String, MethodHandle>> FIELD_GETTERS = new ClassValue<Map<String, MethodHandle>>() {
+    @Override
+    protected Map<String, MethodHandle> computeValue(Class<?> klass) {
+      Map<String, MethodHandle> ret = new HashMap<>();
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      for(Field f: FIELDS.get(klass).values()) {
+        try {
+          ret.put(f.getName(), lookup.unreflectGetter(f).asType(MethodType.methodType(Object.class, Object.class)));
+        } catch(IllegalAccessException e) {
+          // Fields of non-public classes can't be read from here, so leave them to fail on use like a missing field
         }
-        FIELD_CACHE.put(klass, ret);
-      } catch(Exception e) {
-        throw new RuntimeException(e);
       }
+      return Collections.unmodifiableMap(ret);
     }
+  };
+
+  public static Map<String, Field> getFieldCache(Class klass) {
+    return FIELDS.get(klass);
+  }
+
+  static MethodHandle getFieldGetter(Class klass, String fieldName) {
+    MethodHandle ret = FIELD_GETTERS.get(klass).get(fieldName);
+    if(ret==null) throw new RuntimeException("Field " + fieldName + " does not exist on " + klass);
     return ret;
   }
 
-  public static <T> T getFieldByName(Object obj, String fieldName) {
-    Field field = getFieldCache(obj.getClass()).get(fieldName);
-    if(field==null) throw new RuntimeException("Field " + fieldName + " does not exist on " + obj.getClass());
+  static Object invokeGetter(MethodHandle getter, Object obj) {
     try {
-      return (T) field.get(obj);
-    } catch(IllegalAccessException e) {
-      throw new RuntimeException(e);
+      return (Object) getter.invokeExact(obj);
+    } catch(RuntimeException | Error e) {
+      throw e;
+    } catch(Throwable t) {
+      throw new RuntimeException(t);
     }
   }
 
+  public static <T> T getFieldByName(Object obj, String fieldName) {
+    return (T) invokeGetter(getFieldGetter(obj.getClass(), fieldName), obj);
+  }
 
   public static class ExtractJavaField implements RamaFunction1<Object, Object> {
+    // Getter for the last class seen, so extracting from a single class skips the per-class lookup
+    private static class CachedGetter {
+      final Class klass;
+      final MethodHandle getter;
+
+      CachedGetter(Class klass, MethodHandle getter) {
+        this.klass = klass;
+        this.getter = getter;
+      }
+    }
+
     private String field;
+    private transient CachedGetter cached;
 
     public ExtractJavaField(String f) {
       this.field = f;
@@ -56,7 +98,13 @@ public class TopologyUtils {
 
     @Override
     public Object invoke(Object obj) {
-      return getFieldByName(obj, field);
+      Class klass = obj.getClass();
+      CachedGetter c = cached;
+      if(c==null || c.klass!=klass) {
+        c = new CachedGetter(klass, getFieldGetter(klass, field));
+        cached = c;
+      }
+      return invokeGetter(c.getter, obj);
     }
   }
 
@@ -80,6 +128,142 @@ public class TopologyUtils {
     return ret;
   }
 
+  private static final Optional<MethodHandle> NO_ACCESSOR = Optional.empty();
+
+  private static final ClassValue<ConcurrentHashMap<String, Optional<MethodHandle>>> ACCESSORS = new ClassValue<ConcurrentHashMap<String, Optional<MethodHandle>>>() {
+    @Override
+    protected ConcurrentHashMap<String, Optional<MethodHandle>> computeValue(Class<?> klass) {
+      return new ConcurrentHashMap<>();
+    }
+  };
+
+  private static Optional<MethodHandle> findAccessor(Class klass, String name) {
+    MethodHandle ret = FIELD_GETTERS.get(klass).get(name);
+    if(ret==null) {
+      String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+      // "name()" covers record components as well as fluent accessors
+      for(String methodName: new String[] {"get" + capitalized, "is" + capitalized, name}) {
+        try {
+          Method m = klass.getMethod(methodName);
+          if(m.getReturnType()!=void.class && !Modifier.isStatic(m.getModifiers())) {
+            ret = MethodHandles.lookup().unreflect(m);
+            break;
+          }
+        } catch(NoSuchMethodException | IllegalAccessException e) {
+          // try the next naming convention
+        }
+      }
+    }
+    return ret==null ? NO_ACCESSOR : Optional.of(ret.asType(MethodType.methodType(Object.class, Object.class)));
+  }
+
+  /**
+   * Returns a getter for a public field, getter method (getX or isX), or no-argument accessor method such as a record
+   * component, in that order of preference.
+   */
+  static MethodHandle getAccessor(Class klass, String name) {
+    Optional<MethodHandle> ret = ACCESSORS.get(klass).computeIfAbsent(name, n -> findAccessor(klass, n));
+    if(!ret.isPresent()) throw new RuntimeException("No field or accessor " + name + " on " + klass);
+    return ret.get();
+  }
+
+  /**
+   * Extracts a set of possibly nested fields from an object in a single call, emitting all of them at once. Accessors
+   * for the top-level object's class are resolved once per class into a plan. The plan also caches the accessor of each
+   * nested hop for the last class seen at that hop, so nested accessors are only resolved again when a class changes.
+   */
+  public static class ExtractFields implements RamaOperation1<Object> {
+    private static class Plan {
+      final Class klass;
+      final MethodHandle[] roots;
+      // Indexed by path and then by hop, with hop 0 unused since roots cover it
+      final ExtractJavaField.CachedGetter[][] hops;
+
+      Plan(Class klass, MethodHandle[] roots, ExtractJavaField.CachedGetter[][] hops) {
+        this.klass = klass;
+        this.roots = roots;
+        this.hops = hops;
+      }
+    }
+
+    private final String[][] paths;
+    private transient Plan plan;
+
+    public ExtractFields(String[][] paths) {
+      this.paths = paths;
+    }
+
+    private Plan makePlan(Class klass) {
+      MethodHandle[] roots = new MethodHandle[paths.length];
+      ExtractJavaField.CachedGetter[][] hops = new ExtractJavaField.CachedGetter[paths.length][];
+      for(int i=0; i<paths.length; i++) {
+        roots[i] = getAccessor(klass, paths[i][0]);
+        hops[i] = new ExtractJavaField.CachedGetter[paths[i].length];
+      }
+      return new Plan(klass, roots, hops);
+    }
+
+    @Override
+    public void invoke(Object obj, OutputCollector collector) {
+      Class klass = obj.getClass();
+      Plan p = plan;
+      if(p==null || p.klass!=klass) {
+        p = makePlan(klass);
+        plan = p;
+      }
+      Object[] ret = new Object[paths.length];
+      for(int i=0; i<paths.length; i++) {
+        String[] path = paths[i];
+        ExtractJavaField.CachedGetter[] hops = p.hops[i];
+        Object curr = invokeGetter(p.roots[i], obj);
+        for(int j=1; j<path.length && curr!=null; j++) {
+          Class hopClass = curr.getClass();
+          ExtractJavaField.CachedGetter c = hops[j];
+          if(c==null || c.klass!=hopClass) {
+            c = new ExtractJavaField.CachedGetter(hopClass, getAccessor(hopClass, path[j]));
+            hops[j] = c;
+          }
+          curr = invokeGetter(c.getter, curr);
+        }
+        ret[i] = curr;
+      }
+      collector.emit(ret);
+    }
+  }
+
+  /**
+   * Macro to extract fields from a value with a single operation, binding all of them at once. Compared to
+   * {@link #extractJavaFields(Object, String...)}, this also reads getter methods (getX or isX) and no-argument accessor
+   * methods such as record components, and it can navigate nested values with dotted paths.
+   * <br><br>
+   * Each argument names the path to extract and the var it's bound to, which is the last segment of the path. For example,
+   * "*userId" binds *userId from the userId field or getUserId() method, and "*user.address.city" binds *city by
+   * navigating through user and address. A path whose intermediate value is null binds null. Paths binding the same var,
+   * such as "*a.id" and "*b.id", are rejected with an IllegalArgumentException when the macro is built.
+   *
+   * @param from Runtime value from which to extract fields
+   * @param fieldPathVars Paths to extract and the vars to bind them to
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public static Block extractFields(Object from, String... fieldPathVars) {
+    String[][] paths = new String[fieldPathVars.length][];
+    String[] outVars = new String[fieldPathVars.length];
+    Map<String, String> pathsByOutVar = new HashMap<>();
+    for(int i=0; i<fieldPathVars.length; i++) {
+      String f = fieldPathVars[i];
+      if(Helpers.isGeneratedVar(f)) {
+        paths[i] = new String[] {Helpers.getGeneratedVarPrefix(f)};
+        outVars[i] = f;
+      } else {
+        paths[i] = f.substring(1).split("\\.");
+        outVars[i] = f.charAt(0) + paths[i][paths[i].length - 1];
+      }
+      String existing = pathsByOutVar.put(outVars[i], f);
+      if(existing!=null) throw new IllegalArgumentException("Paths " + existing + " and " + f + " both bind " + outVars[i]);
+    }
+    return Block.each(new ExtractFields(paths), from).out(outVars);
+  }
+
 
   private static volatile Long _simTime = null;
 
@@ -115,4 +299,13 @@ public class TopologyUtils {
     if(_simTime!=null) return _simTime;
     else return System.currentTimeMillis();
   }
+
+  /**
+   * Returns the time of the clock if one is given, and otherwise the same as {@link #currentTimeMillis()}. Helpers
+   * configured with a {@link SimClock} read time through this.
+   */
+  public static long currentTimeMillis(SimClock clock) {
+    if(clock!=null) return clock.currentTimeMillis();
+    else return currentTimeMillis();
+  }
 }
@@ -0,0 +1,168 @@
+package com.rpl.rama.helpers;
+
+import java.util.*;
+
+import com.rpl.rama.*;
+import com.rpl.rama.integration.*;
+import com.rpl.rama.ops.*;
+
+/**
+ * Task global buffer which merges numeric deltas in memory so hot keys are written to a PState once per flush instead
+ * of once per event. Keys and deltas are longs, and deltas are held in a primitive map so buffering doesn't allocate per
+ * event. The target PState must have the schema <code>PState.mapSchema(Long.class, Long.class)</code>.
+ * <br><br>
+ * The buffer is declared with <code>setup.declareObject("*buffer", new WriteBehindBuffer(1000))</code>. The
+ * {@link #addDelta} macro adds a delta for a key on the current task, and flushes that task's buffer when the number of
+ * distinct buffered keys reaches the flush threshold. Like any PState write, {@link #addDelta} must be used on the task
+ * owning the key.
+ * <br><br>
+ * Buffered deltas live only in memory, so they're only safe when the depot records they came from are replayed if
+ * they're lost. A microbatch topology provides that: a failed microbatch is retried from the depot and its PState writes
+ * are discarded. The buffer is used there by discarding deltas from failed attempts with {@link #beginMicrobatch} at the
+ * root of the microbatch, and flushing every task's buffer with {@link #flushMicrobatch} after the deltas are added,
+ * so nothing stays buffered once a microbatch commits and counts are exact:
+ * <pre>
+ * mb.source("*depot").out("*microbatch")
+ *   .macro(WriteBehindBuffer.beginMicrobatch("*buffer"))
+ *   .explodeMicrobatch("*microbatch").out("*postId")
+ *   .hashPartition("*postId")
+ *   .macro(WriteBehindBuffer.addDelta("*buffer", "$$counts", "*postId", 1L))
+ *   .macro(WriteBehindBuffer.flushMicrobatch("*buffer", "$$counts"));
+ * </pre>
+ * A stream topology finishes processing a depot record once its delta is buffered, so deltas not yet flushed when a
+ * task restarts or moves are lost rather than replayed. Buffering in a stream topology therefore requires opting in with
+ * {@link #allowLossOnRestart()}, and {@link #addDelta} fails outside a microbatch otherwise. There the buffer should
+ * also be flushed periodically with {@link #flush}, typically off a tick depot, which bounds the amount that can be lost:
+ * <pre>
+ * s.source("*tick").allPartition().macro(WriteBehindBuffer.flush("*buffer", "$$counts"));
+ * </pre>
+ *
+ * @see <a href="https://redplanetlabs.com/docs/~/integrating.html">Integration documentation</a>
+ * @see <a href="https://redplanetlabs.com/docs/~/microbatch.html">Microbatch documentation</a>
+ */
+public class WriteBehindBuffer implements TaskGlobalObject {
+  private final int _flushThreshold;
+  private boolean _allowLossOnRestart = false;
+  private transient LongLongHashMap _deltas;
+  private transient boolean _inMicrobatch;
+
+  /**
+   * Creates a WriteBehindBuffer.
+   *
+   * @param flushThreshold Number of distinct buffered keys on a task at which {@link #addDelta} flushes the buffer
+   */
+  public WriteBehindBuffer(int flushThreshold) {
+    _flushThreshold = flushThreshold;
+  }
+
+  /**
+   * Allows buffering outside a microbatch, such as in a stream topology, where deltas buffered but not yet flushed are
+   * lost when a task restarts or moves.
+   */
+  public WriteBehindBuffer allowLossOnRestart() {
+    _allowLossOnRestart = true;
+    return this;
+  }
+
+  @Override
+  public void prepareForTask(int taskId, TaskGlobalContext context) {
+    _deltas = new LongLongHashMap(_flushThreshold);
+  }
+
+  @Override
+  public void close() { }
+
+  /**
+   * Returns the number of distinct keys currently buffered on this task.
+   */
+  public int pendingKeys() {
+    return _deltas.size();
+  }
+
+  static Object begin(WriteBehindBuffer buffer) {
+    buffer._deltas.drain();
+    buffer._inMicrobatch = true;
+    return null;
+  }
+
+  static Object end(WriteBehindBuffer buffer) {
+    buffer._inMicrobatch = false;
+    return null;
+  }
+
+  static Boolean bufferDelta(WriteBehindBuffer buffer, Number key, Number delta) {
+    if(!buffer._inMicrobatch && !buffer._allowLossOnRestart) {
+      throw new IllegalStateException("WriteBehindBuffer used outside a microbatch started with beginMicrobatch. " +
+                                      "Configure allowLossOnRestart() to buffer in a stream topology.");
+    }
+    buffer._deltas.add(key.longValue(), delta.longValue());
+    return buffer._deltas.size() >= buffer._flushThreshold;
+  }
+
+  private static Map<Long, Long> drain(WriteBehindBuffer buffer) {
+    return buffer._deltas.drain();
+  }
+
+  /**
+   * Macro to buffer a delta for a key on the current task, flushing the buffer to the PState when the flush threshold
+   * is reached.
+   *
+   * @param bufferVar Var holding the task global buffer
+   * @param pstate PState to flush deltas into
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public static Block addDelta(String bufferVar, String pstate, Object key, Object delta) {
+    String shouldFlushVar = Helpers.genVar("shouldFlush");
+    return Block.each(WriteBehindBuffer::bufferDelta, bufferVar, key, delta).out(shouldFlushVar)
+                .ifTrue(shouldFlushVar, flush(bufferVar, pstate));
+  }
+
+  /**
+   * Macro to discard deltas left on the current task by a failed attempt of a microbatch, whose records are about to be
+   * processed again. Must be used at the root of the microbatch topology, before exploding the microbatch, so it runs
+   * on every task at the start of every attempt.
+   *
+   * @param bufferVar Var holding the task global buffer
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public static Block beginMicrobatch(String bufferVar) {
+    return Block.each(WriteBehindBuffer::begin, bufferVar);
+  }
+
+  /**
+   * Macro to flush the buffers of all tasks once all deltas of the microbatch have been added, so their writes commit
+   * with the microbatch. Ends the microbatch on every task, so a later {@link #addDelta} outside a microbatch fails
+   * again unless {@link #allowLossOnRestart()} is configured. Must follow every {@link #addDelta} of the microbatch,
+   * and code following it runs once on every task.
+   *
+   * @param bufferVar Var holding the task global buffer
+   * @param pstate PState to flush deltas into
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public static Block flushMicrobatch(String bufferVar, String pstate) {
+    String addedVar = Helpers.genVar("added");
+    // Aggregating waits for every delta of the microbatch to be added before any task flushes
+    return Block.agg(Agg.count()).out(addedVar)
+                .allPartition()
+                .macro(flush(bufferVar, pstate))
+                .each(WriteBehindBuffer::end, bufferVar);
+  }
+
+  /**
+   * Macro to write all deltas buffered on the current task to the PState, adding each key's merged delta to its
+   * current value. Keys are written in a single atomic block.
+   *
+   * @param bufferVar Var holding the task global buffer
+   * @param pstate PState to flush deltas into
+   * @see <a href="https://redplanetlabs.com/docs/~/intermediate-dataflow.html#_macros">Detailed macro documentation</a>
+   */
+  public static Block flush(String bufferVar, String pstate) {
+    String deltasVar = Helpers.genVar("deltas");
+    String keyVar = Helpers.genVar("key");
+    String deltaVar = Helpers.genVar("delta");
+    return Block.each(WriteBehindBuffer::drain, bufferVar).out(deltasVar)
+                .atomicBlock(
+                  Block.each(Ops.EXPLODE_MAP, deltasVar).out(keyVar, deltaVar)
+                       .localTransform(pstate, Path.key(keyVar).nullToVal(0L).term(Ops.PLUS_LONG, deltaVar)));
+  }
+}
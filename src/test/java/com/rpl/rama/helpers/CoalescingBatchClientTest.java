@@ -0,0 +1,167 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.test.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.RamaFunction1;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CoalescingBatchClientTest {
+  // Stand-in for an external service. Batches are held until released when hold is set.
+  public static class UpperCaseService implements RamaFunction1<List<Object>, CompletableFuture<Map<Object, Object>>> {
+    public static final List<List<Object>> BATCHES = Collections.synchronizedList(new ArrayList<>());
+    public static final List<Runnable> HELD = Collections.synchronizedList(new ArrayList<>());
+    public static volatile boolean hold = false;
+
+    public static void reset() {
+      BATCHES.clear();
+      HELD.clear();
+      hold = false;
+    }
+
+    @Override
+    public CompletableFuture<Map<Object, Object>> invoke(List<Object> keys) {
+      BATCHES.add(keys);
+      CompletableFuture<Map<Object, Object>> ret = new CompletableFuture<>();
+      Runnable complete = () -> {
+        Map<Object, Object> m = new HashMap<>();
+        for(Object k: keys) m.put(k, ((String) k).toUpperCase());
+        ret.complete(m);
+      };
+      if(hold) HELD.add(complete);
+      else complete.run();
+      return ret;
+    }
+  }
+
+  private static CoalescingBatchClient prepare(CoalescingBatchClient client) {
+    client.prepareForTask(0, null);
+    return client;
+  }
+
+  @Test
+  public void coalescingTest() throws Exception {
+    UpperCaseService.reset();
+    CoalescingBatchClient client = prepare(new CoalescingBatchClient(new UpperCaseService()).maxBatchSize(3).lingerMillis(60000));
+    try {
+      CompletableFuture<Object> a1 = client.get("a");
+      CompletableFuture<Object> b = client.get("b");
+      CompletableFuture<Object> a2 = client.get("a");
+      assertSame(a1, a2);
+      assertEquals(0, UpperCaseService.BATCHES.size());
+
+      // Third distinct key fills the batch
+      CompletableFuture<Object> c = client.get("c");
+      assertEquals(Arrays.asList(Arrays.asList("a", "b", "c")), UpperCaseService.BATCHES);
+      assertEquals("A", a1.get());
+      assertEquals("B", b.get());
+      assertEquals("C", c.get());
+      assertEquals(1, client.getBatches());
+      assertEquals(4, client.getLookups());
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void lingerTest() throws Exception {
+    UpperCaseService.reset();
+    CoalescingBatchClient client = prepare(new CoalescingBatchClient(new UpperCaseService()).maxBatchSize(100).lingerMillis(20));
+    try {
+      CompletableFuture<Object> a = client.get("a");
+      CompletableFuture<Object> b = client.get("b");
+      assertEquals("A", a.get(10, TimeUnit.SECONDS));
+      assertEquals("B", b.get(10, TimeUnit.SECONDS));
+      assertEquals(Arrays.asList(Arrays.asList("a", "b")), UpperCaseService.BATCHES);
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void maxInFlightTest() throws Exception {
+    UpperCaseService.reset();
+    UpperCaseService.hold = true;
+    CoalescingBatchClient client = prepare(new CoalescingBatchClient(new UpperCaseService()).maxBatchSize(1).maxInFlight(1));
+    try {
+      CompletableFuture<Object> a = client.get("a");
+      CompletableFuture<Object> b = client.get("b");
+      assertEquals(1, UpperCaseService.BATCHES.size());
+      assertEquals(1, client.getInFlight());
+
+      // Completing the first batch sends the queued one
+      UpperCaseService.HELD.get(0).run();
+      assertEquals("A", a.get());
+      assertEquals(2, UpperCaseService.BATCHES.size());
+      assertFalse(b.isDone());
+      UpperCaseService.HELD.get(1).run();
+      assertEquals("B", b.get());
+      assertEquals(0, client.getInFlight());
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void completedBatchTest() throws Exception {
+    UpperCaseService.reset();
+    CoalescingBatchClient client = prepare(new CoalescingBatchClient(new UpperCaseService()).maxBatchSize(2).lingerMillis(60000));
+    ExecutorService other = Executors.newSingleThreadExecutor();
+    try {
+      // The service completes batches inline, so continuations run on the thread filling the batch. A lookup from
+      // another thread inside a continuation only finishes if the client's lock isn't held at that point.
+      AtomicBoolean otherLookupDone = new AtomicBoolean(false);
+      CompletableFuture<Object> a = client.get("a");
+      a.thenRun(() -> {
+        try {
+          other.submit(() -> client.get("z")).get(10, TimeUnit.SECONDS);
+          otherLookupDone.set(true);
+        } catch(Exception e) {
+        }
+      });
+      client.get("b");
+      assertEquals("A", a.get());
+      assertTrue(otherLookupDone.get());
+    } finally {
+      other.shutdownNow();
+      client.close();
+    }
+  }
+
+  public static class Module implements RamaModule {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*depot", Depot.random());
+      setup.declareObject("*client", new CoalescingBatchClient(new UpperCaseService()).lingerMillis(1));
+
+      StreamTopology s = topologies.stream("s");
+      s.pstate("$$results", PState.mapSchema(String.class, String.class));
+      s.source("*depot").out("*key")
+       .macro(CoalescingBatchClient.lookup("*client", "*key", "*result"))
+       .localTransform("$$results", Path.key("*key").termVal("*result"));
+    }
+  }
+
+  @Test
+  public void moduleTest() throws Exception {
+    UpperCaseService.reset();
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(new Module(), new LaunchConfig(1, 1));
+
+      Depot depot = cluster.clusterDepot(Module.class.getName(), "*depot");
+      PState results = cluster.clusterPState(Module.class.getName(), "$$results");
+
+      depot.append("x");
+      depot.append("y");
+      assertEquals("X", results.selectOne(Path.key("x")));
+      assertEquals("Y", results.selectOne(Path.key("y")));
+    }
+  }
+}
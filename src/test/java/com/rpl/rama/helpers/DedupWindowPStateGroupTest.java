@@ -0,0 +1,94 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.test.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.Ops;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DedupWindowPStateGroupTest {
+  public static class Module implements RamaModule {
+    public SimClock clock;
+
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*requestDepot", Depot.hashBy(Ops.FIRST));
+      setup.declareDepot("*expireDepot", Depot.random());
+
+      StreamTopology s = topologies.stream("s");
+      DedupWindowPStateGroup p = new DedupWindowPStateGroup("$$seen", String.class, 1000).clock(clock);
+      p.declarePStates(s);
+      s.pstate("$$totals", PState.mapSchema(String.class, Long.class));
+      s.source("*requestDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*requestId", "*account", "*amount")
+       .macro(p.filterFirstSeen("*requestId"))
+       .hashPartition("*account")
+       .localTransform("$$totals", Path.key("*account").nullToVal(0L).term(Ops.PLUS_LONG, "*amount"));
+      s.source("*expireDepot").out("*tick")
+       .allPartition()
+       .macro(p.expireBuckets());
+    }
+  }
+
+  private static int numBuckets(PState seen) {
+    int ret = 0;
+    for(int i=0; i<10; i++) {
+      if(!seen.select(Path.key((long) i * 500).all()).isEmpty()) ret++;
+    }
+    return ret;
+  }
+
+  @Test
+  public void windowBucketsTest() {
+    try(SimClock clock = SimClock.create()) {
+      clock.advance(1250);
+      assertEquals(Arrays.asList(1000L, 500L, 0L), DedupWindowPStateGroup.windowBuckets(clock, 500L, 2));
+    }
+  }
+
+  @Test
+  public void moduleTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create();
+        SimClock clock = SimClock.create()) {
+      Module module = new Module();
+      module.clock = clock;
+      cluster.launchModule(module, new LaunchConfig(1, 1));
+      String moduleName = Module.class.getName();
+
+      Depot requestDepot = cluster.clusterDepot(moduleName, "*requestDepot");
+      Depot expireDepot = cluster.clusterDepot(moduleName, "*expireDepot");
+      PState seen = cluster.clusterPState(moduleName, "$$seen");
+      PState totals = cluster.clusterPState(moduleName, "$$totals");
+
+      requestDepot.append(Arrays.asList("r1", "alice", 10));
+      requestDepot.append(Arrays.asList("r1", "alice", 10));
+      requestDepot.append(Arrays.asList("r2", "alice", 5));
+      assertEquals(15L, (long) totals.selectOne(Path.key("alice")));
+
+      // Retries within the window are dropped even across buckets
+      clock.advance(900);
+      requestDepot.append(Arrays.asList("r1", "alice", 10));
+      requestDepot.append(Arrays.asList("r3", "alice", 1));
+      assertEquals(16L, (long) totals.selectOne(Path.key("alice")));
+      assertEquals(2, numBuckets(seen));
+
+      // After the window and a bucket, the ID counts as new again
+      clock.advance(1200);
+      expireDepot.append("tick");
+      assertEquals(0, numBuckets(seen));
+      requestDepot.append(Arrays.asList("r1", "alice", 10));
+      requestDepot.append(Arrays.asList("r3", "alice", 1));
+      assertEquals(26L, (long) totals.selectOne(Path.key("alice")));
+      assertEquals(1, numBuckets(seen));
+
+      clock.advance(2000);
+      expireDepot.append("tick");
+      assertEquals(0, numBuckets(seen));
+    }
+  }
+}
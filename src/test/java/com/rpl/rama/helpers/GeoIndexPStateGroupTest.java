@@ -0,0 +1,132 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.test.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.Ops;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GeoIndexPStateGroupTest {
+  public static class Module implements RamaModule {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*locationDepot", Depot.hashBy(Ops.FIRST));
+      setup.declareDepot("*removeDepot", Depot.hashBy(Ops.IDENTITY));
+
+      StreamTopology s = topologies.stream("s");
+      GeoIndexPStateGroup p = new GeoIndexPStateGroup("$$drivers", String.class);
+      p.declarePStates(s);
+      s.source("*locationDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*driverId", "*lat", "*lon")
+       .macro(p.setLocation("*driverId", "*lat", "*lon"));
+      s.source("*removeDepot").out("*driverId")
+       .macro(p.removeEntity("*driverId"));
+      p.declareRadiusQueryTopology(topologies, "nearby");
+      p.declareBoundingBoxQueryTopology(topologies, "inBox");
+    }
+  }
+
+  private static Set<Object> ids(List<List> results) {
+    Set<Object> ret = new HashSet<>();
+    for(List r: results) ret.add(r.get(0));
+    return ret;
+  }
+
+  @Test
+  public void cellsTest() {
+    assertEquals(1000.8, GeoIndexPStateGroup.distanceMeters(37.7749, -122.4194, 37.7839, -122.4194), 0.5);
+
+    // Nearby locations share leading bits
+    long a = GeoIndexPStateGroup.cellId(37.7749, -122.4194);
+    long b = GeoIndexPStateGroup.cellId(37.7750, -122.4195);
+    assertTrue(Long.numberOfLeadingZeros(a ^ b) > 12 + 30);
+
+    // A small area is covered by a few cells within the partition precision
+    List<List> cover = GeoIndexPStateGroup.coverRadius(37.7749, -122.4194, 2000, 10);
+    assertTrue(cover.size() <= 4);
+    boolean covered = false;
+    for(List c: cover) {
+      if((Long) c.get(1) <= a && a < (Long) c.get(2)) covered = true;
+      assertEquals((long) c.get(0), (Long) c.get(1) >>> 32);
+    }
+    assertTrue(covered);
+
+    // Areas crossing the antimeridian are split
+    List<List> wrapped = GeoIndexPStateGroup.cover(-1, 179, 1, 181, 10);
+    long east = GeoIndexPStateGroup.cellId(0, 179.5);
+    long west = GeoIndexPStateGroup.cellId(0, -179.5);
+    boolean eastCovered = false;
+    boolean westCovered = false;
+    for(List c: wrapped) {
+      if((Long) c.get(1) <= east && east < (Long) c.get(2)) eastCovered = true;
+      if((Long) c.get(1) <= west && west < (Long) c.get(2)) westCovered = true;
+    }
+    assertTrue(eastCovered && westCovered);
+
+    // Moving between cells removes the old entry, and moving within a cell only overwrites it
+    List london = Arrays.asList(51.5074, -0.1278);
+    List paris = Arrays.asList(48.8566, 2.3522);
+    long londonCell = GeoIndexPStateGroup.cellId(51.5074, -0.1278);
+    long parisCell = GeoIndexPStateGroup.cellId(48.8566, 2.3522);
+    assertEquals(Arrays.asList(Arrays.asList(londonCell >>> 32, londonCell, null), Arrays.asList(parisCell >>> 32, parisCell, paris)),
+                 GeoIndexPStateGroup.cellChanges(london, paris, 10));
+    assertEquals(Arrays.asList(Arrays.asList(parisCell >>> 32, parisCell, paris)), GeoIndexPStateGroup.cellChanges(paris, paris, 10));
+    assertEquals(Arrays.asList(Arrays.asList(parisCell >>> 32, parisCell, null)), GeoIndexPStateGroup.cellChanges(paris, null, 10));
+  }
+
+  @Test
+  public void moduleTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(new Module(), new LaunchConfig(4, 2));
+      String moduleName = Module.class.getName();
+
+      Depot locationDepot = cluster.clusterDepot(moduleName, "*locationDepot");
+      Depot removeDepot = cluster.clusterDepot(moduleName, "*removeDepot");
+      PState drivers = cluster.clusterPState(moduleName, "$$drivers");
+      PState driversReverse = cluster.clusterPState(moduleName, "$$driversReverse");
+      QueryTopologyClient<List<List>> nearby = cluster.clusterQuery(moduleName, "nearby");
+      QueryTopologyClient<List<List>> inBox = cluster.clusterQuery(moduleName, "inBox");
+
+      locationDepot.append(Arrays.asList("a", 37.7749, -122.4194));
+      locationDepot.append(Arrays.asList("b", 37.7839, -122.4194));
+      locationDepot.append(Arrays.asList("c", 37.8200, -122.4194));
+      locationDepot.append(Arrays.asList("d", 40.7128, -74.0060));
+
+      assertEquals(Arrays.asList(Arrays.asList("b", 37.7839, -122.4194), Arrays.asList("a", 37.7749, -122.4194)),
+                   nearby.invoke(37.7845, -122.4194, 2000));
+      assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), ids(nearby.invoke(37.7749, -122.4194, 6000)));
+      assertEquals(new HashSet<>(Arrays.asList("d")), ids(inBox.invoke(40, -75, 41, -73)));
+
+      // Moving keeps only the latest location
+      locationDepot.append(Arrays.asList("b", 40.7130, -74.0060));
+      assertEquals(new HashSet<>(Arrays.asList("a")), ids(nearby.invoke(37.7749, -122.4194, 2000)));
+      assertEquals(new HashSet<>(Arrays.asList("b", "d")), ids(inBox.invoke(40, -75, 41, -73)));
+      assertEquals(Arrays.asList(40.7130, -74.0060), driversReverse.selectOne(Path.key("b")));
+
+      locationDepot.append(Arrays.asList("e", 0.5, 179.9));
+      locationDepot.append(Arrays.asList("f", -0.5, -179.9));
+      assertEquals(new HashSet<>(Arrays.asList("e", "f")), ids(inBox.invoke(-1, 179, 1, 181)));
+      assertEquals(new HashSet<>(Arrays.asList("e", "f")), ids(nearby.invoke(0, 180, 100000)));
+
+      removeDepot.append("d");
+      assertEquals(new HashSet<>(Arrays.asList("b")), ids(inBox.invoke(40, -75, 41, -73)));
+      assertNull(driversReverse.selectOne(Path.key("d")));
+
+      // Moving back and forth without waiting leaves the entity only at its latest location
+      List<CompletableFuture> appends = new ArrayList<>();
+      for(int i=0; i<50; i++) {
+        if(i % 2 == 0) appends.add(locationDepot.appendAsync(Arrays.asList("g", 51.5074, -0.1278)));
+        else appends.add(locationDepot.appendAsync(Arrays.asList("g", 48.8566, 2.3522)));
+      }
+      for(CompletableFuture f: appends) f.get();
+      assertEquals(new HashSet<>(Arrays.asList("g")), ids(nearby.invoke(48.8566, 2.3522, 1000)));
+      assertEquals(Collections.emptySet(), ids(nearby.invoke(51.5074, -0.1278, 1000)));
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.test.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.Ops;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HelperMetricsTest {
+  public static class Module implements RamaModule {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*itemDepot", Depot.random());
+      setup.declareDepot("*setDepot", Depot.random());
+      setup.declareDepot("*clearDepot", Depot.random());
+      setup.declareDepot("*removeKeyDepot", Depot.random());
+      setup.declareDepot("*linkDepot", Depot.random());
+      setup.declareDepot("*unlinkDepot", Depot.random());
+      setup.declareDepot("*flushDepot", Depot.random());
+      setup.declareObject("*metrics", new HelperMetrics());
+
+      StreamTopology s = topologies.stream("s");
+      KeyToFixedItemsPStateGroup items = new KeyToFixedItemsPStateGroup("$$items", 2, Object.class, Object.class)
+                                           .clearBatchSize(2)
+                                           .incrementalKeyRemoval()
+                                           .metrics("*metrics");
+      items.declarePStates(s);
+      KeyToLinkedEntitySetPStateGroup set = new KeyToLinkedEntitySetPStateGroup("$$set", Object.class, Object.class)
+                                              .metrics("*metrics");
+      set.declarePStates(s);
+      TopologyScheduler scheduler = new TopologyScheduler("$$scheduler").metrics("*metrics");
+      scheduler.declarePStates(s);
+      LinkedRelationshipPStateGroup follows = new LinkedRelationshipPStateGroup("$$following", "$$followers", Object.class, Object.class)
+                                                .metrics("*metrics");
+      follows.declarePStates(s);
+      s.pstate("$$metrics", PState.mapSchema(String.class, Long.class));
+
+      s.source("*itemDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*key", "*item")
+       .macro(items.addItem("*key", "*item"))
+       .macro(scheduler.scheduleItem(Long.MAX_VALUE / 2, "*item"));
+      s.source("*setDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*key", "*entity")
+       .macro(set.addToLinkedSet("*key", "*entity"));
+      s.source("*clearDepot").out("*key")
+       .macro(items.clearItems("*key"));
+      s.source("*removeKeyDepot").out("*key")
+       .macro(items.removeKey("*key"));
+      s.source("*linkDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*from", "*to")
+       .macro(follows.link("*from", "*to"));
+      s.source("*unlinkDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*from", "*to")
+       .macro(follows.unlink("*from", "*to"));
+      s.source("*flushDepot")
+       .allPartition()
+       .macro(HelperMetrics.flush("*metrics", "$$metrics"));
+    }
+  }
+
+  @Test
+  public void countersTest() {
+    HelperMetrics metrics = new HelperMetrics();
+    metrics.prepareForTask(0, null);
+    assertEquals(0, metrics.get("a"));
+    metrics.add("a", 2);
+    metrics.add("a", 3);
+    metrics.add("b", 1);
+    assertEquals(5, metrics.get("a"));
+
+    Map<String, Long> expected = new HashMap<>();
+    expected.put("a", 5L);
+    expected.put("b", 1L);
+    assertEquals(expected, metrics.snapshot());
+    assertEquals(expected, metrics.drainDeltas());
+    assertEquals(Collections.emptyMap(), metrics.drainDeltas());
+
+    metrics.add("b", 4);
+    assertEquals(Collections.singletonMap("b", 4L), metrics.drainDeltas());
+  }
+
+  public static class RecordingSink implements HelperMetrics.Sink {
+    public static final List<List> RECORDED = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void record(int taskId, String metric, long amount) {
+      RECORDED.add(Arrays.asList(taskId, metric, amount));
+    }
+  }
+
+  @Test
+  public void sinkTest() {
+    RecordingSink.RECORDED.clear();
+    HelperMetrics metrics = new HelperMetrics(new RecordingSink());
+    metrics.prepareForTask(3, null);
+    metrics.add("a", 2);
+    assertEquals(Arrays.asList(Arrays.asList(3, "a", 2L)), RecordingSink.RECORDED);
+  }
+
+  @Test
+  public void moduleTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(new Module(), new LaunchConfig(1, 1));
+      String moduleName = Module.class.getName();
+
+      Depot itemDepot = cluster.clusterDepot(moduleName, "*itemDepot");
+      Depot setDepot = cluster.clusterDepot(moduleName, "*setDepot");
+      Depot clearDepot = cluster.clusterDepot(moduleName, "*clearDepot");
+      Depot removeKeyDepot = cluster.clusterDepot(moduleName, "*removeKeyDepot");
+      Depot linkDepot = cluster.clusterDepot(moduleName, "*linkDepot");
+      Depot unlinkDepot = cluster.clusterDepot(moduleName, "*unlinkDepot");
+      Depot flushDepot = cluster.clusterDepot(moduleName, "*flushDepot");
+      PState metrics = cluster.clusterPState(moduleName, "$$metrics");
+
+      for(int i=0; i<5; i++) itemDepot.append(Arrays.asList("a", i));
+      setDepot.append(Arrays.asList("a", "x"));
+      setDepot.append(Arrays.asList("a", "x"));
+      setDepot.append(Arrays.asList("a", "y"));
+      clearDepot.append("a");
+      for(int i=0; i<3; i++) itemDepot.append(Arrays.asList("c", i));
+      removeKeyDepot.append("c");
+      linkDepot.append(Arrays.asList("a", "b"));
+      linkDepot.append(Arrays.asList("a", "b"));
+      unlinkDepot.append(Arrays.asList("a", "b"));
+      unlinkDepot.append(Arrays.asList("a", "b"));
+
+      flushDepot.append("flush");
+      assertEquals(8L, (long) metrics.selectOne(Path.key("$$items.addItem.calls")));
+      assertTrue((long) metrics.selectOne(Path.key("$$items.addItem.nanos")) > 0);
+      assertEquals(4L, (long) metrics.selectOne(Path.key("$$items.drops")));
+      // Key removals clear without counting as clears
+      assertEquals(1L, (long) metrics.selectOne(Path.key("$$items.clears")));
+      assertEquals(2L, (long) metrics.selectOne(Path.key("$$items.clearedItems")));
+      assertEquals(2L, (long) metrics.selectOne(Path.key("$$items.clearIterations")));
+      assertEquals(1L, (long) metrics.selectOne(Path.key("$$items.keyRemovals")));
+      assertEquals(2L, (long) metrics.selectOne(Path.key("$$items.removeKeyIterations")));
+      assertEquals(3L, (long) metrics.selectOne(Path.key("$$set.addToLinkedSet.calls")));
+      assertEquals(1L, (long) metrics.selectOne(Path.key("$$set.reAdds")));
+      assertEquals(8L, (long) metrics.selectOne(Path.key("$$schedulerExpirations.scheduled")));
+      assertEquals(4L, (long) metrics.selectOne(Path.key("$$following.partitionHops")));
+      assertEquals(4L, (long) metrics.selectOne(Path.key("$$followers.partitionHops")));
+      assertEquals(1L, (long) metrics.selectOne(Path.key("$$following.linked")));
+      assertEquals(1L, (long) metrics.selectOne(Path.key("$$followers.unlinked")));
+      assertEquals(2L, (long) metrics.selectOne(Path.key("$$following.addToLinkedSet.calls")));
+
+      // Flushes add only what changed since the previous flush
+      itemDepot.append(Arrays.asList("b", 0));
+      flushDepot.append("flush");
+      assertEquals(9L, (long) metrics.selectOne(Path.key("$$items.addItem.calls")));
+      assertEquals(4L, (long) metrics.selectOne(Path.key("$$items.drops")));
+    }
+  }
+}
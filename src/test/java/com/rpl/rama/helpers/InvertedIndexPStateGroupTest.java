@@ -0,0 +1,111 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.test.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.Ops;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InvertedIndexPStateGroupTest {
+  public static class Module implements RamaModule {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*indexDepot", Depot.hashBy(Ops.FIRST));
+      setup.declareDepot("*reindexDepot", Depot.hashBy(Ops.FIRST));
+      setup.declareDepot("*unindexDepot", Depot.hashBy(Ops.IDENTITY));
+
+      StreamTopology s = topologies.stream("s");
+      InvertedIndexPStateGroup p = new InvertedIndexPStateGroup("$$names", 3, Long.class).prefixes(2, 3, 3);
+      p.declarePStates(s);
+      s.source("*indexDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*userId", "*name")
+       .macro(p.index("*userId", "*name"));
+      s.source("*reindexDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*userId", "*name")
+       .macro(p.reindex("*userId", "*name"));
+      s.source("*unindexDepot").out("*userId")
+       .macro(p.unindex("*userId"));
+      p.declareTermQueryTopology(topologies, "term");
+      p.declarePrefixQueryTopology(topologies, "prefix");
+    }
+  }
+
+  @Test
+  public void changesTest() {
+    Set<String> before = new HashSet<>(Arrays.asList("john", "johnson"));
+    Set<String> after = new HashSet<>(Arrays.asList("john", "smith"));
+    Set<List> changes = new HashSet<>(InvertedIndexPStateGroup.changes(1L, before, after, false, 2, 3));
+    Set<List> expected = new HashSet<>();
+    expected.add(Arrays.asList("t", "johnson", "r", 1L));
+    expected.add(Arrays.asList("t", "smith", "a", 1L));
+    // "jo" and "joh" still have "john", so their postings are replaced without "johnson" rather than removed
+    expected.add(Arrays.asList("p", "jo", "a", Arrays.asList(1L, Arrays.asList("john"))));
+    expected.add(Arrays.asList("p", "joh", "a", Arrays.asList(1L, Arrays.asList("john"))));
+    expected.add(Arrays.asList("p", "sm", "a", Arrays.asList(1L, Arrays.asList("smith"))));
+    expected.add(Arrays.asList("p", "smi", "a", Arrays.asList(1L, Arrays.asList("smith"))));
+    assertEquals(expected, changes);
+
+    assertEquals(Collections.emptyList(), InvertedIndexPStateGroup.changes(1L, after, after, false, 2, 3));
+    assertEquals(6, InvertedIndexPStateGroup.changes(1L, after, after, true, 2, 3).size());
+    assertEquals(new LinkedHashSet<>(Arrays.asList("ada", "lovelace", "1815")), new InvertedIndexPStateGroup.DefaultTokenizer().invoke("Ada LOVELACE (1815)"));
+  }
+
+  @Test
+  public void moduleTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(new Module(), new LaunchConfig(4, 2));
+      String moduleName = Module.class.getName();
+
+      Depot indexDepot = cluster.clusterDepot(moduleName, "*indexDepot");
+      Depot reindexDepot = cluster.clusterDepot(moduleName, "*reindexDepot");
+      Depot unindexDepot = cluster.clusterDepot(moduleName, "*unindexDepot");
+      QueryTopologyClient<List> term = cluster.clusterQuery(moduleName, "term");
+      QueryTopologyClient<List> prefix = cluster.clusterQuery(moduleName, "prefix");
+
+      indexDepot.append(Arrays.asList(1L, "John Smith"));
+      indexDepot.append(Arrays.asList(2L, "Johnny Appleseed"));
+      indexDepot.append(Arrays.asList(3L, "Jane Johnson"));
+      indexDepot.append(Arrays.asList(4L, "Alice Smith"));
+
+      assertEquals(Arrays.asList(Arrays.asList(4L, 1L), null), term.invoke("smith", null, 10));
+      assertEquals(Arrays.asList(Arrays.asList(3L, 2L, 1L), null), prefix.invoke("Jo", null, 10));
+      assertEquals(Arrays.asList(Arrays.asList(3L, 2L, 1L), null), prefix.invoke("john", null, 10));
+      assertEquals(Arrays.asList(Arrays.asList(3L), null), prefix.invoke("johns", null, 10));
+      assertEquals(Arrays.asList(Collections.emptyList(), null), prefix.invoke("j", null, 10));
+
+      // Pages continue from the cursor
+      List page = prefix.invoke("jo", null, 2);
+      assertEquals(Arrays.asList(3L, 2L), page.get(0));
+      assertEquals(Arrays.asList(Arrays.asList(1L), null), prefix.invoke("jo", page.get(1), 2));
+
+      // Postings per prefix are bounded, dropping the least recently indexed
+      indexDepot.append(Arrays.asList(5L, "Joan Jett"));
+      assertEquals(Arrays.asList(Arrays.asList(5L, 3L, 2L), null), prefix.invoke("jo", null, 10));
+
+      // Changing a document's text moves it between postings
+      indexDepot.append(Arrays.asList(1L, "John Doe"));
+      assertEquals(Arrays.asList(Arrays.asList(4L), null), term.invoke("smith", null, 10));
+      assertEquals(Arrays.asList(Arrays.asList(1L), null), term.invoke("doe", null, 10));
+
+      // Reindexing makes a document the most recent in all its postings
+      reindexDepot.append(Arrays.asList(4L, "Alice Smith"));
+      indexDepot.append(Arrays.asList(6L, "Bob Smith"));
+      assertEquals(Arrays.asList(Arrays.asList(6L, 4L), null), term.invoke("smith", null, 10));
+      assertEquals(Arrays.asList(Arrays.asList(4L), null), prefix.invoke("ali", null, 10));
+
+      unindexDepot.append(4L);
+      assertEquals(Arrays.asList(Arrays.asList(6L), null), term.invoke("smith", null, 10));
+      assertEquals(Arrays.asList(Collections.emptyList(), null), prefix.invoke("al", null, 10));
+
+      // Longer prefixes match any of a document's terms sharing the indexed prefix, not just the first
+      indexDepot.append(Arrays.asList(7L, "John Johnson"));
+      assertEquals(Arrays.asList(Arrays.asList(7L, 3L), null), prefix.invoke("johns", null, 10));
+      assertEquals(Arrays.asList(Arrays.asList(7L, 3L, 2L), null), prefix.invoke("john", null, 10));
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.test.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.Ops;
+import com.rpl.rama.helpers.KeyToBitmapSetPStateGroup.Bitmap;
+import com.rpl.rama.helpers.KeyToBitmapSetPStateGroup.SetOp;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyToBitmapSetPStateGroupTest {
+  private static final int MAX = 8192;
+
+  public static class Module implements RamaModule {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*addDepot", Depot.hashBy(Ops.FIRST));
+      setup.declareDepot("*addAllDepot", Depot.hashBy(Ops.FIRST));
+      setup.declareDepot("*removeDepot", Depot.hashBy(Ops.FIRST));
+
+      StreamTopology s = topologies.stream("s");
+      KeyToBitmapSetPStateGroup p = new KeyToBitmapSetPStateGroup("$$seen", String.class);
+      p.declarePStates(s);
+      s.source("*addDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*key", "*member")
+       .macro(p.add("*key", "*member"));
+      s.source("*addAllDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*key", "*members")
+       .macro(p.addAll("*key", "*members"));
+      s.source("*removeDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*key", "*member")
+       .macro(p.remove("*key", "*member"));
+      p.declareSetOperationQueryTopology(topologies, "combine");
+
+      topologies.query("contains", "*key", "*member").out("*contains")
+                .hashPartition("*key")
+                .macro(p.contains("*key", "*member", "*contains"))
+                .originPartition();
+      topologies.query("cardinality", "*key").out("*cardinality")
+                .hashPartition("*key")
+                .macro(p.cardinality("*key", "*cardinality"))
+                .originPartition();
+    }
+  }
+
+  private static int[] sorted(Set<Integer> members) {
+    int[] ret = new int[members.size()];
+    int i = 0;
+    for(Integer m: new TreeSet<>(members)) ret[i++] = m;
+    return ret;
+  }
+
+  private static Bitmap bitmapOf(Set<Integer> members) {
+    TreeMap<Integer, Object> containers = new TreeMap<>();
+    Map<Integer, List<Character>> chunks = new HashMap<>();
+    for(int m: members) chunks.computeIfAbsent(m >>> 16, c -> new ArrayList<>()).add((char) (m & 0xFFFF));
+    for(Map.Entry<Integer, List<Character>> e: chunks.entrySet()) {
+      containers.put(e.getKey(), KeyToBitmapSetPStateGroup.withAdded(null, e.getValue()));
+    }
+    return new Bitmap(containers);
+  }
+
+  @Test
+  public void containersTest() {
+    List<Character> lows = new ArrayList<>();
+    for(int i=0; i<MAX; i+=2) lows.add((char) i);
+    Object array = KeyToBitmapSetPStateGroup.withAdded(null, lows);
+    assertTrue(array instanceof char[]);
+    assertEquals(4096, KeyToBitmapSetPStateGroup.containerCardinality(array));
+
+    // Growing past 4096 members converts to a bitmap, and shrinking converts back
+    Object bitmap = KeyToBitmapSetPStateGroup.withAdded(array, Arrays.asList((char) 1));
+    assertTrue(bitmap instanceof long[]);
+    assertEquals(4097, KeyToBitmapSetPStateGroup.containerCardinality(bitmap));
+    assertTrue(KeyToBitmapSetPStateGroup.containerContains(bitmap, (char) 1));
+    assertFalse(KeyToBitmapSetPStateGroup.containerContains(bitmap, (char) 3));
+    assertSame(bitmap, KeyToBitmapSetPStateGroup.withAdded(bitmap, Arrays.asList((char) 1)));
+    Object shrunk = KeyToBitmapSetPStateGroup.withRemoved(bitmap, Arrays.asList((char) 0, (char) 1));
+    assertTrue(shrunk instanceof char[]);
+    assertEquals(4095, KeyToBitmapSetPStateGroup.containerCardinality(shrunk));
+
+    // Updates copy rather than modify the stored container
+    assertEquals(4096, KeyToBitmapSetPStateGroup.containerCardinality(array));
+    assertEquals(4097, KeyToBitmapSetPStateGroup.containerCardinality(bitmap));
+
+    assertNull(KeyToBitmapSetPStateGroup.withRemoved(KeyToBitmapSetPStateGroup.withAdded(null, Arrays.asList((char) 7)),
+                                                     Arrays.asList((char) 7)));
+  }
+
+  @Test
+  public void setOperationsTest() {
+    Random random = new Random(42);
+    for(int density: new int[] {50, 5000, 60000}) {
+      Set<Integer> a = new HashSet<>();
+      Set<Integer> b = new HashSet<>();
+      for(int i=0; i<density; i++) {
+        a.add(random.nextInt(1 << 18));
+        b.add(random.nextInt(1 << 18));
+      }
+      Bitmap ba = bitmapOf(a);
+      Bitmap bb = bitmapOf(b);
+      assertArrayEquals(sorted(a), ba.toArray());
+      assertEquals(a.size(), ba.cardinality());
+
+      Set<Integer> and = new HashSet<>(a);
+      and.retainAll(b);
+      Set<Integer> or = new HashSet<>(a);
+      or.addAll(b);
+      Set<Integer> andNot = new HashSet<>(a);
+      andNot.removeAll(b);
+      assertArrayEquals(sorted(and), ba.and(bb).toArray());
+      assertArrayEquals(sorted(or), ba.or(bb).toArray());
+      assertArrayEquals(sorted(andNot), ba.andNot(bb).toArray());
+      assertEquals(or.size(), ba.or(bb).cardinality());
+      for(int m: a) assertTrue(ba.contains(m));
+      assertFalse(ba.contains(-1));
+    }
+  }
+
+  @Test
+  public void validMembersTest() {
+    assertTrue(KeyToBitmapSetPStateGroup.isValidMember(0));
+    assertTrue(KeyToBitmapSetPStateGroup.isValidMember((long) Integer.MAX_VALUE));
+    assertFalse(KeyToBitmapSetPStateGroup.isValidMember(-1));
+    assertFalse(KeyToBitmapSetPStateGroup.isValidMember(1L << 31));
+    assertFalse(KeyToBitmapSetPStateGroup.isValidMember(1.0));
+    assertFalse(KeyToBitmapSetPStateGroup.isValidMember("1"));
+    assertFalse(KeyToBitmapSetPStateGroup.isValidMember(null));
+  }
+
+  @Test
+  public void moduleTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(new Module(), new LaunchConfig(4, 2));
+      String moduleName = Module.class.getName();
+
+      Depot addDepot = cluster.clusterDepot(moduleName, "*addDepot");
+      Depot addAllDepot = cluster.clusterDepot(moduleName, "*addAllDepot");
+      Depot removeDepot = cluster.clusterDepot(moduleName, "*removeDepot");
+      QueryTopologyClient<Boolean> contains = cluster.clusterQuery(moduleName, "contains");
+      QueryTopologyClient<Long> cardinality = cluster.clusterQuery(moduleName, "cardinality");
+      QueryTopologyClient<Bitmap> combine = cluster.clusterQuery(moduleName, "combine");
+
+      addDepot.append(Arrays.asList("a", 1));
+      addDepot.append(Arrays.asList("a", 70000));
+      addDepot.append(Arrays.asList("a", 1));
+      assertTrue(contains.invoke("a", 1));
+      assertTrue(contains.invoke("a", 70000));
+      assertFalse(contains.invoke("a", 2));
+      assertFalse(contains.invoke("b", 1));
+      assertEquals(2L, (long) cardinality.invoke("a"));
+      assertEquals(0L, (long) cardinality.invoke("b"));
+
+      // Invalid members are ignored rather than truncated, and the topology keeps processing
+      addDepot.append(Arrays.asList("a", -1));
+      addDepot.append(Arrays.asList("a", (1L << 32) + 2));
+      addAllDepot.append(Arrays.asList("a", Arrays.asList(-5, 3, 1L << 31)));
+      assertFalse(contains.invoke("a", 2));
+      assertFalse(contains.invoke("a", (1L << 32) + 2));
+      assertFalse(contains.invoke("a", -1));
+      assertTrue(contains.invoke("a", 3));
+      assertEquals(3L, (long) cardinality.invoke("a"));
+      removeDepot.append(Arrays.asList("a", 3));
+
+      // Dense sets are stored as bitmaps
+      List<Integer> evens = new ArrayList<>();
+      List<Integer> threes = new ArrayList<>();
+      for(int i=0; i<20000; i+=2) evens.add(i);
+      for(int i=0; i<20000; i+=3) threes.add(i);
+      addAllDepot.append(Arrays.asList("evens", evens));
+      addAllDepot.append(Arrays.asList("threes", threes));
+      addAllDepot.append(Arrays.asList("evens", Arrays.asList(0, 2, 4)));
+      assertEquals(10000L, (long) cardinality.invoke("evens"));
+      assertEquals(6667L, (long) cardinality.invoke("threes"));
+
+      assertEquals(3334L, combine.invoke(SetOp.AND, Arrays.asList("evens", "threes")).cardinality());
+      assertEquals(13333L, combine.invoke(SetOp.OR, Arrays.asList("evens", "threes")).cardinality());
+      Bitmap evensNotThrees = combine.invoke(SetOp.AND_NOT, Arrays.asList("evens", "threes"));
+      assertEquals(6666L, evensNotThrees.cardinality());
+      assertTrue(evensNotThrees.contains(2));
+      assertFalse(evensNotThrees.contains(6));
+      assertArrayEquals(new int[] {1, 70000}, combine.invoke(SetOp.AND_NOT, Arrays.asList("a", "evens", "threes")).toArray());
+      assertEquals(0L, combine.invoke(SetOp.AND, Arrays.asList("a", "missing")).cardinality());
+
+      removeDepot.append(Arrays.asList("a", 1));
+      removeDepot.append(Arrays.asList("a", 2));
+      removeDepot.append(Arrays.asList("evens", 0));
+      assertFalse(contains.invoke("a", 1));
+      assertEquals(1L, (long) cardinality.invoke("a"));
+      assertEquals(9999L, (long) cardinality.invoke("evens"));
+      assertFalse(contains.invoke("evens", 0));
+    }
+  }
+}
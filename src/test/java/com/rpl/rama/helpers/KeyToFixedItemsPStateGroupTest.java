@@ -5,12 +5,18 @@ import com.rpl.rama.test.*;
 import com.rpl.rama.module.*;
 import com.rpl.rama.ops.Ops;
 
+import java.util.*;
+
 import org.junit.Test;
 
 import static org.junit.Assert.*;
 
 public class KeyToFixedItemsPStateGroupTest {
   public static class Module implements RamaModule {
+    public boolean incrementalKeyRemoval = false;
+    public boolean adaptiveClear = false;
+    public boolean clearStats = false;
+
     @Override
     public void define(Setup setup, Topologies topologies) {
       setup.declareDepot("*commandDepot", Depot.random());
@@ -18,7 +24,18 @@ public class KeyToFixedItemsPStateGroupTest {
       StreamTopology s = topologies.stream("s");
       KeyToFixedItemsPStateGroup p = new KeyToFixedItemsPStateGroup("$$p", 10, Object.class, Object.class)
                            .clearBatchSize(5);
+      if(incrementalKeyRemoval) p.incrementalKeyRemoval();
+      if(adaptiveClear) p.adaptiveClearBatchSize(1, 16, 1000);
       p.declarePStates(s);
+      s.pstate("$$clearStats", PState.mapSchema(Object.class, List.class));
+      Block clear;
+      if(clearStats) {
+        clear = Block.macro(p.clearItems("*key", "*cleared", "*iterations"))
+                     .each(Ops.TUPLE, "*cleared", "*iterations").out("*stats")
+                     .localTransform("$$clearStats", Path.key("*key").termVal("*stats"));
+      } else {
+        clear = p.clearItems("*key");
+      }
       s.source("*commandDepot").out("*c").subSource("*c",
               SubSource.create(Actions.AddItem.class)
                       .macro(TopologyUtils.extractJavaFields("*c", "*key", "*item"))
@@ -31,8 +48,14 @@ public class KeyToFixedItemsPStateGroupTest {
                       .macro(p.removeKey("*key")),
               SubSource.create(Actions.ClearItems.class)
                       .macro(TopologyUtils.extractJavaFields("*c", "*key"))
-                      .macro(p.clearItems("*key"))
+                      .macro(clear)
       );
+
+      topologies.query("exists", "*key").out("*count")
+                .hashPartition("*key")
+                .macro(p.filterKeyExists("*key"))
+                .originPartition()
+                .agg(Agg.count()).out("*count");
     }
   }
   
@@ -75,10 +98,99 @@ public class KeyToFixedItemsPStateGroupTest {
       }
       depot.append(new Actions.RemoveKey("b"));
       assertNull(p.selectOne(Path.key("b")));
+    }
+  }
 
+  @Test
+  public void clearStatsTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      Module m = new Module();
+      m.clearStats = true;
+      cluster.launchModule(m, new LaunchConfig(1, 1));
+
+      Depot depot = cluster.clusterDepot(Module.class.getName(), "*commandDepot");
+      PState p = cluster.clusterPState(Module.class.getName(), "$$p");
+      PState clearStats = cluster.clusterPState(Module.class.getName(), "$$clearStats");
+
+      depot.append(new Actions.AddItem("a", 1));
+      depot.append(new Actions.AddItem("a", 1));
+      depot.append(new Actions.ClearItems("a"));
+      assertEquals(0, (int) p.selectOne(Path.key("a").view(Ops.SIZE)));
+      assertEquals(Arrays.asList(2L, 1L), clearStats.selectOne(Path.key("a")));
+
+      // Full capacity with batches of 5 takes a third batch to see the end
+      for (int i = 0; i < 20; i++) {
+        depot.append(new Actions.AddItem("a", i));
+      }
       depot.append(new Actions.ClearItems("a"));
       assertEquals(0, (int) p.selectOne(Path.key("a").view(Ops.SIZE)));
+      assertEquals(Arrays.asList(10L, 3L), clearStats.selectOne(Path.key("a")));
     }
   }
 
+  @Test
+  public void adaptiveClearTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      Module m = new Module();
+      m.adaptiveClear = true;
+      m.clearStats = true;
+      cluster.launchModule(m, new LaunchConfig(1, 1));
+
+      Depot depot = cluster.clusterDepot(Module.class.getName(), "*commandDepot");
+      PState p = cluster.clusterPState(Module.class.getName(), "$$p");
+      PState clearStats = cluster.clusterPState(Module.class.getName(), "$$clearStats");
+
+      for (int i = 0; i < 10; i++) {
+        depot.append(new Actions.AddItem("a", i));
+      }
+      depot.append(new Actions.ClearItems("a"));
+      assertEquals(0, (int) p.selectOne(Path.key("a").view(Ops.SIZE)));
+      List stats = clearStats.selectOne(Path.key("a"));
+      assertEquals(10L, stats.get(0));
+      // Batches grow from 1 well within the target time, so it takes far fewer than the 11 batches of a fixed size of 1
+      assertTrue((long) stats.get(1) <= 5);
+
+      // Clearing nothing still reports the batch that found nothing
+      depot.append(new Actions.ClearItems("b"));
+      assertEquals(Arrays.asList(0L, 1L), clearStats.selectOne(Path.key("b")));
+    }
+  }
+
+  @Test
+  public void incrementalKeyRemovalTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      Module m = new Module();
+      m.incrementalKeyRemoval = true;
+      cluster.launchModule(m, new LaunchConfig(1, 1));
+
+      Depot depot = cluster.clusterDepot(Module.class.getName(), "*commandDepot");
+      PState p = cluster.clusterPState(Module.class.getName(), "$$p");
+      PState meta = cluster.clusterPState(Module.class.getName(), "$$pMeta");
+      PState tombstones = cluster.clusterPState(Module.class.getName(), "$$pTombstones");
+
+      // Spans multiple batches of 5
+      for (int i = 0; i < 12; i++) {
+        depot.append(new Actions.AddItem("b", i));
+      }
+      depot.append(new Actions.AddItem("c", 1));
+      QueryTopologyClient<Long> exists = cluster.clusterQuery(Module.class.getName(), "exists");
+      assertEquals(1L, (long) exists.invoke("b"));
+      depot.append(new Actions.RemoveKey("b"));
+      assertEquals(0L, (long) exists.invoke("b"));
+      assertEquals(1L, (long) exists.invoke("c"));
+      assertNull(p.selectOne(Path.key("b")));
+      assertNull(meta.selectOne(Path.key("b")));
+      assertNull(tombstones.selectOne(Path.key("b")));
+      assertEquals(1, (int) p.selectOne(Path.key("c").view(Ops.SIZE)));
+
+      // Key starts over after removal
+      depot.append(new Actions.AddItem("b", 1));
+      assertEquals(1, (int) p.selectOne(Path.key("b", Long.MAX_VALUE)));
+
+      // Removing a key that doesn't exist is a no-op
+      depot.append(new Actions.RemoveKey("d"));
+      assertNull(p.selectOne(Path.key("d")));
+      assertNull(tombstones.selectOne(Path.key("d")));
+    }
+  }
 }
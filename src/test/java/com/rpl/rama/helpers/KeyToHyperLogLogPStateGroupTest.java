@@ -0,0 +1,112 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.test.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.Ops;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyToHyperLogLogPStateGroupTest {
+  public static class Module implements RamaModule {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*elementDepot", Depot.hashBy(Ops.FIRST));
+      setup.declareDepot("*batchDepot", Depot.hashBy(Ops.FIRST));
+      setup.declareDepot("*estimateDepot", Depot.hashBy(Ops.IDENTITY));
+
+      StreamTopology s = topologies.stream("s");
+      KeyToHyperLogLogPStateGroup p = new KeyToHyperLogLogPStateGroup("$$visitors", String.class);
+      p.declarePStates(s);
+      s.pstate("$$estimates", PState.mapSchema(String.class, Long.class));
+      s.source("*elementDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*key", "*element")
+       .macro(p.addElement("*key", "*element"));
+      s.source("*batchDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*key", "*elements")
+       .macro(p.addElements("*key", "*elements"));
+      s.source("*estimateDepot").out("*key")
+       .macro(p.estimate("*key", "*estimate"))
+       .localTransform("$$estimates", Path.key("*key").termVal("*estimate"));
+      p.declareMergeQueryTopology(topologies, "merged");
+    }
+  }
+
+  private static void assertWithin(long expected, long actual, double error) {
+    assertTrue("Expected about " + expected + " but was " + actual, Math.abs(actual - expected) <= expected * error);
+  }
+
+  @Test
+  public void estimateTest() {
+    assertEquals(0, KeyToHyperLogLogPStateGroup.estimate(null));
+
+    byte[] a = null;
+    byte[] b = null;
+    List<Object> elements = new ArrayList<>();
+    for(int i=0; i<1000000; i++) {
+      elements.add("user" + i);
+      if(elements.size()==10000) {
+        if(i < 600000) a = KeyToHyperLogLogPStateGroup.withElements(a, 13, elements);
+        if(i >= 400000) b = KeyToHyperLogLogPStateGroup.withElements(b, 13, elements);
+        elements.clear();
+      }
+    }
+    assertEquals(8192, a.length);
+    assertWithin(600000, KeyToHyperLogLogPStateGroup.estimate(a), 0.04);
+    assertWithin(600000, KeyToHyperLogLogPStateGroup.estimate(b), 0.04);
+    assertWithin(1000000, KeyToHyperLogLogPStateGroup.estimate(KeyToHyperLogLogPStateGroup.merge(a, b)), 0.04);
+
+    // Adding elements already counted leaves the sketch untouched
+    List<Object> again = Arrays.asList("user1", "user2");
+    assertSame(a, KeyToHyperLogLogPStateGroup.withElements(a, 13, again));
+  }
+
+  @Test
+  public void moduleTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(new Module(), new LaunchConfig(4, 2));
+      String moduleName = Module.class.getName();
+
+      Depot elementDepot = cluster.clusterDepot(moduleName, "*elementDepot");
+      Depot batchDepot = cluster.clusterDepot(moduleName, "*batchDepot");
+      Depot estimateDepot = cluster.clusterDepot(moduleName, "*estimateDepot");
+      PState visitors = cluster.clusterPState(moduleName, "$$visitors");
+      PState estimates = cluster.clusterPState(moduleName, "$$estimates");
+      QueryTopologyClient<Long> merged = cluster.clusterQuery(moduleName, "merged");
+
+      // Duplicates don't count
+      for(int i=0; i<3; i++) {
+        for(int j=0; j<100; j++) elementDepot.append(Arrays.asList("day1", "user" + j));
+      }
+      estimateDepot.append("day1");
+      assertWithin(100, estimates.selectOne(Path.key("day1")), 0.05);
+      assertEquals(8192, ((byte[]) visitors.selectOne(Path.key("day1"))).length);
+
+      List<String> batch = new ArrayList<>();
+      for(int i=0; i<5000; i++) {
+        batch.add("user" + i);
+        if(batch.size()==500) {
+          batchDepot.append(Arrays.asList("day1", new ArrayList<>(batch)));
+          batch.clear();
+        }
+      }
+      for(int i=2500; i<7500; i++) {
+        batch.add("user" + i);
+        if(batch.size()==500) {
+          batchDepot.append(Arrays.asList("day2", new ArrayList<>(batch)));
+          batch.clear();
+        }
+      }
+      estimateDepot.append("day1");
+      assertWithin(5000, estimates.selectOne(Path.key("day1")), 0.05);
+
+      assertWithin(7500, merged.invoke(Arrays.asList("day1", "day2")), 0.05);
+      assertWithin(5000, merged.invoke(Arrays.asList("day2", "day3")), 0.05);
+      assertEquals(0L, (long) merged.invoke(Arrays.asList("day3")));
+    }
+  }
+}
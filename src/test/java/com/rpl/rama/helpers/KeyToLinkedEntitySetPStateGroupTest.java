@@ -4,9 +4,13 @@ import com.rpl.rama.*;
 import com.rpl.rama.test.*;
 import com.rpl.rama.module.*;
 import com.rpl.rama.RamaSerializable;
+import com.rpl.rama.ops.Ops;
+import com.rpl.rama.ops.RamaFunction1;
 
 import clojure.lang.*;
 
+import java.util.*;
+
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -93,4 +97,393 @@ public class KeyToLinkedEntitySetPStateGroupTest {
                                                  .all())));
     }
   }
+
+  public static class SetOperation implements RamaSerializable {
+    public String op;
+    public List<String> keys;
+    public Long startAfterId;
+    public Number limit;
+    public SetOperation(String op, List<String> keys, Number limit) { this(op, keys, null, limit); }
+    public SetOperation(String op, List<String> keys, Long startAfterId, Number limit) {
+      this.op = op; this.keys = keys; this.startAfterId = startAfterId; this.limit = limit;
+    }
+  }
+
+  public static class SetOperationsModule implements RamaModule {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*setDepot", Depot.random());
+      setup.declareDepot("*opDepot", Depot.random());
+
+      StreamTopology s = topologies.stream("s");
+      KeyToLinkedEntitySetPStateGroup p = new KeyToLinkedEntitySetPStateGroup("$$p", Object.class, Object.class)
+                                            .setOperationPageSize(3);
+      p.declarePStates(s);
+      s.pstate("$$results", PState.mapSchema(String.class, Object.class));
+      s.source("*setDepot").out("*c")
+       .macro(TopologyUtils.extractJavaFields("*c", "*key", "*entity"))
+       .hashPartition("*key")
+       .macro(p.addToLinkedSet("*key", "*entity"));
+      s.source("*opDepot").out("*c")
+       .macro(TopologyUtils.extractJavaFields("*c", "*op", "*keys", "*startAfterId", "*limit"))
+       .each(Ops.FIRST, "*keys").out("*firstKey")
+       .hashPartition("*firstKey")
+       .ifTrue(new Expr(Ops.EQUAL, "*op", "intersection"),
+         Block.macro(p.intersection("*keys", "*startAfterId", "*limit", "*res")),
+         Block.ifTrue(new Expr(Ops.EQUAL, "*op", "difference"),
+           Block.macro(p.difference("*keys", "*startAfterId", "*limit", "*res")),
+           Block.ifTrue(new Expr(Ops.EQUAL, "*op", "union"),
+             Block.macro(p.union("*keys", "*startAfterId", "*limit", "*res")),
+             Block.macro(p.intersectionCount("*keys", "*res")))))
+       .hashPartition("*op")
+       .localTransform("$$results", Path.key("*op").termVal("*res"));
+
+      topologies.query("taskOf", "*key").out("*taskId")
+                .hashPartition("*key")
+                .each(Ops.CURRENT_TASK_ID).out("*taskId")
+                .originPartition();
+
+      p.declareIntersectionQueryTopology(topologies, "intersection");
+      p.declareDifferenceQueryTopology(topologies, "difference");
+    }
+  }
+
+  private static List<Object> entities(Map<Long, Object> m) {
+    return new ArrayList<>(m.values());
+  }
+
+  private static void addMembers(Depot set, String key, int step) {
+    for(int i = 0; i < 10; i += step) set.append(new AddElement(key, "" + i));
+  }
+
+  @Test
+  public void setOperationsTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(new SetOperationsModule(), new LaunchConfig(4, 2));
+
+      String moduleName = SetOperationsModule.class.getName();
+      Depot set = cluster.clusterDepot(moduleName, "*setDepot");
+      Depot ops = cluster.clusterDepot(moduleName, "*opDepot");
+      PState results = cluster.clusterPState(moduleName, "$$results");
+      QueryTopologyClient<KeyToLinkedEntitySetPStateGroup.SetOperationPage> intersectionQuery =
+        cluster.clusterQuery(moduleName, "intersection");
+      QueryTopologyClient<KeyToLinkedEntitySetPStateGroup.SetOperationPage> differenceQuery =
+        cluster.clusterQuery(moduleName, "difference");
+      QueryTopologyClient<Integer> taskOf = cluster.clusterQuery(moduleName, "taskOf");
+
+      // The macros need all keys on one task, while the query topologies are given keys on three different tasks
+      Map<Integer, List<String>> keysByTask = new HashMap<>();
+      Map<Integer, String> spreadByTask = new HashMap<>();
+      for(int i = 0; i < 100; i++) {
+        keysByTask.computeIfAbsent(taskOf.invoke("k" + i), t -> new ArrayList<>()).add("k" + i);
+        spreadByTask.putIfAbsent(taskOf.invoke("d" + i), "d" + i);
+      }
+      List<String> local = null;
+      for(List<String> keys: keysByTask.values()) {
+        if(local == null && keys.size() >= 3) local = keys;
+      }
+      List<String> spread = new ArrayList<>(spreadByTask.values());
+      assertTrue(spread.size() >= 3);
+      String a = local.get(0), b = local.get(1), c = local.get(2);
+      String da = spread.get(0), db = spread.get(1), dc = spread.get(2);
+
+      addMembers(set, a, 1);
+      addMembers(set, b, 2);
+      addMembers(set, c, 3);
+      addMembers(set, da, 1);
+      addMembers(set, db, 2);
+      addMembers(set, dc, 3);
+
+      ops.append(new SetOperation("intersection", Arrays.asList(a, b), 100));
+      assertEquals(Arrays.asList("0", "2", "4", "6", "8"), entities(results.selectOne(Path.key("intersection"))));
+
+      ops.append(new SetOperation("intersection", Arrays.asList(a, b, c), 100));
+      assertEquals(Arrays.asList("0", "6"), entities(results.selectOne(Path.key("intersection"))));
+
+      // Stops as soon as the limit is reached
+      ops.append(new SetOperation("intersection", Arrays.asList(a, b), 2L));
+      assertEquals(Arrays.asList("0", "2"), entities(results.selectOne(Path.key("intersection"))));
+
+      ops.append(new SetOperation("difference", Arrays.asList(a, b, c), 100));
+      assertEquals(Arrays.asList("1", "5", "7"), entities(results.selectOne(Path.key("difference"))));
+
+      ops.append(new SetOperation("union", Arrays.asList(b, c), 5L));
+      assertEquals(Arrays.asList("0", "2", "4", "6", "8"), entities(results.selectOne(Path.key("union"))));
+
+      // Members of both keys aren't repeated on later pages under their larger ID
+      List<Object> unioned = new ArrayList<>();
+      Long unionStartAfterId = null;
+      while(true) {
+        ops.append(new SetOperation("union", Arrays.asList(b, c), unionStartAfterId, 3));
+        SortedMap<Long, Object> unionPage = results.selectOne(Path.key("union"));
+        if(unionPage.isEmpty()) break;
+        unioned.addAll(unionPage.values());
+        unionStartAfterId = unionPage.lastKey();
+      }
+      assertEquals(Arrays.asList("0", "2", "4", "6", "8", "3", "9"), unioned);
+
+      ops.append(new SetOperation("count", Arrays.asList(a, b, c), null));
+      assertEquals(2L, (long) results.selectOne(Path.key("count")));
+
+      // Query topologies return one page of candidates at a time
+      List<Object> found = new ArrayList<>();
+      Long startAfterId = null;
+      int pages = 0;
+      do {
+        KeyToLinkedEntitySetPStateGroup.SetOperationPage page = intersectionQuery.invoke(Arrays.asList(da, db), startAfterId, 100);
+        found.addAll(page.results.values());
+        startAfterId = page.nextStartAfterId;
+        pages++;
+      } while(startAfterId != null);
+      assertEquals(Arrays.asList("0", "2", "4", "6", "8"), found);
+      assertEquals(4, pages);
+
+      KeyToLinkedEntitySetPStateGroup.SetOperationPage page = intersectionQuery.invoke(Arrays.asList(da, db), null, 1L);
+      assertEquals(Arrays.asList("0"), entities(page.results));
+      page = intersectionQuery.invoke(Arrays.asList(da, db), page.nextStartAfterId, 1);
+      assertEquals(Arrays.asList("2"), entities(page.results));
+
+      page = intersectionQuery.invoke(Arrays.asList(da, db, dc), null, 100);
+      assertEquals(Arrays.asList("0"), entities(page.results));
+
+      page = differenceQuery.invoke(Arrays.asList(da, db, dc), null, 100);
+      assertEquals(Arrays.asList("1"), entities(page.results));
+    }
+  }
+
+  public static class Entity implements RamaSerializable {
+    public String id;
+    public int version;
+    public Entity(String id, int version) { this.id = id; this.version = version; }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Entity && ((Entity) o).id.equals(id) && ((Entity) o).version == version;
+    }
+
+    @Override
+    public int hashCode() {
+      return id.hashCode() + version;
+    }
+  }
+
+  public static class EntityId implements RamaFunction1<Entity, String> {
+    @Override
+    public String invoke(Entity e) {
+      return e.id;
+    }
+  }
+
+  public static class PreserveOrderModule implements RamaModule {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*setDepot", Depot.random());
+
+      StreamTopology s = topologies.stream("s");
+      KeyToLinkedEntitySetPStateGroup p = new KeyToLinkedEntitySetPStateGroup("$$p", String.class, Entity.class)
+                                            .entityIdFunction(String.class, new EntityId())
+                                            .preserveOrderOnReAdd();
+      p.declarePStates(s);
+      s.source("*setDepot").out("*c")
+       .macro(TopologyUtils.extractJavaFields("*c", "*key", "*entity"))
+       .macro(p.addToLinkedSet("*key", "*entity"));
+    }
+  }
+
+  public static class AddEntity implements RamaSerializable {
+    public String key;
+    public Entity entity;
+    public AddEntity(String key, Entity entity) { this.key = key; this.entity = entity; }
+  }
+
+  @Test
+  public void preserveOrderOnReAddTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(new PreserveOrderModule(), new LaunchConfig(1, 1));
+
+      String moduleName = PreserveOrderModule.class.getName();
+      Depot set = cluster.clusterDepot(moduleName, "*setDepot");
+      PState p = cluster.clusterPState(moduleName, "$$p");
+      PState pById = cluster.clusterPState(moduleName, "$$pById");
+
+      set.append(new AddEntity("k", new Entity("a", 1)));
+      set.append(new AddEntity("k", new Entity("b", 1)));
+
+      // Unchanged entity is a no-op
+      set.append(new AddEntity("k", new Entity("a", 1)));
+      assertEquals(0L, (long) p.selectOne(Path.key("k", "a")));
+
+      // Changed entity is replaced in place
+      set.append(new AddEntity("k", new Entity("a", 2)));
+      assertEquals(0L, (long) p.selectOne(Path.key("k", "a")));
+      assertEquals(new Entity("a", 2), pById.selectOne(Path.key("k", 0L)));
+      assertEquals(2, (int) pById.selectOne(Path.key("k").view(Ops.SIZE)));
+
+      // No IDs were consumed by the re-adds
+      set.append(new AddEntity("k", new Entity("c", 1)));
+      assertEquals(2L, (long) p.selectOne(Path.key("k", "c")));
+    }
+  }
+
+  public static class RemoveKeyModule implements RamaModule {
+    public boolean descending = false;
+
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*setDepot", Depot.random());
+
+      StreamTopology s = topologies.stream("s");
+      KeyToLinkedEntitySetPStateGroup p = new KeyToLinkedEntitySetPStateGroup("$$p", Object.class, Object.class)
+                                            .incrementalKeyRemoval()
+                                            .removeKeyBatchSize(5);
+      if(descending) p.descending();
+      p.declarePStates(s);
+      s.source("*setDepot").out("*c").subSource("*c",
+        SubSource.create(AddElement.class)
+                 .macro(TopologyUtils.extractJavaFields("*c", "*key", "*entity"))
+                 .macro(p.addToLinkedSet("*key", "*entity")),
+        SubSource.create(Actions.RemoveKey.class)
+                 .macro(TopologyUtils.extractJavaFields("*c", "*key"))
+                 .macro(p.removeKey("*key")));
+    }
+  }
+
+  private void incrementalKeyRemovalTest(boolean descending) throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      RemoveKeyModule m = new RemoveKeyModule();
+      m.descending = descending;
+      cluster.launchModule(m, new LaunchConfig(1, 1));
+
+      String moduleName = RemoveKeyModule.class.getName();
+      Depot set = cluster.clusterDepot(moduleName, "*setDepot");
+      PState p = cluster.clusterPState(moduleName, "$$p");
+      PState pById = cluster.clusterPState(moduleName, "$$pById");
+      PState tombstones = cluster.clusterPState(moduleName, "$$pTombstones");
+
+      for (int i = 0; i < 12; i++) {
+        set.append(new AddElement("a", String.valueOf(i)));
+      }
+      set.append(new AddElement("b", "x"));
+      set.append(new Actions.RemoveKey("a"));
+      assertNull(p.selectOne(Path.key("a")));
+      assertNull(pById.selectOne(Path.key("a")));
+      assertNull(tombstones.selectOne(Path.key("a")));
+      assertNotNull(p.selectOne(Path.key("b", "x")));
+
+      set.append(new AddElement("a", "0"));
+      assertEquals(1, (int) pById.selectOne(Path.key("a").view(Ops.SIZE)));
+    }
+  }
+
+  @Test
+  public void incrementalKeyRemovalTest() throws Exception {
+    incrementalKeyRemovalTest(false);
+    incrementalKeyRemovalTest(true);
+  }
+
+  @Test
+  public void bloomFilterUnitTest() {
+    TaskGlobalBloomFilter filter = new TaskGlobalBloomFilter(1000, 0.01);
+    filter.prepareForTask(0, null);
+    assertTrue(filter.startRebuild());
+    // A tick arriving while the rebuild yields doesn't start another one
+    assertFalse(filter.startRebuild());
+    filter.markReady();
+    assertFalse(filter.startRebuild());
+
+    for(long i = 0; i < 1000; i++) filter.put(i);
+    for(long i = 0; i < 1000; i++) assertTrue(filter.mightContain(i));
+    // Longs sharing a hashCode with the added values are still told apart
+    int falsePositives = 0;
+    for(long i = 0; i < 1000; i++) {
+      long sameHashCode = (1L << 32) | (i ^ 1);
+      assertEquals(Long.hashCode(i), Long.hashCode(sameHashCode));
+      if(filter.mightContain(sameHashCode)) falsePositives++;
+    }
+    assertTrue(falsePositives < 50);
+  }
+
+  public static class RebuildFilter implements RamaSerializable { }
+
+  public static class CheckKey implements RamaSerializable {
+    public String key;
+    public CheckKey(String key) { this.key = key; }
+  }
+
+  public static class FilterStats implements RamaSerializable { }
+
+  public static class BloomFilterModule implements RamaModule {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*setDepot", Depot.random());
+      setup.declareObject("*filter", new TaskGlobalBloomFilter(1000, 0.01));
+
+      StreamTopology s = topologies.stream("s");
+      KeyToLinkedEntitySetPStateGroup p = new KeyToLinkedEntitySetPStateGroup("$$p", Object.class, Object.class)
+                                            .bloomFilter("*filter");
+      p.declarePStates(s);
+      s.pstate("$$found", PState.mapSchema(String.class, Boolean.class));
+      s.pstate("$$filterStats", PState.mapSchema(String.class, List.class));
+      s.source("*setDepot").out("*c").subSource("*c",
+        SubSource.create(AddElement.class)
+                 .macro(TopologyUtils.extractJavaFields("*c", "*key", "*entity"))
+                 .macro(p.addToLinkedSet("*key", "*entity")),
+        SubSource.create(RemoveElement.class)
+                 .macro(TopologyUtils.extractJavaFields("*c", "*key", "*entity"))
+                 .macro(p.removeFromLinkedSet("*key", "*entity")),
+        SubSource.create(RebuildFilter.class)
+                 .macro(p.rebuildBloomFilter()),
+        SubSource.create(CheckKey.class)
+                 .macro(TopologyUtils.extractJavaFields("*c", "*key"))
+                 .macro(p.filterKeyExists("*key"))
+                 .localTransform("$$found", Path.key("*key").termVal(true)),
+        SubSource.create(FilterStats.class)
+                 .each((TaskGlobalBloomFilter f) -> Arrays.asList(f.isReady(), f.getChecks(), f.getNegatives()), "*filter").out("*stats")
+                 .localTransform("$$filterStats", Path.key("stats").termVal("*stats")));
+    }
+  }
+
+  @Test
+  public void bloomFilterTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(new BloomFilterModule(), new LaunchConfig(1, 1));
+
+      String moduleName = BloomFilterModule.class.getName();
+      Depot set = cluster.clusterDepot(moduleName, "*setDepot");
+      PState p = cluster.clusterPState(moduleName, "$$p");
+      PState found = cluster.clusterPState(moduleName, "$$found");
+      PState filterStats = cluster.clusterPState(moduleName, "$$filterStats");
+
+      set.append(new AddElement("a", "x"));
+      set.append(new AddElement("a", "y"));
+      set.append(new FilterStats());
+      assertEquals(Arrays.asList(false, 0L, 0L), filterStats.selectOne(Path.key("stats")));
+
+      // Not ready filter doesn't skip anything
+      set.append(new RemoveElement("a", "x"));
+      assertNull(p.selectOne(Path.key("a", "x")));
+
+      set.append(new RebuildFilter());
+      set.append(new FilterStats());
+      assertEquals(Arrays.asList(true, 0L, 0L), filterStats.selectOne(Path.key("stats")));
+
+      // Absent entity is skipped without a read
+      set.append(new RemoveElement("a", "z"));
+      set.append(new FilterStats());
+      assertEquals(Arrays.asList(true, 1L, 1L), filterStats.selectOne(Path.key("stats")));
+
+      // Entity found by the rebuild is still removed
+      set.append(new RemoveElement("a", "y"));
+      assertNull(p.selectOne(Path.key("a", "y")));
+
+      // Adds after the rebuild are recorded in the filter
+      set.append(new AddElement("c", "z"));
+      set.append(new CheckKey("c"));
+      assertTrue(found.selectOne(Path.key("c")));
+      set.append(new CheckKey("b"));
+      assertNull(found.selectOne(Path.key("b")));
+      set.append(new FilterStats());
+      assertEquals(Arrays.asList(true, 4L, 2L), filterStats.selectOne(Path.key("stats")));
+    }
+  }
 }
@@ -0,0 +1,129 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.test.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.Ops;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyToRateLimiterPStateGroupTest {
+  public static class Module implements RamaModule {
+    public SimClock clock;
+    public boolean tokenBucket = true;
+
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*requestDepot", Depot.hashBy(Ops.FIRST));
+
+      StreamTopology s = topologies.stream("s");
+      KeyToRateLimiterPStateGroup p = new KeyToRateLimiterPStateGroup("$$limits", String.class).clock(clock);
+      if(tokenBucket) p.tokenBucket(3, 1);
+      else p.slidingWindow(4, 1000);
+      p.declarePStates(s);
+      s.pstate("$$allowed", PState.mapSchema(String.class, Long.class));
+      s.source("*requestDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*key", "*permits")
+       .macro(p.tryAcquire("*key", "*permits", "*allowed?"))
+       .keepTrue("*allowed?")
+       .localTransform("$$allowed", Path.key("*key").nullToVal(0L).term(Ops.PLUS_LONG, "*permits"));
+    }
+  }
+
+  public static class SlidingWindowModule extends Module {
+    public SlidingWindowModule() {
+      tokenBucket = false;
+    }
+  }
+
+  private static long allowed(PState allowed, String key) {
+    Long ret = allowed.selectOne(Path.key(key));
+    return ret==null ? 0 : ret;
+  }
+
+  @Test
+  public void algorithmsTest() {
+    long interval = 1000000;
+    Long fullAt = null;
+    for(int i=0; i<3; i++) {
+      fullAt = KeyToRateLimiterPStateGroup.tokenBucketAcquire(fullAt, 0L, 1, 3L, interval);
+      assertNotNull(fullAt);
+    }
+    assertNull(KeyToRateLimiterPStateGroup.tokenBucketAcquire(fullAt, 0L, 1, 3L, interval));
+    assertNull(KeyToRateLimiterPStateGroup.tokenBucketAcquire(fullAt, 999L, 1, 3L, interval));
+    assertNotNull(KeyToRateLimiterPStateGroup.tokenBucketAcquire(fullAt, 1000L, 1, 3L, interval));
+    assertNull(KeyToRateLimiterPStateGroup.tokenBucketAcquire(null, 0L, 4, 3L, interval));
+
+    long[] state = KeyToRateLimiterPStateGroup.slidingWindowAcquire(null, 500L, 4, 4L, 1000L);
+    assertArrayEquals(new long[] {0, 4, 0}, state);
+    assertNull(KeyToRateLimiterPStateGroup.slidingWindowAcquire(state, 999L, 1, 4L, 1000L));
+    // Half of the previous window still overlaps, so 2 of its 4 permits count
+    assertNull(KeyToRateLimiterPStateGroup.slidingWindowAcquire(state, 1500L, 3, 4L, 1000L));
+    assertArrayEquals(new long[] {1000, 2, 4}, KeyToRateLimiterPStateGroup.slidingWindowAcquire(state, 1500L, 2, 4L, 1000L));
+    assertArrayEquals(new long[] {2000, 4, 0}, KeyToRateLimiterPStateGroup.slidingWindowAcquire(state, 2000L, 4, 4L, 1000L));
+  }
+
+  @Test
+  public void tokenBucketTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create();
+        SimClock clock = SimClock.create()) {
+      Module module = new Module();
+      module.clock = clock;
+      cluster.launchModule(module, new LaunchConfig(1, 1));
+      String moduleName = Module.class.getName();
+
+      Depot requestDepot = cluster.clusterDepot(moduleName, "*requestDepot");
+      PState limits = cluster.clusterPState(moduleName, "$$limits");
+      PState allowed = cluster.clusterPState(moduleName, "$$allowed");
+
+      for(int i=0; i<5; i++) requestDepot.append(Arrays.asList("alice", 1));
+      assertEquals(3, allowed(allowed, "alice"));
+
+      clock.advance(1500);
+      requestDepot.append(Arrays.asList("alice", 2));
+      assertEquals(3, allowed(allowed, "alice"));
+      requestDepot.append(Arrays.asList("alice", 1));
+      assertEquals(4, allowed(allowed, "alice"));
+
+      // Once alice's bucket refills, a request for another key on the task evicts her state
+      requestDepot.append(Arrays.asList("bob", 1));
+      assertNotNull(limits.selectOne(Path.key("alice")));
+      clock.advance(5000);
+      requestDepot.append(Arrays.asList("bob", 1));
+      assertNull(limits.selectOne(Path.key("alice")));
+      assertNotNull(limits.selectOne(Path.key("bob")));
+      assertEquals(2, allowed(allowed, "bob"));
+    }
+  }
+
+  @Test
+  public void slidingWindowTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create();
+        SimClock clock = SimClock.create()) {
+      Module module = new SlidingWindowModule();
+      module.clock = clock;
+      cluster.launchModule(module, new LaunchConfig(4, 2));
+      String moduleName = SlidingWindowModule.class.getName();
+
+      Depot requestDepot = cluster.clusterDepot(moduleName, "*requestDepot");
+      PState allowed = cluster.clusterPState(moduleName, "$$allowed");
+
+      for(int i=0; i<6; i++) requestDepot.append(Arrays.asList("alice", 1));
+      requestDepot.append(Arrays.asList("bob", 3));
+      assertEquals(4, allowed(allowed, "alice"));
+      assertEquals(3, allowed(allowed, "bob"));
+
+      clock.advance(1500);
+      for(int i=0; i<4; i++) requestDepot.append(Arrays.asList("alice", 1));
+      assertEquals(6, allowed(allowed, "alice"));
+
+      clock.advance(1500);
+      for(int i=0; i<4; i++) requestDepot.append(Arrays.asList("alice", 1));
+      assertEquals(10, allowed(allowed, "alice"));
+    }
+  }
+}
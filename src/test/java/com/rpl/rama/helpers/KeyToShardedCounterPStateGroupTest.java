@@ -0,0 +1,132 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.test.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyToShardedCounterPStateGroupTest {
+  public static class HotKeyShards implements RamaFunction1<Object, Integer> {
+    @Override
+    public Integer invoke(Object key) {
+      return "hot".equals(key) ? 8 : 1;
+    }
+  }
+
+  public static class Module implements RamaModule {
+    public boolean adaptive = false;
+    public SimClock clock;
+
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*depot", Depot.random());
+      setup.declareObject("*tracker", new KeyToShardedCounterPStateGroup.RateTracker());
+
+      StreamTopology s = topologies.stream("s");
+      KeyToShardedCounterPStateGroup p = new KeyToShardedCounterPStateGroup("$$counts", String.class, 1);
+      if(adaptive) p.adaptiveShards("*tracker", 10, 4).clock(clock);
+      else p.shardFunction(new HotKeyShards());
+      p.declarePStates(s);
+      s.source("*depot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*key", "*amount")
+       .macro(p.increment("*key", "*amount"));
+      p.declareQueryTopology(topologies, "count");
+    }
+  }
+
+  public static class AdaptiveModule extends Module {
+    public AdaptiveModule() {
+      adaptive = true;
+    }
+  }
+
+  private static int nonZeroShards(PState counts, String key, int maxShards) {
+    int ret = 0;
+    for(int i=0; i<maxShards; i++) {
+      Long count = counts.selectOne(Path.key(Arrays.asList(key, i)));
+      if(count!=null && count > 0) ret++;
+    }
+    return ret;
+  }
+
+  @Test
+  public void shardFunctionTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(new Module(), new LaunchConfig(4, 2));
+      String moduleName = Module.class.getName();
+
+      Depot depot = cluster.clusterDepot(moduleName, "*depot");
+      PState counts = cluster.clusterPState(moduleName, "$$counts");
+      QueryTopologyClient<Long> count = cluster.clusterQuery(moduleName, "count");
+
+      assertEquals(0L, (long) count.invoke("hot"));
+      for(int i=0; i<200; i++) depot.append(Arrays.asList("hot", 1));
+      depot.append(Arrays.asList("hot", 5));
+      depot.append(Arrays.asList("cold", 2));
+      depot.append(Arrays.asList("cold", 3));
+
+      assertEquals(205L, (long) count.invoke("hot"));
+      assertEquals(5L, (long) count.invoke("cold"));
+      assertTrue(nonZeroShards(counts, "hot", 8) > 1);
+      assertEquals(1, nonZeroShards(counts, "cold", 8));
+    }
+  }
+
+  @Test
+  public void adaptiveShardsTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(new AdaptiveModule(), new LaunchConfig(4, 2));
+      String moduleName = AdaptiveModule.class.getName();
+
+      Depot depot = cluster.clusterDepot(moduleName, "*depot");
+      PState counts = cluster.clusterPState(moduleName, "$$counts");
+      PState widths = cluster.clusterPState(moduleName, "$$countsWidths");
+      QueryTopologyClient<Long> count = cluster.clusterQuery(moduleName, "count");
+
+      // Few increments stay on one shard
+      depot.append(Arrays.asList("cold", 1));
+      depot.append(Arrays.asList("cold", 1));
+      assertNull(widths.selectOne(Path.key("cold")));
+      assertEquals(2L, (long) count.invoke("cold"));
+
+      // Many increments within a second widen the key to the max shards
+      for(int i=0; i<500; i++) depot.append(Arrays.asList("hot", 1));
+      assertEquals(4, (int) widths.selectOne(Path.key("hot")));
+      assertEquals(500L, (long) count.invoke("hot"));
+      assertTrue(nonZeroShards(counts, "hot", 4) > 1);
+    }
+  }
+
+  @Test
+  public void adaptiveShardsClockTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create();
+        SimClock clock = SimClock.create()) {
+      AdaptiveModule module = new AdaptiveModule();
+      module.clock = clock;
+      cluster.launchModule(module, new LaunchConfig(4, 2));
+      String moduleName = AdaptiveModule.class.getName();
+
+      Depot depot = cluster.clusterDepot(moduleName, "*depot");
+      PState widths = cluster.clusterPState(moduleName, "$$countsWidths");
+      QueryTopologyClient<Long> count = cluster.clusterQuery(moduleName, "count");
+
+      // Rates are measured against the clock, so many increments spread over many seconds of it stay on one shard
+      for(int i=0; i<20; i++) {
+        for(int j=0; j<5; j++) depot.append(Arrays.asList("warm", 1));
+        clock.advance(1000);
+      }
+      assertNull(widths.selectOne(Path.key("warm")));
+      assertEquals(100L, (long) count.invoke("warm"));
+
+      for(int i=0; i<500; i++) depot.append(Arrays.asList("hot", 1));
+      assertEquals(4, (int) widths.selectOne(Path.key("hot")));
+      assertEquals(500L, (long) count.invoke("hot"));
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.test.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.Ops;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyToTimeSeriesRollupPStateGroupTest {
+  private static final long MINUTE = 60 * 1000;
+  private static final long HOUR = 60 * MINUTE;
+  private static final long DAY = 24 * HOUR;
+
+  public static class Module implements RamaModule {
+    public SimClock clock;
+
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*recordDepot", Depot.hashBy(Ops.FIRST));
+      setup.declareDepot("*expireDepot", Depot.hashBy(Ops.IDENTITY));
+
+      StreamTopology s = topologies.stream("s");
+      KeyToTimeSeriesRollupPStateGroup p =
+        new KeyToTimeSeriesRollupPStateGroup("$$latencies", String.class)
+          .resolution(DAY)
+          .resolution(MINUTE, 2 * HOUR)
+          .resolution(HOUR, 2 * DAY)
+          .expireBatchSize(2)
+          .clock(clock);
+      p.declarePStates(s);
+      s.source("*recordDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*key", "*timestamp", "*value")
+       .macro(p.record("*key", "*timestamp", "*value"));
+      s.source("*expireDepot").out("*key")
+       .macro(p.expire("*key"));
+      p.declareRangeQueryTopology(topologies, "range");
+    }
+  }
+
+  private static long bucketCount(PState latencies, String key, long resolution) {
+    return latencies.select(Path.key(key, resolution).mapKeys()).size();
+  }
+
+  @Test
+  public void chooseResolutionTest() {
+    List<Long> resolutions = Arrays.asList(MINUTE, HOUR, DAY);
+    List<Long> retentions = Arrays.asList(2 * HOUR, 2 * DAY, 0L);
+    try(SimClock clock = SimClock.create()) {
+      clock.advance(10 * DAY);
+      assertEquals(DAY, (long) KeyToTimeSeriesRollupPStateGroup.chooseResolution(resolutions, retentions, clock, 0, 3 * DAY));
+      assertEquals(HOUR, (long) KeyToTimeSeriesRollupPStateGroup.chooseResolution(resolutions, retentions, clock, 9 * DAY, 9 * DAY + 5 * HOUR));
+      assertEquals(MINUTE, (long) KeyToTimeSeriesRollupPStateGroup.chooseResolution(resolutions, retentions, clock, 10 * DAY - HOUR, 10 * DAY - MINUTE));
+      // Minute and hour buckets from 5 days ago have expired, so the unaligned window uses overhanging day buckets
+      assertEquals(DAY, (long) KeyToTimeSeriesRollupPStateGroup.chooseResolution(resolutions, retentions, clock, 5 * DAY, 5 * DAY + HOUR));
+      // Unaligned window older than the minute retention uses the finest resolution that still has its start
+      assertEquals(HOUR, (long) KeyToTimeSeriesRollupPStateGroup.chooseResolution(resolutions, retentions, clock, 9 * DAY + 17 * MINUTE, 10 * DAY - MINUTE));
+      assertEquals(DAY, (long) KeyToTimeSeriesRollupPStateGroup.chooseResolution(resolutions, retentions, clock, 3 * DAY + 17 * MINUTE, 10 * DAY - MINUTE));
+    }
+  }
+
+  @Test
+  public void moduleTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create();
+        SimClock clock = SimClock.create()) {
+      Module module = new Module();
+      module.clock = clock;
+      cluster.launchModule(module, new LaunchConfig(4, 2));
+      String moduleName = Module.class.getName();
+
+      Depot recordDepot = cluster.clusterDepot(moduleName, "*recordDepot");
+      Depot expireDepot = cluster.clusterDepot(moduleName, "*expireDepot");
+      PState latencies = cluster.clusterPState(moduleName, "$$latencies");
+      QueryTopologyClient<SortedMap<Long, KeyToTimeSeriesRollupPStateGroup.Bucket>> range = cluster.clusterQuery(moduleName, "range");
+
+      clock.advance(DAY);
+      recordDepot.append(Arrays.asList("/a", DAY + 10, 5));
+      recordDepot.append(Arrays.asList("/a", DAY + 20, 3));
+      recordDepot.append(Arrays.asList("/a", DAY + MINUTE + 1, 10));
+      recordDepot.append(Arrays.asList("/a", DAY + HOUR, 1.5));
+
+      SortedMap<Long, KeyToTimeSeriesRollupPStateGroup.Bucket> buckets = range.invoke("/a", DAY, DAY + 2 * MINUTE);
+      assertEquals(Arrays.asList(DAY, DAY + MINUTE), new ArrayList<>(buckets.keySet()));
+      assertEquals(new KeyToTimeSeriesRollupPStateGroup.Bucket(2, 8, 3, 5), buckets.get(DAY));
+      assertEquals(4.0, buckets.get(DAY).mean(), 0);
+
+      buckets = range.invoke("/a", DAY, 2 * DAY);
+      assertEquals(1, buckets.size());
+      assertEquals(new KeyToTimeSeriesRollupPStateGroup.Bucket(4, 19.5, 1.5, 10), buckets.get(DAY));
+
+      buckets = range.invoke("/a", DAY, DAY + 2 * HOUR);
+      assertEquals(Arrays.asList(DAY, DAY + HOUR), new ArrayList<>(buckets.keySet()));
+      assertEquals(3, buckets.get(DAY).count);
+
+      // Recording removes expired minute buckets a batch at a time, and late values for expired buckets are ignored
+      clock.advance(3 * HOUR);
+      assertEquals(3, bucketCount(latencies, "/a", MINUTE));
+      recordDepot.append(Arrays.asList("/a", DAY, 7));
+      assertEquals(1, bucketCount(latencies, "/a", MINUTE));
+      assertEquals(5, ((KeyToTimeSeriesRollupPStateGroup.Bucket) latencies.selectOne(Path.key("/a", DAY, DAY))).count);
+      clock.advance(HOUR);
+      expireDepot.append("/a");
+      assertEquals(0, bucketCount(latencies, "/a", MINUTE));
+      assertEquals(2, bucketCount(latencies, "/a", HOUR));
+
+      clock.advance(3 * DAY);
+      expireDepot.append("/a");
+      assertEquals(0, bucketCount(latencies, "/a", HOUR));
+      assertEquals(1, bucketCount(latencies, "/a", DAY));
+    }
+  }
+}
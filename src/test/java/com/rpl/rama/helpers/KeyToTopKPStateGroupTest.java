@@ -0,0 +1,115 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.test.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.Ops;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyToTopKPStateGroupTest {
+  public static class Module implements RamaModule {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*observeDepot", Depot.hashBy(Ops.FIRST));
+      setup.declareDepot("*topDepot", Depot.hashBy(Ops.IDENTITY));
+
+      StreamTopology s = topologies.stream("s");
+      KeyToTopKPStateGroup p = new KeyToTopKPStateGroup("$$hashtags", 3, String.class, String.class);
+      p.declarePStates(s);
+      s.pstate("$$tops", PState.mapSchema(String.class, List.class));
+      s.source("*observeDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*key", "*item", "*weight")
+       .macro(p.observe("*key", "*item", "*weight"));
+      s.source("*topDepot").out("*key")
+       .macro(p.topK("*key", 3, "*top"))
+       .localTransform("$$tops", Path.key("*key").termVal("*top"));
+      p.declareTopKQueryTopology(topologies, "top");
+    }
+  }
+
+  private static List<String> items(List<List> top) {
+    List<String> ret = new ArrayList<>();
+    for(List e: top) ret.add((String) e.get(0));
+    return ret;
+  }
+
+  @Test
+  public void summaryTest() {
+    Map<Object, Long> a = new HashMap<>();
+    a.put("x", 10L);
+    a.put("y", 5L);
+    Map<Object, Long> b = new HashMap<>();
+    b.put("y", 7L);
+    b.put("z", 4L);
+    KeyToTopKPStateGroup.Summary merged = new KeyToTopKPStateGroup.Summary(a, 3).merge(new KeyToTopKPStateGroup.Summary(b, 2));
+    assertEquals(12L, (long) merged.estimates.get("x"));
+    assertEquals(12L, (long) merged.estimates.get("y"));
+    assertEquals(7L, (long) merged.estimates.get("z"));
+    assertEquals(5L, merged.missingBound);
+    assertEquals(2, merged.top(2).size());
+    assertEquals(Arrays.asList("z", 7L), merged.top(3).get(2));
+  }
+
+  @Test
+  public void moduleTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(new Module(), new LaunchConfig(4, 2));
+      String moduleName = Module.class.getName();
+
+      Depot observeDepot = cluster.clusterDepot(moduleName, "*observeDepot");
+      Depot topDepot = cluster.clusterDepot(moduleName, "*topDepot");
+      PState hashtags = cluster.clusterPState(moduleName, "$$hashtags");
+      PState tops = cluster.clusterPState(moduleName, "$$tops");
+      QueryTopologyClient<List<List>> top = cluster.clusterQuery(moduleName, "top");
+
+      observeDepot.append(Arrays.asList("us", "#a", 5));
+      observeDepot.append(Arrays.asList("us", "#b", 2));
+      observeDepot.append(Arrays.asList("us", "#a", 1));
+      topDepot.append("us");
+      assertEquals(Arrays.asList(Arrays.asList("#a", 6L), Arrays.asList("#b", 2L)), tops.selectOne(Path.key("us")));
+
+      // A long tail of light items doesn't displace the heavy ones, and candidates stay bounded
+      for(int i=0; i<200; i++) observeDepot.append(Arrays.asList("us", "#tail" + i, 1));
+      observeDepot.append(Arrays.asList("us", "#c", 4));
+      topDepot.append("us");
+      assertEquals(Arrays.asList("#a", "#c", "#b"), items(tops.selectOne(Path.key("us"))));
+      assertEquals(6, (int) hashtags.selectOne(Path.key("us").view(Ops.SIZE)));
+
+      for(int i=0; i<3; i++) observeDepot.append(Arrays.asList("eu", "#d", 3));
+      observeDepot.append(Arrays.asList("eu", "#b", 1));
+      List<List> merged = top.invoke(Arrays.asList("us", "eu"), 2);
+      assertEquals(Arrays.asList("#d", "#a"), items(merged));
+      assertTrue((long) merged.get(0).get(1) >= 9);
+
+      assertEquals(Collections.emptyList(), top.invoke(Arrays.asList("none"), 3));
+    }
+  }
+
+  @Test
+  public void nonPositiveWeightTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(new Module(), new LaunchConfig(4, 2));
+      String moduleName = Module.class.getName();
+
+      Depot observeDepot = cluster.clusterDepot(moduleName, "*observeDepot");
+      PState hashtags = cluster.clusterPState(moduleName, "$$hashtags");
+      QueryTopologyClient<List<List>> top = cluster.clusterQuery(moduleName, "top");
+
+      // Weights that aren't positive neither lower estimates nor add candidates
+      observeDepot.append(Arrays.asList("us", "#a", 3));
+      observeDepot.append(Arrays.asList("us", "#a", -5));
+      observeDepot.append(Arrays.asList("us", "#a", 0));
+      observeDepot.append(Arrays.asList("us", "#b", -2));
+      assertEquals(Arrays.asList(Arrays.asList("#a", 3L)), top.invoke(Arrays.asList("us"), 3));
+      assertNull(hashtags.selectOne(Path.key("us", "#b")));
+
+      observeDepot.append(Arrays.asList("us", "#a", 2));
+      assertEquals(Arrays.asList(Arrays.asList("#a", 5L)), top.invoke(Arrays.asList("us"), 3));
+    }
+  }
+}
@@ -25,16 +25,36 @@ public class KeyToUniqueFixedItemsPStateGroupTest {
 
   public static class Module implements RamaModule {
     public RamaFunction1 entityIdFn = null;
+    public boolean incrementalKeyRemoval = false;
+    public boolean bloomFilter = false;
+    public boolean adaptiveClear = false;
 
     @Override
     public void define(Setup setup, Topologies topologies) {
       setup.declareDepot("*commandDepot", Depot.random());
+      setup.declareDepot("*rebuildDepot", Depot.random());
+      setup.declareObject("*filter", new TaskGlobalBloomFilter(1000, 0.01));
 
       StreamTopology s = topologies.stream("s");
       KeyToUniqueFixedItemsPStateGroup p = new KeyToUniqueFixedItemsPStateGroup("$$p", 10, Object.class, Object.class)
                             .clearBatchSize(5);
       if(entityIdFn!=null) p.entityIdFunction(Object.class, entityIdFn);
+      if(incrementalKeyRemoval) p.incrementalKeyRemoval();
+      if(adaptiveClear) p.adaptiveClearBatchSize(1, 16, 1000);
+      if(bloomFilter) {
+        p.bloomFilter("*filter");
+        s.source("*rebuildDepot").macro(p.rebuildBloomFilter());
+      }
       p.declarePStates(s);
+      s.pstate("$$clearStats", PState.mapSchema(Object.class, List.class));
+      Block clear;
+      if(adaptiveClear) {
+        clear = Block.macro(p.clearItems("*key", "*cleared", "*iterations"))
+                     .each(Ops.TUPLE, "*cleared", "*iterations").out("*stats")
+                     .localTransform("$$clearStats", Path.key("*key").termVal("*stats"));
+      } else {
+        clear = p.clearItems("*key");
+      }
       s.source("*commandDepot").out("*c").subSource("*c",
         SubSource.create(Actions.AddItem.class)
                  .macro(TopologyUtils.extractJavaFields("*c", "*key", "*item"))
@@ -53,8 +73,14 @@ public class KeyToUniqueFixedItemsPStateGroupTest {
                  .macro(p.removeKey("*key")),
         SubSource.create(Actions.ClearItems.class)
                  .macro(TopologyUtils.extractJavaFields("*c", "*key"))
-                 .macro(p.clearItems("*key"))
+                 .macro(clear)
       );
+
+      topologies.query("exists", "*key").out("*count")
+                .hashPartition("*key")
+                .macro(p.filterKeyExists("*key"))
+                .originPartition()
+                .agg(Agg.count()).out("*count");
     }
   }
 
@@ -163,4 +189,141 @@ public class KeyToUniqueFixedItemsPStateGroupTest {
       assertEquals(10, (int) pR.selectOne(Path.key("a").view(Ops.SIZE)));
     }
   }
+
+  @Test
+  public void entityIdFnClearTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      Module m = new Module();
+      m.entityIdFn = new StrictFirst();
+      m.incrementalKeyRemoval = true;
+      cluster.launchModule(m, new LaunchConfig(1, 1));
+
+      Depot depot = cluster.clusterDepot(Module.class.getName(), "*commandDepot");
+      PState p = cluster.clusterPState(Module.class.getName(), "$$p");
+      PState pR = cluster.clusterPState(Module.class.getName(), "$$pReverse");
+
+      // Spans multiple batches of 5, and each batch removes reverse entries by entity ID
+      for (int i = 0; i < 8; i++) {
+        depot.append(new Actions.AddItem("a", Arrays.asList("e" + i, i)));
+        depot.append(new Actions.AddItem("b", Arrays.asList("e" + i, i)));
+      }
+      depot.append(new Actions.ClearItems("a"));
+      assertTrue(p.select(Path.key("a").all()).isEmpty());
+      assertTrue(pR.select(Path.key("a").all()).isEmpty());
+
+      depot.append(new Actions.AddItem("a", Arrays.asList("e0", 10)));
+      assertEquals(1, (int) pR.selectOne(Path.key("a").view(Ops.SIZE)));
+      assertEquals(Arrays.asList("e0", 10), p.selectOne(Path.key("a", pR.selectOne(Path.key("a", "e0")))));
+
+      depot.append(new Actions.RemoveKey("b"));
+      assertTrue(p.select(Path.key("b").all()).isEmpty());
+      assertTrue(pR.select(Path.key("b").all()).isEmpty());
+      depot.append(new Actions.AddItem("b", Arrays.asList("e1", 11)));
+      assertEquals(1, (int) pR.selectOne(Path.key("b").view(Ops.SIZE)));
+    }
+  }
+
+  @Test
+  public void adaptiveClearTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      Module m = new Module();
+      m.adaptiveClear = true;
+      cluster.launchModule(m, new LaunchConfig(1, 1));
+
+      Depot depot = cluster.clusterDepot(Module.class.getName(), "*commandDepot");
+      PState p = cluster.clusterPState(Module.class.getName(), "$$p");
+      PState pR = cluster.clusterPState(Module.class.getName(), "$$pReverse");
+      PState clearStats = cluster.clusterPState(Module.class.getName(), "$$clearStats");
+
+      for (int i = 0; i < 10; i++) {
+        depot.append(new Actions.AddItem("a", i));
+      }
+      depot.append(new Actions.ClearItems("a"));
+      assertEquals(0, (int) p.selectOne(Path.key("a").view(Ops.SIZE)));
+      assertTrue(pR.select(Path.key("a").all()).isEmpty());
+      List stats = clearStats.selectOne(Path.key("a"));
+      assertEquals(10L, stats.get(0));
+      // Batches grow from 1 well within the target time, so it takes far fewer than the 11 batches of a fixed size of 1
+      assertTrue((long) stats.get(1) <= 5);
+
+      // Items can be added again after the clear
+      depot.append(new Actions.AddItem("a", 3));
+      assertEquals(1, (int) p.selectOne(Path.key("a").view(Ops.SIZE)));
+    }
+  }
+
+  @Test
+  public void incrementalKeyRemovalTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      Module m = new Module();
+      m.incrementalKeyRemoval = true;
+      cluster.launchModule(m, new LaunchConfig(1, 1));
+
+      Depot depot = cluster.clusterDepot(Module.class.getName(), "*commandDepot");
+      PState p = cluster.clusterPState(Module.class.getName(), "$$p");
+      PState pR = cluster.clusterPState(Module.class.getName(), "$$pReverse");
+      PState meta = cluster.clusterPState(Module.class.getName(), "$$pMeta");
+      PState tombstones = cluster.clusterPState(Module.class.getName(), "$$pTombstones");
+
+      // Spans multiple batches of 5
+      for (int i = 0; i < 12; i++) {
+        depot.append(new Actions.AddItem("b", i));
+      }
+      depot.append(new Actions.AddItem("c", 1));
+      QueryTopologyClient<Long> exists = cluster.clusterQuery(Module.class.getName(), "exists");
+      assertEquals(1L, (long) exists.invoke("b"));
+      depot.append(new Actions.RemoveKey("b"));
+      assertEquals(0L, (long) exists.invoke("b"));
+      assertEquals(1L, (long) exists.invoke("c"));
+      assertNull(p.selectOne(Path.key("b")));
+      assertNull(pR.selectOne(Path.key("b")));
+      assertNull(meta.selectOne(Path.key("b")));
+      assertNull(tombstones.selectOne(Path.key("b")));
+      assertEquals(1, (int) p.selectOne(Path.key("c").view(Ops.SIZE)));
+
+      // Key starts over after removal
+      depot.append(new Actions.AddItem("b", 1));
+      assertEquals(1, (int) p.selectOne(Path.key("b", Long.MAX_VALUE)));
+
+      // Removing a key that doesn't exist is a no-op
+      depot.append(new Actions.RemoveKey("d"));
+      assertNull(p.selectOne(Path.key("d")));
+      assertNull(tombstones.selectOne(Path.key("d")));
+    }
+  }
+
+  @Test
+  public void bloomFilterTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      Module m = new Module();
+      m.bloomFilter = true;
+      cluster.launchModule(m, new LaunchConfig(1, 1));
+
+      Depot depot = cluster.clusterDepot(Module.class.getName(), "*commandDepot");
+      Depot rebuildDepot = cluster.clusterDepot(Module.class.getName(), "*rebuildDepot");
+      PState p = cluster.clusterPState(Module.class.getName(), "$$p");
+      PState pR = cluster.clusterPState(Module.class.getName(), "$$pReverse");
+
+      depot.append(new Actions.AddItem("a", 1));
+      depot.append(new Actions.AddItem("a", 2));
+      rebuildDepot.append("rebuild");
+
+      // Uniqueness still holds for items found by the rebuild
+      depot.append(new Actions.AddItem("a", 1));
+      assertEquals(2, (int) p.selectOne(Path.key("a").view(Ops.SIZE)));
+      assertEquals(Long.MAX_VALUE-2, (long) pR.selectOne(Path.key("a", 1)));
+
+      depot.append(new Actions.RemoveItemByEntityId("a", 2));
+      assertEquals(1, (int) p.selectOne(Path.key("a").view(Ops.SIZE)));
+      assertNull(pR.selectOne(Path.key("a", 2)));
+
+      // Items added after the rebuild are found too
+      depot.append(new Actions.AddItem("a", 3));
+      depot.append(new Actions.RemoveItemByEntityId("a", 3));
+      assertNull(pR.selectOne(Path.key("a", 3)));
+
+      depot.append(new Actions.RemoveItemByEntityId("a", 4));
+      assertEquals(1, (int) p.selectOne(Path.key("a").view(Ops.SIZE)));
+    }
+  }
 }
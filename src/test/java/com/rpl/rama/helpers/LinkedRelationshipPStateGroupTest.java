@@ -0,0 +1,92 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.test.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.RamaSerializable;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LinkedRelationshipPStateGroupTest {
+  public static class Follow implements RamaSerializable {
+    public String from;
+    public String to;
+    public Follow(String from, String to) { this.from = from; this.to = to; }
+  }
+
+  public static class Unfollow implements RamaSerializable {
+    public String from;
+    public String to;
+    public Unfollow(String from, String to) { this.from = from; this.to = to; }
+  }
+
+  public static class Module implements RamaModule {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*followDepot", Depot.random());
+
+      StreamTopology s = topologies.stream("s");
+      LinkedRelationshipPStateGroup r = new LinkedRelationshipPStateGroup("$$following", "$$followers", String.class, String.class)
+                                          .descending();
+      r.declarePStates(s);
+      s.source("*followDepot").out("*c").subSource("*c",
+        SubSource.create(Follow.class)
+                 .macro(TopologyUtils.extractJavaFields("*c", "*from", "*to"))
+                 .macro(r.link("*from", "*to")),
+        SubSource.create(Unfollow.class)
+                 .macro(TopologyUtils.extractJavaFields("*c", "*from", "*to"))
+                 .macro(r.unlink("*from", "*to")));
+    }
+  }
+
+  @Test
+  public void allFeaturesTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(new Module(), new LaunchConfig(4, 2));
+
+      String moduleName = Module.class.getName();
+      Depot depot = cluster.clusterDepot(moduleName, "*followDepot");
+      PState following = cluster.clusterPState(moduleName, "$$following");
+      PState followers = cluster.clusterPState(moduleName, "$$followers");
+      PState followersById = cluster.clusterPState(moduleName, "$$followersById");
+      PState followingDegree = cluster.clusterPState(moduleName, "$$followingDegree");
+      PState followersDegree = cluster.clusterPState(moduleName, "$$followersDegree");
+
+      depot.append(new Follow("alice", "carol"));
+      depot.append(new Follow("bob", "carol"));
+      depot.append(new Follow("dave", "carol"));
+      depot.append(new Follow("alice", "bob"));
+
+      assertNotNull(following.selectOne(Path.key("alice", "carol")));
+      assertNull(following.selectOne(Path.key("carol", "alice")));
+      assertNotNull(followers.selectOne(Path.key("carol", "alice")));
+      assertEquals(2L, (long) followingDegree.selectOne(Path.key("alice")));
+      assertEquals(3L, (long) followersDegree.selectOne(Path.key("carol")));
+
+      // Newest first
+      assertEquals(Arrays.asList("dave", "bob", "alice"), followersById.select(Path.key("carol").mapVals()));
+
+      // Re-linking doesn't change degree but does move the link to the front
+      depot.append(new Follow("alice", "carol"));
+      assertEquals(2L, (long) followingDegree.selectOne(Path.key("alice")));
+      assertEquals(3L, (long) followersDegree.selectOne(Path.key("carol")));
+      assertEquals(Arrays.asList("alice", "dave", "bob"), followersById.select(Path.key("carol").mapVals()));
+
+      depot.append(new Unfollow("bob", "carol"));
+      assertNull(following.selectOne(Path.key("bob", "carol")));
+      assertNull(followers.selectOne(Path.key("carol", "bob")));
+      assertEquals(0L, (long) followingDegree.selectOne(Path.key("bob")));
+      assertEquals(2L, (long) followersDegree.selectOne(Path.key("carol")));
+      assertEquals(Arrays.asList("alice", "dave"), followersById.select(Path.key("carol").mapVals()));
+
+      // Unlinking something not linked is a no-op
+      depot.append(new Unfollow("bob", "carol"));
+      assertEquals(0L, (long) followingDegree.selectOne(Path.key("bob")));
+      assertEquals(2L, (long) followersDegree.selectOne(Path.key("carol")));
+    }
+  }
+}
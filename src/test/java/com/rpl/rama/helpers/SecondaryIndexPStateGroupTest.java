@@ -0,0 +1,111 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.test.*;
+import com.rpl.rama.module.*;
+import com.rpl.rama.ops.*;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SecondaryIndexPStateGroupTest {
+  public static class Age implements RamaFunction1<List, Integer> {
+    @Override
+    public Integer invoke(List user) {
+      return (Integer) user.get(1);
+    }
+  }
+
+  public static class Module implements RamaModule {
+    public boolean hashPartitioned = false;
+
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*putDepot", Depot.hashBy(Ops.FIRST));
+      setup.declareDepot("*removeDepot", Depot.hashBy(Ops.IDENTITY));
+
+      StreamTopology s = topologies.stream("s");
+      s.pstate("$$users", PState.mapSchema(Long.class, List.class));
+      SecondaryIndexPStateGroup p = new SecondaryIndexPStateGroup("$$usersByAge", "$$users", Integer.class, Long.class, new Age());
+      if(hashPartitioned) p.hashPartitioned();
+      p.declarePStates(s);
+      s.source("*putDepot").out("*tuple")
+       .each(Ops.EXPAND, "*tuple").out("*userId", "*user")
+       .macro(p.put("*userId", "*user"));
+      s.source("*removeDepot").out("*userId")
+       .macro(p.remove("*userId"));
+      p.declareEqualsQueryTopology(topologies, "byAge");
+      p.declareRangeQueryTopology(topologies, "byAgeRange");
+    }
+  }
+
+  public static class HashPartitionedModule extends Module {
+    public HashPartitionedModule() {
+      hashPartitioned = true;
+    }
+  }
+
+  private static Set<Long> asSet(List keys) {
+    return new HashSet<>(keys);
+  }
+
+  private void runIndexTest(Module module) throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(module, new LaunchConfig(4, 2));
+      String moduleName = module.getClass().getName();
+
+      Depot putDepot = cluster.clusterDepot(moduleName, "*putDepot");
+      Depot removeDepot = cluster.clusterDepot(moduleName, "*removeDepot");
+      PState users = cluster.clusterPState(moduleName, "$$users");
+      QueryTopologyClient<List> byAge = cluster.clusterQuery(moduleName, "byAge");
+      QueryTopologyClient<List> byAgeRange = cluster.clusterQuery(moduleName, "byAgeRange");
+
+      putDepot.append(Arrays.asList(1L, Arrays.asList("alice", 30)));
+      putDepot.append(Arrays.asList(2L, Arrays.asList("bob", 25)));
+      putDepot.append(Arrays.asList(3L, Arrays.asList("carol", 30)));
+      putDepot.append(Arrays.asList(4L, Arrays.asList("dave", null)));
+
+      assertEquals(new HashSet<>(Arrays.asList(1L, 3L)), asSet(byAge.invoke(30)));
+      assertEquals(Arrays.asList(2L), byAge.invoke(25));
+      assertEquals(Collections.emptyList(), byAge.invoke(40));
+      assertEquals(Arrays.asList(2L), byAgeRange.invoke(20, 30));
+      assertEquals(3, byAgeRange.invoke(0, 100).size());
+      assertEquals(2L, byAgeRange.invoke(0, 100).get(0));
+
+      // Changing the field moves the key, and other changes leave the index alone
+      putDepot.append(Arrays.asList(1L, Arrays.asList("alice", 31)));
+      putDepot.append(Arrays.asList(3L, Arrays.asList("carol smith", 30)));
+      putDepot.append(Arrays.asList(4L, Arrays.asList("dave", 25)));
+      assertEquals(Arrays.asList(3L), byAge.invoke(30));
+      assertEquals(Arrays.asList(1L), byAge.invoke(31));
+      assertEquals(new HashSet<>(Arrays.asList(2L, 4L)), asSet(byAge.invoke(25)));
+      assertEquals(Arrays.asList("carol smith", 30), users.selectOne(Path.key(3L)));
+
+      removeDepot.append(3L);
+      assertNull(users.selectOne(Path.key(3L)));
+      assertEquals(Collections.emptyList(), byAge.invoke(30));
+      assertEquals(Arrays.asList(1L), byAgeRange.invoke(26, 40));
+
+      // Flipping a field back and forth without waiting leaves the key only under its latest value
+      List<CompletableFuture> appends = new ArrayList<>();
+      for(int i=0; i<50; i++) appends.add(putDepot.appendAsync(Arrays.asList(5L, Arrays.asList("erin", 50 + i % 2))));
+      for(CompletableFuture f: appends) f.get();
+      assertEquals(Arrays.asList(5L), byAge.invoke(51));
+      assertEquals(Collections.emptyList(), byAge.invoke(50));
+    }
+  }
+
+  @Test
+  public void colocatedTest() throws Exception {
+    runIndexTest(new Module());
+  }
+
+  @Test
+  public void hashPartitionedTest() throws Exception {
+    runIndexTest(new HashPartitionedModule());
+  }
+}
@@ -0,0 +1,93 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.test.*;
+import com.rpl.rama.module.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TaskGlobalCacheTest {
+  public static class Write implements RamaSerializable {
+    public String key;
+    public String value;
+    public Write(String key, String value) { this.key = key; this.value = value; }
+  }
+
+  public static class Read implements RamaSerializable {
+    public String key;
+    public Read(String key) { this.key = key; }
+  }
+
+  public static class Module implements RamaModule {
+    public SimClock clock;
+
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*depot", Depot.random());
+      setup.declareObject("*cache", new TaskGlobalCache().maxEntries(2).expireAfterWriteMillis(1000).clock(clock));
+
+      StreamTopology s = topologies.stream("s");
+      s.pstate("$$values", PState.mapSchema(String.class, String.class));
+      s.pstate("$$reads", PState.mapSchema(String.class, List.class));
+      s.source("*depot").out("*c").subSource("*c",
+        SubSource.create(Write.class)
+                 .macro(TopologyUtils.extractJavaFields("*c", "*key", "*value"))
+                 .localTransform("$$values", Path.key("*key").termVal("*value"))
+                 .macro(TaskGlobalCache.cacheInvalidate("*cache", "*key")),
+        SubSource.create(Read.class)
+                 .macro(TopologyUtils.extractJavaFields("*c", "*key"))
+                 .macro(TaskGlobalCache.readThrough("*cache", "*key", "$$values", Path.key("*key"), "*value"))
+                 .each((TaskGlobalCache c, Object v) -> Arrays.asList(v, c.getHits(), c.getMisses(), c.getEvictions()),
+                       "*cache", "*value").out("*stats")
+                 .localTransform("$$reads", Path.key("*key").termVal("*stats")));
+    }
+  }
+
+  @Test
+  public void cacheTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create();
+        SimClock clock = SimClock.create()) {
+      Module m = new Module();
+      m.clock = clock;
+      cluster.launchModule(m, new LaunchConfig(1, 1));
+
+      String moduleName = Module.class.getName();
+      Depot depot = cluster.clusterDepot(moduleName, "*depot");
+      PState reads = cluster.clusterPState(moduleName, "$$reads");
+
+      depot.append(new Write("a", "1"));
+      depot.append(new Read("a"));
+      assertEquals(Arrays.asList("1", 0L, 1L, 0L), reads.selectOne(Path.key("a")));
+      depot.append(new Read("a"));
+      assertEquals(Arrays.asList("1", 1L, 1L, 0L), reads.selectOne(Path.key("a")));
+
+      // Writes invalidate the cached value
+      depot.append(new Write("a", "2"));
+      depot.append(new Read("a"));
+      assertEquals(Arrays.asList("2", 1L, 2L, 0L), reads.selectOne(Path.key("a")));
+
+      // Missing values are cached as null
+      depot.append(new Read("b"));
+      assertEquals(Arrays.asList(null, 1L, 3L, 0L), reads.selectOne(Path.key("b")));
+      depot.append(new Read("b"));
+      assertEquals(Arrays.asList(null, 2L, 3L, 0L), reads.selectOne(Path.key("b")));
+
+      // Least recently used entry "a" is evicted to make room for "c"
+      depot.append(new Read("c"));
+      assertEquals(Arrays.asList(null, 2L, 4L, 1L), reads.selectOne(Path.key("c")));
+      depot.append(new Read("a"));
+      assertEquals(Arrays.asList("2", 2L, 5L, 2L), reads.selectOne(Path.key("a")));
+
+      // Entries expire after write
+      depot.append(new Read("a"));
+      assertEquals(Arrays.asList("2", 3L, 5L, 2L), reads.selectOne(Path.key("a")));
+      clock.advance(1000);
+      depot.append(new Read("a"));
+      assertEquals(Arrays.asList("2", 3L, 6L, 2L), reads.selectOne(Path.key("a")));
+    }
+  }
+}
@@ -158,6 +158,8 @@ public class TopologySchedulerTest {
   }
 
   public static class StreamProcessingModule implements RamaModule {
+    public SimClock clock;
+
     @Override
     public void define(Setup setup, Topologies topologies) {
       setup.declareDepot("*depot", Depot.random());
@@ -165,7 +167,7 @@ public class TopologySchedulerTest {
 
       StreamTopology s = topologies.stream("s");
       s.pstate("$$p", PState.mapSchema(String.class, Long.class));
-      TopologyScheduler t = new TopologyScheduler("$$p");
+      TopologyScheduler t = new TopologyScheduler("$$p").clock(clock);
       t.declarePStates(s);
 
       s.source("*depot").out("*data")
@@ -226,4 +228,33 @@ public class TopologySchedulerTest {
       attainStableCondition(() -> equals(2L, p.selectOne(Path.key("b"))));
     }
   }
+
+  @Test
+  public void scopedClockTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create();
+        SimClock clock = SimClock.create()) {
+      StreamProcessingModule module = new StreamProcessingModule();
+      module.clock = clock;
+      cluster.launchModule(module, new LaunchConfig(4, 2));
+
+      Depot depot = cluster.clusterDepot(StreamProcessingModule.class.getName(), "*depot");
+      PState p = cluster.clusterPState(StreamProcessingModule.class.getName(), "$$p");
+
+      depot.append(Arrays.asList("a", 10));
+      depot.append(Arrays.asList("b", 20));
+
+      clock.advance(9);
+      Thread.sleep(200);
+      attainStableCondition(() -> p.selectOne(Path.key("a")) == null);
+
+      clock.advance(1);
+      Thread.sleep(200);
+      attainStableCondition(() -> equals(1L, p.selectOne(Path.key("a"))));
+      assertNull(p.selectOne(Path.key("b")));
+
+      clock.advance(10);
+      Thread.sleep(200);
+      attainStableCondition(() -> equals(1L, p.selectOne(Path.key("b"))));
+    }
+  }
 }
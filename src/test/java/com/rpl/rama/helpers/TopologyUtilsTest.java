@@ -1,6 +1,9 @@
 package com.rpl.rama.helpers;
 
 import com.rpl.rama.*;
+import com.rpl.rama.ops.Ops;
+import java.util.*;
+
 import org.junit.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -10,6 +13,10 @@ public class TopologyUtilsTest {
     public Integer b;
   }
 
+  public static class Bar implements RamaSerializable {
+    public String a;
+  }
+
 
   @Test
   public void getFieldByNameTest() {
@@ -24,6 +31,34 @@ public class TopologyUtilsTest {
     assertThrows(Exception.class, () -> TopologyUtils.getFieldByName(f, "c"));
   }
 
+  @Test
+  public void extractJavaFieldAcrossClassesTest() {
+    Foo f = new Foo();
+    f.a = "foo";
+    Bar b = new Bar();
+    b.a = "bar";
+
+    TopologyUtils.ExtractJavaField extract = new TopologyUtils.ExtractJavaField("a");
+    assertEquals("foo", extract.invoke(f));
+    assertEquals("bar", extract.invoke(b));
+    assertEquals("foo", extract.invoke(f));
+    assertThrows(Exception.class, () -> new TopologyUtils.ExtractJavaField("b").invoke(b));
+  }
+
+  @Test
+  public void simClockTest() {
+    SimClock c1 = SimClock.create();
+    try(SimClock c2 = SimClock.create()) {
+      c1.advance(10);
+      c2.advance(3);
+      assertEquals(10, TopologyUtils.currentTimeMillis(c1));
+      assertEquals(3, TopologyUtils.currentTimeMillis(c2));
+      assertTrue(Math.abs(TopologyUtils.currentTimeMillis() - TopologyUtils.currentTimeMillis(null)) < 1000);
+    }
+    c1.close();
+    assertThrows(Exception.class, () -> c1.currentTimeMillis());
+  }
+
   private static Foo testFoo;
 
   @Test
@@ -47,4 +82,76 @@ public class TopologyUtilsTest {
     assertEquals("aaa", testFoo.a);
     assertEquals(2, testFoo.b);
   }
+
+  public static class Address implements RamaSerializable {
+    private String city;
+    public Address(String city) { this.city = city; }
+    public String getCity() { return city; }
+  }
+
+  public static class PoBox extends Address {
+    public PoBox(String city) { super(city); }
+    @Override
+    public String getCity() { return "PO " + super.getCity(); }
+  }
+
+  public static class User implements RamaSerializable {
+    public Address address;
+    private boolean active;
+    public User(Address address, boolean active) { this.address = address; this.active = active; }
+    public boolean isActive() { return active; }
+  }
+
+  public static class Event implements RamaSerializable {
+    public User user;
+    public Integer count;
+    private String name;
+    public Event(User user, Integer count, String name) { this.user = user; this.count = count; this.name = name; }
+    // Accessor in the style of a record component
+    public String name() { return name; }
+  }
+
+  private static List<Object> extracted;
+
+  @Test
+  public void extractFieldsTest() {
+    Block.each(() -> new Event(new User(new Address("paris"), true), 3, "e")).out("*event")
+         .macro(TopologyUtils.extractFields("*event", "*user.address.city", "*user.active", "*count", "*name"))
+         .each((String city, Boolean active, Integer count, String name) -> {
+            extracted = Arrays.asList(city, active, count, name);
+            return null;
+         }, "*city", "*active", "*count", "*name")
+         .execute();
+    assertEquals(Arrays.asList("paris", true, 3, "e"), extracted);
+
+    // Null along a path binds null
+    Block.each(() -> new Event(new User(null, false), 1, "f")).out("*event")
+         .macro(TopologyUtils.extractFields("*event", "*user.address.city", "*name"))
+         .each((String city, String name) -> {
+            extracted = Arrays.asList(city, name);
+            return null;
+         }, "*city", "*name")
+         .execute();
+    assertEquals(Arrays.asList(null, "f"), extracted);
+
+    assertThrows(Exception.class, () -> TopologyUtils.getAccessor(Event.class, "missing"));
+
+    // Cached nested accessors are re-resolved when the class at a hop changes
+    List<Object> cities = new ArrayList<>();
+    List<Event> events = Arrays.asList(new Event(new User(new Address("paris"), true), 1, "a"),
+                                       new Event(new User(new PoBox("lyon"), true), 1, "b"),
+                                       new Event(new User(new Address("nice"), true), 1, "c"));
+    Block.each(Ops.EXPLODE, events).out("*event")
+         .macro(TopologyUtils.extractFields("*event", "*user.address.city"))
+         .each((String city) -> {
+            cities.add(city);
+            return null;
+         }, "*city")
+         .execute();
+    assertEquals(Arrays.asList("paris", "PO lyon", "nice"), cities);
+
+    // Paths ending in the same segment would bind the same var twice
+    assertThrows(IllegalArgumentException.class, () -> TopologyUtils.extractFields("*event", "*user.name", "*name"));
+    assertThrows(IllegalArgumentException.class, () -> TopologyUtils.extractFields("*event", "*count", "*count"));
+  }
 }
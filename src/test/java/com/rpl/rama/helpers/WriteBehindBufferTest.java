@@ -0,0 +1,123 @@
+package com.rpl.rama.helpers;
+
+import com.rpl.rama.*;
+import com.rpl.rama.test.*;
+import com.rpl.rama.module.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class WriteBehindBufferTest {
+  public static class View implements RamaSerializable {
+    public Long postId;
+    public View(Long postId) { this.postId = postId; }
+  }
+
+  public static class Flush implements RamaSerializable { }
+
+  public static class Module implements RamaModule {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*depot", Depot.random());
+      setup.declareObject("*buffer", new WriteBehindBuffer(3).allowLossOnRestart());
+
+      StreamTopology s = topologies.stream("s");
+      s.pstate("$$views", PState.mapSchema(Long.class, Long.class));
+      s.source("*depot").out("*c").subSource("*c",
+        SubSource.create(View.class)
+                 .macro(TopologyUtils.extractJavaFields("*c", "*postId"))
+                 .hashPartition("*postId")
+                 .macro(WriteBehindBuffer.addDelta("*buffer", "$$views", "*postId", 1L)),
+        SubSource.create(Flush.class)
+                 .allPartition()
+                 .macro(WriteBehindBuffer.flush("*buffer", "$$views")));
+    }
+  }
+
+  public static class MicrobatchModule implements RamaModule {
+    @Override
+    public void define(Setup setup, Topologies topologies) {
+      setup.declareDepot("*depot", Depot.random());
+      setup.declareObject("*buffer", new WriteBehindBuffer(2));
+
+      MicrobatchTopology mb = topologies.microbatch("mb");
+      mb.pstate("$$views", PState.mapSchema(Long.class, Long.class));
+      mb.source("*depot").out("*microbatch")
+        .macro(WriteBehindBuffer.beginMicrobatch("*buffer"))
+        .explodeMicrobatch("*microbatch").out("*postId")
+        .hashPartition("*postId")
+        .macro(WriteBehindBuffer.addDelta("*buffer", "$$views", "*postId", 1L))
+        .macro(WriteBehindBuffer.flushMicrobatch("*buffer", "$$views"));
+    }
+  }
+
+  @Test
+  public void microbatchScopeTest() {
+    WriteBehindBuffer buffer = new WriteBehindBuffer(10);
+    buffer.prepareForTask(0, null);
+    assertThrows(IllegalStateException.class, () -> WriteBehindBuffer.bufferDelta(buffer, 1L, 1L));
+
+    // beginMicrobatch and flushMicrobatch bracket the deltas of each microbatch
+    WriteBehindBuffer.begin(buffer);
+    WriteBehindBuffer.bufferDelta(buffer, 1L, 1L);
+    assertEquals(1, buffer.pendingKeys());
+    WriteBehindBuffer.end(buffer);
+
+    // Stream use on the task after a microbatch still fails
+    assertThrows(IllegalStateException.class, () -> WriteBehindBuffer.bufferDelta(buffer, 1L, 1L));
+  }
+
+  @Test
+  public void bufferTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(new Module(), new LaunchConfig(1, 1));
+
+      String moduleName = Module.class.getName();
+      Depot depot = cluster.clusterDepot(moduleName, "*depot");
+      PState views = cluster.clusterPState(moduleName, "$$views");
+
+      for(int i=0; i<5; i++) depot.append(new View(1L));
+      depot.append(new View(2L));
+      assertNull(views.selectOne(Path.key(1L)));
+      assertNull(views.selectOne(Path.key(2L)));
+
+      // Third distinct key reaches the flush threshold
+      depot.append(new View(3L));
+      assertEquals(5L, (long) views.selectOne(Path.key(1L)));
+      assertEquals(1L, (long) views.selectOne(Path.key(2L)));
+      assertEquals(1L, (long) views.selectOne(Path.key(3L)));
+
+      depot.append(new View(1L));
+      depot.append(new View(1L));
+      assertEquals(5L, (long) views.selectOne(Path.key(1L)));
+      depot.append(new Flush());
+      assertEquals(7L, (long) views.selectOne(Path.key(1L)));
+
+      // Flushing an empty buffer is a no-op
+      depot.append(new Flush());
+      assertEquals(7L, (long) views.selectOne(Path.key(1L)));
+    }
+  }
+
+  @Test
+  public void microbatchTest() throws Exception {
+    try(InProcessCluster cluster = InProcessCluster.create()) {
+      cluster.launchModule(new MicrobatchModule(), new LaunchConfig(4, 2));
+
+      String moduleName = MicrobatchModule.class.getName();
+      Depot depot = cluster.clusterDepot(moduleName, "*depot");
+      PState views = cluster.clusterPState(moduleName, "$$views");
+
+      // Deltas below the flush threshold are still written when the microbatch commits
+      for(int i=0; i<5; i++) depot.append(1L);
+      depot.append(2L);
+      for(long postId=3; postId<10; postId++) depot.append(postId);
+      cluster.waitForMicrobatchProcessedCount(moduleName, "mb", 13);
+      assertEquals(5L, (long) views.selectOne(Path.key(1L)));
+      assertEquals(1L, (long) views.selectOne(Path.key(2L)));
+      for(long postId=3; postId<10; postId++) assertEquals(1L, (long) views.selectOne(Path.key(postId)));
+    }
+  }
+}